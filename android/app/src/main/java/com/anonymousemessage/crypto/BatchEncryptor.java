@@ -0,0 +1,214 @@
+package com.anonymousemessage.crypto;
+
+import javax.crypto.SecretKey;
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Parallel AEAD over many (key, plaintext) items, e.g. a backlog flushed after
+ * reconnect or one message fanned out to several recipients.
+ *
+ * Items are split across a dedicated fork-join pool sized to the core count; each
+ * worker uses its thread-local cipher from {@link CryptoEngine}. Results always
+ * come back in input order. {@link #encryptAll} seals into buffers from a
+ * {@link BufferPool}, so a steady stream of batches reuses the same memory.
+ */
+public final class BatchEncryptor {
+
+    /**
+     * One plaintext and the key to seal it with: a plain key gives a CryptoEngine blob,
+     * a ratcheting sending key gives epoch || blob under the given suite
+     */
+    public static final class Item {
+        final SecretKey key;
+        final RatchetingKey sender;
+        final CipherSuite suite;
+        final byte[] plaintext;
+
+        public Item(SecretKey key, byte[] plaintext) {
+            this.key = key;
+            this.sender = null;
+            this.suite = CipherSuites.MANDATORY;
+            this.plaintext = plaintext;
+        }
+
+        public Item(RatchetingKey sender, CipherSuite suite, byte[] plaintext) {
+            this.key = null;
+            this.sender = sender;
+            this.suite = suite;
+            this.plaintext = plaintext;
+        }
+
+        int sealedLength() {
+            return sender != null ? RatchetingKey.sealedLength(plaintext.length)
+                : CryptoEngine.encryptedLength(plaintext.length);
+        }
+
+        int sealInto(byte[] out, int outOffset) throws GeneralSecurityException {
+            if (sender != null) {
+                return sender.encrypt(suite, plaintext, 0, plaintext.length, out, outOffset);
+            }
+            return CryptoEngine.encrypt(suite, key, plaintext, 0, plaintext.length, out, outOffset);
+        }
+    }
+
+    /**
+     * Encrypted outputs held in pooled buffers; close() hands them back to the pool
+     */
+    public static final class Batch implements Closeable {
+        private final BufferPool pool;
+        private final ByteBuffer[] results;
+
+        Batch(BufferPool pool, ByteBuffer[] results) {
+            this.pool = pool;
+            this.results = results;
+        }
+
+        public int size() {
+            return results.length;
+        }
+
+        /**
+         * Read-only view of the sealed blob for item i, valid until close()
+         */
+        public ByteBuffer get(int i) {
+            return results[i].asReadOnlyBuffer();
+        }
+
+        @Override
+        public void close() {
+            for (int i = 0; i < results.length; i++) {
+                pool.release(results[i]);
+                results[i] = null;
+            }
+        }
+    }
+
+    // Below this many bytes per task splitting costs more than it saves
+    private static final int SPLIT_THRESHOLD_BYTES = 16 * 1024;
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private BatchEncryptor() {
+    }
+
+    /**
+     * Encrypts every item in parallel into buffers from the pool. Close the batch once sent.
+     */
+    public static Batch encryptAll(List<Item> items, final BufferPool pool) throws GeneralSecurityException {
+        final Item[] input = items.toArray(new Item[0]);
+        final ByteBuffer[] output = new ByteBuffer[input.length];
+        try {
+            run(new EncryptTask(input, 0, input.length) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                void encryptOne(int i) throws GeneralSecurityException {
+                    ByteBuffer out = pool.acquire(input[i].sealedLength());
+                    output[i] = out;
+                    out.limit(input[i].sealInto(out.array(), out.arrayOffset()));
+                }
+            });
+        } catch (GeneralSecurityException | RuntimeException e) {
+            new Batch(pool, output).close();
+            throw e;
+        }
+        return new Batch(pool, output);
+    }
+
+    /**
+     * Same plaintext sealed once per recipient sending key (epoch || CryptoEngine blob) with the
+     * suite negotiated per recipient, in order
+     */
+    public static List<byte[]> encryptForRecipients(final RatchetingKey[] senders, final CipherSuite[] suites,
+                                                    final byte[] plaintext) throws GeneralSecurityException {
+        Item[] sizing = new Item[senders.length];
+        Arrays.fill(sizing, new Item((SecretKey) null, plaintext));
+        final byte[][] output = new byte[senders.length][];
+        run(new EncryptTask(sizing, 0, sizing.length) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            void encryptOne(int i) throws GeneralSecurityException {
+                output[i] = senders[i].encrypt(suites[i], plaintext);
+            }
+        });
+        return Arrays.asList(output);
+    }
+
+    private static void run(EncryptTask task) throws GeneralSecurityException {
+        if (task.to - task.from == 1 || task.bytes() < SPLIT_THRESHOLD_BYTES) {
+            task.compute();
+        } else {
+            POOL.invoke(task);
+        }
+        if (task.failure != null) {
+            throw task.failure;
+        }
+    }
+
+    private abstract static class EncryptTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final Item[] items;
+        final int from;
+        final int to;
+        volatile GeneralSecurityException failure;
+
+        EncryptTask(Item[] items, int from, int to) {
+            this.items = items;
+            this.from = from;
+            this.to = to;
+        }
+
+        abstract void encryptOne(int i) throws GeneralSecurityException;
+
+        long bytes() {
+            long total = 0;
+            for (int i = from; i < to; i++) {
+                total += items[i].plaintext.length;
+            }
+            return total;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1 || bytes() < SPLIT_THRESHOLD_BYTES) {
+                for (int i = from; i < to; i++) {
+                    try {
+                        encryptOne(i);
+                    } catch (GeneralSecurityException e) {
+                        failure = e;
+                        return;
+                    }
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            EncryptTask left = split(from, mid);
+            EncryptTask right = split(mid, to);
+            invokeAll(left, right);
+            GeneralSecurityException error = left.failure != null ? left.failure : right.failure;
+            if (error != null) {
+                failure = error;
+            }
+        }
+
+        private EncryptTask split(int start, int end) {
+            final EncryptTask parent = this;
+            return new EncryptTask(items, start, end) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                void encryptOne(int i) throws GeneralSecurityException {
+                    parent.encryptOne(i);
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.anonymousemessage.crypto;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Lock-free pool of heap ByteBuffers in power-of-two size classes.
+ *
+ * Buffers larger than the biggest class are allocated on demand and never pooled.
+ * Each class keeps at most maxPerClass idle buffers so the pool cannot grow unbounded.
+ */
+public final class BufferPool {
+
+    private static final int MIN_SHIFT = 6;  // 64 B
+    private static final int MAX_SHIFT = 22; // 4 MiB
+
+    private static final BufferPool SHARED = new BufferPool(64);
+
+    private final int maxPerClass;
+    private final ConcurrentLinkedQueue<ByteBuffer>[] classes;
+    private final AtomicIntegerArray idle;
+
+    @SuppressWarnings("unchecked")
+    public BufferPool(int maxPerClass) {
+        this.maxPerClass = maxPerClass;
+        this.classes = new ConcurrentLinkedQueue[MAX_SHIFT - MIN_SHIFT + 1];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+        }
+        this.idle = new AtomicIntegerArray(classes.length);
+    }
+
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * Returns a cleared buffer with capacity >= minCapacity and limit == minCapacity
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        int index = classIndex(minCapacity);
+        if (index < 0) {
+            return ByteBuffer.allocate(minCapacity);
+        }
+        ByteBuffer buffer = classes[index].poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(1 << (index + MIN_SHIFT));
+        } else {
+            idle.decrementAndGet(index);
+        }
+        buffer.clear();
+        buffer.limit(minCapacity);
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The caller must not touch it afterwards.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.isDirect() || buffer.isReadOnly()) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        if (Integer.bitCount(capacity) != 1) {
+            return;
+        }
+        int index = classIndex(capacity);
+        if (index < 0 || idle.get(index) >= maxPerClass) {
+            return;
+        }
+        idle.incrementAndGet(index);
+        classes[index].offer(buffer);
+    }
+
+    private static int classIndex(int size) {
+        int shift = size <= (1 << MIN_SHIFT) ? MIN_SHIFT : 32 - Integer.numberOfLeadingZeros(size - 1);
+        return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+    }
+}
@@ -0,0 +1,204 @@
+package com.anonymousemessage.crypto;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.modes.ChaCha20Poly1305;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * AEAD algorithms the app can seal with. Both take a 256-bit key and a 96-bit
+ * nonce and produce a 128-bit tag, so blobs only differ in the suite id byte.
+ */
+public enum CipherSuite {
+
+    /**
+     * AES-256-GCM through the platform provider; fastest with AES hardware support
+     */
+    AES_256_GCM((byte) 1) {
+        @Override
+        public int seal(SecretKey key, byte[] nonce, byte[] aad, byte[] in, int offset, int length,
+                        byte[] out, int outOffset) throws GeneralSecurityException {
+            Cipher cipher = init(Cipher.ENCRYPT_MODE, key, nonce, aad);
+            return cipher.doFinal(in, offset, length, out, outOffset);
+        }
+
+        @Override
+        public int open(SecretKey key, byte[] nonce, byte[] aad, byte[] in, int offset, int length,
+                        byte[] out, int outOffset) throws GeneralSecurityException {
+            Cipher cipher = init(Cipher.DECRYPT_MODE, key, nonce, aad);
+            return cipher.doFinal(in, offset, length, out, outOffset);
+        }
+
+        @Override
+        public int seal(SecretKey key, byte[] nonce, byte[] aad, ByteBuffer in, ByteBuffer out)
+                throws GeneralSecurityException {
+            return init(Cipher.ENCRYPT_MODE, key, nonce, aad).doFinal(in, out);
+        }
+
+        @Override
+        public int open(SecretKey key, byte[] nonce, byte[] aad, ByteBuffer in, ByteBuffer out)
+                throws GeneralSecurityException {
+            return init(Cipher.DECRYPT_MODE, key, nonce, aad).doFinal(in, out);
+        }
+
+        private Cipher init(int mode, SecretKey key, byte[] nonce, byte[] aad) throws GeneralSecurityException {
+            Cipher cipher = CryptoEngine.cipher();
+            cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+            if (aad != null) {
+                cipher.updateAAD(aad);
+            }
+            return cipher;
+        }
+    },
+
+    /**
+     * ChaCha20-Poly1305 (RFC 8439) through BouncyCastle; faster on devices without AES instructions
+     */
+    CHACHA20_POLY1305((byte) 2) {
+        private final ThreadLocal<ChaCha20Poly1305> engine = new ThreadLocal<ChaCha20Poly1305>() {
+            @Override
+            protected ChaCha20Poly1305 initialValue() {
+                return new ChaCha20Poly1305();
+            }
+        };
+
+        @Override
+        public int seal(SecretKey key, byte[] nonce, byte[] aad, byte[] in, int offset, int length,
+                        byte[] out, int outOffset) throws GeneralSecurityException {
+            return run(true, key, nonce, aad, in, offset, length, out, outOffset);
+        }
+
+        @Override
+        public int open(SecretKey key, byte[] nonce, byte[] aad, byte[] in, int offset, int length,
+                        byte[] out, int outOffset) throws GeneralSecurityException {
+            return run(false, key, nonce, aad, in, offset, length, out, outOffset);
+        }
+
+        private int run(boolean encrypt, SecretKey key, byte[] nonce, byte[] aad, byte[] in, int offset,
+                        int length, byte[] out, int outOffset) throws GeneralSecurityException {
+            byte[] keyBytes = key.getEncoded();
+            ChaCha20Poly1305 aead = engine.get();
+            try {
+                aead.init(encrypt, new AEADParameters(new KeyParameter(keyBytes), TAG_LENGTH * 8, nonce, aad));
+                int n = aead.processBytes(in, offset, length, out, outOffset);
+                return n + aead.doFinal(out, outOffset + n);
+            } catch (InvalidCipherTextException e) {
+                // Decryption streams plaintext out before the tag check; don't leave it behind
+                Arrays.fill(out, outOffset, Math.min(out.length, outOffset + length), (byte) 0);
+                AEADBadTagException failure = new AEADBadTagException(e.getMessage());
+                failure.initCause(e);
+                throw failure;
+            } catch (RuntimeException e) {
+                throw new GeneralSecurityException("ChaCha20-Poly1305 failed", e);
+            } finally {
+                Arrays.fill(keyBytes, (byte) 0);
+            }
+        }
+    };
+
+    public static final int NONCE_LENGTH = 12;
+    public static final int TAG_LENGTH = 16;
+
+    private final byte id;
+
+    CipherSuite(byte id) {
+        this.id = id;
+    }
+
+    /**
+     * Wire id written in the blob header
+     */
+    public byte id() {
+        return id;
+    }
+
+    /**
+     * Bit for this suite in a capability mask
+     */
+    public int mask() {
+        return 1 << id;
+    }
+
+    /**
+     * Suite for a wire id, or null if unknown
+     */
+    public static CipherSuite fromId(byte id) {
+        for (CipherSuite suite : values()) {
+            if (suite.id == id) {
+                return suite;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Seals in[offset..offset+length) into out as ciphertext || tag; returns bytes written
+     */
+    public abstract int seal(SecretKey key, byte[] nonce, byte[] aad, byte[] in, int offset, int length,
+                             byte[] out, int outOffset) throws GeneralSecurityException;
+
+    /**
+     * Opens ciphertext || tag into out; returns plaintext bytes written
+     */
+    public abstract int open(SecretKey key, byte[] nonce, byte[] aad, byte[] in, int offset, int length,
+                             byte[] out, int outOffset) throws GeneralSecurityException;
+
+    /**
+     * ByteBuffer variant of seal; both buffers advance
+     */
+    public int seal(SecretKey key, byte[] nonce, byte[] aad, ByteBuffer in, ByteBuffer out)
+            throws GeneralSecurityException {
+        return crypt(true, key, nonce, aad, in, out);
+    }
+
+    /**
+     * ByteBuffer variant of open; both buffers advance
+     */
+    public int open(SecretKey key, byte[] nonce, byte[] aad, ByteBuffer in, ByteBuffer out)
+            throws GeneralSecurityException {
+        return crypt(false, key, nonce, aad, in, out);
+    }
+
+    private int crypt(boolean encrypt, SecretKey key, byte[] nonce, byte[] aad, ByteBuffer in, ByteBuffer out)
+            throws GeneralSecurityException {
+        int length = in.remaining();
+        int expected = encrypt ? length + TAG_LENGTH : Math.max(0, length - TAG_LENGTH);
+        if (out.remaining() < expected) {
+            throw new javax.crypto.ShortBufferException("Need " + expected + " bytes, have " + out.remaining());
+        }
+
+        byte[] src;
+        int srcOffset;
+        if (in.hasArray()) {
+            src = in.array();
+            srcOffset = in.arrayOffset() + in.position();
+        } else {
+            src = new byte[length];
+            in.duplicate().get(src);
+            srcOffset = 0;
+        }
+
+        int n;
+        if (out.hasArray()) {
+            int dstOffset = out.arrayOffset() + out.position();
+            n = encrypt ? seal(key, nonce, aad, src, srcOffset, length, out.array(), dstOffset)
+                        : open(key, nonce, aad, src, srcOffset, length, out.array(), dstOffset);
+            out.position(out.position() + n);
+        } else {
+            byte[] dst = new byte[expected];
+            n = encrypt ? seal(key, nonce, aad, src, srcOffset, length, dst, 0)
+                        : open(key, nonce, aad, src, srcOffset, length, dst, 0);
+            out.put(dst, 0, n);
+        }
+        in.position(in.position() + length);
+        return n;
+    }
+}
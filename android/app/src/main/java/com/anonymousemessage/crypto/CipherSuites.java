@@ -0,0 +1,149 @@
+package com.anonymousemessage.crypto;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Picks the AEAD suite for this device and for each conversation.
+ *
+ * {@link #calibrate()} runs a short microbenchmark of every suite on the
+ * current JVM (a few tens of milliseconds) and caches the fastest as the
+ * local preference. Since every blob names its suite, a receiver can open
+ * anything it supports. The sender uses its preferred suite only with a peer whose
+ * advertised capabilities went through {@link #negotiate}, and AES-256-GCM
+ * ({@link #MANDATORY}, which every client supports) everywhere else. Peers
+ * advertise their capabilities in the receipts they send, and are identified by
+ * the contact's public key, the same key the session keys use.
+ */
+public final class CipherSuites {
+
+    /**
+     * Capability mask of every suite this build can open
+     */
+    public static final int SUPPORTED_MASK;
+
+    static {
+        int mask = 0;
+        for (CipherSuite suite : CipherSuite.values()) {
+            mask |= suite.mask();
+        }
+        SUPPORTED_MASK = mask;
+    }
+
+    /**
+     * Suite every client can open; used wherever no negotiation has taken place
+     */
+    public static final CipherSuite MANDATORY = CipherSuite.AES_256_GCM;
+
+    private static final int SAMPLE_BYTES = 16 * 1024;
+    private static final int WARMUP_ROUNDS = 32;
+    private static final long MEASURE_NANOS = 20_000_000L; // per suite
+
+    private static volatile CipherSuite preferred = MANDATORY;
+    private static volatile Map<CipherSuite, Double> lastCalibration = Collections.emptyMap();
+    private static final ConcurrentHashMap<String, CipherSuite> peers = new ConcurrentHashMap<>();
+
+    private CipherSuites() {
+    }
+
+    /**
+     * Local preference, AES-256-GCM until calibrated or restored. Only offered to peers
+     * through {@link #negotiate}; nothing is sealed with it directly.
+     */
+    public static CipherSuite preferred() {
+        return preferred;
+    }
+
+    /**
+     * Restores a preference cached from an earlier calibration on this device
+     */
+    public static void setPreferred(CipherSuite suite) {
+        preferred = suite;
+    }
+
+    /**
+     * Measures every suite on this device and makes the fastest the local preference
+     */
+    public static synchronized CipherSuite calibrate() {
+        Map<CipherSuite, Double> throughput = new EnumMap<>(CipherSuite.class);
+        CipherSuite fastest = MANDATORY;
+        double best = 0;
+        for (CipherSuite suite : CipherSuite.values()) {
+            try {
+                double mbPerSecond = measure(suite);
+                throughput.put(suite, mbPerSecond);
+                if (mbPerSecond > best) {
+                    best = mbPerSecond;
+                    fastest = suite;
+                }
+            } catch (GeneralSecurityException | RuntimeException e) {
+                // Suite unusable on this device; leave it out
+            }
+        }
+        lastCalibration = Collections.unmodifiableMap(throughput);
+        preferred = fastest;
+        return fastest;
+    }
+
+    /**
+     * MB/s per suite from the last calibration, for diagnostics
+     */
+    public static Map<CipherSuite, Double> lastCalibration() {
+        return lastCalibration;
+    }
+
+    /**
+     * Records the capability mask a peer advertised and returns the suite to send to it with
+     */
+    public static CipherSuite negotiate(String peerPublicKey, int peerMask) {
+        CipherSuite local = preferred;
+        CipherSuite chosen = (peerMask & local.mask()) != 0 ? local : MANDATORY;
+        peers.put(peerPublicKey, chosen);
+        return chosen;
+    }
+
+    /**
+     * Suite to send to a peer with: the negotiated one, or AES-256-GCM if it never advertised any
+     */
+    public static CipherSuite forPeer(String peerPublicKey) {
+        CipherSuite suite = peers.get(peerPublicKey);
+        return suite != null ? suite : MANDATORY;
+    }
+
+    public static void forget(String peerPublicKey) {
+        peers.remove(peerPublicKey);
+    }
+
+    private static double measure(CipherSuite suite) throws GeneralSecurityException {
+        byte[] keyBytes = new byte[32];
+        CryptoEngine.random().nextBytes(keyBytes);
+        SecretKey key = new SecretKeySpec(keyBytes, "AES");
+        byte[] plaintext = new byte[SAMPLE_BYTES];
+        byte[] out = new byte[SAMPLE_BYTES + CipherSuite.TAG_LENGTH];
+        // Fresh nonce per round: both providers refuse to reuse a (key, nonce) pair
+        NonceSequencer nonces = new NonceSequencer();
+        byte[] nonce = new byte[CipherSuite.NONCE_LENGTH];
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            nonces.next(SAMPLE_BYTES, nonce, 0);
+            suite.seal(key, nonce, null, plaintext, 0, SAMPLE_BYTES, out, 0);
+        }
+
+        long rounds = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            nonces.next(SAMPLE_BYTES, nonce, 0);
+            suite.seal(key, nonce, null, plaintext, 0, SAMPLE_BYTES, out, 0);
+            rounds++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < MEASURE_NANOS);
+
+        return (rounds * (double) SAMPLE_BYTES) / (elapsed / 1e9) / (1024 * 1024);
+    }
+}
@@ -0,0 +1,331 @@
+package com.anonymousemessage.crypto;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Reusable AEAD engine.
+ *
+ * Blob layout: suite(1) || nonce(12) || ciphertext || tag(16). The suite id says
+ * which {@link CipherSuite} sealed the blob; new blobs use the caller's suite or
+ * {@link CipherSuites#MANDATORY}. Blobs written before the suite byte existed
+ * (plain AES-GCM IV || ciphertext || tag) are still accepted on decrypt. Their
+ * first IV byte is random and names a suite in about 2 of 256 of them, so a blob
+ * that names a suite but fails that suite's tag check is retried as a legacy blob
+ * before it is rejected; stored keys and history from before the upgrade stay readable.
+ *
+ * Cipher and SecureRandom instances are cached per thread so the hot path
+ * never calls Cipher.getInstance or seeds a new RNG. The ByteBuffer API
+ * writes the blob straight into a caller-supplied buffer.
+ *
+ * IVs come from a {@link NonceSequencer} per key (one atomic add per
+ * message) rather than the RNG. A key that reaches its usage limits is refused;
+ * use {@link RatchetingKey} where the key must rotate automatically.
+ */
+public final class CryptoEngine {
+
+    public static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    public static final int GCM_IV_LENGTH = 12; // 96 bits
+    public static final int GCM_TAG_LENGTH = 16; // 128 bits
+    public static final int SUITE_LENGTH = 1;
+    public static final int OVERHEAD = SUITE_LENGTH + GCM_IV_LENGTH + GCM_TAG_LENGTH;
+
+    // Layout before suite ids were added: IV || ciphertext || tag, always AES-GCM
+    private static final int LEGACY_OVERHEAD = GCM_IV_LENGTH + GCM_TAG_LENGTH;
+
+    private static final ThreadLocal<Cipher> CIPHER = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance(TRANSFORMATION);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(TRANSFORMATION + " not available", e);
+            }
+        }
+    };
+
+    private static final ThreadLocal<SecureRandom> RANDOM = new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+            return new SecureRandom();
+        }
+    };
+
+    // Scratch IV per thread; the cipher parameters take their own copy
+    private static final ThreadLocal<byte[]> IV = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[GCM_IV_LENGTH];
+        }
+    };
+
+    // Sequencer per key, striped by key hash so threads on different keys don't share a lock;
+    // keys compare by value so equal keys share one counter
+    private static final int SEQUENCER_STRIPES = 16;
+    private static final SequencerStripe[] SEQUENCERS = new SequencerStripe[SEQUENCER_STRIPES];
+    static {
+        for (int i = 0; i < SEQUENCER_STRIPES; i++) {
+            SEQUENCERS[i] = new SequencerStripe();
+        }
+    }
+
+    // Last (key, sequencer) pair used on this thread, checked by identity before the shared map
+    private static final ThreadLocal<Object[]> LAST_SEQUENCER = new ThreadLocal<Object[]>() {
+        @Override
+        protected Object[] initialValue() {
+            return new Object[2];
+        }
+    };
+
+    private static final class SequencerStripe {
+        final Map<SecretKey, NonceSequencer> keys = new WeakHashMap<SecretKey, NonceSequencer>();
+    }
+
+    private CryptoEngine() {
+    }
+
+    /**
+     * Size of suite || nonce || ciphertext || tag for a plaintext of the given length
+     */
+    public static int encryptedLength(int plaintextLength) {
+        return plaintextLength + OVERHEAD;
+    }
+
+    /**
+     * Size of the plaintext carried by an encrypted blob of the given length
+     */
+    public static int decryptedLength(int encryptedLength) {
+        return Math.max(0, encryptedLength - OVERHEAD);
+    }
+
+    /**
+     * Encrypts the remaining bytes of plaintext with AES-256-GCM and writes the blob into out.
+     * Both buffers advance by the bytes consumed/produced. Returns the bytes written.
+     */
+    public static int encrypt(SecretKey key, ByteBuffer plaintext, ByteBuffer out) throws GeneralSecurityException {
+        return encrypt(CipherSuites.MANDATORY, key, sequencerFor(key), plaintext, out);
+    }
+
+    /**
+     * ByteBuffer variant with an explicit suite, e.g. the one negotiated with a peer
+     */
+    public static int encrypt(CipherSuite suite, SecretKey key, ByteBuffer plaintext, ByteBuffer out)
+            throws GeneralSecurityException {
+        return encrypt(suite, key, sequencerFor(key), plaintext, out);
+    }
+
+    static int encrypt(CipherSuite suite, SecretKey key, NonceSequencer nonces, ByteBuffer plaintext, ByteBuffer out)
+            throws GeneralSecurityException {
+        int required = encryptedLength(plaintext.remaining());
+        if (out.remaining() < required) {
+            throw new ShortBufferException("Need " + required + " bytes, have " + out.remaining());
+        }
+
+        byte[] iv = IV.get();
+        nextNonce(nonces, plaintext.remaining(), iv, 0);
+        out.put(suite.id());
+        out.put(iv);
+        return SUITE_LENGTH + GCM_IV_LENGTH + suite.seal(key, iv, null, plaintext, out);
+    }
+
+    /**
+     * Decrypts a blob from the remaining bytes of input into out.
+     * Returns the number of plaintext bytes written.
+     */
+    public static int decrypt(SecretKey key, ByteBuffer input, ByteBuffer out) throws GeneralSecurityException {
+        if (input.remaining() < LEGACY_OVERHEAD) {
+            throw new GeneralSecurityException("Encrypted data too short: " + input.remaining());
+        }
+
+        int start = input.position();
+        CipherSuite suite = input.remaining() >= OVERHEAD ? CipherSuite.fromId(input.get(start)) : null;
+        byte[] iv = IV.get();
+        if (suite != null) {
+            int outStart = out.position();
+            input.position(start + SUITE_LENGTH);
+            input.get(iv);
+            try {
+                return suite.open(key, iv, null, input, out);
+            } catch (AEADBadTagException e) {
+                // Possibly a legacy blob whose IV starts with a suite id
+                input.position(start);
+                out.position(outStart);
+            }
+        }
+        input.get(iv);
+        return CipherSuite.AES_256_GCM.open(key, iv, null, input, out);
+    }
+
+    /**
+     * Array variant of {@link #encrypt(SecretKey, ByteBuffer, ByteBuffer)}
+     */
+    public static int encrypt(SecretKey key, byte[] plaintext, int offset, int length,
+                              byte[] out, int outOffset) throws GeneralSecurityException {
+        return encrypt(CipherSuites.MANDATORY, key, sequencerFor(key), plaintext, offset, length, out, outOffset);
+    }
+
+    /**
+     * Array variant with an explicit suite, e.g. the one negotiated for a conversation
+     */
+    public static int encrypt(CipherSuite suite, SecretKey key, byte[] plaintext, int offset, int length,
+                              byte[] out, int outOffset) throws GeneralSecurityException {
+        return encrypt(suite, key, sequencerFor(key), plaintext, offset, length, out, outOffset);
+    }
+
+    static int encrypt(CipherSuite suite, SecretKey key, NonceSequencer nonces, byte[] plaintext, int offset,
+                       int length, byte[] out, int outOffset) throws GeneralSecurityException {
+        int required = encryptedLength(length);
+        if (out.length - outOffset < required) {
+            throw new ShortBufferException("Need " + required + " bytes, have " + (out.length - outOffset));
+        }
+
+        byte[] iv = IV.get();
+        nextNonce(nonces, length, iv, 0);
+        out[outOffset] = suite.id();
+        System.arraycopy(iv, 0, out, outOffset + SUITE_LENGTH, GCM_IV_LENGTH);
+        return SUITE_LENGTH + GCM_IV_LENGTH
+            + suite.seal(key, iv, null, plaintext, offset, length, out, outOffset + SUITE_LENGTH + GCM_IV_LENGTH);
+    }
+
+    /**
+     * Array variant of {@link #decrypt(SecretKey, ByteBuffer, ByteBuffer)}. out must have room
+     * for {@link #decryptedLength(int)} bytes; legacy blobs decrypt to one byte more.
+     */
+    public static int decrypt(SecretKey key, byte[] encrypted, int offset, int length,
+                              byte[] out, int outOffset) throws GeneralSecurityException {
+        if (length < LEGACY_OVERHEAD) {
+            throw new GeneralSecurityException("Encrypted data too short: " + length);
+        }
+
+        byte[] iv = IV.get();
+        CipherSuite suite = length >= OVERHEAD ? CipherSuite.fromId(encrypted[offset]) : null;
+        if (suite != null) {
+            System.arraycopy(encrypted, offset + SUITE_LENGTH, iv, 0, GCM_IV_LENGTH);
+            int headerLength = SUITE_LENGTH + GCM_IV_LENGTH;
+            try {
+                return suite.open(key, iv, null, encrypted, offset + headerLength, length - headerLength,
+                    out, outOffset);
+            } catch (AEADBadTagException e) {
+                // Possibly a legacy blob whose IV starts with a suite id
+            }
+        }
+        return openLegacy(key, encrypted, offset, length, out, outOffset);
+    }
+
+    /**
+     * Encrypts into a freshly allocated blob (single allocation)
+     */
+    public static byte[] encrypt(byte[] plaintext, SecretKey key) throws GeneralSecurityException {
+        return encrypt(CipherSuites.MANDATORY, plaintext, key);
+    }
+
+    /**
+     * Encrypts with an explicit suite into a freshly allocated blob
+     */
+    public static byte[] encrypt(CipherSuite suite, byte[] plaintext, SecretKey key) throws GeneralSecurityException {
+        byte[] result = new byte[encryptedLength(plaintext.length)];
+        encrypt(suite, key, sequencerFor(key), plaintext, 0, plaintext.length, result, 0);
+        return result;
+    }
+
+    /**
+     * Decrypts a blob into a freshly allocated plaintext array
+     */
+    public static byte[] decrypt(byte[] encryptedData, SecretKey key) throws GeneralSecurityException {
+        return decrypt(encryptedData, 0, encryptedData.length, key);
+    }
+
+    /**
+     * Decrypts the blob at encrypted[offset..offset+length) into a freshly allocated array
+     */
+    public static byte[] decrypt(byte[] encrypted, int offset, int length, SecretKey key)
+            throws GeneralSecurityException {
+        if (length < LEGACY_OVERHEAD) {
+            throw new GeneralSecurityException("Encrypted data too short: " + length);
+        }
+
+        CipherSuite suite = length >= OVERHEAD ? CipherSuite.fromId(encrypted[offset]) : null;
+        if (suite != null) {
+            byte[] iv = IV.get();
+            System.arraycopy(encrypted, offset + SUITE_LENGTH, iv, 0, GCM_IV_LENGTH);
+            int headerLength = SUITE_LENGTH + GCM_IV_LENGTH;
+            byte[] result = new byte[length - OVERHEAD];
+            try {
+                suite.open(key, iv, null, encrypted, offset + headerLength, length - headerLength, result, 0);
+                return result;
+            } catch (AEADBadTagException e) {
+                // Possibly a legacy blob whose IV starts with a suite id
+            }
+        }
+        // Legacy layout carries one plaintext byte more per blob length
+        byte[] result = new byte[length - LEGACY_OVERHEAD];
+        openLegacy(key, encrypted, offset, length, result, 0);
+        return result;
+    }
+
+    /**
+     * Suite that sealed a blob, or null for legacy and unknown blobs
+     */
+    public static CipherSuite suiteOf(byte[] encrypted, int offset) {
+        return CipherSuite.fromId(encrypted[offset]);
+    }
+
+    private static int openLegacy(SecretKey key, byte[] encrypted, int offset, int length,
+                                  byte[] out, int outOffset) throws GeneralSecurityException {
+        byte[] iv = IV.get();
+        System.arraycopy(encrypted, offset, iv, 0, GCM_IV_LENGTH);
+        return CipherSuite.AES_256_GCM.open(key, iv, null, encrypted, offset + GCM_IV_LENGTH,
+            length - GCM_IV_LENGTH, out, outOffset);
+    }
+
+    /**
+     * Nonce sequencer shared by every encryption under this key
+     */
+    static NonceSequencer sequencerFor(SecretKey key) {
+        Object[] last = LAST_SEQUENCER.get();
+        if (last[0] == key) {
+            return (NonceSequencer) last[1];
+        }
+        int hash = key.hashCode();
+        SequencerStripe stripe = SEQUENCERS[(hash ^ (hash >>> 16)) & (SEQUENCER_STRIPES - 1)];
+        NonceSequencer sequencer;
+        synchronized (stripe) {
+            sequencer = stripe.keys.get(key);
+            if (sequencer == null) {
+                sequencer = new NonceSequencer();
+                stripe.keys.put(key, sequencer);
+            }
+        }
+        last[0] = key;
+        last[1] = sequencer;
+        return sequencer;
+    }
+
+    private static void nextNonce(NonceSequencer nonces, int length, byte[] iv, int offset)
+            throws GeneralSecurityException {
+        if (!nonces.next(length, iv, offset)) {
+            throw new KeyUsageLimitException("AEAD usage limit reached for this key; rotate it");
+        }
+    }
+
+    /**
+     * Per-thread GCM cipher for package-internal callers that need AAD or custom nonces
+     */
+    static Cipher cipher() {
+        return CIPHER.get();
+    }
+
+    /**
+     * Per-thread SecureRandom shared by the crypto package
+     */
+    public static SecureRandom random() {
+        return RANDOM.get();
+    }
+}
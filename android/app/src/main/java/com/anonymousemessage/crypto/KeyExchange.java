@@ -0,0 +1,123 @@
+package com.anonymousemessage.crypto;
+
+import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.bouncycastle.crypto.agreement.X25519Agreement;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.generators.HKDFBytesGenerator;
+import org.bouncycastle.crypto.generators.X25519KeyPairGenerator;
+import org.bouncycastle.crypto.params.HKDFParameters;
+import org.bouncycastle.crypto.params.X25519KeyGenerationParameters;
+import org.bouncycastle.crypto.params.X25519PrivateKeyParameters;
+import org.bouncycastle.crypto.params.X25519PublicKeyParameters;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * X25519 key agreement and HKDF-SHA256 derivation (BouncyCastle lightweight API)
+ */
+public final class KeyExchange {
+
+    public static final int KEY_LENGTH = 32;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] SESSION_INFO = "AnonymousMessage session v1".getBytes(UTF_8);
+
+    private KeyExchange() {
+    }
+
+    /**
+     * Generates a new X25519 key pair as { privateKey, publicKey }, 32 bytes each
+     */
+    public static byte[][] generateKeyPair() {
+        X25519KeyPairGenerator generator = new X25519KeyPairGenerator();
+        generator.init(new X25519KeyGenerationParameters(CryptoEngine.random()));
+        AsymmetricCipherKeyPair pair = generator.generateKeyPair();
+        return new byte[][] {
+            ((X25519PrivateKeyParameters) pair.getPrivate()).getEncoded(),
+            ((X25519PublicKeyParameters) pair.getPublic()).getEncoded()
+        };
+    }
+
+    /**
+     * Public key for a raw X25519 private key
+     */
+    public static byte[] publicKey(byte[] privateKey) {
+        return new X25519PrivateKeyParameters(privateKey, 0).generatePublicKey().getEncoded();
+    }
+
+    /**
+     * Raw X25519 shared secret between our private key and a peer public key
+     */
+    public static byte[] agree(byte[] privateKey, byte[] peerPublicKey) throws GeneralSecurityException {
+        if (privateKey.length != KEY_LENGTH || peerPublicKey.length != KEY_LENGTH) {
+            throw new GeneralSecurityException("X25519 keys must be " + KEY_LENGTH + " bytes");
+        }
+        X25519Agreement agreement = new X25519Agreement();
+        agreement.init(new X25519PrivateKeyParameters(privateKey, 0));
+        byte[] shared = new byte[agreement.getAgreementSize()];
+        try {
+            agreement.calculateAgreement(new X25519PublicKeyParameters(peerPublicKey, 0), shared, 0);
+        } catch (IllegalStateException e) {
+            // BouncyCastle refuses the all-zero secret a low-order peer point yields
+            throw new GeneralSecurityException("Invalid peer public key", e);
+        }
+
+        // Older BouncyCastle releases return the all-zero secret instead
+        int acc = 0;
+        for (byte b : shared) {
+            acc |= b;
+        }
+        if (acc == 0) {
+            throw new GeneralSecurityException("Invalid peer public key");
+        }
+        return shared;
+    }
+
+    /**
+     * HKDF-SHA256 with an explicit salt and info
+     */
+    public static byte[] hkdf(byte[] inputKeyMaterial, byte[] salt, byte[] info, int length) {
+        HKDFBytesGenerator hkdf = new HKDFBytesGenerator(new SHA256Digest());
+        hkdf.init(new HKDFParameters(inputKeyMaterial, salt, info));
+        byte[] out = new byte[length];
+        hkdf.generateBytes(out, 0, length);
+        return out;
+    }
+
+    /**
+     * Derives the symmetric session key for one epoch of a conversation. The salt
+     * binds both public keys in a canonical order so both sides derive the same key.
+     */
+    public static SecretKey deriveSessionKey(byte[] sharedSecret, byte[] ourPublicKey,
+                                             byte[] peerPublicKey, int epoch) {
+        boolean oursFirst = compare(ourPublicKey, peerPublicKey) <= 0;
+        byte[] salt = new byte[ourPublicKey.length + peerPublicKey.length];
+        System.arraycopy(oursFirst ? ourPublicKey : peerPublicKey, 0, salt, 0, KEY_LENGTH);
+        System.arraycopy(oursFirst ? peerPublicKey : ourPublicKey, 0, salt, KEY_LENGTH, KEY_LENGTH);
+
+        byte[] info = Arrays.copyOf(SESSION_INFO, SESSION_INFO.length + 4);
+        info[SESSION_INFO.length] = (byte) (epoch >>> 24);
+        info[SESSION_INFO.length + 1] = (byte) (epoch >>> 16);
+        info[SESSION_INFO.length + 2] = (byte) (epoch >>> 8);
+        info[SESSION_INFO.length + 3] = (byte) epoch;
+
+        byte[] keyBytes = hkdf(sharedSecret, salt, info, KEY_LENGTH);
+        SecretKey key = new SecretKeySpec(keyBytes, "AES");
+        Arrays.fill(keyBytes, (byte) 0);
+        return key;
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return a.length - b.length;
+    }
+}
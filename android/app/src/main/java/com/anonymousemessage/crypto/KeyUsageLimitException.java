@@ -0,0 +1,15 @@
+package com.anonymousemessage.crypto;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * Thrown when a key has sealed as many messages or bytes as its nonce sequencer allows
+ */
+public class KeyUsageLimitException extends GeneralSecurityException {
+
+    private static final long serialVersionUID = 1L;
+
+    public KeyUsageLimitException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,79 @@
+package com.anonymousemessage.crypto;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deterministic 96-bit GCM nonces for one key: a random 32-bit prefix followed by
+ * a 64-bit counter that starts at a random offset. Two sequencers for the same key
+ * (e.g. across restarts) only collide if both their prefixes and their counter
+ * ranges overlap.
+ *
+ * Usage is counted in AES blocks: each message costs one block plus one per 16
+ * bytes of plaintext. One atomic add per nonce both reserves the message's blocks
+ * and yields its counter, so a single budget bounds the message count and the
+ * bytes sealed under the key. The count lives in memory only: the limits apply
+ * per process, and a restart begins a fresh budget under a fresh prefix.
+ */
+public final class NonceSequencer {
+
+    private static final int BLOCK_SHIFT = 4; // 16-byte AES blocks
+
+    // Conservative AES-GCM limit per key: 2^32 blocks, i.e. at most 2^32 messages and 64 GiB
+    public static final long DEFAULT_MAX_BLOCKS = 1L << 32;
+
+    private final int prefix;
+    private final long start;
+    private final long maxBlocks;
+    private final AtomicLong blocks = new AtomicLong();
+
+    public NonceSequencer() {
+        this(DEFAULT_MAX_BLOCKS);
+    }
+
+    public NonceSequencer(long maxBlocks) {
+        this.prefix = CryptoEngine.random().nextInt();
+        // Top bit cleared so the counter cannot wrap within maxBlocks
+        this.start = CryptoEngine.random().nextLong() >>> 1;
+        this.maxBlocks = maxBlocks;
+    }
+
+    /**
+     * Blocks a message of plaintextLength bytes uses up
+     */
+    public static long cost(int plaintextLength) {
+        return 1 + ((plaintextLength + (1L << BLOCK_SHIFT) - 1) >>> BLOCK_SHIFT);
+    }
+
+    /**
+     * Writes the next nonce into iv[offset..offset+12) and accounts for plaintextLength
+     * bytes. Returns false, writing nothing usable, once the key has hit its limit.
+     */
+    public boolean next(int plaintextLength, byte[] iv, int offset) {
+        long cost = cost(plaintextLength);
+        long used = blocks.getAndAdd(cost);
+        if (used + cost > maxBlocks) {
+            return false;
+        }
+        // Counters advance by at least one per message, so no two messages share one
+        long counter = start + used;
+        iv[offset] = (byte) (prefix >>> 24);
+        iv[offset + 1] = (byte) (prefix >>> 16);
+        iv[offset + 2] = (byte) (prefix >>> 8);
+        iv[offset + 3] = (byte) prefix;
+        for (int i = 0; i < 8; i++) {
+            iv[offset + 4 + i] = (byte) (counter >>> (56 - 8 * i));
+        }
+        return true;
+    }
+
+    public boolean isExhausted() {
+        return blocks.get() >= maxBlocks;
+    }
+
+    /**
+     * Blocks used so far in this process
+     */
+    public long blockCount() {
+        return Math.min(blocks.get(), maxBlocks);
+    }
+}
@@ -0,0 +1,206 @@
+package com.anonymousemessage.crypto;
+
+import org.bouncycastle.crypto.generators.Argon2BytesGenerator;
+import org.bouncycastle.crypto.params.Argon2Parameters;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Argon2id password hashing with cost parameters calibrated to the device.
+ *
+ * Verifiers use the PHC string format
+ * ({@code $argon2id$v=19$m=<KiB>,t=<passes>,p=<lanes>$<salt>$<hash>}), so the
+ * parameters travel with the hash and a verifier made on a fast phone still
+ * checks on a slow one. {@link #calibrate(long)} picks parameters that take
+ * roughly the target time here; they are only used for new verifiers.
+ */
+public final class PasswordKdf {
+
+    /**
+     * Argon2id cost parameters
+     */
+    public static final class Params {
+        public final int memoryKiB;
+        public final int iterations;
+        public final int parallelism;
+
+        public Params(int memoryKiB, int iterations, int parallelism) {
+            if (memoryKiB < 8 * parallelism || iterations < 1 || parallelism < 1) {
+                throw new IllegalArgumentException("Invalid Argon2 parameters m=" + memoryKiB
+                    + " t=" + iterations + " p=" + parallelism);
+            }
+            this.memoryKiB = memoryKiB;
+            this.iterations = iterations;
+            this.parallelism = parallelism;
+        }
+
+        @Override
+        public String toString() {
+            return "m=" + memoryKiB + ",t=" + iterations + ",p=" + parallelism;
+        }
+
+        /**
+         * Parses the "m=..,t=..,p=.." form produced by {@link #toString()}
+         */
+        public static Params parse(String value) {
+            int m = -1;
+            int t = -1;
+            int p = -1;
+            for (String part : value.split(",")) {
+                int eq = part.indexOf('=');
+                if (eq < 0) {
+                    throw new IllegalArgumentException("Malformed Argon2 parameters: " + value);
+                }
+                int n = Integer.parseInt(part.substring(eq + 1));
+                switch (part.substring(0, eq)) {
+                    case "m": m = n; break;
+                    case "t": t = n; break;
+                    case "p": p = n; break;
+                    default: throw new IllegalArgumentException("Unknown Argon2 parameter: " + part);
+                }
+            }
+            return new Params(m, t, p);
+        }
+    }
+
+    // OWASP minimum for Argon2id; used until the device has been calibrated
+    public static final Params DEFAULT_PARAMS = new Params(19 * 1024, 2, 1);
+
+    public static final long DEFAULT_TARGET_MILLIS = 250;
+
+    private static final int MIN_MEMORY_KIB = 8 * 1024;
+    private static final int MAX_MEMORY_KIB = 64 * 1024;
+    private static final int MAX_ITERATIONS = 10;
+    // Upper bounds accepted from verifiers, so a crafted one cannot exhaust memory or CPU
+    private static final int MAX_VERIFY_MEMORY_KIB = 256 * 1024;
+    private static final int MAX_VERIFY_ITERATIONS = 64;
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 32;
+    private static final String PREFIX = "$argon2id$v=19$";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Base64.Encoder B64 = Base64.getEncoder().withoutPadding();
+
+    private static volatile Params params = DEFAULT_PARAMS;
+
+    private PasswordKdf() {
+    }
+
+    /**
+     * Parameters used for new verifiers
+     */
+    public static Params params() {
+        return params;
+    }
+
+    public static void setParams(Params value) {
+        params = value;
+    }
+
+    /**
+     * Measures Argon2id on this device and chooses parameters that take about targetMillis.
+     * Memory is reduced first if a single pass is already too slow, then passes are added
+     * until the target is reached. The result becomes {@link #params()}. Blocks for a few
+     * multiples of the target; call it off the UI thread.
+     */
+    public static Params calibrate(long targetMillis) {
+        // BouncyCastle fills lanes one after another, so extra lanes would add cost without speed
+        int lanes = 1;
+        // Leave the heap plenty of room: Argon2 allocates all of its memory up front
+        long heapKiB = Runtime.getRuntime().maxMemory() / 1024;
+        int memory = (int) Math.max(MIN_MEMORY_KIB, Math.min(MAX_MEMORY_KIB, heapKiB / 8));
+
+        byte[] password = "calibration".getBytes(UTF_8);
+        byte[] salt = new byte[SALT_LENGTH];
+        // Warm-up so the JIT has compiled the block function before we measure
+        derive(password, salt, new Params(MIN_MEMORY_KIB, 1, lanes), HASH_LENGTH);
+
+        double millisPerPass = timePass(password, salt, memory, lanes);
+        while (millisPerPass > targetMillis && memory / 2 >= MIN_MEMORY_KIB) {
+            memory /= 2;
+            millisPerPass = timePass(password, salt, memory, lanes);
+        }
+        int iterations = (int) Math.max(1, Math.min(MAX_ITERATIONS, targetMillis / Math.max(1.0, millisPerPass)));
+
+        Params chosen = new Params(memory, iterations, lanes);
+        params = chosen;
+        return chosen;
+    }
+
+    /**
+     * Hashes a password with a fresh salt and the current parameters into a PHC string
+     */
+    public static String hash(String password) {
+        return hash(password, params);
+    }
+
+    public static String hash(String password, Params cost) {
+        byte[] salt = new byte[SALT_LENGTH];
+        CryptoEngine.random().nextBytes(salt);
+        byte[] secret = password.getBytes(UTF_8);
+        try {
+            byte[] hash = derive(secret, salt, cost, HASH_LENGTH);
+            return PREFIX + cost + "$" + B64.encodeToString(salt) + "$" + B64.encodeToString(hash);
+        } finally {
+            Arrays.fill(secret, (byte) 0);
+        }
+    }
+
+    /**
+     * Checks a password against a verifier produced by {@link #hash(String)}, in constant time
+     */
+    public static boolean verify(String password, String encoded) throws GeneralSecurityException {
+        String[] parts = encoded.split("\\$");
+        // "", "argon2id", "v=19", params, salt, hash
+        if (parts.length != 6 || !"argon2id".equals(parts[1]) || !"v=19".equals(parts[2])) {
+            throw new GeneralSecurityException("Unsupported password verifier");
+        }
+        byte[] salt;
+        byte[] expected;
+        Params cost;
+        try {
+            cost = Params.parse(parts[3]);
+            salt = Base64.getDecoder().decode(parts[4]);
+            expected = Base64.getDecoder().decode(parts[5]);
+        } catch (IllegalArgumentException e) {
+            throw new GeneralSecurityException("Malformed password verifier", e);
+        }
+        if (cost.memoryKiB > MAX_VERIFY_MEMORY_KIB || cost.iterations > MAX_VERIFY_ITERATIONS) {
+            throw new GeneralSecurityException("Password verifier cost too high: " + cost);
+        }
+        byte[] secret = password.getBytes(UTF_8);
+        try {
+            return MessageDigest.isEqual(expected, derive(secret, salt, cost, expected.length));
+        } finally {
+            Arrays.fill(secret, (byte) 0);
+        }
+    }
+
+    /**
+     * Raw Argon2id output, e.g. for deriving a local storage key from a passphrase
+     */
+    public static byte[] derive(byte[] password, byte[] salt, Params cost, int length) {
+        Argon2Parameters parameters = new Argon2Parameters.Builder(Argon2Parameters.ARGON2_id)
+            .withVersion(Argon2Parameters.ARGON2_VERSION_13)
+            .withMemoryAsKB(cost.memoryKiB)
+            .withIterations(cost.iterations)
+            .withParallelism(cost.parallelism)
+            .withSalt(salt)
+            .build();
+        Argon2BytesGenerator generator = new Argon2BytesGenerator();
+        generator.init(parameters);
+        byte[] out = new byte[length];
+        generator.generateBytes(password, out);
+        return out;
+    }
+
+    private static double timePass(byte[] password, byte[] salt, int memoryKiB, int lanes) {
+        long start = System.nanoTime();
+        derive(password, salt, new Params(memoryKiB, 1, lanes), HASH_LENGTH);
+        return (System.nanoTime() - start) / 1e6;
+    }
+}
@@ -0,0 +1,367 @@
+package com.anonymousemessage.crypto;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of X25519 key pairs generated ahead of time, so registration and new
+ * handshakes never wait on key generation.
+ *
+ * {@link #take()} polls a lock-free queue. When the pool drops below the low
+ * watermark a single low-priority background thread refills it to the target.
+ * The pool is persisted to one file sealed with the storage key (written to a
+ * temp file and renamed) after every refill. take() never rewrites that file:
+ * it appends the key's id to a tombstone file next to it before handing the key
+ * out, and loading skips tombstoned ids, so a one-time key is never handed out
+ * twice, even across a crash. If the append fails the caller gets a fresh
+ * unpooled key. Tombstones are dropped when the next start rewrites the pool.
+ */
+public final class PrekeyPool {
+
+    /**
+     * One-time key pair. The caller owns it after take() and should wipe() it once used.
+     */
+    public static final class Prekey {
+        public final int id;
+        private final byte[] publicKey;
+        private final byte[] privateKey;
+
+        Prekey(int id, byte[] publicKey, byte[] privateKey) {
+            this.id = id;
+            this.publicKey = publicKey;
+            this.privateKey = privateKey;
+        }
+
+        public byte[] publicKey() {
+            return publicKey;
+        }
+
+        public byte[] privateKey() {
+            return privateKey;
+        }
+
+        public void wipe() {
+            Arrays.fill(privateKey, (byte) 0);
+        }
+    }
+
+    private static final int FORMAT_VERSION = 1;
+    private static final int KEY_LENGTH = 32;
+
+    private static final ExecutorService REFILLER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "PrekeyRefill");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    private final ConcurrentLinkedQueue<Prekey> pool = new ConcurrentLinkedQueue<Prekey>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final AtomicBoolean refillScheduled = new AtomicBoolean();
+    private final AtomicInteger misses = new AtomicInteger();
+    private volatile boolean closed;
+    private volatile FileChannel tombstones; // append-only; opened by start() once loaded
+
+    private final File file;
+    private final File tombstoneFile;
+    private final SecretKey storageKey;
+    private final int lowWatermark;
+    private final int targetWatermark;
+
+    public PrekeyPool(File file, SecretKey storageKey, int lowWatermark, int targetWatermark) {
+        if (lowWatermark < 0 || targetWatermark <= lowWatermark) {
+            throw new IllegalArgumentException("Need 0 <= low < target, got " + lowWatermark + "/" + targetWatermark);
+        }
+        this.file = file;
+        this.tombstoneFile = new File(file.getPath() + ".used");
+        this.storageKey = storageKey;
+        this.lowWatermark = lowWatermark;
+        this.targetWatermark = targetWatermark;
+    }
+
+    /**
+     * Loads persisted keys (on the refill thread) and tops the pool up to the target
+     */
+    public void start() {
+        REFILLER.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<Prekey> loaded = new ArrayList<Prekey>();
+                try {
+                    loaded = load();
+                } catch (IOException | GeneralSecurityException e) {
+                    // Unreadable (e.g. storage key changed on logout); start over
+                    file.delete();
+                    tombstoneFile.delete();
+                }
+                try {
+                    tombstones = new FileOutputStream(tombstoneFile, true).getChannel();
+                } catch (IOException e) {
+                    // take() can't mark keys used, so it hands out unpooled keys instead
+                }
+                for (Prekey prekey : loaded) {
+                    pool.offer(prekey);
+                    size.incrementAndGet();
+                }
+                refillScheduled.set(true);
+                refill();
+            }
+        });
+    }
+
+    /**
+     * Hands out a one-time key pair once its tombstone is on disk. Falls back to generating
+     * one inline if the pool is empty or the tombstone can't be written.
+     */
+    public Prekey take() throws GeneralSecurityException {
+        Prekey prekey = pool.poll();
+        if (prekey != null) {
+            if (size.decrementAndGet() < lowWatermark) {
+                scheduleRefill();
+            }
+            try {
+                // The key must be marked used on disk before anyone uses it
+                markUsed(prekey.id);
+                return prekey;
+            } catch (IOException e) {
+                // Still on disk and may be loaded again; never hand it out
+                prekey.wipe();
+                misses.incrementAndGet();
+                return generateUnpooled();
+            }
+        }
+        misses.incrementAndGet();
+        scheduleRefill();
+        return generate();
+    }
+
+    /**
+     * Key pair generated on the spot, for callers running before a pool exists
+     */
+    public static Prekey generateUnpooled() throws GeneralSecurityException {
+        byte[][] pair = KeyExchange.generateKeyPair();
+        return new Prekey(0, pair[1], pair[0]);
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Number of take() calls that found the pool empty and generated inline
+     */
+    public int misses() {
+        return misses.get();
+    }
+
+    /**
+     * Wipes every pooled key, deletes the file and stops refilling, e.g. on logout
+     */
+    public void close() {
+        closed = true;
+        Prekey prekey;
+        while ((prekey = pool.poll()) != null) {
+            size.decrementAndGet();
+            prekey.wipe();
+        }
+        closeQuietly(tombstones);
+        file.delete();
+        tombstoneFile.delete();
+    }
+
+    private void scheduleRefill() {
+        if (refillScheduled.compareAndSet(false, true)) {
+            REFILLER.execute(new Runnable() {
+                @Override
+                public void run() {
+                    refill();
+                }
+            });
+        }
+    }
+
+    private void refill() {
+        if (closed) {
+            return;
+        }
+        try {
+            while (size.get() < targetWatermark && !closed) {
+                pool.offer(generate());
+                size.incrementAndGet();
+            }
+        } catch (GeneralSecurityException e) {
+            // Retried on the next take()
+        } finally {
+            refillScheduled.set(false);
+        }
+        persistQuietly();
+    }
+
+    private Prekey generate() throws GeneralSecurityException {
+        byte[][] pair = KeyExchange.generateKeyPair();
+        return new Prekey(nextId.getAndIncrement(), pair[1], pair[0]);
+    }
+
+    private void persistQuietly() {
+        if (closed) {
+            return;
+        }
+        try {
+            persist();
+        } catch (IOException | GeneralSecurityException e) {
+            // Pool stays usable in memory; the next refill writes again
+        }
+    }
+
+    private void persist() throws IOException, GeneralSecurityException {
+        write(new ArrayList<Prekey>(pool));
+    }
+
+    // Serialized so an older snapshot can never overwrite a newer one
+    private synchronized void write(List<Prekey> snapshot) throws IOException, GeneralSecurityException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8 + snapshot.size() * (4 + 2 * KEY_LENGTH));
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(FORMAT_VERSION);
+        out.writeInt(nextId.get());
+        out.writeInt(snapshot.size());
+        for (Prekey prekey : snapshot) {
+            out.writeInt(prekey.id);
+            out.write(prekey.publicKey);
+            out.write(prekey.privateKey);
+        }
+        out.flush();
+        byte[] plain = bytes.toByteArray();
+        byte[] sealed = CryptoEngine.encrypt(plain, storageKey);
+        Arrays.fill(plain, (byte) 0);
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(tmp);
+        try {
+            stream.write(sealed);
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    // Concurrent appends through one channel don't interleave; ids are never reused
+    private void markUsed(int id) throws IOException {
+        FileChannel channel = tombstones;
+        if (channel == null) {
+            throw new IOException("Tombstone file not open");
+        }
+        ByteBuffer record = ByteBuffer.allocate(4).putInt(id);
+        record.flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        channel.force(false);
+    }
+
+    private Set<Integer> readTombstones() throws IOException {
+        Set<Integer> used = new HashSet<Integer>();
+        if (!tombstoneFile.exists()) {
+            return used;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(tombstoneFile));
+        try {
+            // A torn trailing record belongs to a take() that never returned
+            for (long i = tombstoneFile.length() / 4; i > 0; i--) {
+                used.add(in.readInt());
+            }
+        } finally {
+            in.close();
+        }
+        return used;
+    }
+
+    /**
+     * Persisted keys minus the tombstoned ones; the tombstones are folded into the pool file
+     */
+    private List<Prekey> load() throws IOException, GeneralSecurityException {
+        Set<Integer> used = readTombstones();
+        List<Prekey> loaded = new ArrayList<Prekey>();
+        if (!file.exists()) {
+            return loaded;
+        }
+        byte[] sealed = new byte[(int) file.length()];
+        DataInputStream raw = new DataInputStream(new FileInputStream(file));
+        try {
+            raw.readFully(sealed);
+        } finally {
+            raw.close();
+        }
+        byte[] plain = CryptoEngine.decrypt(sealed, storageKey);
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(plain));
+            if (in.readByte() != FORMAT_VERSION) {
+                throw new IOException("Unsupported prekey file version");
+            }
+            int persistedNextId = in.readInt();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int id = in.readInt();
+                byte[] publicKey = new byte[KEY_LENGTH];
+                byte[] privateKey = new byte[KEY_LENGTH];
+                in.readFully(publicKey);
+                in.readFully(privateKey);
+                Prekey prekey = new Prekey(id, publicKey, privateKey);
+                if (used.contains(id)) {
+                    prekey.wipe();
+                } else {
+                    loaded.add(prekey);
+                }
+            }
+            nextId.set(Math.max(nextId.get(), persistedNextId));
+        } finally {
+            Arrays.fill(plain, (byte) 0);
+        }
+        if (!used.isEmpty()) {
+            // Before any of these keys can be taken and tombstoned again
+            write(loaded);
+            if (!tombstoneFile.delete()) {
+                throw new IOException("Could not delete " + tombstoneFile);
+            }
+        }
+        return loaded;
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.anonymousemessage.crypto;
+
+import javax.crypto.SecretKey;
+import java.security.GeneralSecurityException;
+
+/**
+ * Sending key that rotates to a derived next key when its nonce sequencer
+ * reaches its usage limit.
+ *
+ * Output layout: epoch(4) || suite || nonce || ciphertext || tag. The receiver reads the
+ * epoch and derives (or looks up) the matching key, so rotation needs no
+ * extra round trip. The fast path is one volatile read plus the sequencer's
+ * atomic add; only the thread that trips the limit takes the lock. Usage is
+ * counted per process, like the sequencer's.
+ */
+public final class RatchetingKey {
+
+    /**
+     * Derives the key for the next epoch
+     */
+    public interface Deriver {
+        SecretKey next(SecretKey current, int nextEpoch) throws GeneralSecurityException;
+    }
+
+    public static final int EPOCH_LENGTH = 4;
+
+    private static final class Epoch {
+        final int number;
+        final SecretKey key;
+        final NonceSequencer nonces;
+
+        Epoch(int number, SecretKey key, NonceSequencer nonces) {
+            this.number = number;
+            this.key = key;
+            this.nonces = nonces;
+        }
+    }
+
+    private final Deriver deriver;
+    private final long maxBlocks;
+    private volatile Epoch current;
+
+    public RatchetingKey(SecretKey initialKey, int initialEpoch, Deriver deriver) {
+        this(initialKey, initialEpoch, deriver, NonceSequencer.DEFAULT_MAX_BLOCKS);
+    }
+
+    /**
+     * maxBlocks is the usage budget per epoch, see {@link NonceSequencer}
+     */
+    public RatchetingKey(SecretKey initialKey, int initialEpoch, Deriver deriver, long maxBlocks) {
+        this.deriver = deriver;
+        this.maxBlocks = maxBlocks;
+        this.current = new Epoch(initialEpoch, initialKey, new NonceSequencer(maxBlocks));
+    }
+
+    /**
+     * Seals plaintext with AES-256-GCM as epoch || CryptoEngine blob,
+     * rotating first if the current key is used up
+     */
+    public byte[] encrypt(byte[] plaintext) throws GeneralSecurityException {
+        return encrypt(CipherSuites.MANDATORY, plaintext);
+    }
+
+    /**
+     * Seals plaintext with the given suite, e.g. the one negotiated for the conversation
+     */
+    public byte[] encrypt(CipherSuite suite, byte[] plaintext) throws GeneralSecurityException {
+        byte[] out = new byte[sealedLength(plaintext.length)];
+        encrypt(suite, plaintext, 0, plaintext.length, out, 0);
+        return out;
+    }
+
+    /**
+     * Array variant sealing into out at outOffset, e.g. a pooled buffer. out needs
+     * {@link #sealedLength(int)} bytes from outOffset; returns the bytes written.
+     */
+    public int encrypt(CipherSuite suite, byte[] plaintext, int offset, int length, byte[] out, int outOffset)
+            throws GeneralSecurityException {
+        while (true) {
+            Epoch epoch = current;
+            try {
+                int written = CryptoEngine.encrypt(suite, epoch.key, epoch.nonces, plaintext, offset, length,
+                    out, outOffset + EPOCH_LENGTH);
+                writeEpoch(epoch.number, out, outOffset);
+                return EPOCH_LENGTH + written;
+            } catch (KeyUsageLimitException e) {
+                rotate(epoch);
+            }
+        }
+    }
+
+    /**
+     * Size of epoch || CryptoEngine blob for a plaintext of the given length
+     */
+    public static int sealedLength(int plaintextLength) {
+        return EPOCH_LENGTH + CryptoEngine.encryptedLength(plaintextLength);
+    }
+
+    public int currentEpoch() {
+        return current.number;
+    }
+
+    public long blocksInEpoch() {
+        return current.nonces.blockCount();
+    }
+
+    /**
+     * Epoch written at the head of a sealed blob
+     */
+    public static int epochOf(byte[] sealed) throws GeneralSecurityException {
+        if (sealed.length < EPOCH_LENGTH + CryptoEngine.OVERHEAD) {
+            throw new GeneralSecurityException("Encrypted data too short: " + sealed.length);
+        }
+        return ((sealed[0] & 0xFF) << 24) | ((sealed[1] & 0xFF) << 16)
+                | ((sealed[2] & 0xFF) << 8) | (sealed[3] & 0xFF);
+    }
+
+    /**
+     * Opens a blob produced by {@link #encrypt(CipherSuite, byte[])} with the key for its epoch
+     */
+    public static byte[] decrypt(byte[] sealed, SecretKey epochKey) throws GeneralSecurityException {
+        return CryptoEngine.decrypt(sealed, EPOCH_LENGTH, sealed.length - EPOCH_LENGTH, epochKey);
+    }
+
+    private synchronized void rotate(Epoch exhausted) throws GeneralSecurityException {
+        if (current != exhausted) {
+            return; // another thread already rotated
+        }
+        int next = exhausted.number + 1;
+        current = new Epoch(next, deriver.next(exhausted.key, next), new NonceSequencer(maxBlocks));
+    }
+
+    private static void writeEpoch(int epoch, byte[] out, int offset) {
+        out[offset] = (byte) (epoch >>> 24);
+        out[offset + 1] = (byte) (epoch >>> 16);
+        out[offset + 2] = (byte) (epoch >>> 8);
+        out[offset + 3] = (byte) epoch;
+    }
+}
@@ -0,0 +1,261 @@
+package com.anonymousemessage.crypto;
+
+import javax.crypto.SecretKey;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Bounded LRU of per-contact session keys, keyed by the contact's Base64 public key.
+ *
+ * The X25519 agreement runs once per contact and HKDF runs once per contact per
+ * epoch. Concurrent senders asking for the same (contact, epoch) share a single
+ * FutureTask: the first caller derives, the rest wait for its result. A contact
+ * already in the cache costs no asymmetric operations.
+ *
+ * Each contact also owns a {@link RatchetingKey} for sending. When it reaches
+ * its usage limits it moves to the next epoch, whose key comes from this cache,
+ * so the receiver derives the same key from the epoch carried in the message.
+ */
+public final class SessionKeyCache {
+
+    /**
+     * Supplies a copy of the local X25519 private key when a new contact has to be derived.
+     * The cache zeroes the copy once the shared secret is computed.
+     */
+    public interface IdentityKeySource {
+        byte[] identityKey();
+    }
+
+    // Received epochs further than this from the newest confirmed one are refused before any
+    // derivation, so forged epoch headers cannot make every message run HKDF
+    private static final int MAX_EPOCH_SKEW = 4;
+
+    // Room for every epoch inside the accepted window, plus our own sending epoch
+    private static final int EPOCHS_PER_CONTACT = 2 * MAX_EPOCH_SKEW + 2;
+
+    private final IdentityKeySource identity;
+    private final Map<String, Contact> contacts;
+
+    public SessionKeyCache(final int maxContacts, IdentityKeySource identity) {
+        this.identity = identity;
+        this.contacts = new LinkedHashMap<String, Contact>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Contact> eldest) {
+                if (size() > maxContacts) {
+                    eldest.getValue().wipe();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Session key for a contact at the given epoch, deriving it at most once
+     */
+    public SecretKey get(String contactPublicKey, int epoch) throws GeneralSecurityException {
+        FutureTask<SecretKey> task;
+        boolean owner = false;
+        final Contact contact;
+        synchronized (contacts) {
+            Contact existing = contacts.get(contactPublicKey);
+            if (existing == null) {
+                existing = new Contact(contactPublicKey);
+                contacts.put(contactPublicKey, existing);
+            }
+            contact = existing;
+            task = contact.epochs.get(epoch);
+            if (task == null) {
+                final int derivedEpoch = epoch;
+                task = new FutureTask<SecretKey>(new Callable<SecretKey>() {
+                    @Override
+                    public SecretKey call() throws Exception {
+                        return contact.derive(identity, derivedEpoch);
+                    }
+                });
+                contact.epochs.put(epoch, task);
+                owner = true;
+            }
+        }
+
+        if (owner) {
+            task.run();
+        }
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            // Let a later call retry instead of caching the failure
+            synchronized (contacts) {
+                if (contact.epochs.get(epoch) == task) {
+                    contact.epochs.remove(epoch);
+                }
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) cause;
+            }
+            throw new GeneralSecurityException("Session key derivation failed", cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GeneralSecurityException("Interrupted while deriving session key", e);
+        }
+    }
+
+    /**
+     * Key to open a message a contact sealed under epoch. Epochs more than MAX_EPOCH_SKEW from
+     * the newest confirmed one are refused without deriving anything.
+     */
+    public SecretKey receiving(String contactPublicKey, int epoch) throws GeneralSecurityException {
+        int latest;
+        synchronized (contacts) {
+            Contact contact = contacts.get(contactPublicKey);
+            latest = contact != null ? contact.latestEpoch : 0;
+        }
+        if (epoch < 0 || Math.abs((long) epoch - latest) > MAX_EPOCH_SKEW) {
+            throw new GeneralSecurityException("Epoch " + epoch + " too far from current epoch " + latest);
+        }
+        return get(contactPublicKey, epoch);
+    }
+
+    /**
+     * Moves the accepted window once a message under epoch has authenticated, or we send under it
+     */
+    public void confirmEpoch(String contactPublicKey, int epoch) {
+        synchronized (contacts) {
+            Contact contact = contacts.get(contactPublicKey);
+            if (contact != null && epoch > contact.latestEpoch) {
+                contact.latestEpoch = epoch;
+            }
+        }
+    }
+
+    /**
+     * Sending key for a contact, starting at epoch 0 and rotating through this cache
+     */
+    public RatchetingKey sender(final String contactPublicKey) throws GeneralSecurityException {
+        synchronized (contacts) {
+            Contact contact = contacts.get(contactPublicKey);
+            if (contact != null && contact.sender != null) {
+                return contact.sender;
+            }
+        }
+
+        SecretKey initial = get(contactPublicKey, 0);
+        synchronized (contacts) {
+            Contact contact = contacts.get(contactPublicKey);
+            if (contact != null && contact.sender != null) {
+                return contact.sender;
+            }
+            RatchetingKey sender = new RatchetingKey(initial, 0, new RatchetingKey.Deriver() {
+                @Override
+                public SecretKey next(SecretKey current, int nextEpoch) throws GeneralSecurityException {
+                    SecretKey next = get(contactPublicKey, nextEpoch);
+                    confirmEpoch(contactPublicKey, nextEpoch);
+                    return next;
+                }
+            });
+            if (contact != null) {
+                contact.sender = sender;
+            }
+            return sender;
+        }
+    }
+
+    /**
+     * Drops a contact, e.g. after its public key changed
+     */
+    public void invalidate(String contactPublicKey) {
+        synchronized (contacts) {
+            Contact contact = contacts.remove(contactPublicKey);
+            if (contact != null) {
+                contact.wipe();
+            }
+        }
+    }
+
+    /**
+     * Drops every cached key, e.g. on logout
+     */
+    public void clear() {
+        synchronized (contacts) {
+            for (Contact contact : contacts.values()) {
+                contact.wipe();
+            }
+            contacts.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (contacts) {
+            return contacts.size();
+        }
+    }
+
+    private static final class Contact {
+        final String publicKey;
+        final Map<Integer, FutureTask<SecretKey>> epochs = new LinkedHashMap<Integer, FutureTask<SecretKey>>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, FutureTask<SecretKey>> eldest) {
+                return size() > EPOCHS_PER_CONTACT;
+            }
+        };
+        RatchetingKey sender; // guarded by the cache's contacts map
+        int latestEpoch; // guarded by the cache's contacts map
+        private byte[] sharedSecret; // guarded by this
+        private byte[] ourPublicKey; // guarded by this
+
+        Contact(String publicKey) {
+            this.publicKey = publicKey;
+        }
+
+        SecretKey derive(IdentityKeySource identity, int epoch) throws GeneralSecurityException {
+            byte[] peer = decodePublicKey(publicKey);
+            byte[] secret;
+            byte[] ours;
+            synchronized (this) {
+                if (sharedSecret == null) {
+                    byte[] privateKey = identity.identityKey();
+                    if (privateKey == null) {
+                        throw new GeneralSecurityException("Identity key is locked");
+                    }
+                    try {
+                        ourPublicKey = KeyExchange.publicKey(privateKey);
+                        sharedSecret = KeyExchange.agree(privateKey, peer);
+                    } finally {
+                        Arrays.fill(privateKey, (byte) 0);
+                    }
+                }
+                // Copy so an eviction wiping the contact cannot race the HKDF below
+                secret = sharedSecret.clone();
+                ours = ourPublicKey;
+            }
+            try {
+                return KeyExchange.deriveSessionKey(secret, ours, peer, epoch);
+            } finally {
+                Arrays.fill(secret, (byte) 0);
+            }
+        }
+
+        synchronized void wipe() {
+            if (sharedSecret != null) {
+                Arrays.fill(sharedSecret, (byte) 0);
+                sharedSecret = null;
+            }
+            // Callers already waiting on a task still receive its key
+            epochs.clear();
+        }
+
+        private static byte[] decodePublicKey(String publicKey) throws GeneralSecurityException {
+            try {
+                return java.util.Base64.getDecoder().decode(publicKey);
+            } catch (IllegalArgumentException e) {
+                throw new GeneralSecurityException("Malformed contact public key", e);
+            }
+        }
+    }
+}
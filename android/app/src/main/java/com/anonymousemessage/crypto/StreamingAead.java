@@ -0,0 +1,400 @@
+package com.anonymousemessage.crypto;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.SecretKey;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+
+/**
+ * Segmented AEAD for attachments and voice notes.
+ *
+ * Layout: header || segment 0 || segment 1 || ... where
+ *   header  = version(1) || suite(1) || segmentSize(4) || noncePrefix(7)
+ *   segment = ciphertext || tag, every segment except the last carries exactly segmentSize bytes
+ *   nonce   = noncePrefix(7) || segmentIndex(4) || lastSegment(1)
+ *
+ * Each segment is authenticated on its own with the header as AAD, so any
+ * segment can be decrypted independently (random access, resumed transfers)
+ * and memory use is two segment buffers regardless of file size. The last
+ * segment flag in the nonce stops truncation and reordering. The suite byte
+ * names the {@link CipherSuite} used for every segment.
+ */
+public final class StreamingAead {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+
+    private static final byte VERSION = 2;
+    private static final int NONCE_PREFIX_LENGTH = 7;
+    private static final int SIZE_OFFSET = 2;
+    private static final int PREFIX_OFFSET = SIZE_OFFSET + 4;
+    public static final int HEADER_LENGTH = PREFIX_OFFSET + NONCE_PREFIX_LENGTH;
+    private static final int TAG_LENGTH = CipherSuite.TAG_LENGTH;
+
+    private StreamingAead() {
+    }
+
+    /**
+     * Encrypted size of a plaintext of the given size, e.g. for Message.fileSize on the wire
+     */
+    public static long ciphertextSize(long plaintextSize, int segmentSize) {
+        return HEADER_LENGTH + plaintextSize + segmentCount(plaintextSize, segmentSize) * (long) TAG_LENGTH;
+    }
+
+    /**
+     * Number of segments a plaintext of the given size is split into (at least one)
+     */
+    public static long segmentCount(long plaintextSize, int segmentSize) {
+        return plaintextSize == 0 ? 1 : (plaintextSize + segmentSize - 1) / segmentSize;
+    }
+
+    /**
+     * Encrypts a whole file channel with the default segment size. Returns bytes written.
+     */
+    public static long encrypt(SecretKey key, FileChannel in, FileChannel out)
+            throws IOException, GeneralSecurityException {
+        return encrypt(key, in, out, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Encrypts in from its current position to the end into out
+     */
+    public static long encrypt(SecretKey key, FileChannel in, FileChannel out, int segmentSize)
+            throws IOException, GeneralSecurityException {
+        return encrypt(CipherSuites.MANDATORY, key, in, out, segmentSize);
+    }
+
+    /**
+     * Encrypts in from its current position to the end into out with the given suite
+     */
+    public static long encrypt(CipherSuite suite, SecretKey key, FileChannel in, FileChannel out, int segmentSize)
+            throws IOException, GeneralSecurityException {
+        byte[] header = newHeader(suite, segmentSize);
+        writeFully(out, ByteBuffer.wrap(header));
+        return HEADER_LENGTH + encryptSegments(key, header, in, out, 0, null);
+    }
+
+    /**
+     * Continues an interrupted encryption, reusing the header already on disk and keeping
+     * every complete segment. The segment that was being written when the encryption stopped
+     * is sealed again under the same nonce, which is only safe for the same plaintext: if the
+     * bytes come out different the source has changed, and this fails with an
+     * {@link AEADBadTagException} so the caller starts over with a fresh header. Returns the
+     * total size of out.
+     */
+    public static long resume(SecretKey key, FileChannel in, FileChannel out)
+            throws IOException, GeneralSecurityException {
+        if (out.size() < HEADER_LENGTH) {
+            out.truncate(0);
+            out.position(0);
+            in.position(0);
+            return encrypt(key, in, out);
+        }
+
+        byte[] header = readHeader(out);
+        int segmentSize = segmentSize(header);
+        long stride = segmentSize + TAG_LENGTH;
+        long complete = (out.size() - HEADER_LENGTH) / stride;
+        int partial = (int) ((out.size() - HEADER_LENGTH) % stride);
+        long end = HEADER_LENGTH + complete * stride;
+
+        // Nothing left to do once the segment on disk last carries the last-segment flag
+        if (partial > 0 ? isLastSegment(key, header, out, complete, end, partial)
+                : complete > 0 && isLastSegment(key, header, out, complete - 1, end - stride, (int) stride)) {
+            return out.size();
+        }
+
+        ByteBuffer written = ByteBuffer.allocate(partial);
+        readFully(out, written, end);
+        written.flip();
+        out.truncate(end);
+        out.position(end);
+        in.position(complete * segmentSize);
+        return end + encryptSegments(key, header, in, out, complete, written);
+    }
+
+    /**
+     * Decrypts a whole file channel written by {@link #encrypt(SecretKey, FileChannel, FileChannel)}
+     */
+    public static long decrypt(SecretKey key, FileChannel in, FileChannel out)
+            throws IOException, GeneralSecurityException {
+        byte[] header = readHeader(in);
+        int segmentSize = segmentSize(header);
+        long count = segmentCountForCiphertext(in.size(), segmentSize);
+
+        ByteBuffer segment = ByteBuffer.allocate(segmentSize + TAG_LENGTH);
+        ByteBuffer plain = ByteBuffer.allocate(segmentSize);
+        long position = HEADER_LENGTH;
+        long written = 0;
+        for (long i = 0; i < count; i++) {
+            segment.clear();
+            segment.limit((int) Math.min(segment.capacity(), in.size() - position));
+            readFully(in, segment, position);
+            position += segment.limit();
+            segment.flip();
+
+            plain.clear();
+            crypt(false, key, header, i, i == count - 1, segment, plain);
+            plain.flip();
+            written += plain.remaining();
+            writeFully(out, plain);
+        }
+        return written;
+    }
+
+    /**
+     * Decrypts a single segment for random access. Returns the plaintext bytes written to out,
+     * which must have at least segmentSize bytes remaining.
+     */
+    public static int decryptSegment(SecretKey key, FileChannel in, long index, ByteBuffer out)
+            throws IOException, GeneralSecurityException {
+        byte[] header = readHeader(in);
+        int segmentSize = segmentSize(header);
+        long count = segmentCountForCiphertext(in.size(), segmentSize);
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Segment " + index + " of " + count);
+        }
+
+        long position = HEADER_LENGTH + index * (segmentSize + TAG_LENGTH);
+        ByteBuffer segment = ByteBuffer.allocate((int) Math.min(segmentSize + TAG_LENGTH, in.size() - position));
+        readFully(in, segment, position);
+        segment.flip();
+        return crypt(false, key, header, index, index == count - 1, segment, out);
+    }
+
+    /**
+     * Encrypts a stream of unknown length with the default segment size
+     */
+    public static long encrypt(SecretKey key, InputStream in, OutputStream out)
+            throws IOException, GeneralSecurityException {
+        return encrypt(key, in, out, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Encrypts a stream of unknown length. One byte of look-ahead decides which segment is last.
+     */
+    public static long encrypt(SecretKey key, InputStream in, OutputStream out, int segmentSize)
+            throws IOException, GeneralSecurityException {
+        return encrypt(CipherSuites.MANDATORY, key, in, out, segmentSize);
+    }
+
+    /**
+     * Stream variant with an explicit suite
+     */
+    public static long encrypt(CipherSuite suite, SecretKey key, InputStream in, OutputStream out, int segmentSize)
+            throws IOException, GeneralSecurityException {
+        byte[] header = newHeader(suite, segmentSize);
+        out.write(header);
+
+        byte[] buffer = new byte[segmentSize + 1];
+        ByteBuffer sealed = ByteBuffer.allocate(segmentSize + TAG_LENGTH);
+        int filled = readFully(in, buffer, 0);
+        long written = HEADER_LENGTH;
+        for (long index = 0; ; index++) {
+            boolean last = filled <= segmentSize;
+            int length = last ? filled : segmentSize;
+
+            sealed.clear();
+            crypt(true, key, header, index, last, ByteBuffer.wrap(buffer, 0, length), sealed);
+            out.write(sealed.array(), 0, sealed.position());
+            written += sealed.position();
+            if (last) {
+                return written;
+            }
+
+            // Carry the look-ahead byte into the next segment
+            buffer[0] = buffer[segmentSize];
+            filled = 1 + readFully(in, buffer, 1);
+        }
+    }
+
+    /**
+     * Decrypts a stream produced by {@link #encrypt(SecretKey, InputStream, OutputStream, int)}
+     */
+    public static long decrypt(SecretKey key, InputStream in, OutputStream out)
+            throws IOException, GeneralSecurityException {
+        byte[] header = new byte[HEADER_LENGTH];
+        if (readFully(in, header, 0) != HEADER_LENGTH) {
+            throw new EOFException("Truncated stream header");
+        }
+        int segmentSize = segmentSize(header);
+        int stride = segmentSize + TAG_LENGTH;
+
+        byte[] buffer = new byte[stride + 1];
+        ByteBuffer plain = ByteBuffer.allocate(segmentSize);
+        int filled = readFully(in, buffer, 0);
+        long written = 0;
+        for (long index = 0; ; index++) {
+            boolean last = filled <= stride;
+            int length = last ? filled : stride;
+
+            plain.clear();
+            crypt(false, key, header, index, last, ByteBuffer.wrap(buffer, 0, length), plain);
+            out.write(plain.array(), 0, plain.position());
+            written += plain.position();
+            if (last) {
+                return written;
+            }
+
+            buffer[0] = buffer[stride];
+            filled = 1 + readFully(in, buffer, 1);
+        }
+    }
+
+    /**
+     * Seals in from its position onwards as segments firstIndex, firstIndex + 1, ... When
+     * expected is given, the first sealed segment must start with exactly those bytes.
+     */
+    private static long encryptSegments(SecretKey key, byte[] header, FileChannel in, FileChannel out,
+                                        long firstIndex, ByteBuffer expected)
+            throws IOException, GeneralSecurityException {
+        int segmentSize = segmentSize(header);
+        long remaining = in.size() - in.position();
+        long count = firstIndex + segmentCount(remaining, segmentSize);
+
+        ByteBuffer plain = ByteBuffer.allocate(segmentSize);
+        ByteBuffer sealed = ByteBuffer.allocate(segmentSize + TAG_LENGTH);
+        long written = 0;
+        for (long i = firstIndex; i < count; i++) {
+            plain.clear();
+            plain.limit((int) Math.min(segmentSize, remaining));
+            readFully(in, plain, in.position());
+            in.position(in.position() + plain.limit());
+            remaining -= plain.limit();
+            plain.flip();
+
+            sealed.clear();
+            crypt(true, key, header, i, i == count - 1, plain, sealed);
+            sealed.flip();
+            if (i == firstIndex && expected != null && !startsWith(sealed, expected)) {
+                throw new AEADBadTagException("Source changed since the interrupted encryption");
+            }
+            written += sealed.remaining();
+            writeFully(out, sealed);
+        }
+        return written;
+    }
+
+    private static boolean isLastSegment(SecretKey key, byte[] header, FileChannel in, long index,
+                                         long position, int length) throws IOException, GeneralSecurityException {
+        if (length < TAG_LENGTH) {
+            return false;
+        }
+        ByteBuffer segment = ByteBuffer.allocate(length);
+        readFully(in, segment, position);
+        segment.flip();
+        try {
+            crypt(false, key, header, index, true, segment, ByteBuffer.allocate(length - TAG_LENGTH));
+            return true;
+        } catch (AEADBadTagException e) {
+            return false;
+        }
+    }
+
+    private static boolean startsWith(ByteBuffer sealed, ByteBuffer prefix) {
+        if (prefix.remaining() > sealed.remaining()) {
+            return false;
+        }
+        int mismatch = 0;
+        for (int i = 0; i < prefix.remaining(); i++) {
+            mismatch |= sealed.get(sealed.position() + i) ^ prefix.get(prefix.position() + i);
+        }
+        return mismatch == 0;
+    }
+
+    private static int crypt(boolean encrypt, SecretKey key, byte[] header, long index, boolean last,
+                             ByteBuffer in, ByteBuffer out) throws GeneralSecurityException {
+        if (index > 0xFFFFFFFFL) {
+            throw new GeneralSecurityException("Too many segments");
+        }
+        byte[] nonce = new byte[CipherSuite.NONCE_LENGTH];
+        System.arraycopy(header, PREFIX_OFFSET, nonce, 0, NONCE_PREFIX_LENGTH);
+        nonce[7] = (byte) (index >>> 24);
+        nonce[8] = (byte) (index >>> 16);
+        nonce[9] = (byte) (index >>> 8);
+        nonce[10] = (byte) index;
+        nonce[11] = (byte) (last ? 1 : 0);
+
+        CipherSuite suite = CipherSuite.fromId(header[1]);
+        if (suite == null) {
+            throw new GeneralSecurityException("Unknown cipher suite " + header[1]);
+        }
+        return encrypt ? suite.seal(key, nonce, header, in, out) : suite.open(key, nonce, header, in, out);
+    }
+
+    private static byte[] newHeader(CipherSuite suite, int segmentSize) {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("Segment size must be positive: " + segmentSize);
+        }
+        byte[] header = new byte[HEADER_LENGTH];
+        header[0] = VERSION;
+        header[1] = suite.id();
+        header[2] = (byte) (segmentSize >>> 24);
+        header[3] = (byte) (segmentSize >>> 16);
+        header[4] = (byte) (segmentSize >>> 8);
+        header[5] = (byte) segmentSize;
+        byte[] prefix = new byte[NONCE_PREFIX_LENGTH];
+        CryptoEngine.random().nextBytes(prefix);
+        System.arraycopy(prefix, 0, header, PREFIX_OFFSET, NONCE_PREFIX_LENGTH);
+        return header;
+    }
+
+    private static byte[] readHeader(FileChannel in) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        readFully(in, header, 0);
+        return header.array();
+    }
+
+    private static int segmentSize(byte[] header) throws IOException {
+        if (header[0] != VERSION) {
+            throw new IOException("Unsupported stream version " + header[0]);
+        }
+        int size = ((header[2] & 0xFF) << 24) | ((header[3] & 0xFF) << 16)
+                | ((header[4] & 0xFF) << 8) | (header[5] & 0xFF);
+        if (size <= 0) {
+            throw new IOException("Invalid segment size " + size);
+        }
+        return size;
+    }
+
+    private static long segmentCountForCiphertext(long ciphertextSize, int segmentSize) throws IOException {
+        long body = ciphertextSize - HEADER_LENGTH;
+        if (body < TAG_LENGTH) {
+            throw new EOFException("Truncated stream");
+        }
+        long stride = segmentSize + TAG_LENGTH;
+        return (body + stride - 1) / stride;
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = in.read(dst, position);
+            if (n < 0) {
+                throw new EOFException("Unexpected end of channel");
+            }
+            position += n;
+        }
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            out.write(src);
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] buffer, int offset) throws IOException {
+        int total = 0;
+        while (offset + total < buffer.length) {
+            int n = in.read(buffer, offset + total, buffer.length - offset - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,103 @@
+package com.anonymousemessage.crypto;
+
+import javax.crypto.SecretKey;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Key for the client/relay transport channel, agreed without a handshake round trip.
+ *
+ * The client pairs a one-time X25519 key with the relay's static public key and
+ * derives the session key with {@link KeyExchange#deriveSessionKey}. Every
+ * request is ephemeralPublicKey(32) || CryptoEngine blob, so the relay derives
+ * the same key from the request alone; responses are plain CryptoEngine blobs
+ * under that key. The ephemeral private key is wiped as soon as the key exists.
+ */
+public final class TransportKey {
+
+    public static final int HEADER_LENGTH = KeyExchange.KEY_LENGTH;
+
+    // Transport keys are never rotated by epoch; a new one is agreed per process instead
+    private static final int EPOCH = 0;
+
+    private final byte[] ephemeralPublicKey;
+    private final SecretKey key;
+
+    private TransportKey(byte[] ephemeralPublicKey, SecretKey key) {
+        this.ephemeralPublicKey = ephemeralPublicKey;
+        this.key = key;
+    }
+
+    /**
+     * Client side: agrees a new key with the relay's public key
+     */
+    public static TransportKey agree(byte[] relayPublicKey) throws GeneralSecurityException {
+        byte[][] pair = KeyExchange.generateKeyPair();
+        try {
+            return agree(relayPublicKey, pair[0], pair[1]);
+        } finally {
+            Arrays.fill(pair[0], (byte) 0);
+        }
+    }
+
+    /**
+     * Client side with a one-time pair generated ahead of time, e.g. from the prekey pool.
+     * The caller wipes the private key.
+     */
+    public static TransportKey agree(byte[] relayPublicKey, byte[] ephemeralPrivateKey, byte[] ephemeralPublicKey)
+            throws GeneralSecurityException {
+        byte[] publicKey = Arrays.copyOf(ephemeralPublicKey, ephemeralPublicKey.length);
+        byte[] secret = KeyExchange.agree(ephemeralPrivateKey, relayPublicKey);
+        try {
+            return new TransportKey(publicKey, KeyExchange.deriveSessionKey(secret, publicKey, relayPublicKey, EPOCH));
+        } finally {
+            Arrays.fill(secret, (byte) 0);
+        }
+    }
+
+    /**
+     * Relay side: the key a request was sealed under, from its ephemeral public key
+     */
+    public static SecretKey forRequest(byte[] relayPrivateKey, byte[] relayPublicKey, byte[] sealedRequest)
+            throws GeneralSecurityException {
+        byte[] ephemeral = ephemeralKeyOf(sealedRequest);
+        byte[] secret = KeyExchange.agree(relayPrivateKey, ephemeral);
+        try {
+            return KeyExchange.deriveSessionKey(secret, relayPublicKey, ephemeral, EPOCH);
+        } finally {
+            Arrays.fill(secret, (byte) 0);
+        }
+    }
+
+    /**
+     * Ephemeral public key at the head of a request, e.g. to cache the derived key by
+     */
+    public static byte[] ephemeralKeyOf(byte[] sealedRequest) throws GeneralSecurityException {
+        if (sealedRequest.length < HEADER_LENGTH + CryptoEngine.OVERHEAD) {
+            throw new GeneralSecurityException("Transport request too short: " + sealedRequest.length);
+        }
+        return Arrays.copyOf(sealedRequest, HEADER_LENGTH);
+    }
+
+    /**
+     * Relay side: opens a request sealed by {@link #sealRequest(byte[])}
+     */
+    public static byte[] openRequest(byte[] sealedRequest, SecretKey key) throws GeneralSecurityException {
+        return CryptoEngine.decrypt(sealedRequest, HEADER_LENGTH, sealedRequest.length - HEADER_LENGTH, key);
+    }
+
+    public byte[] sealRequest(byte[] request) throws GeneralSecurityException {
+        byte[] out = new byte[HEADER_LENGTH + CryptoEngine.encryptedLength(request.length)];
+        System.arraycopy(ephemeralPublicKey, 0, out, 0, HEADER_LENGTH);
+        CryptoEngine.encrypt(key, request, 0, request.length, out, HEADER_LENGTH);
+        return out;
+    }
+
+    public byte[] openResponse(byte[] response) throws GeneralSecurityException {
+        return CryptoEngine.decrypt(response, key);
+    }
+
+    public SecretKey key() {
+        return key;
+    }
+}
@@ -0,0 +1,128 @@
+package com.anonymousemessage.crypto;
+
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory holder for decrypted key material.
+ *
+ * The material stays unlocked while it is being used and is zeroed once it
+ * has been idle for longer than the TTL, or when {@link #wipe()} is called.
+ * {@link #get()} is a field read, a clock check and a copy, so callers on hot
+ * paths never go back to storage or run a decrypt while the holder is unlocked.
+ */
+public final class UnlockedKeyHolder {
+
+    private static final ScheduledExecutorService REAPER = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "UnlockedKeyReaper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    private final long idleTtlNanos;
+
+    private volatile byte[] material;
+    private volatile long lastAccessNanos;
+    private ScheduledFuture<?> expiry; // guarded by this
+
+    public UnlockedKeyHolder(long idleTtl, TimeUnit unit) {
+        this.idleTtlNanos = unit.toNanos(idleTtl);
+    }
+
+    /**
+     * Stores key material, taking ownership of the array. Any previous material is wiped.
+     */
+    public synchronized void put(byte[] keyMaterial) {
+        byte[] previous = material;
+        lastAccessNanos = System.nanoTime();
+        // Publish first: get() trusts a copy only if the material was not swapped out meanwhile
+        material = keyMaterial;
+        if (previous != null && previous != keyMaterial) {
+            Arrays.fill(previous, (byte) 0);
+        }
+        scheduleExpiry(idleTtlNanos);
+    }
+
+    /**
+     * Returns a copy of the unlocked material, or null when locked or idle past the TTL.
+     * The copy belongs to the caller, so a concurrent wipe() cannot zero it mid-use;
+     * callers should zero it themselves once done.
+     */
+    public byte[] get() {
+        while (true) {
+            byte[] current = material;
+            if (current == null) {
+                return null;
+            }
+            long now = System.nanoTime();
+            if (now - lastAccessNanos > idleTtlNanos) {
+                wipe();
+                return null;
+            }
+            lastAccessNanos = now;
+            byte[] copy = current.clone();
+            if (material == current) {
+                return copy;
+            }
+            // Wiped or replaced while copying; the copy may hold zeros
+            Arrays.fill(copy, (byte) 0);
+        }
+    }
+
+    public boolean isUnlocked() {
+        byte[] copy = get();
+        if (copy == null) {
+            return false;
+        }
+        Arrays.fill(copy, (byte) 0);
+        return true;
+    }
+
+    /**
+     * Zeroes and drops the material
+     */
+    public synchronized void wipe() {
+        byte[] current = material;
+        material = null;
+        if (current != null) {
+            Arrays.fill(current, (byte) 0);
+        }
+        if (expiry != null) {
+            expiry.cancel(false);
+            expiry = null;
+        }
+    }
+
+    private synchronized void checkIdle() {
+        expiry = null;
+        if (material == null) {
+            return;
+        }
+        long idle = System.nanoTime() - lastAccessNanos;
+        if (idle >= idleTtlNanos) {
+            wipe();
+        } else {
+            scheduleExpiry(idleTtlNanos - idle);
+        }
+    }
+
+    private void scheduleExpiry(long delayNanos) {
+        if (expiry != null) {
+            expiry.cancel(false);
+        }
+        expiry = REAPER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                checkIdle();
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+}
@@ -13,11 +13,12 @@ public class Message implements Serializable {
     private String content;
     private Type type;
     private long timestamp;
-    private boolean isDelivered;
+    private boolean isDelivered; // Accepted by the relay; see ReceiptService for arrival and reading
     private boolean isRead;
     private String fileName; // For media files
     private long fileSize;   // For media files
     private String mimeType; // For media files
+    private long seq;        // Position in the conversation, assigned by the relay; 0 until known
 
     public Message() {
         // Default constructor for serialization
@@ -50,6 +51,7 @@ public class Message implements Serializable {
     public String getFileName() { return fileName; }
     public long getFileSize() { return fileSize; }
     public String getMimeType() { return mimeType; }
+    public long getSeq() { return seq; }
 
     // Setters
     public void setMessageId(String messageId) { this.messageId = messageId; }
@@ -63,6 +65,7 @@ public class Message implements Serializable {
     public void setFileName(String fileName) { this.fileName = fileName; }
     public void setFileSize(long fileSize) { this.fileSize = fileSize; }
     public void setMimeType(String mimeType) { this.mimeType = mimeType; }
+    public void setSeq(long seq) { this.seq = seq; }
 
     @Override
     public String toString() {
@@ -73,6 +76,7 @@ public class Message implements Serializable {
                 ", content='" + content + '\'' +
                 ", type=" + type +
                 ", timestamp=" + timestamp +
+                ", seq=" + seq +
                 ", isDelivered=" + isDelivered +
                 ", isRead=" + isRead +
                 '}';
@@ -0,0 +1,182 @@
+package com.anonymousemessage.network;
+
+import com.anonymousemessage.utils.Metrics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A few streams to one destination, opened ahead of time on separate circuits.
+ *
+ * Reaching an onion service means building a rendezvous circuit, which takes
+ * seconds on a cold start. {@link #fill()} dials {@code target} streams in
+ * parallel, each with its own SOCKS credentials so Tor puts it on its own
+ * circuit, and {@link #take()} hands them out. A take() does not dial a
+ * replacement, so the pool never holds more streams than its users will
+ * claim; it fills again on the next fill(). Streams idle past
+ * {@code maxIdleNanos} are closed by {@link #closeIdle()}, since Tor closes
+ * idle rendezvous circuits anyway.
+ */
+final class CircuitPool {
+
+    private static final ExecutorService DIALERS = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "CircuitWarmer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // Distinct isolation credentials per circuit; the suffix keeps them distinct across pools
+    private static final AtomicLong NEXT_CIRCUIT = new AtomicLong();
+
+    private static final class Warm {
+        final Socket socket;
+        final long openedNanos = System.nanoTime();
+
+        Warm(Socket socket) {
+            this.socket = socket;
+        }
+    }
+
+    private final InetSocketAddress proxy;
+    private final String host;
+    private final int port;
+    private final int target;
+    private final long maxIdleNanos;
+    private final int connectTimeoutMillis;
+    private final ConcurrentLinkedQueue<Warm> warm = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger warmAndDialing = new AtomicInteger();
+    private volatile CompletableFuture<Void> firstReady = new CompletableFuture<>();
+    private volatile boolean closed;
+
+    CircuitPool(InetSocketAddress proxy, String host, int port, int target,
+                long maxIdleNanos, int connectTimeoutMillis) {
+        this.proxy = proxy;
+        this.host = host;
+        this.port = port;
+        this.target = target;
+        this.maxIdleNanos = maxIdleNanos;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    /**
+     * Starts dialing up to the target in parallel; the future completes when the first stream is up
+     */
+    CompletableFuture<Void> fill() {
+        if (firstReady.isCompletedExceptionally()) {
+            // Every earlier dial failed; this round gets a fresh outcome
+            firstReady = new CompletableFuture<>();
+        }
+        CompletableFuture<Void> ready = firstReady;
+        while (true) {
+            int current = warmAndDialing.get();
+            if (current >= target || closed) {
+                break;
+            }
+            if (warmAndDialing.compareAndSet(current, current + 1)) {
+                DIALERS.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        dialOne();
+                    }
+                });
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * A pre-dialed stream, or null if none is ready (the caller then dials itself)
+     */
+    Socket take() {
+        Warm candidate;
+        while ((candidate = warm.poll()) != null) {
+            warmAndDialing.decrementAndGet();
+            if (!isStale(candidate, System.nanoTime()) && !candidate.socket.isClosed()) {
+                Metrics.counter("tor.warm_circuit_hit").increment();
+                return candidate.socket;
+            }
+            closeQuietly(candidate.socket);
+            Metrics.counter("tor.warm_circuit_stale").increment();
+        }
+        Metrics.counter("tor.warm_circuit_miss").increment();
+        return null;
+    }
+
+    /**
+     * Closes warm streams nobody claimed within maxIdleNanos
+     */
+    void closeIdle() {
+        long now = System.nanoTime();
+        for (Iterator<Warm> it = warm.iterator(); it.hasNext(); ) {
+            Warm candidate = it.next();
+            if (isStale(candidate, now) && warm.remove(candidate)) {
+                warmAndDialing.decrementAndGet();
+                closeQuietly(candidate.socket);
+                Metrics.counter("tor.warm_circuit_stale").increment();
+            }
+        }
+    }
+
+    /**
+     * Dials a stream on a circuit of its own
+     */
+    Socket dial() throws IOException {
+        String isolation = "circuit-" + NEXT_CIRCUIT.incrementAndGet() + "-" + Long.toHexString(System.nanoTime());
+        return Socks5.connect(proxy, host, port, isolation, "x", connectTimeoutMillis);
+    }
+
+    int warmCount() {
+        return warm.size();
+    }
+
+    void close() {
+        closed = true;
+        Warm candidate;
+        while ((candidate = warm.poll()) != null) {
+            closeQuietly(candidate.socket);
+        }
+    }
+
+    private void dialOne() {
+        long start = System.nanoTime();
+        try {
+            Socket socket = dial();
+            if (closed) {
+                closeQuietly(socket);
+                return;
+            }
+            warm.offer(new Warm(socket));
+            Metrics.timer("tor.warm_circuit_build").recordSince(start);
+            firstReady.complete(null);
+        } catch (IOException e) {
+            Metrics.counter("tor.warm_circuit_failed").increment();
+            if (warmAndDialing.decrementAndGet() == 0) {
+                firstReady.completeExceptionally(e);
+            }
+        }
+    }
+
+    private boolean isStale(Warm candidate, long now) {
+        return now - candidate.openedNanos > maxIdleNanos;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.anonymousemessage.network;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Observed performance of one circuit: RTT EWMA, p95 over recent samples,
+ * failure rate (also an EWMA, so old failures fade) and throughput.
+ * Timing starts over when the circuit reconnects; failures carry over
+ * until a request succeeds, so a circuit that never works can't hide its
+ * record by redialling.
+ */
+public final class CircuitStats {
+
+    // Weight of the newest sample; ~10 samples dominate the average
+    private static final double ALPHA = 0.2;
+    private static final int WINDOW = 64;
+
+    private final long[] recent = new long[WINDOW];
+    private int recentCount;
+    private int recentNext;
+    private double rttEwmaNanos;
+    private double failureEwma;
+    private long samples;
+    private long failures;
+    private long bytes;
+    private long busyNanos;
+
+    /**
+     * A request answered after rttNanos, with bytes sent plus received
+     */
+    public synchronized void recordSuccess(long rttNanos, long bytes) {
+        rttEwmaNanos = samples == 0 ? rttNanos : ALPHA * rttNanos + (1 - ALPHA) * rttEwmaNanos;
+        failureEwma = (1 - ALPHA) * failureEwma;
+        recent[recentNext] = rttNanos;
+        recentNext = (recentNext + 1) % WINDOW;
+        recentCount = Math.min(recentCount + 1, WINDOW);
+        samples++;
+        this.bytes += bytes;
+        busyNanos += rttNanos;
+    }
+
+    /**
+     * A request that timed out or lost its stream
+     */
+    public synchronized void recordFailure() {
+        failureEwma = ALPHA + (1 - ALPHA) * failureEwma;
+        failures++;
+    }
+
+    /**
+     * The circuit was dialled again. Timing starts over; failure history is
+     * only dropped if a request succeeded since the previous dial.
+     */
+    public synchronized void reconnected() {
+        if (samples > 0) {
+            failureEwma = 0;
+            failures = 0;
+        }
+        recentCount = 0;
+        recentNext = 0;
+        rttEwmaNanos = 0;
+        samples = 0;
+        bytes = 0;
+        busyNanos = 0;
+    }
+
+    /**
+     * Successful requests
+     */
+    public synchronized long samples() {
+        return samples;
+    }
+
+    /**
+     * Requests that succeeded or failed
+     */
+    public synchronized long attempts() {
+        return samples + failures;
+    }
+
+    public synchronized double rttEwmaMillis() {
+        return rttEwmaNanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public synchronized double failureRate() {
+        return failureEwma;
+    }
+
+    /**
+     * 95th percentile RTT over the last {@value #WINDOW} successful requests
+     */
+    public synchronized double p95Millis() {
+        if (recentCount == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(recent, recentCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(0.95 * recentCount) - 1;
+        return sorted[Math.max(0, index)] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Bytes moved per second of request time
+     */
+    public synchronized double throughputBytesPerSecond() {
+        return busyNanos == 0 ? 0 : bytes / (busyNanos / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "n=%d rtt=%.1fms p95=%.1fms fail=%.0f%% (%d) tput=%.1fKB/s",
+            samples, rttEwmaMillis(), p95Millis(), failureEwma * 100, failures,
+            throughputBytesPerSecond() / 1024);
+    }
+}
@@ -0,0 +1,343 @@
+package com.anonymousemessage.network;
+
+import com.anonymousemessage.utils.Metrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outbound queue per destination that coalesces bursts into one batch.
+ *
+ * Every request over Tor pays a full circuit round trip, so a burst of short
+ * messages sent one by one costs one RTT each. The first payload queued for a
+ * destination opens a window of {@code windowMillis}; everything queued for it
+ * until the window closes goes out as one framed batch. A batch is flushed
+ * early once it reaches {@code maxBatchBytes} or {@code maxBatchMessages}, and a
+ * window of 0 sends every payload on its own. The sender encrypts and sends the
+ * framed batch; each payload's future completes with the batch's outcome. If the
+ * peer numbers what it accepts, a payload's future carries its own number.
+ * {@link #flushAll()} hands every batch it closes to the sender at once, so a
+ * backlog flushed after reconnect can be encrypted in parallel.
+ *
+ * Batch frame: count(2) || (length(4) || payload) * count.
+ */
+public final class CoalescingQueue {
+
+    /**
+     * Encrypts and sends one framed batch; the future completes when the peer has accepted it,
+     * with the number the peer gave the batch's first payload, or null if it doesn't number them
+     */
+    public interface BatchSender {
+        CompletableFuture<Long> send(String destination, byte[] batch);
+
+        /**
+         * Sends several batches closed together; result i belongs to batches[i]
+         */
+        default List<CompletableFuture<Long>> sendAll(List<String> destinations, List<byte[]> batches) {
+            List<CompletableFuture<Long>> results = new ArrayList<>(batches.size());
+            for (int i = 0; i < batches.size(); i++) {
+                results.add(send(destinations.get(i), batches.get(i)));
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Batching settings; the defaults trade a few milliseconds of latency for one RTT per burst
+     */
+    public static final class Config {
+        long windowMillis = 30;
+        int maxBatchBytes = 32 * 1024;
+        int maxBatchMessages = 64;
+
+        public Config window(long value, TimeUnit unit) {
+            windowMillis = unit.toMillis(value);
+            return this;
+        }
+
+        public Config maxBatchBytes(int value) {
+            maxBatchBytes = value;
+            return this;
+        }
+
+        public Config maxBatchMessages(int value) {
+            maxBatchMessages = Math.min(value, MAX_BATCH_MESSAGES);
+            return this;
+        }
+    }
+
+    public static final int MAX_BATCH_MESSAGES = 0xFFFF;
+
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "OutboundFlush");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    private static final class Entry {
+        final byte[] payload;
+        final CompletableFuture<Long> sent = new CompletableFuture<>();
+        final long queuedNanos = System.nanoTime();
+
+        Entry(byte[] payload) {
+            this.payload = payload;
+        }
+    }
+
+    private static final class Batch {
+        final List<Entry> entries = new ArrayList<>();
+        int bytes = 2;
+        ScheduledFuture<?> timer;
+    }
+
+    private final BatchSender sender;
+    private final Config config;
+    private final Map<String, Batch> open = new HashMap<>(); // guarded by this
+    private boolean closed; // guarded by this
+
+    public CoalescingQueue(BatchSender sender, Config config) {
+        this.sender = sender;
+        this.config = config;
+    }
+
+    /**
+     * Queues payload for destination; the future completes once the batch carrying it has been sent,
+     * with the payload's number if the peer assigns them (first + index in the batch), else null
+     */
+    public CompletableFuture<Long> enqueue(final String destination, byte[] payload) {
+        Entry entry = new Entry(payload);
+        synchronized (this) {
+            if (closed) {
+                entry.sent.completeExceptionally(new IOException("Outbound queue closed"));
+                return entry.sent;
+            }
+            Batch batch = open.get(destination);
+            if (batch != null && batch.bytes + 4 + payload.length > config.maxBatchBytes) {
+                // Doesn't fit; send what is queued and start a new batch with this payload
+                Metrics.counter("outbound.flush_budget").increment();
+                dispatch(destination, detach(destination));
+                batch = null;
+            }
+            if (batch == null) {
+                batch = new Batch();
+                open.put(destination, batch);
+            }
+            batch.entries.add(entry);
+            batch.bytes += 4 + payload.length;
+
+            if (config.windowMillis <= 0) {
+                dispatch(destination, detach(destination));
+            } else if (batch.entries.size() >= config.maxBatchMessages || batch.bytes >= config.maxBatchBytes) {
+                Metrics.counter("outbound.flush_budget").increment();
+                dispatch(destination, detach(destination));
+            } else if (batch.timer == null) {
+                final Batch windowed = batch;
+                batch.timer = FLUSHER.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        closeWindow(destination, windowed);
+                    }
+                }, config.windowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        return entry.sent;
+    }
+
+    /**
+     * Sends whatever is queued for destination now, e.g. before the app goes to the background
+     */
+    public synchronized void flush(String destination) {
+        Batch batch = detach(destination);
+        if (batch != null) {
+            dispatch(destination, batch);
+        }
+    }
+
+    /**
+     * Sends everything queued now, as one group for the sender
+     */
+    public synchronized void flushAll() {
+        if (open.isEmpty()) {
+            return;
+        }
+        final List<String> destinations = new ArrayList<>(open.keySet());
+        final List<Batch> batches = new ArrayList<>(destinations.size());
+        for (String destination : destinations) {
+            batches.add(detach(destination));
+        }
+        FLUSHER.execute(new Runnable() {
+            @Override
+            public void run() {
+                sendAll(destinations, batches);
+            }
+        });
+    }
+
+    /**
+     * Flushes everything queued; later enqueue() calls fail
+     */
+    public synchronized void close() {
+        closed = true;
+        flushAll();
+    }
+
+    private synchronized void closeWindow(String destination, Batch batch) {
+        // The batch may already have been flushed by its budget and replaced by a newer one
+        if (open.get(destination) == batch) {
+            Metrics.counter("outbound.flush_window").increment();
+            dispatch(destination, detach(destination));
+        }
+    }
+
+    private Batch detach(String destination) {
+        Batch batch = open.remove(destination);
+        if (batch != null && batch.timer != null) {
+            batch.timer.cancel(false);
+        }
+        return batch;
+    }
+
+    /**
+     * Called under the lock; batches are sent on the flush thread in the order they were closed,
+     * so a destination never sees a later batch before an earlier one
+     */
+    private void dispatch(final String destination, final Batch batch) {
+        FLUSHER.execute(new Runnable() {
+            @Override
+            public void run() {
+                send(destination, batch);
+            }
+        });
+    }
+
+    private void send(String destination, Batch batch) {
+        byte[] framed = frame(batch);
+        long start = System.nanoTime();
+        CompletableFuture<Long> result;
+        try {
+            result = sender.send(destination, framed);
+        } catch (RuntimeException e) {
+            result = failed(e);
+        }
+        complete(batch, result, start);
+    }
+
+    private void sendAll(List<String> destinations, List<Batch> batches) {
+        List<byte[]> framed = new ArrayList<>(batches.size());
+        for (Batch batch : batches) {
+            framed.add(frame(batch));
+        }
+        long start = System.nanoTime();
+        List<CompletableFuture<Long>> results;
+        try {
+            results = sender.sendAll(destinations, framed);
+        } catch (RuntimeException e) {
+            results = new ArrayList<>(batches.size());
+            for (int i = 0; i < batches.size(); i++) {
+                results.add(failed(e));
+            }
+        }
+        for (int i = 0; i < batches.size(); i++) {
+            complete(batches.get(i), results.get(i), start);
+        }
+    }
+
+    /**
+     * Records the batch's metrics and frames its payloads
+     */
+    private static byte[] frame(Batch batch) {
+        long now = System.nanoTime();
+        List<byte[]> payloads = new ArrayList<>(batch.entries.size());
+        for (Entry entry : batch.entries) {
+            payloads.add(entry.payload);
+            Metrics.timer("outbound.queue_delay").record(now - entry.queuedNanos);
+        }
+        Metrics.counter("outbound.batches").increment();
+        Metrics.counter("outbound.batched_messages").add(batch.entries.size());
+        Metrics.counter("outbound.batched_bytes").add(batch.bytes);
+        return frame(payloads);
+    }
+
+    private static CompletableFuture<Long> failed(Throwable error) {
+        CompletableFuture<Long> failed = new CompletableFuture<>();
+        failed.completeExceptionally(error);
+        return failed;
+    }
+
+    private static void complete(final Batch batch, CompletableFuture<Long> result, final long start) {
+        result.whenComplete((first, error) -> {
+            Metrics.timer("outbound.batch_send").recordSince(start);
+            if (error != null) {
+                Metrics.counter("outbound.batch_failed").increment();
+            }
+            for (int i = 0; i < batch.entries.size(); i++) {
+                Entry entry = batch.entries.get(i);
+                if (error == null) {
+                    entry.sent.complete(first != null ? first + i : null);
+                } else {
+                    entry.sent.completeExceptionally(error);
+                }
+            }
+        });
+    }
+
+    public static byte[] frame(List<byte[]> payloads) {
+        if (payloads.size() > MAX_BATCH_MESSAGES) {
+            throw new IllegalArgumentException("Too many payloads in one batch: " + payloads.size());
+        }
+        int length = 2;
+        for (byte[] payload : payloads) {
+            length += 4 + payload.length;
+        }
+        ByteBuffer out = ByteBuffer.allocate(length);
+        out.putShort((short) payloads.size());
+        for (byte[] payload : payloads) {
+            out.putInt(payload.length);
+            out.put(payload);
+        }
+        return out.array();
+    }
+
+    /**
+     * Number of payloads in a framed batch
+     */
+    public static int count(byte[] batch) {
+        return ((batch[0] & 0xFF) << 8) | (batch[1] & 0xFF);
+    }
+
+    public static List<byte[]> unframe(byte[] batch) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(batch);
+        if (in.remaining() < 2) {
+            throw new IOException("Truncated batch");
+        }
+        int count = in.getShort() & 0xFFFF;
+        List<byte[]> payloads = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (in.remaining() < 4) {
+                throw new IOException("Truncated batch");
+            }
+            int length = in.getInt();
+            if (length < 0 || length > in.remaining()) {
+                throw new IOException("Bad payload length " + length);
+            }
+            byte[] payload = new byte[length];
+            in.get(payload);
+            payloads.add(payload);
+        }
+        return payloads;
+    }
+}
@@ -0,0 +1,385 @@
+package com.anonymousemessage.network;
+
+import com.anonymousemessage.utils.Metrics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Many concurrent request/response exchanges over one long-lived stream.
+ *
+ * Frame: length(4) || type(1) || operationId(16) || body, where length counts
+ * everything after itself. A request's future is registered in a correlation
+ * table under its operation_id before the frame is queued for the writer thread
+ * (so request() never blocks, even while the stream is being set up); the reader thread
+ * completes it when the matching RESPONSE or ERROR frame arrives, in any order.
+ * Each request has its own timeout. Cancelling a future removes it from the
+ * table and sends a CANCEL frame so the peer can drop the work. If the stream
+ * breaks, every pending request fails and the next request reconnects. A
+ * connection that is no longer needed is {@link #shutdown}, which also stops its
+ * writer thread.
+ */
+public final class MultiplexedConnection {
+
+    /**
+     * Opens the underlying stream, e.g. a SOCKS connection through Tor
+     */
+    public interface Dialer {
+        Socket dial() throws IOException;
+    }
+
+    /**
+     * The peer answered with an ERROR frame; the stream itself is fine
+     */
+    public static final class RemoteError extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public RemoteError(String message) {
+            super(message);
+        }
+    }
+
+    public static final byte TYPE_REQUEST = 1;
+    public static final byte TYPE_RESPONSE = 2;
+    public static final byte TYPE_CANCEL = 3;
+    public static final byte TYPE_ERROR = 4;
+
+    public static final int HEADER_LENGTH = 1 + 16;
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    private static final ScheduledExecutorService TIMER;
+
+    static {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MuxTimeouts");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // Most requests finish long before their timeout; don't keep the cancelled tasks around
+        timer.setRemoveOnCancelPolicy(true);
+        TIMER = timer;
+    }
+
+    private final Dialer dialer;
+    private final Executor callbacks;
+    private final ConcurrentHashMap<UUID, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<>();
+
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "MuxWriter");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final Object writeLock = new Object();
+    private Socket socket; // guarded by writeLock
+    private DataOutputStream out; // guarded by writeLock
+    private boolean shutdown; // guarded by writeLock
+
+    public MultiplexedConnection(Dialer dialer) {
+        this(dialer, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param callbacks executor that completes futures, so dependent stages never run on the reader thread
+     */
+    public MultiplexedConnection(Dialer dialer, Executor callbacks) {
+        this.dialer = dialer;
+        this.callbacks = callbacks;
+    }
+
+    public static String newOperationId() {
+        return UUID.randomUUID().toString();
+    }
+
+    /**
+     * Sends body under operationId and returns a future for the peer's response body
+     */
+    public CompletableFuture<byte[]> request(String operationId, final byte[] body, long timeout, TimeUnit unit) {
+        final UUID id = UUID.fromString(operationId);
+        final CompletableFuture<byte[]> future = new CompletableFuture<>();
+        if (pending.putIfAbsent(id, future) != null) {
+            future.completeExceptionally(new IllegalStateException("Duplicate operation_id " + operationId));
+            return future;
+        }
+
+        final long start = System.nanoTime();
+        final ScheduledFuture<?> timer = TIMER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (future.completeExceptionally(new TimeoutException("No response for " + id))) {
+                    Metrics.counter("mux.timeout").increment();
+                }
+            }
+        }, timeout, unit);
+
+        future.whenComplete((result, error) -> {
+            pending.remove(id, future);
+            timer.cancel(false);
+            Metrics.timer("mux.request").recordSince(start);
+            if (future.isCancelled()) {
+                Metrics.counter("mux.cancelled").increment();
+                try {
+                    writer.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            sendQuietly(TYPE_CANCEL, id, new byte[0]);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // Shut down; there is no stream to tell
+                }
+            }
+        });
+
+        try {
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (future.isDone()) {
+                        return; // cancelled or timed out while queued
+                    }
+                    try {
+                        write(TYPE_REQUEST, id, body);
+                    } catch (IOException e) {
+                        future.completeExceptionally(e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(new IOException("Connection shut down"));
+        }
+        return future;
+    }
+
+    public int inFlight() {
+        return pending.size();
+    }
+
+    /**
+     * Fails every pending request and closes the stream; a later request reconnects
+     */
+    public void close() {
+        Socket current;
+        synchronized (writeLock) {
+            current = socket;
+            socket = null;
+            out = null;
+        }
+        closeQuietly(current);
+        failAll(new IOException("Connection closed"));
+    }
+
+    /**
+     * Closes the stream for good and stops the writer thread; later requests fail at once
+     */
+    public void shutdown() {
+        synchronized (writeLock) {
+            shutdown = true;
+        }
+        close();
+        writer.shutdown();
+    }
+
+    // Writer thread only, so connect() never races another dial
+    private void write(byte type, UUID id, byte[] body) throws IOException {
+        boolean connected;
+        synchronized (writeLock) {
+            if (shutdown) {
+                throw new IOException("Connection shut down");
+            }
+            connected = socket != null;
+        }
+        if (!connected) {
+            connect();
+        }
+
+        Socket broken;
+        IOException failure;
+        synchronized (writeLock) {
+            if (out == null) {
+                throw new IOException("Connection closed");
+            }
+            try {
+                writeFrame(out, type, id, body);
+                out.flush();
+                return;
+            } catch (IOException e) {
+                broken = socket;
+                socket = null;
+                out = null;
+                failure = e;
+            }
+        }
+        // The reader no longer owns this socket, so it won't fail what was sent on it
+        closeQuietly(broken);
+        failAll(failure);
+        throw failure;
+    }
+
+    private void sendQuietly(byte type, UUID id, byte[] body) {
+        synchronized (writeLock) {
+            if (socket == null) {
+                return; // nothing to tell a peer we are no longer connected to
+            }
+        }
+        try {
+            write(type, id, body);
+        } catch (IOException e) {
+            // The reader will notice the broken stream and fail the rest
+        }
+    }
+
+    /**
+     * Dials without holding writeLock (building a circuit takes seconds, and close() needs the lock)
+     * and publishes the socket under it
+     */
+    private void connect() throws IOException {
+        final Socket opened = dialer.dial();
+        DataOutputStream stream;
+        final DataInputStream in;
+        try {
+            opened.setTcpNoDelay(true);
+            stream = new DataOutputStream(new BufferedOutputStream(opened.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(opened.getInputStream()));
+        } catch (IOException e) {
+            closeQuietly(opened);
+            throw e;
+        }
+        boolean published;
+        synchronized (writeLock) {
+            published = !shutdown;
+            if (published) {
+                socket = opened;
+                out = stream;
+            }
+        }
+        if (!published) {
+            closeQuietly(opened); // shut down while dialling
+            throw new IOException("Connection shut down");
+        }
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop(opened, in);
+            }
+        }, "MuxReader");
+        reader.setDaemon(true);
+        reader.start();
+        Metrics.counter("mux.connect").increment();
+    }
+
+    private void readLoop(Socket source, DataInputStream in) {
+        IOException failure;
+        try {
+            while (true) {
+                int length = in.readInt();
+                if (length < HEADER_LENGTH || length > MAX_FRAME_LENGTH) {
+                    throw new IOException("Bad frame length " + length);
+                }
+                byte type = in.readByte();
+                UUID id = new UUID(in.readLong(), in.readLong());
+                byte[] body = new byte[length - HEADER_LENGTH];
+                in.readFully(body);
+                dispatch(type, id, body);
+            }
+        } catch (EOFException e) {
+            failure = new IOException("Connection closed by peer");
+        } catch (IOException e) {
+            failure = e;
+        }
+
+        boolean current;
+        synchronized (writeLock) {
+            current = socket == source;
+            if (current) {
+                socket = null;
+                out = null;
+            }
+        }
+        closeQuietly(source);
+        if (current) {
+            failAll(failure);
+        }
+    }
+
+    private void dispatch(byte type, UUID id, final byte[] body) {
+        final CompletableFuture<byte[]> future = pending.get(id);
+        if (future == null) {
+            // Timed out or cancelled before the response arrived
+            Metrics.counter("mux.late_response").increment();
+            return;
+        }
+        if (type == TYPE_RESPONSE) {
+            callbacks.execute(new Runnable() {
+                @Override
+                public void run() {
+                    future.complete(body);
+                }
+            });
+        } else if (type == TYPE_ERROR) {
+            final String message = new String(body, Charset.forName("UTF-8"));
+            callbacks.execute(new Runnable() {
+                @Override
+                public void run() {
+                    future.completeExceptionally(new RemoteError("Relay error: " + message));
+                }
+            });
+        }
+    }
+
+    private void failAll(IOException cause) {
+        for (Iterator<Map.Entry<UUID, CompletableFuture<byte[]>>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+            CompletableFuture<byte[]> future = it.next().getValue();
+            it.remove();
+            future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Writes one frame; shared with the relay side so both agree on the layout
+     */
+    public static void writeFrame(DataOutputStream out, byte type, UUID id, byte[] body) throws IOException {
+        out.writeInt(HEADER_LENGTH + body.length);
+        out.writeByte(type);
+        out.writeLong(id.getMostSignificantBits());
+        out.writeLong(id.getLeastSignificantBits());
+        out.write(body);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+}
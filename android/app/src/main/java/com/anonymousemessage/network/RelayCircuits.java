@@ -0,0 +1,221 @@
+package com.anonymousemessage.network;
+
+import com.anonymousemessage.utils.Metrics;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Several multiplexed streams to the relay, each on its own circuit, chosen
+ * per request by observed performance.
+ *
+ * Every stream's {@link CircuitStats} track RTT, failures and throughput.
+ * Latency-sensitive requests (text, receipts, call signalling) go to the
+ * healthy circuit with the lowest RTT EWMA; circuits that have seen no
+ * requests yet are tried first so they get measured, and circuits whose
+ * requests have only failed go last. Bulk requests go to the healthy
+ * circuit with the fewest requests in flight, keeping them off the fastest
+ * circuit when others are idle. A circuit is retired and replaced once it has
+ * {@link #MIN_SAMPLES} attempts and either fails too often or its p95 grows
+ * past {@link #RETIRE_P95_FACTOR} times the best p95 seen (its own earlier, or
+ * another circuit's). A retired circuit takes no new requests and is closed
+ * when its last one completes.
+ */
+public final class RelayCircuits {
+
+    /**
+     * How a request should be routed
+     */
+    public enum TrafficClass {
+        LATENCY, BULK
+    }
+
+    public static final int MIN_SAMPLES = 20;
+    public static final double RETIRE_P95_FACTOR = 3.0;
+
+    // Don't retire for p95 spikes that are fast in absolute terms
+    private static final double RETIRE_P95_FLOOR_MILLIS = 1500;
+    private static final double UNHEALTHY_FAILURE_RATE = 0.25;
+    private static final double RETIRE_FAILURE_RATE = 0.5;
+    // Latency score of a circuit that has only failed so far
+    private static final double NEVER_SUCCEEDED_MILLIS = 1e6;
+
+    private final class Circuit {
+        final int id = nextId.incrementAndGet();
+        final CircuitStats stats = new CircuitStats();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final MultiplexedConnection connection;
+        volatile boolean retired;
+        double bestP95Millis = Double.MAX_VALUE; // guarded by RelayCircuits.this
+
+        Circuit() {
+            connection = new MultiplexedConnection(new MultiplexedConnection.Dialer() {
+                @Override
+                public Socket dial() throws IOException {
+                    Socket socket = dialer.dial();
+                    // Reconnecting means a new circuit; its timing no longer applies
+                    stats.reconnected();
+                    return socket;
+                }
+            });
+        }
+
+        boolean healthy() {
+            return !retired && (stats.attempts() < 3 || stats.failureRate() < UNHEALTHY_FAILURE_RATE);
+        }
+    }
+
+    private final MultiplexedConnection.Dialer dialer;
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final CopyOnWriteArrayList<Circuit> active = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param dialer opens a stream on a fresh circuit each time it is called
+     */
+    public RelayCircuits(MultiplexedConnection.Dialer dialer, int circuits) {
+        if (circuits < 1) {
+            throw new IllegalArgumentException("Need at least one circuit, got " + circuits);
+        }
+        this.dialer = dialer;
+        for (int i = 0; i < circuits; i++) {
+            active.add(new Circuit());
+        }
+    }
+
+    /**
+     * Sends body on the circuit best suited to trafficClass; see {@link MultiplexedConnection#request}
+     */
+    public CompletableFuture<byte[]> request(String operationId, final byte[] body, long timeout, TimeUnit unit,
+                                             TrafficClass trafficClass) {
+        Circuit chosen;
+        while (true) {
+            chosen = select(trafficClass);
+            chosen.inFlight.incrementAndGet();
+            if (!chosen.retired) {
+                break;
+            }
+            release(chosen); // retired between select and increment
+        }
+        final Circuit circuit = chosen;
+        final long start = System.nanoTime();
+        final CompletableFuture<byte[]> future = circuit.connection.request(operationId, body, timeout, unit);
+        future.whenComplete((response, error) -> {
+            if (error == null) {
+                circuit.stats.recordSuccess(System.nanoTime() - start, body.length + response.length);
+            } else if (error instanceof TimeoutException
+                    || (error instanceof IOException && !(error instanceof MultiplexedConnection.RemoteError))) {
+                circuit.stats.recordFailure();
+            }
+            // Cancellations and relay-side errors say nothing about the circuit
+            release(circuit);
+            maybeRetire(circuit);
+        });
+        return future;
+    }
+
+    /**
+     * Per-circuit stats for diagnostics, keyed "circuit-<id>"
+     */
+    public Map<String, String> diagnostics() {
+        Map<String, String> result = new TreeMap<>();
+        for (Circuit circuit : active) {
+            result.put("circuit-" + circuit.id, circuit.stats + " inflight=" + circuit.inFlight.get()
+                + (circuit.healthy() ? "" : " unhealthy"));
+        }
+        return result;
+    }
+
+    /**
+     * Shuts down every circuit, failing whatever is in flight; the instance is done after this
+     */
+    public void close() {
+        for (Circuit circuit : active) {
+            circuit.connection.shutdown();
+        }
+    }
+
+    private Circuit select(TrafficClass trafficClass) {
+        List<Circuit> candidates = new ArrayList<>(active.size());
+        for (Circuit circuit : active) {
+            if (circuit.healthy()) {
+                candidates.add(circuit);
+            }
+        }
+        if (candidates.isEmpty()) {
+            // Nothing healthy; the replacements are on their way, so use what there is
+            candidates.addAll(active);
+        }
+
+        Circuit best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (Circuit circuit : candidates) {
+            double score;
+            if (trafficClass == TrafficClass.LATENCY) {
+                score = latencyScore(circuit);
+            } else {
+                // Fewest in flight; RTT only breaks ties
+                score = circuit.inFlight.get() * 1e9 + latencyScore(circuit);
+            }
+            if (score < bestScore) {
+                best = circuit;
+                bestScore = score;
+            }
+        }
+        Metrics.counter(trafficClass == TrafficClass.LATENCY ? "tor.route_latency" : "tor.route_bulk").increment();
+        return best;
+    }
+
+    private synchronized void maybeRetire(Circuit circuit) {
+        if (circuit.retired || circuit.stats.attempts() < MIN_SAMPLES) {
+            return;
+        }
+        boolean failing = circuit.stats.failureRate() > RETIRE_FAILURE_RATE;
+        boolean degraded = false;
+        if (circuit.stats.samples() >= MIN_SAMPLES) {
+            // p95 only means something once enough requests got through
+            double p95 = circuit.stats.p95Millis();
+            double reference = circuit.bestP95Millis;
+            for (Circuit other : active) {
+                if (other != circuit && other.stats.samples() >= MIN_SAMPLES) {
+                    reference = Math.min(reference, other.stats.p95Millis());
+                }
+            }
+            degraded = reference != Double.MAX_VALUE && p95 > RETIRE_P95_FLOOR_MILLIS
+                && p95 > RETIRE_P95_FACTOR * reference;
+            circuit.bestP95Millis = Math.min(circuit.bestP95Millis, p95);
+        }
+        if (!failing && !degraded) {
+            return;
+        }
+
+        circuit.retired = true;
+        active.remove(circuit);
+        active.add(new Circuit());
+        Metrics.counter(failing ? "tor.circuit_retired_failures" : "tor.circuit_retired_p95").increment();
+        if (circuit.inFlight.get() == 0) {
+            circuit.connection.shutdown();
+        }
+    }
+
+    private static double latencyScore(Circuit circuit) {
+        if (circuit.stats.samples() > 0) {
+            return circuit.stats.rttEwmaMillis();
+        }
+        return circuit.stats.attempts() == 0 ? -1 : NEVER_SUCCEEDED_MILLIS;
+    }
+
+    private void release(Circuit circuit) {
+        if (circuit.inFlight.decrementAndGet() == 0 && circuit.retired) {
+            circuit.connection.shutdown();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.anonymousemessage.network;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+/**
+ * Minimal SOCKS5 client (RFC 1928, username/password auth per RFC 1929).
+ *
+ * java.net's SOCKS support only takes credentials from the process-wide
+ * Authenticator. Tor isolates streams by SOCKS credentials (IsolateSOCKSAuth,
+ * on by default), so passing them per connection is what lets us choose which
+ * streams share a circuit. Host names are sent unresolved (ATYP 3), so .onion
+ * addresses are resolved by Tor.
+ */
+public final class Socks5 {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private Socks5() {
+    }
+
+    /**
+     * Connects to host:port through the proxy, authenticating with the given isolation credentials
+     */
+    public static Socket connect(InetSocketAddress proxy, String host, int port,
+                                 String username, String password, int timeoutMillis) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(proxy, timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            handshake(socket, host, port, username, password);
+            socket.setSoTimeout(0);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private static void handshake(Socket socket, String host, int port,
+                                  String username, String password) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+
+        // Greeting: version 5, one method, username/password
+        out.write(new byte[] {5, 1, 2});
+        out.flush();
+        if (in.readByte() != 5 || in.readByte() != 2) {
+            throw new IOException("SOCKS proxy refused username/password auth");
+        }
+
+        byte[] user = username.getBytes(US_ASCII);
+        byte[] pass = password.getBytes(US_ASCII);
+        byte[] hostBytes = host.getBytes(US_ASCII);
+        if (user.length > 255 || pass.length > 255 || hostBytes.length > 255) {
+            throw new IOException("SOCKS field too long");
+        }
+        byte[] auth = new byte[3 + user.length + pass.length];
+        auth[0] = 1;
+        auth[1] = (byte) user.length;
+        System.arraycopy(user, 0, auth, 2, user.length);
+        auth[2 + user.length] = (byte) pass.length;
+        System.arraycopy(pass, 0, auth, 3 + user.length, pass.length);
+        out.write(auth);
+        out.flush();
+        if (in.readByte() != 1 || in.readByte() != 0) {
+            throw new IOException("SOCKS authentication failed");
+        }
+
+        // CONNECT with a domain name address
+        byte[] request = new byte[7 + hostBytes.length];
+        request[0] = 5;
+        request[1] = 1;
+        request[2] = 0;
+        request[3] = 3;
+        request[4] = (byte) hostBytes.length;
+        System.arraycopy(hostBytes, 0, request, 5, hostBytes.length);
+        request[5 + hostBytes.length] = (byte) (port >> 8);
+        request[6 + hostBytes.length] = (byte) port;
+        out.write(request);
+        out.flush();
+
+        if (in.readByte() != 5) {
+            throw new IOException("Bad SOCKS reply");
+        }
+        int reply = in.readByte() & 0xFF;
+        in.readByte(); // reserved
+        int addressType = in.readByte() & 0xFF;
+        if (reply != 0) {
+            throw new IOException("SOCKS connect to " + host + ":" + port + " failed, reply " + reply);
+        }
+        int addressLength;
+        if (addressType == 1) {
+            addressLength = 4;
+        } else if (addressType == 4) {
+            addressLength = 16;
+        } else if (addressType == 3) {
+            addressLength = in.readByte() & 0xFF;
+        } else {
+            throw new IOException("Bad SOCKS address type " + addressType);
+        }
+        in.readFully(new byte[addressLength + 2]); // bound address and port
+    }
+}
@@ -0,0 +1,110 @@
+package com.anonymousemessage.network;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tor's data directory and torrc, kept across launches.
+ *
+ * Tor caches the consensus, microdescriptors and certificates and keeps its
+ * guard choices in "state". With those on disk a restart skips most of the
+ * directory fetches and reuses the same guards, which is most of the cold
+ * bootstrap time. The torrc is rewritten only when its content changes, and
+ * nothing in the directory is ever cleared by the app.
+ */
+public final class TorDataDirectory {
+
+    // A consensus stays "reasonably live" for 24 hours; past that Tor refetches it anyway
+    private static final long CONSENSUS_REUSABLE_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File root;
+
+    public TorDataDirectory(File root) {
+        this.root = root;
+    }
+
+    public File dataDirectory() {
+        return new File(root, "data");
+    }
+
+    public File torrc() {
+        return new File(root, "torrc");
+    }
+
+    /**
+     * Creates the directories and torrc if needed. Returns true if cached directory state from a
+     * previous launch is fresh enough for a warm start.
+     */
+    public boolean prepare(String socksHost, int socksPort) throws IOException {
+        File data = dataDirectory();
+        if (!data.isDirectory() && !data.mkdirs()) {
+            throw new IOException("Could not create " + data);
+        }
+        writeIfChanged(torrc(), torrcContent(socksHost, socksPort));
+        return hasFreshState();
+    }
+
+    /**
+     * True if a consensus from a previous launch can be reused
+     */
+    public boolean hasFreshState() {
+        File data = dataDirectory();
+        File consensus = new File(data, "cached-microdesc-consensus");
+        File state = new File(data, "state");
+        return consensus.isFile() && state.isFile()
+            && System.currentTimeMillis() - consensus.lastModified() < CONSENSUS_REUSABLE_MILLIS;
+    }
+
+    private String torrcContent(String socksHost, int socksPort) {
+        String data = dataDirectory().getAbsolutePath();
+        return "DataDirectory " + data + "\n"
+            + "CacheDirectory " + data + "\n"
+            // Streams with different SOCKS credentials get different circuits (see Socks5)
+            + "SocksPort " + socksHost + ":" + socksPort + " IsolateSOCKSAuth\n"
+            // Write state and caches so the next launch can reuse them
+            + "AvoidDiskWrites 0\n"
+            + "ClientOnly 1\n";
+    }
+
+    private static void writeIfChanged(File file, String content) throws IOException {
+        byte[] bytes = content.getBytes(UTF_8);
+        if (file.isFile() && Arrays.equals(read(file), bytes)) {
+            return;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(bytes);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) file.length());
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes.toByteArray();
+    }
+}
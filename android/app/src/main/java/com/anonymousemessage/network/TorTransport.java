@@ -0,0 +1,317 @@
+package com.anonymousemessage.network;
+
+import com.anonymousemessage.utils.Metrics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.ConnectionPool;
+import okhttp3.EventListener;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * HTTP over Tor's SOCKS port with one keep-alive connection pool per destination.
+ *
+ * Opening a stream to an onion service means building a rendezvous circuit,
+ * which costs seconds; reusing an open connection costs one round trip. Each
+ * destination (host:port) gets its own OkHttp ConnectionPool, all sharing one
+ * dispatcher and proxy. Connections are kept alive for {@code keepAlive} and a
+ * destination that has been idle longer than {@code destinationIdle} has its
+ * pool closed and dropped. Host names are passed unresolved to the proxy, so
+ * .onion addresses are resolved by Tor and never by local DNS.
+ */
+public final class TorTransport {
+
+    public static final String DEFAULT_PROXY_HOST = "127.0.0.1";
+    public static final int DEFAULT_PROXY_PORT = 9050;
+
+    private static final MediaType OCTET_STREAM = MediaType.get("application/octet-stream");
+
+    private static final ScheduledExecutorService REAPER = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "TorTransportReaper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /**
+     * Pool settings; the defaults suit a phone talking to a handful of relays and contacts
+     */
+    public static final class Config {
+        int maxIdleConnectionsPerDestination = 2;
+        long keepAliveMillis = TimeUnit.MINUTES.toMillis(5);
+        long destinationIdleMillis = TimeUnit.MINUTES.toMillis(15);
+        long connectTimeoutMillis = TimeUnit.SECONDS.toMillis(60);
+        long readTimeoutMillis = TimeUnit.SECONDS.toMillis(60);
+        int warmCircuits = 2;
+        long warmCircuitIdleMillis = TimeUnit.MINUTES.toMillis(5);
+
+        public Config maxIdleConnectionsPerDestination(int value) {
+            maxIdleConnectionsPerDestination = value;
+            return this;
+        }
+
+        public Config keepAlive(long value, TimeUnit unit) {
+            keepAliveMillis = unit.toMillis(value);
+            return this;
+        }
+
+        public Config destinationIdle(long value, TimeUnit unit) {
+            destinationIdleMillis = unit.toMillis(value);
+            return this;
+        }
+
+        public Config connectTimeout(long value, TimeUnit unit) {
+            connectTimeoutMillis = unit.toMillis(value);
+            return this;
+        }
+
+        public Config readTimeout(long value, TimeUnit unit) {
+            readTimeoutMillis = unit.toMillis(value);
+            return this;
+        }
+
+        /**
+         * Streams pre-dialed by warmUp(), each on its own circuit; set it to the number of streams
+         * the destination's user opens, since streams nobody takes are only closed once idle
+         */
+        public Config warmCircuits(int value) {
+            warmCircuits = value;
+            return this;
+        }
+
+        public Config warmCircuitIdle(long value, TimeUnit unit) {
+            warmCircuitIdleMillis = unit.toMillis(value);
+            return this;
+        }
+    }
+
+    private static final class Destination {
+        final OkHttpClient client;
+        final ConnectionPool pool;
+        volatile long lastUsedNanos = System.nanoTime();
+
+        Destination(OkHttpClient client, ConnectionPool pool) {
+            this.client = client;
+            this.pool = pool;
+        }
+    }
+
+    private final OkHttpClient base;
+    private final Proxy proxy;
+    private final Config config;
+    private final ConcurrentHashMap<String, Destination> destinations = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CircuitPool> circuits = new ConcurrentHashMap<>();
+    private final ScheduledFuture<?> sweeper;
+
+    public TorTransport() {
+        this(new Proxy(Proxy.Type.SOCKS, new InetSocketAddress(DEFAULT_PROXY_HOST, DEFAULT_PROXY_PORT)),
+            new Config());
+    }
+
+    public TorTransport(Proxy proxy, Config config) {
+        this.proxy = proxy;
+        this.config = config;
+        this.base = new OkHttpClient.Builder()
+            .proxy(proxy)
+            .connectTimeout(config.connectTimeoutMillis, TimeUnit.MILLISECONDS)
+            .readTimeout(config.readTimeoutMillis, TimeUnit.MILLISECONDS)
+            .writeTimeout(config.readTimeoutMillis, TimeUnit.MILLISECONDS)
+            // Every call is a POST the relay may already have acted on; a stale pooled
+            // connection surfaces as an IOException and the caller decides whether to resend
+            .retryOnConnectionFailure(false)
+            .eventListener(new ReuseListener())
+            .build();
+
+        long sweep = Math.max(1000, Math.min(config.destinationIdleMillis, config.warmCircuitIdleMillis) / 4);
+        sweeper = REAPER.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdleDestinations();
+            }
+        }, sweep, sweep, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * POSTs body to url over the destination's pooled connection and returns the response body
+     */
+    public byte[] post(HttpUrl url, byte[] body) throws IOException {
+        long start = System.nanoTime();
+        try (Response response = newCall(url, body).execute()) {
+            if (!response.isSuccessful()) {
+                throw new IOException("HTTP " + response.code() + " from " + url.host());
+            }
+            ResponseBody responseBody = response.body();
+            return responseBody != null ? responseBody.bytes() : new byte[0];
+        } finally {
+            Metrics.timer("tor.request").recordSince(start);
+        }
+    }
+
+    /**
+     * Unstarted call bound to the destination's pool, for callers that want enqueue() or cancel()
+     */
+    public Call newCall(HttpUrl url, byte[] body) {
+        Request request = new Request.Builder()
+            .url(url)
+            .post(RequestBody.create(body, OCTET_STREAM))
+            .build();
+        return clientFor(url).newCall(request);
+    }
+
+    /**
+     * Client sharing the destination's connection pool, e.g. for WebSocket or streaming calls
+     */
+    public OkHttpClient clientFor(HttpUrl url) {
+        String key = url.host() + ":" + url.port();
+        Destination destination = destinations.get(key);
+        if (destination == null) {
+            ConnectionPool pool = new ConnectionPool(config.maxIdleConnectionsPerDestination,
+                config.keepAliveMillis, TimeUnit.MILLISECONDS);
+            Destination created = new Destination(base.newBuilder().connectionPool(pool).build(), pool);
+            destination = destinations.putIfAbsent(key, created);
+            if (destination == null) {
+                destination = created;
+            }
+        }
+        destination.lastUsedNanos = System.nanoTime();
+        return destination.client;
+    }
+
+    /**
+     * Dials raw streams to host:port through the same SOCKS proxy, for {@link MultiplexedConnection}.
+     * Uses a pre-dialed stream when warmUp() has one ready.
+     */
+    public MultiplexedConnection.Dialer dialer(final String host, final int port) {
+        return new MultiplexedConnection.Dialer() {
+            @Override
+            public Socket dial() throws IOException {
+                if (proxy.type() != Proxy.Type.SOCKS) {
+                    Socket socket = new Socket(proxy);
+                    try {
+                        socket.connect(InetSocketAddress.createUnresolved(host, port), (int) config.connectTimeoutMillis);
+                    } catch (IOException e) {
+                        socket.close();
+                        throw e;
+                    }
+                    return socket;
+                }
+                CircuitPool pool = circuitPool(host, port);
+                Socket warm = pool.take();
+                return warm != null ? warm : pool.dial();
+            }
+        };
+    }
+
+    /**
+     * Builds the configured number of circuits to host:port in parallel, ahead of the first
+     * request. The future completes once the first one is ready to carry traffic.
+     */
+    public CompletableFuture<Void> warmUp(String host, int port) {
+        if (proxy.type() != Proxy.Type.SOCKS || config.warmCircuits <= 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return circuitPool(host, port).fill();
+    }
+
+    private CircuitPool circuitPool(String host, int port) {
+        String key = host + ":" + port;
+        CircuitPool pool = circuits.get(key);
+        if (pool == null) {
+            CircuitPool created = new CircuitPool((InetSocketAddress) proxy.address(), host, port,
+                config.warmCircuits, TimeUnit.MILLISECONDS.toNanos(config.warmCircuitIdleMillis),
+                (int) config.connectTimeoutMillis);
+            pool = circuits.putIfAbsent(key, created);
+            if (pool == null) {
+                pool = created;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Open (idle + in-use) connections per destination, for diagnostics
+     */
+    public Map<String, Integer> connectionCounts() {
+        Map<String, Integer> counts = new TreeMap<>();
+        for (Map.Entry<String, Destination> entry : destinations.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().pool.connectionCount());
+        }
+        return counts;
+    }
+
+    /**
+     * Closes every pooled connection, e.g. when Tor restarts and existing circuits are gone
+     */
+    public void evictAll() {
+        for (Iterator<Destination> it = destinations.values().iterator(); it.hasNext(); ) {
+            it.next().pool.evictAll();
+            it.remove();
+        }
+        for (Iterator<CircuitPool> it = circuits.values().iterator(); it.hasNext(); ) {
+            it.next().close();
+            it.remove();
+        }
+    }
+
+    /**
+     * Closes every connection and stops the idle sweep; the transport must not be used afterwards
+     */
+    public void shutdown() {
+        sweeper.cancel(false);
+        evictAll();
+    }
+
+    void evictIdleDestinations() {
+        for (CircuitPool pool : circuits.values()) {
+            pool.closeIdle();
+        }
+        long now = System.nanoTime();
+        long idleNanos = TimeUnit.MILLISECONDS.toNanos(config.destinationIdleMillis);
+        for (Iterator<Destination> it = destinations.values().iterator(); it.hasNext(); ) {
+            Destination destination = it.next();
+            if (now - destination.lastUsedNanos > idleNanos) {
+                it.remove();
+                destination.pool.evictAll();
+                Metrics.counter("tor.destination_evicted").increment();
+            }
+        }
+    }
+
+    /**
+     * Counts new SOCKS connections vs pooled reuse
+     */
+    private static final class ReuseListener extends EventListener {
+        @Override
+        public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            Metrics.counter("tor.connect").increment();
+        }
+
+        @Override
+        public void connectionAcquired(Call call, okhttp3.Connection connection) {
+            Metrics.counter("tor.connection_acquired").increment();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.anonymousemessage.protocol;
+
+import java.nio.charset.Charset;
+
+/**
+ * Preset deflate dictionaries for {@link PayloadCompressor}, by id.
+ *
+ * Chat messages are too short for deflate to find repeats within them, so
+ * both ends start from a shared window of text that messages commonly
+ * contain: frequent words and phrases, emoji, URL and file-name fragments,
+ * MIME types. Deflate codes a match as a back-reference into this window.
+ * Later bytes are cheaper to reference, so the most common material is at
+ * the end.
+ *
+ * V1 is hand-curated rather than trained: there is no message corpus to
+ * train on that wouldn't mean collecting users' messages. A dictionary
+ * trained on a public sample would ship as a new id.
+ *
+ * A dictionary is never changed once shipped. A better one gets a new id,
+ * and the old one is kept so older messages still decode.
+ */
+final class CompressionDictionary {
+
+    static final int V1 = 1;
+
+    private static final String V1_TEXT =
+        "application/pdf application/zip application/octet-stream text/plain text/vcard "
+        + "image/jpeg image/png image/gif image/webp video/mp4 video/webm audio/ogg audio/mpeg audio/mp4 "
+        + ".jpg .jpeg .png .gif .mp4 .mov .pdf .docx .xlsx .zip .ogg .m4a IMG_ VID_ PXL_ Screenshot_ "
+        + "https://www.youtube.com/watch?v= https://youtu.be/ https://twitter.com/ https://x.com/ "
+        + "https://github.com/ https://t.me/ https://maps.google.com/?q= https://www.google.com/search?q= "
+        + "https://en.wikipedia.org/wiki/ https://www. http://www. .com/ .org/ .net/ .html "
+        + "geo: BEGIN:VCARD VERSION:3.0 FN: TEL: EMAIL: END:VCARD "
+        + "Happy birthday! Congratulations! Merry Christmas! Happy new year! Good luck! "
+        + "Thank you so much! Thanks a lot! No problem. You're welcome. Sorry, I can't right now. "
+        + "I'll call you later. Call me when you can. Can you call me? I'm on my way. I'm almost there. "
+        + "I'll be there in 5 minutes. I'll be there soon. Running late, sorry! See you tomorrow. "
+        + "See you soon! Talk to you later. Let me know. Let me know when you're free. "
+        + "What time? Where are you? Are you coming? Are you there? Are you okay? Are you sure? "
+        + "How are you? How was your day? How's it going? What's up? What are you doing? "
+        + "Did you see this? Did you get my message? Have you seen this? Can you send me the "
+        + "I don't know. I don't think so. I think so. I'm not sure. I have no idea. "
+        + "That's great! That's awesome! Sounds good! Sounds good to me. Good morning! Good night! "
+        + "Love you. Miss you. Take care. Have a nice day! Have fun! "
+        + "tomorrow tonight today yesterday morning afternoon evening weekend Monday Tuesday "
+        + "Wednesday Thursday Friday Saturday Sunday minutes hours later please thanks "
+        + "because really actually probably something anything everything nothing "
+        + "should would could maybe already still again never always just about "
+        + "meeting dinner lunch coffee home work office school address number phone "
+        // Most used emoji, escaped so the file is plain ASCII
+        + "\uD83D\uDE02\uD83D\uDE0A\u2764\uFE0F\uD83D\uDC4D\uD83D\uDE0D\uD83D\uDE4F\uD83D\uDE2D\uD83D\uDE05"
+        + "\uD83D\uDE09\uD83D\uDD25\uD83C\uDF89\uD83D\uDE18\uD83D\uDE0E\uD83E\uDD14\uD83D\uDE4C\uD83D\uDC4C "
+        + "haha hahaha lol ok okay yes yeah yep no nope sure cool nice great thanks thx pls omg btw "
+        + "I'm I'll I've I'd you're you'll don't can't won't didn't doesn't isn't it's that's what's "
+        + "the and you that have for not with this but are was your can what all will "
+        + "The You I ";
+
+    private static final byte[] V1_BYTES = V1_TEXT.getBytes(Charset.forName("UTF-8"));
+
+    private CompressionDictionary() {
+    }
+
+    /**
+     * The dictionary's bytes, or null if id is unknown; callers must not modify them
+     */
+    static byte[] get(int id) {
+        return id == V1 ? V1_BYTES : null;
+    }
+}
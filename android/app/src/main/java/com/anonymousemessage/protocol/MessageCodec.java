@@ -0,0 +1,100 @@
+package com.anonymousemessage.protocol;
+
+import com.anonymousemessage.models.Message;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * Binary form of a {@link Message} as carried end-to-end inside a batch.
+ *
+ * version(1) || flags(1) || type(1) || messageId || senderId || content || timestamp(varint)
+ *   [|| fileName || fileSize(varint) || mimeType]  if FLAG_MEDIA
+ *
+ * A messageId that is a canonical UUID travels as 16 raw bytes (FLAG_UUID_ID)
+ * instead of a 37-byte string. The type byte is the enum ordinal, so new types
+ * are only ever appended to Message.Type. The recipient is not carried: it is
+ * the batch's addressee. Versions stay below {@link Receipt#MARKER}, which starts
+ * the receipts carried in the same batches.
+ */
+public final class MessageCodec {
+
+    public static final int VERSION = 1;
+
+    private static final int FLAG_UUID_ID = 1;
+    private static final int FLAG_MEDIA = 1 << 1;
+
+    private static final Message.Type[] TYPES = Message.Type.values();
+
+    private MessageCodec() {
+    }
+
+    public static byte[] encode(Message message) {
+        UUID uuid = asUuid(message.getMessageId());
+        boolean media = message.getFileName() != null || message.getMimeType() != null || message.getFileSize() != 0;
+        int flags = (uuid != null ? FLAG_UUID_ID : 0) | (media ? FLAG_MEDIA : 0);
+        String content = message.getContent();
+
+        WireWriter out = new WireWriter(64 + (content != null ? content.length() : 0))
+            .writeByte(VERSION)
+            .writeByte(flags)
+            .writeByte(message.getType().ordinal());
+        if (uuid != null) {
+            out.writeUuid(uuid);
+        } else {
+            out.writeString(message.getMessageId());
+        }
+        out.writeString(message.getSenderId())
+            .writeString(content)
+            .writeVarint(message.getTimestamp());
+        if (media) {
+            out.writeString(message.getFileName())
+                .writeVarint(message.getFileSize())
+                .writeString(message.getMimeType());
+        }
+        return out.toByteArray();
+    }
+
+    public static Message decode(ByteBuffer frame) throws ProtocolException {
+        WireReader in = new WireReader(frame);
+        int version = in.readByte();
+        if (version < 1 || version > VERSION) {
+            throw new ProtocolException("Unsupported message version " + version);
+        }
+        int flags = in.readByte();
+        int type = in.readByte();
+        if (type >= TYPES.length) {
+            throw new ProtocolException("Unknown message type " + type);
+        }
+
+        Message message = new Message();
+        message.setType(TYPES[type]);
+        message.setMessageId((flags & FLAG_UUID_ID) != 0 ? in.readUuid().toString() : in.readString());
+        message.setSenderId(in.readString());
+        message.setContent(in.readString());
+        message.setTimestamp(in.readVarint());
+        if ((flags & FLAG_MEDIA) != 0) {
+            message.setFileName(in.readString());
+            message.setFileSize(in.readVarint());
+            message.setMimeType(in.readString());
+        }
+        return message;
+    }
+
+    public static Message decode(byte[] frame) throws ProtocolException {
+        return decode(ByteBuffer.wrap(frame));
+    }
+
+    // Only ids that round-trip exactly, so decoding gives back the same string
+    private static UUID asUuid(String id) {
+        if (id == null || id.length() != 36) {
+            return null;
+        }
+        try {
+            UUID uuid = UUID.fromString(id);
+            return uuid.toString().equals(id) ? uuid : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.anonymousemessage.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pads plaintext to a fixed set of sizes before encryption, so the ciphertext
+ * length tells an observer only which bucket a payload fell in.
+ *
+ * Frame: varint(length) || payload || zeros, totalling a bucket size. Buckets
+ * double from {@link #MIN_BUCKET} to {@link #LINEAR_FROM}, then grow in steps
+ * of LINEAR_FROM, which caps the overhead of large payloads at 64 KiB while
+ * keeping small ones, where lengths say the most, in few buckets.
+ */
+public final class Padding {
+
+    public static final int MIN_BUCKET = 64;
+    public static final int LINEAR_FROM = 64 * 1024;
+
+    private Padding() {
+    }
+
+    public static int bucketFor(int length) {
+        if (length > LINEAR_FROM) {
+            return (int) Math.min(Integer.MAX_VALUE, ((length + (long) LINEAR_FROM - 1) / LINEAR_FROM) * LINEAR_FROM);
+        }
+        int bucket = MIN_BUCKET;
+        while (bucket < length) {
+            bucket <<= 1;
+        }
+        return bucket;
+    }
+
+    public static byte[] pad(byte[] payload) {
+        byte[] prefix = new WireWriter(8).writeVarint(payload.length).toByteArray();
+        byte[] padded = new byte[bucketFor(prefix.length + payload.length)];
+        System.arraycopy(prefix, 0, padded, 0, prefix.length);
+        System.arraycopy(payload, 0, padded, prefix.length, payload.length);
+        return padded;
+    }
+
+    /**
+     * The payload inside a padded frame, as a view of it
+     */
+    public static ByteBuffer unpad(ByteBuffer frame) throws ProtocolException {
+        return new WireReader(frame).readSlice();
+    }
+}
@@ -0,0 +1,202 @@
+package com.anonymousemessage.protocol;
+
+import com.anonymousemessage.utils.Metrics;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression stage applied to plaintext payloads before they are encrypted.
+ *
+ * Frame: mode(1) || body, where mode is STORED (body is the payload) or a
+ * dictionary id (body is varint(payloadLength) || raw deflate primed with
+ * that {@link CompressionDictionary}). Payloads shorter than the threshold,
+ * and payloads that deflate does not shrink, are stored. Because a static
+ * dictionary is shared by everyone and each payload is compressed on its
+ * own, nothing one payload contains can be probed through another's size.
+ * The total length still varies; {@link Padding} rounds it to a bucket.
+ *
+ * Per label (e.g. message type) it records compress.<label>.in_bytes /
+ * .out_bytes / .stored and a compress.<label> timer; see {@link #stats()}.
+ */
+public final class PayloadCompressor {
+
+    public static final int STORED = 0;
+    public static final int DEFAULT_THRESHOLD = 32;
+
+    private static final int MAX_PAYLOAD_LENGTH = 16 * 1024 * 1024;
+
+    // First guess at the inflated size relative to the compressed one; chat text rarely beats it
+    private static final int INITIAL_RATIO = 4;
+
+    private static final ThreadLocal<Deflater> DEFLATERS = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_COMPRESSION, true);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> INFLATERS = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    private static final PayloadCompressor DEFAULT = new PayloadCompressor(CompressionDictionary.V1, DEFAULT_THRESHOLD);
+    private static final PayloadCompressor STORE_ONLY = new PayloadCompressor(CompressionDictionary.V1, Integer.MAX_VALUE);
+
+    private final int dictionaryId;
+    private final byte[] dictionary;
+    private final int threshold;
+
+    /**
+     * @param threshold payloads shorter than this are stored; Integer.MAX_VALUE disables compression
+     */
+    public PayloadCompressor(int dictionaryId, int threshold) {
+        this.dictionary = CompressionDictionary.get(dictionaryId);
+        if (dictionary == null) {
+            throw new IllegalArgumentException("Unknown dictionary " + dictionaryId);
+        }
+        this.dictionaryId = dictionaryId;
+        this.threshold = threshold;
+    }
+
+    public static PayloadCompressor shared() {
+        return DEFAULT;
+    }
+
+    /**
+     * Frames every payload as STORED, for when compression is turned off
+     */
+    public static PayloadCompressor storeOnly() {
+        return STORE_ONLY;
+    }
+
+    public byte[] compress(byte[] payload, String label) {
+        long start = System.nanoTime();
+        byte[] frame = payload.length >= threshold ? deflate(payload) : null;
+        if (frame == null) {
+            frame = new byte[1 + payload.length];
+            frame[0] = STORED;
+            System.arraycopy(payload, 0, frame, 1, payload.length);
+            Metrics.counter("compress." + label + ".stored").increment();
+        }
+        Metrics.timer("compress." + label).recordSince(start);
+        Metrics.counter("compress." + label + ".in_bytes").add(payload.length);
+        Metrics.counter("compress." + label + ".out_bytes").add(frame.length);
+        return frame;
+    }
+
+    /**
+     * Reverses {@link #compress} for any shipped dictionary
+     */
+    public static byte[] decompress(ByteBuffer frame) throws ProtocolException {
+        WireReader in = new WireReader(frame);
+        int mode = in.readByte();
+        if (mode == STORED) {
+            return rest(frame, in.remaining());
+        }
+        byte[] dictionary = CompressionDictionary.get(mode);
+        if (dictionary == null) {
+            throw new ProtocolException("Unknown compression dictionary " + mode);
+        }
+        long length = in.readVarint();
+        if (length > MAX_PAYLOAD_LENGTH) {
+            throw new ProtocolException("Compressed payload claims " + length + " bytes");
+        }
+        byte[] compressed = rest(frame, in.remaining());
+
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setDictionary(dictionary);
+        inflater.setInput(compressed);
+        // The claimed length comes from the peer; grow towards it only as the data actually inflates
+        int expected = (int) length;
+        byte[] payload = new byte[(int) Math.min(expected, INITIAL_RATIO * (long) compressed.length + 64)];
+        try {
+            int n = 0;
+            while (n < expected) {
+                if (n == payload.length) {
+                    payload = Arrays.copyOf(payload, (int) Math.min(expected, 2L * payload.length));
+                }
+                int read = inflater.inflate(payload, n, payload.length - n);
+                if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += read;
+            }
+            if (n != expected) {
+                throw new ProtocolException("Compressed payload is " + n + " bytes, expected " + length);
+            }
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Corrupt compressed payload: " + e.getMessage());
+        }
+        return payload;
+    }
+
+    public static byte[] decompress(byte[] frame) throws ProtocolException {
+        return decompress(ByteBuffer.wrap(frame));
+    }
+
+    /**
+     * Ratio and mean CPU per payload for every label seen so far, for diagnostics
+     */
+    public static Map<String, String> stats() {
+        Map<String, String> result = new TreeMap<>();
+        for (Map.Entry<String, String> entry : Metrics.snapshot().entrySet()) {
+            String name = entry.getKey();
+            if (!name.startsWith("compress.") || !name.endsWith(".in_bytes")) {
+                continue;
+            }
+            String label = name.substring("compress.".length(), name.length() - ".in_bytes".length());
+            long in = Metrics.counter(name).get();
+            long out = Metrics.counter("compress." + label + ".out_bytes").get();
+            Metrics.Timer timer = Metrics.timer("compress." + label);
+            result.put(label, String.format(Locale.US, "n=%d ratio=%.2f stored=%d cpu=%.1fus",
+                timer.count(), in == 0 ? 1.0 : out / (double) in,
+                Metrics.counter("compress." + label + ".stored").get(), timer.meanMillis() * 1000));
+        }
+        return result;
+    }
+
+    // The last length bytes of frame
+    private static byte[] rest(ByteBuffer frame, int length) {
+        ByteBuffer tail = frame.duplicate();
+        tail.position(frame.limit() - length);
+        byte[] bytes = new byte[length];
+        tail.get(bytes);
+        return bytes;
+    }
+
+    // Null if deflating doesn't make the payload smaller
+    private byte[] deflate(byte[] payload) {
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setDictionary(dictionary);
+        deflater.setInput(payload);
+        deflater.finish();
+
+        byte[] header = new WireWriter(12).writeByte(dictionaryId).writeVarint(payload.length).toByteArray();
+        // Anything that doesn't fit in the stored frame's size isn't worth sending compressed
+        byte[] frame = new byte[1 + payload.length];
+        if (header.length >= frame.length) {
+            return null;
+        }
+        System.arraycopy(header, 0, frame, 0, header.length);
+        int length = header.length;
+        while (!deflater.finished() && length < frame.length) {
+            length += deflater.deflate(frame, length, frame.length - length);
+        }
+        if (!deflater.finished() || length >= frame.length) {
+            return null;
+        }
+        return Arrays.copyOf(frame, length);
+    }
+}
@@ -0,0 +1,15 @@
+package com.anonymousemessage.protocol;
+
+import java.io.IOException;
+
+/**
+ * A frame that is truncated, malformed or from an unsupported protocol version
+ */
+public class ProtocolException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ProtocolException(String message) {
+        super(message);
+    }
+}
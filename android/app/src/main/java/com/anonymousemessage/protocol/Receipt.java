@@ -0,0 +1,229 @@
+package com.anonymousemessage.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Cumulative delivery and read state of one side of a conversation, sent to the other side.
+ *
+ * Rather than one receipt per message per state change, a receipt says "what you
+ * sent up to deliveredUpTo has arrived, up to readUpTo has been read", except for
+ * the seq ranges listed as gaps: batches that arrived but could not be read. Seqs
+ * are the relay's conversation numbers (see {@link RelayProtocol}). Each side only
+ * asks about the seqs of its own messages, so the other side's messages in between
+ * are not gaps. Both bounds only grow, so a newer receipt replaces an older one
+ * outright: applying one costs the same however many messages it covers, and a
+ * receipt lost or reordered in transit is made good by the next.
+ *
+ * MARKER(1) || version(1) || deliveredUpTo(varint) || readUpTo(varint) || gapCount(varint)
+ *   || (start - previous end(varint), end - start(varint)) * gapCount [|| cipherSuites(varint)]
+ *
+ * cipherSuites is the sender's {@link com.anonymousemessage.crypto.CipherSuite} capability
+ * mask, so each side learns which suites the other can open from the receipts it
+ * already gets. It is a trailing field that version 1 readers skip; 0 means not sent.
+ *
+ * Receipts ride in message batches next to {@link MessageCodec} payloads and are
+ * told apart by their first byte, which no message version will take.
+ */
+public final class Receipt {
+
+    public static final int MARKER = 0xA5;
+    public static final int VERSION = 1;
+
+    private static final long[] NO_GAPS = new long[0];
+
+    private final long deliveredUpTo;
+    private final long readUpTo;
+    private final long[] gaps; // start, end (inclusive) pairs; ascending, disjoint, none past deliveredUpTo
+    private final int cipherSuites;
+
+    /**
+     * gaps holds inclusive start, end pairs in ascending order; readUpTo is capped at deliveredUpTo
+     */
+    public Receipt(long deliveredUpTo, long readUpTo, long[] gaps) {
+        this(deliveredUpTo, readUpTo, gaps, 0);
+    }
+
+    /**
+     * As above, advertising the sender's cipher suite capability mask
+     */
+    public Receipt(long deliveredUpTo, long readUpTo, long[] gaps, int cipherSuites) {
+        if (deliveredUpTo < 0 || readUpTo < 0 || (gaps.length & 1) != 0) {
+            throw new IllegalArgumentException("Bad receipt bounds");
+        }
+        long previous = 0;
+        for (int i = 0; i < gaps.length; i += 2) {
+            if (gaps[i] <= previous || gaps[i + 1] < gaps[i] || gaps[i + 1] > deliveredUpTo) {
+                throw new IllegalArgumentException("Gaps must be ascending, disjoint and delivered");
+            }
+            previous = gaps[i + 1];
+        }
+        this.deliveredUpTo = deliveredUpTo;
+        this.readUpTo = Math.min(readUpTo, deliveredUpTo);
+        this.gaps = gaps.length == 0 ? NO_GAPS : gaps.clone();
+        this.cipherSuites = cipherSuites;
+    }
+
+    public long deliveredUpTo() {
+        return deliveredUpTo;
+    }
+
+    public long readUpTo() {
+        return readUpTo;
+    }
+
+    public int gapCount() {
+        return gaps.length / 2;
+    }
+
+    /**
+     * Suites the sender can open, or 0 if it did not say
+     */
+    public int cipherSuites() {
+        return cipherSuites;
+    }
+
+    /**
+     * This receipt with the gaps of an older one from the same side added back, keeping the
+     * latest maxGaps. A sender stops listing gaps we have acknowledged, so we carry them forward.
+     */
+    public Receipt withGapsOf(Receipt older, int maxGaps) {
+        long[] merged = new long[gaps.length + older.gaps.length];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < gaps.length || j < older.gaps.length) {
+            long[] from;
+            int at;
+            if (j >= older.gaps.length || (i < gaps.length && gaps[i] <= older.gaps[j])) {
+                from = gaps;
+                at = i;
+                i += 2;
+            } else {
+                from = older.gaps;
+                at = j;
+                j += 2;
+            }
+            if (count > 0 && from[at] <= merged[count - 1] + 1) {
+                merged[count - 1] = Math.max(merged[count - 1], from[at + 1]); // overlaps or adjoins
+            } else {
+                merged[count++] = from[at];
+                merged[count++] = from[at + 1];
+            }
+        }
+        int start = Math.max(0, count - maxGaps * 2);
+        return new Receipt(deliveredUpTo, readUpTo, Arrays.copyOfRange(merged, start, count), cipherSuites);
+    }
+
+    public boolean isDelivered(long seq) {
+        return seq > 0 && seq <= deliveredUpTo && !inGap(seq);
+    }
+
+    public boolean isRead(long seq) {
+        return seq > 0 && seq <= readUpTo && !inGap(seq);
+    }
+
+    /**
+     * True if this receipt says more than other; receipts from the same side are totally ordered
+     */
+    public boolean isNewerThan(Receipt other) {
+        return deliveredUpTo > other.deliveredUpTo
+            || (deliveredUpTo == other.deliveredUpTo && readUpTo > other.readUpTo);
+    }
+
+    public byte[] encode() {
+        WireWriter out = new WireWriter(24 + gaps.length * 3)
+            .writeByte(MARKER)
+            .writeByte(VERSION)
+            .writeVarint(deliveredUpTo)
+            .writeVarint(readUpTo)
+            .writeVarint(gaps.length / 2);
+        long previous = 0;
+        for (int i = 0; i < gaps.length; i += 2) {
+            out.writeVarint(gaps[i] - previous).writeVarint(gaps[i + 1] - gaps[i]);
+            previous = gaps[i + 1];
+        }
+        if (cipherSuites != 0) {
+            out.writeVarint(cipherSuites);
+        }
+        return out.toByteArray();
+    }
+
+    public static Receipt decode(ByteBuffer frame) throws ProtocolException {
+        WireReader in = new WireReader(frame);
+        if (in.readByte() != MARKER) {
+            throw new ProtocolException("Not a receipt");
+        }
+        int version = in.readByte();
+        if (version < 1 || version > VERSION) {
+            throw new ProtocolException("Unsupported receipt version " + version);
+        }
+        long delivered = in.readVarint();
+        long read = in.readVarint();
+        long count = in.readVarint();
+        if (count > in.remaining() / 2) {
+            throw new ProtocolException("Bad gap count " + count);
+        }
+        long[] gaps = new long[(int) count * 2];
+        long previous = 0;
+        for (int i = 0; i < gaps.length; i += 2) {
+            gaps[i] = previous + in.readVarint();
+            gaps[i + 1] = gaps[i] + in.readVarint();
+            previous = gaps[i + 1];
+        }
+        int cipherSuites = in.remaining() > 0 ? (int) in.readVarint() : 0;
+        try {
+            return new Receipt(delivered, read, gaps, cipherSuites);
+        } catch (IllegalArgumentException e) {
+            throw new ProtocolException(e.getMessage());
+        }
+    }
+
+    public static Receipt decode(byte[] frame) throws ProtocolException {
+        return decode(ByteBuffer.wrap(frame));
+    }
+
+    /**
+     * True if a decompressed batch payload is a receipt rather than a message
+     */
+    public static boolean isReceipt(byte[] payload) {
+        return payload.length > 0 && (payload[0] & 0xFF) == MARKER;
+    }
+
+    private boolean inGap(long seq) {
+        // Gaps are few; binary search over the starts
+        int low = 0;
+        int high = gaps.length / 2 - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (gaps[mid * 2] > seq) {
+                high = mid - 1;
+            } else if (gaps[mid * 2 + 1] < seq) {
+                low = mid + 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Receipt)) {
+            return false;
+        }
+        Receipt other = (Receipt) o;
+        return deliveredUpTo == other.deliveredUpTo && readUpTo == other.readUpTo
+            && Arrays.equals(gaps, other.gaps);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * Long.hashCode(deliveredUpTo) + Long.hashCode(readUpTo)) + Arrays.hashCode(gaps);
+    }
+
+    @Override
+    public String toString() {
+        return "Receipt{delivered<=" + deliveredUpTo + ", read<=" + readUpTo + ", gaps=" + Arrays.toString(gaps) + '}';
+    }
+}
@@ -0,0 +1,355 @@
+package com.anonymousemessage.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Binary frames for relay requests and responses, replacing JSON maps.
+ *
+ * Request:  version(1) || operation(1) || operationId(16) || fields
+ * Response: version(1) || operation(1) || operationId(16) || status(1) || fields
+ *
+ * Fields are positional, in the order the schema below gives them, using the
+ * {@link WireWriter} encodings. A version only ever appends fields: readers
+ * ignore trailing bytes they don't know, and reject frames whose version is
+ * newer than {@link #VERSION}. Responses are written at the request's version.
+ * The first byte is never '{', so a relay can tell these frames from older
+ * JSON requests.
+ *
+ *   CHECK_EMAIL    request email | response exists(bool)
+ *   REGISTER       request username, email, passwordHash, publicKey, timestamp(varint)
+ *   SEND_MESSAGES  request recipientId, payload(bytes)
+ *                  v2: + conversationId, messageCount(varint) | response firstSeq(varint)
+ *   SYNC (v2)      request mailboxId, pageSize(varint), count(varint), (conversationId, afterSeq(varint))*
+ *                  | response count(varint), (conversationId, firstSeq(varint), messageCount(varint),
+ *                    payload(bytes))*, more(bool)
+ *   any            error response: message
+ *
+ * In v2 the relay keeps one log per conversation and numbers its messages
+ * 1, 2, 3...; a SEND_MESSAGES batch of n messages takes n numbers. SYNC returns
+ * batches addressed to the mailbox with messages after each watermark, oldest
+ * first, a page at a time; {@code more} says another page is waiting.
+ */
+public final class RelayProtocol {
+
+    public static final int VERSION = 2;
+
+    public static final byte CHECK_EMAIL = 1;
+    public static final byte REGISTER = 2;
+    public static final byte SEND_MESSAGES = 3;
+    public static final byte SYNC = 4;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+
+    private static final int HEADER_LENGTH = 1 + 1 + 16;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * A decoded request; fields the operation doesn't carry are null
+     */
+    public static final class Request {
+        public final int version;
+        public final byte operation;
+        public final UUID operationId;
+        public String email;
+        public String username;
+        public String passwordHash;
+        public String publicKey;
+        public long timestamp;
+        /** Addressee of SEND_MESSAGES; the requesting mailbox for SYNC */
+        public String recipientId;
+        public String conversationId;
+        public int messageCount;
+        /** View of the request frame; valid only as long as the frame is */
+        public ByteBuffer payload;
+        public int pageSize;
+        /** afterSeq by conversationId, in request order */
+        public Map<String, Long> watermarks;
+
+        Request(int version, byte operation, UUID operationId) {
+            this.version = version;
+            this.operation = operation;
+            this.operationId = operationId;
+        }
+    }
+
+    /**
+     * One stored batch returned by SYNC
+     */
+    public static final class SyncRecord {
+        public final String conversationId;
+        public final long firstSeq;
+        public final int messageCount;
+        /** The batch as sent, still encrypted for the recipient */
+        public final ByteBuffer payload;
+
+        public SyncRecord(String conversationId, long firstSeq, int messageCount, ByteBuffer payload) {
+            this.conversationId = conversationId;
+            this.firstSeq = firstSeq;
+            this.messageCount = messageCount;
+            this.payload = payload;
+        }
+
+        public long lastSeq() {
+            return firstSeq + messageCount - 1;
+        }
+    }
+
+    /**
+     * A decoded response; the other fields only mean something for the operation they belong to
+     */
+    public static final class Response {
+        public final byte operation;
+        public final UUID operationId;
+        public final boolean ok;
+        public String error;
+        public boolean exists;
+        public long firstSeq;
+        public List<SyncRecord> records = Collections.emptyList();
+        public boolean more;
+
+        Response(byte operation, UUID operationId, boolean ok) {
+            this.operation = operation;
+            this.operationId = operationId;
+            this.ok = ok;
+        }
+    }
+
+    private RelayProtocol() {
+    }
+
+    public static byte[] checkEmail(String operationId, String email) {
+        return header(32 + email.length(), CHECK_EMAIL, operationId)
+            .writeString(email)
+            .toByteArray();
+    }
+
+    public static byte[] register(String operationId, String username, String email, String passwordHash,
+                                  String publicKey, long timestamp) {
+        return header(256 + publicKey.length(), REGISTER, operationId)
+            .writeString(username)
+            .writeString(email)
+            .writeString(passwordHash)
+            .writeString(publicKey)
+            .writeVarint(timestamp)
+            .toByteArray();
+    }
+
+    public static byte[] sendMessages(String operationId, String recipientId, String conversationId,
+                                      int messageCount, byte[] payload) {
+        return sendMessages(operationId, recipientId, conversationId, messageCount, ByteBuffer.wrap(payload));
+    }
+
+    /**
+     * Same as the array form, reading the payload between position and limit, e.g. from a pooled buffer
+     */
+    public static byte[] sendMessages(String operationId, String recipientId, String conversationId,
+                                      int messageCount, ByteBuffer payload) {
+        byte[] bytes;
+        int offset;
+        if (payload.hasArray()) {
+            bytes = payload.array();
+            offset = payload.arrayOffset() + payload.position();
+        } else {
+            bytes = new byte[payload.remaining()];
+            payload.duplicate().get(bytes);
+            offset = 0;
+        }
+        return header(128 + payload.remaining(), SEND_MESSAGES, operationId)
+            .writeString(recipientId)
+            .writeBytes(bytes, offset, payload.remaining())
+            .writeString(conversationId)
+            .writeVarint(messageCount)
+            .toByteArray();
+    }
+
+    /**
+     * Asks for up to pageSize batches addressed to mailboxId, after each conversation's watermark
+     */
+    public static byte[] sync(String operationId, String mailboxId, Map<String, Long> watermarks, int pageSize) {
+        WireWriter out = header(32 + watermarks.size() * 48, SYNC, operationId)
+            .writeString(mailboxId)
+            .writeVarint(pageSize)
+            .writeVarint(watermarks.size());
+        for (Map.Entry<String, Long> watermark : watermarks.entrySet()) {
+            out.writeString(watermark.getKey()).writeVarint(watermark.getValue());
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Id both parties derive for their conversation, whichever of them computes it. The relay
+     * sees only this hash, not who the conversation is between.
+     */
+    public static String conversationId(String userA, String userB) {
+        boolean ordered = userA.compareTo(userB) <= 0;
+        String first = ordered ? userA : userB;
+        String second = ordered ? userB : userA;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update("conversation/".getBytes(UTF_8));
+            digest.update(first.getBytes(UTF_8));
+            digest.update((byte) 0);
+            digest.update(second.getBytes(UTF_8));
+            byte[] hash = digest.digest();
+            StringBuilder hex = new StringBuilder(32);
+            for (int i = 0; i < 16; i++) {
+                hex.append(Character.forDigit((hash[i] >> 4) & 0xF, 16)).append(Character.forDigit(hash[i] & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static Request readRequest(ByteBuffer frame) throws ProtocolException {
+        WireReader in = new WireReader(frame);
+        int version = readVersion(in);
+        Request request = new Request(version, (byte) in.readByte(), in.readUuid());
+        switch (request.operation) {
+            case CHECK_EMAIL:
+                request.email = in.readString();
+                break;
+            case REGISTER:
+                request.username = in.readString();
+                request.email = in.readString();
+                request.passwordHash = in.readString();
+                request.publicKey = in.readString();
+                request.timestamp = in.readVarint();
+                break;
+            case SEND_MESSAGES:
+                request.recipientId = in.readString();
+                request.payload = in.readSlice();
+                if (version >= 2) {
+                    request.conversationId = in.readString();
+                    request.messageCount = (int) in.readVarint();
+                }
+                break;
+            case SYNC:
+                request.recipientId = in.readString();
+                request.pageSize = (int) in.readVarint();
+                int count = (int) Math.min(in.readVarint(), in.remaining());
+                request.watermarks = new LinkedHashMap<>();
+                for (int i = 0; i < count; i++) {
+                    request.watermarks.put(in.readString(), in.readVarint());
+                }
+                break;
+            default:
+                // Unknown operations are answered with an error by the caller
+                break;
+        }
+        return request;
+    }
+
+    public static byte[] ok(Request request) {
+        return responseHeader(request, STATUS_OK).toByteArray();
+    }
+
+    public static byte[] checkEmailResult(Request request, boolean exists) {
+        return responseHeader(request, STATUS_OK).writeBoolean(exists).toByteArray();
+    }
+
+    public static byte[] sendMessagesResult(Request request, long firstSeq) {
+        WireWriter out = responseHeader(request, STATUS_OK);
+        if (request.version >= 2) {
+            out.writeVarint(firstSeq);
+        }
+        return out.toByteArray();
+    }
+
+    public static byte[] syncResult(Request request, List<SyncRecord> records, boolean more) {
+        int size = 0;
+        for (SyncRecord record : records) {
+            size += 48 + record.payload.remaining();
+        }
+        WireWriter out = new WireWriter(HEADER_LENGTH + 16 + size);
+        writeResponseHeader(out, request, STATUS_OK).writeVarint(records.size());
+        for (SyncRecord record : records) {
+            ByteBuffer payload = record.payload.duplicate();
+            byte[] bytes = new byte[payload.remaining()];
+            payload.get(bytes);
+            out.writeString(record.conversationId)
+                .writeVarint(record.firstSeq)
+                .writeVarint(record.messageCount)
+                .writeBytes(bytes);
+        }
+        return out.writeBoolean(more).toByteArray();
+    }
+
+    public static byte[] error(Request request, String message) {
+        return responseHeader(request, STATUS_ERROR).writeString(message).toByteArray();
+    }
+
+    public static Response readResponse(ByteBuffer frame) throws ProtocolException {
+        WireReader in = new WireReader(frame);
+        readVersion(in);
+        byte operation = (byte) in.readByte();
+        UUID operationId = in.readUuid();
+        if (in.readByte() != STATUS_OK) {
+            Response failed = new Response(operation, operationId, false);
+            failed.error = in.readString();
+            return failed;
+        }
+        Response response = new Response(operation, operationId, true);
+        if (operation == CHECK_EMAIL) {
+            response.exists = in.readBoolean();
+        } else if (operation == SEND_MESSAGES && in.remaining() > 0) {
+            response.firstSeq = in.readVarint();
+        } else if (operation == SYNC) {
+            int count = (int) Math.min(in.readVarint(), in.remaining());
+            response.records = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                response.records.add(new SyncRecord(in.readString(), in.readVarint(), (int) in.readVarint(),
+                    in.readSlice()));
+            }
+            response.more = in.readBoolean();
+        }
+        return response;
+    }
+
+    public static Response readResponse(byte[] frame) throws ProtocolException {
+        return readResponse(ByteBuffer.wrap(frame));
+    }
+
+    /**
+     * True if frame starts like one of these frames rather than JSON
+     */
+    public static boolean isBinary(byte[] frame) {
+        return frame.length >= HEADER_LENGTH && frame[0] >= 1 && frame[0] <= VERSION;
+    }
+
+    private static WireWriter header(int sizeHint, byte operation, String operationId) {
+        return new WireWriter(HEADER_LENGTH + sizeHint)
+            .writeByte(VERSION)
+            .writeByte(operation)
+            .writeUuid(UUID.fromString(operationId));
+    }
+
+    private static WireWriter responseHeader(Request request, byte status) {
+        return writeResponseHeader(new WireWriter(HEADER_LENGTH + 32), request, status);
+    }
+
+    private static WireWriter writeResponseHeader(WireWriter out, Request request, byte status) {
+        return out.writeByte(request.version)
+            .writeByte(request.operation)
+            .writeUuid(request.operationId)
+            .writeByte(status);
+    }
+
+    private static int readVersion(WireReader in) throws ProtocolException {
+        int version = in.readByte();
+        if (version < 1 || version > VERSION) {
+            throw new ProtocolException("Unsupported protocol version " + version);
+        }
+        return version;
+    }
+}
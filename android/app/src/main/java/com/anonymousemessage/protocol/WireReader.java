@@ -0,0 +1,117 @@
+package com.anonymousemessage.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+/**
+ * Reads what {@link WireWriter} writes, straight from a ByteBuffer.
+ *
+ * Byte fields come back as read-only slices of the input, so payloads are not
+ * copied; strings are decoded from the backing array when there is one. Every
+ * read is bounds-checked and fails with {@link ProtocolException}.
+ */
+public final class WireReader {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer buffer;
+
+    /**
+     * Reads from position to limit of buffer, without moving them
+     */
+    public WireReader(ByteBuffer buffer) {
+        this.buffer = buffer.slice();
+    }
+
+    public WireReader(byte[] data) {
+        this(ByteBuffer.wrap(data));
+    }
+
+    public int readByte() throws ProtocolException {
+        require(1);
+        return buffer.get() & 0xFF;
+    }
+
+    public boolean readBoolean() throws ProtocolException {
+        return readByte() != 0;
+    }
+
+    public long readVarint() throws ProtocolException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Varint too long");
+    }
+
+    public long readLong() throws ProtocolException {
+        require(8);
+        return buffer.getLong();
+    }
+
+    public UUID readUuid() throws ProtocolException {
+        require(16);
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
+    public String readString() throws ProtocolException {
+        long encoded = readVarint();
+        if (encoded == 0) {
+            return null;
+        }
+        int length = length(encoded - 1);
+        String value;
+        if (buffer.hasArray()) {
+            value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF_8);
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            value = new String(bytes, UTF_8);
+        }
+        return value;
+    }
+
+    /**
+     * A bytes field as a read-only view of the input; nothing is copied
+     */
+    public ByteBuffer readSlice() throws ProtocolException {
+        int length = length(readVarint());
+        ByteBuffer slice = buffer.slice();
+        slice.limit(length);
+        buffer.position(buffer.position() + length);
+        return slice.asReadOnlyBuffer();
+    }
+
+    /**
+     * A bytes field copied out, for callers that need to keep it past the input's lifetime
+     */
+    public byte[] readBytes() throws ProtocolException {
+        ByteBuffer slice = readSlice();
+        byte[] bytes = new byte[slice.remaining()];
+        slice.get(bytes);
+        return bytes;
+    }
+
+    public int remaining() {
+        return buffer.remaining();
+    }
+
+    private int length(long length) throws ProtocolException {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new ProtocolException("Field of " + length + " bytes overruns frame (" + buffer.remaining() + " left)");
+        }
+        return (int) length;
+    }
+
+    private void require(int bytes) throws ProtocolException {
+        if (buffer.remaining() < bytes) {
+            throw new ProtocolException("Truncated frame");
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.anonymousemessage.service;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+
+import com.anonymousemessage.crypto.CipherSuite;
+import com.anonymousemessage.crypto.CipherSuites;
+
+/**
+ * Keeps the device's preferred AEAD suite across launches. Calibration runs once
+ * per build fingerprint (i.e. again after an OS update) on the password KDF's
+ * background thread. The preference is only offered to contacts during suite
+ * negotiation; AES-256-GCM is used everywhere else.
+ */
+public class CipherSuitePreference {
+    private static final String TAG = "CipherSuitePreference";
+    private static final String PREF_NAME = "AnonymousMessage_Device";
+    private static final String KEY_SUITE = "cipher_suite";
+    private static final String KEY_FINGERPRINT = "cipher_suite_fingerprint";
+    
+    public static void load(Context context) {
+        final SharedPreferences prefs = context.getApplicationContext()
+            .getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+        
+        if (Build.FINGERPRINT.equals(prefs.getString(KEY_FINGERPRINT, null))) {
+            CipherSuite cached = CipherSuite.fromId((byte) prefs.getInt(KEY_SUITE, 0));
+            if (cached != null) {
+                CipherSuites.setPreferred(cached);
+                return;
+            }
+        }
+        
+        PasswordKdfService.calibrateInBackground(() -> {
+            CipherSuite fastest = CipherSuites.calibrate();
+            Log.d(TAG, "Calibrated cipher suites " + CipherSuites.lastCalibration() + ", using " + fastest);
+            prefs.edit()
+                .putInt(KEY_SUITE, fastest.id())
+                .putString(KEY_FINGERPRINT, Build.FINGERPRINT)
+                .apply();
+        });
+    }
+}
@@ -1,120 +1,262 @@
 package com.anonymousemessage.service;
 
-import javax.crypto.Cipher;
-import javax.crypto.KeyGenerator;
+import com.anonymousemessage.crypto.BatchEncryptor;
+import com.anonymousemessage.crypto.BufferPool;
+import com.anonymousemessage.crypto.CipherSuite;
+import com.anonymousemessage.crypto.CipherSuites;
+import com.anonymousemessage.crypto.CryptoEngine;
+import com.anonymousemessage.crypto.KeyExchange;
+import com.anonymousemessage.crypto.PasswordKdf;
+import com.anonymousemessage.crypto.PrekeyPool;
+import com.anonymousemessage.crypto.RatchetingKey;
+import com.anonymousemessage.crypto.SessionKeyCache;
+import com.anonymousemessage.crypto.StreamingAead;
+import com.anonymousemessage.crypto.TransportKey;
+import com.anonymousemessage.models.UserKeys;
+import javax.crypto.AEADBadTagException;
 import javax.crypto.SecretKey;
-import javax.crypto.spec.GCMParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
-import java.security.MessageDigest;
-import java.security.SecureRandom;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.List;
 
 public class EncryptionService {
     
-    private static final String ALGORITHM = "AES";
-    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
-    private static final int GCM_IV_LENGTH = 12;
-    private static final int GCM_TAG_LENGTH = 16;
+    private static final int MAX_CACHED_CONTACTS = 256;
+    
+    // Epoch of the per-contact session key; bumped by rekeying
+    private static final int INITIAL_EPOCH = 0;
+    
+    private static final SessionKeyCache sessionKeys = new SessionKeyCache(MAX_CACHED_CONTACTS,
+        new SessionKeyCache.IdentityKeySource() {
+            @Override
+            public byte[] identityKey() {
+                return SessionManager.getInstance().getIdentityKey();
+            }
+        });
+    
+    private static volatile byte[] relayPublicKey;
+    private static volatile TransportKey transport;
     
     /**
-     * Encrypts data using AES-GCM algorithm with a random IV
+     * Encrypts a request for the relay under the transport session key
      */
     public static byte[] encryptData(byte[] data) throws Exception {
-        // Generate a random secret key
-        KeyGenerator keyGen = KeyGenerator.getInstance(ALGORITHM);
-        keyGen.init(256);
-        SecretKey secretKey = keyGen.generateKey();
-        
-        // Generate a random IV
-        byte[] iv = new byte[GCM_IV_LENGTH];
-        new SecureRandom().nextBytes(iv);
-        
-        // Initialize cipher
-        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-        GCMParameterSpec gcmSpec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv);
-        cipher.init(Cipher.ENCRYPT_MODE, secretKey, gcmSpec);
-        
-        // Encrypt data
-        byte[] encryptedData = cipher.doFinal(data);
-        
-        // Combine IV + encrypted data for transmission
-        byte[] result = new byte[iv.length + encryptedData.length];
-        System.arraycopy(iv, 0, result, 0, iv.length);
-        System.arraycopy(encryptedData, 0, result, iv.length, encryptedData.length);
-        
-        return result;
-    }
-    
-    /**
-     * Decrypts data using AES-GCM algorithm
+        return getTransport().sealRequest(data);
+    }
+    
+    /**
+     * Decrypts a response received from the relay
      */
     public static byte[] decryptData(byte[] encryptedData) throws Exception {
-        // Extract IV from the beginning
-        byte[] iv = new byte[GCM_IV_LENGTH];
-        System.arraycopy(encryptedData, 0, iv, 0, GCM_IV_LENGTH);
-        
-        // Extract encrypted content
-        byte[] encryptedContent = new byte[encryptedData.length - GCM_IV_LENGTH];
-        System.arraycopy(encryptedData, GCM_IV_LENGTH, encryptedContent, 0, encryptedContent.length);
-        
-        // Generate a key (in real implementation, this would come from session)
-        KeyGenerator keyGen = KeyGenerator.getInstance(ALGORITHM);
-        keyGen.init(256);
-        SecretKey secretKey = keyGen.generateKey();
-        
-        // Initialize cipher for decryption
-        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-        GCMParameterSpec gcmSpec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv);
-        cipher.init(Cipher.DECRYPT_MODE, secretKey, gcmSpec);
-        
-        // Decrypt data
-        return cipher.doFinal(encryptedContent);
-    }
-    
-    /**
-     * Hashes a password using SHA-256
+        return getTransport().openResponse(encryptedData);
+    }
+    
+    /**
+     * Encrypts data with the given key under AES-256-GCM, the suite every client can open;
+     * the local suite preference only applies to peers that negotiated it
      */
-    public static String hashPassword(String password) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] hash = digest.digest(password.getBytes("UTF-8"));
-            StringBuilder hexString = new StringBuilder();
-            
-            for (byte b : hash) {
-                String hex = Integer.toHexString(0xff & b);
-                if (hex.length() == 1) {
-                    hexString.append('0');
+    public static byte[] encryptData(byte[] data, SecretKey key) throws Exception {
+        return CryptoEngine.encrypt(data, key);
+    }
+    
+    /**
+     * Decrypts data sealed with any supported suite under the given key
+     */
+    public static byte[] decryptData(byte[] encryptedData, SecretKey key) throws Exception {
+        return CryptoEngine.decrypt(encryptedData, key);
+    }
+    
+    /**
+     * Seals a file (voice note, attachment) into target in authenticated segments, so memory
+     * use does not depend on its size. A target left behind by an interrupted run is resumed.
+     * Returns the size of target.
+     */
+    public static long encryptFile(File source, File target, SecretKey key) throws Exception {
+        try (FileChannel in = new FileInputStream(source).getChannel();
+             FileChannel out = new RandomAccessFile(target, "rw").getChannel()) {
+            try {
+                return StreamingAead.resume(key, in, out);
+            } catch (AEADBadTagException e) {
+                // The source changed since the interrupted run; start over under a new nonce prefix
+                out.truncate(0);
+                out.position(0);
+                in.position(0);
+                return StreamingAead.encrypt(key, in, out);
+            }
+        }
+    }
+    
+    /**
+     * Opens a file sealed by encryptFile into target. Returns the plaintext size.
+     */
+    public static long decryptFile(File source, File target, SecretKey key) throws Exception {
+        try (FileChannel in = new FileInputStream(source).getChannel();
+             FileChannel out = new FileOutputStream(target).getChannel()) {
+            return StreamingAead.decrypt(key, in, out);
+        }
+    }
+    
+    /**
+     * Encrypts data for a contact with the X25519/HKDF session key derived from their public key.
+     * Output is epoch || suite || nonce || ciphertext || tag; the suite is the one negotiated with
+     * the contact and the key rotates to the next epoch at its usage limits.
+     */
+    public static byte[] encryptForContact(String contactPublicKey, byte[] data) throws Exception {
+        return sessionKeys.sender(contactPublicKey).encrypt(CipherSuites.forPeer(contactPublicKey), data);
+    }
+    
+    /**
+     * Decrypts data received from a contact using the key for the epoch it was sealed under
+     */
+    public static byte[] decryptFromContact(String contactPublicKey, byte[] encryptedData) throws Exception {
+        int epoch = RatchetingKey.epochOf(encryptedData);
+        byte[] plaintext = RatchetingKey.decrypt(encryptedData, sessionKeys.receiving(contactPublicKey, epoch));
+        sessionKeys.confirmEpoch(contactPublicKey, epoch);
+        return plaintext;
+    }
+    
+    /**
+     * Encrypts one payload for several contacts, e.g. a group message
+     */
+    public static List<byte[]> encryptForContacts(List<String> contactPublicKeys, byte[] data) throws Exception {
+        RatchetingKey[] senders = new RatchetingKey[contactPublicKeys.size()];
+        CipherSuite[] suites = new CipherSuite[senders.length];
+        for (int i = 0; i < senders.length; i++) {
+            senders[i] = sessionKeys.sender(contactPublicKeys.get(i));
+            suites[i] = CipherSuites.forPeer(contactPublicKeys.get(i));
+        }
+        return BatchEncryptor.encryptForRecipients(senders, suites, data);
+    }
+    
+    /**
+     * Encrypts payloads[i] for contactPublicKeys[i], in parallel, into pooled buffers laid out
+     * like encryptForContact's output. Close the batch once the results have been copied out.
+     */
+    public static BatchEncryptor.Batch encryptBatch(List<String> contactPublicKeys, List<byte[]> payloads)
+            throws Exception {
+        List<BatchEncryptor.Item> items = new ArrayList<>(payloads.size());
+        for (int i = 0; i < payloads.size(); i++) {
+            String contact = contactPublicKeys.get(i);
+            items.add(new BatchEncryptor.Item(sessionKeys.sender(contact), CipherSuites.forPeer(contact),
+                payloads.get(i)));
+        }
+        return BatchEncryptor.encryptAll(items, BufferPool.shared());
+    }
+    
+    /**
+     * Capability mask advertised to contacts; every outgoing receipt carries it
+     */
+    public static int supportedCipherSuites() {
+        return CipherSuites.SUPPORTED_MASK;
+    }
+    
+    /**
+     * Records the suites a contact advertised in a receipt; later messages to them use the
+     * negotiated suite
+     */
+    public static CipherSuite onContactCapabilities(String contactPublicKey, int cipherSuiteMask) {
+        return CipherSuites.negotiate(contactPublicKey, cipherSuiteMask);
+    }
+    
+    /**
+     * Session key shared with a contact. Derived once, then served from the LRU cache.
+     */
+    public static SecretKey getSessionKey(String contactPublicKey) throws Exception {
+        return sessionKeys.get(contactPublicKey, INITIAL_EPOCH);
+    }
+    
+    /**
+     * Forgets every derived contact key, e.g. on logout or identity change
+     */
+    public static void clearSessionKeys() {
+        sessionKeys.clear();
+    }
+    
+    /**
+     * Session key for the client/relay channel, agreed once per process with the relay's
+     * public key (see setRelayPublicKey) and a one-time key from the prekey pool. Requests
+     * carry that public key, so the relay derives the same key without a round trip.
+     */
+    public static TransportKey getTransport() throws Exception {
+        TransportKey current = transport;
+        if (current == null) {
+            synchronized (EncryptionService.class) {
+                current = transport;
+                if (current == null) {
+                    byte[] relay = relayPublicKey;
+                    if (relay == null) {
+                        throw new GeneralSecurityException("Relay public key not configured");
+                    }
+                    // A pooled one-time key, so the first request doesn't wait on key generation
+                    PrekeyPool.Prekey prekey = takePrekey();
+                    try {
+                        current = TransportKey.agree(relay, prekey.privateKey(), prekey.publicKey());
+                    } finally {
+                        prekey.wipe();
+                    }
+                    transport = current;
                 }
-                hexString.append(hex);
             }
-            
-            return hexString.toString();
-        } catch (Exception ex) {
-            throw new RuntimeException(ex);
         }
+        return current;
+    }
+    
+    public static SecretKey getTransportKey() throws Exception {
+        return getTransport().key();
+    }
+    
+    /**
+     * Sets the relay's X25519 public key (Base64); the next request agrees a new transport key
+     */
+    public static synchronized void setRelayPublicKey(String publicKey) {
+        byte[] decoded = Base64.getDecoder().decode(publicKey);
+        if (decoded.length != KeyExchange.KEY_LENGTH) {
+            throw new IllegalArgumentException("Relay public key must be " + KeyExchange.KEY_LENGTH + " bytes");
+        }
+        relayPublicKey = decoded;
+        transport = null;
+    }
+    
+    public static boolean hasRelayPublicKey() {
+        return relayPublicKey != null;
+    }
+    
+    /**
+     * Hashes a password with Argon2id into a self-describing verifier.
+     * Blocks for the calibrated cost (~250 ms); UI code should use PasswordKdfService.
+     */
+    public static String hashPassword(String password) {
+        return PasswordKdf.hash(password);
     }
     
     /**
-     * Generates user-specific keys for secure communication
+     * Returns a new X25519 identity key pair (Base64 encoded). The long-term identity is
+     * always generated on its own; one-time prekeys are only for handshakes.
      */
     public static UserKeys generateUserKeys(String username) {
         try {
-            // Generate AES key for symmetric encryption
-            KeyGenerator keyGen = KeyGenerator.getInstance(ALGORITHM);
-            keyGen.init(256);
-            SecretKey aesKey = keyGen.generateKey();
-            
-            // For asymmetric key exchange, we'd normally use RSA or EC
-            // Here we're simulating public/private key generation
-            // In production, use proper RSA key pair generation
-            
-            // Generate a pseudo-public key (in real implementation, this would be actual public key)
-            String publicKey = Base64.getEncoder().encodeToString(aesKey.getEncoded()).substring(0, 32);
-            
-            // Return both keys
-            return new UserKeys(publicKey, Base64.getEncoder().encodeToString(aesKey.getEncoded()));
+            byte[][] pair = KeyExchange.generateKeyPair();
+            UserKeys keys = new UserKeys(
+                Base64.getEncoder().encodeToString(pair[1]),
+                Base64.getEncoder().encodeToString(pair[0]));
+            Arrays.fill(pair[0], (byte) 0);
+            return keys;
         } catch (Exception e) {
             throw new RuntimeException("Failed to generate user keys", e);
         }
     }
+    
+    /**
+     * One-time key pair for a handshake, e.g. the transport agreement; the caller wipes it after use
+     */
+    public static PrekeyPool.Prekey takePrekey() throws GeneralSecurityException {
+        return PrekeyService.take();
+    }
 }
\ No newline at end of file
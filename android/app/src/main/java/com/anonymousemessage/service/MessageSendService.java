@@ -0,0 +1,192 @@
+package com.anonymousemessage.service;
+
+import android.util.Log;
+
+import com.anonymousemessage.crypto.BatchEncryptor;
+import com.anonymousemessage.models.Message;
+import com.anonymousemessage.network.CoalescingQueue;
+import com.anonymousemessage.network.MultiplexedConnection;
+import com.anonymousemessage.network.RelayCircuits;
+import com.anonymousemessage.protocol.MessageCodec;
+import com.anonymousemessage.protocol.Padding;
+import com.anonymousemessage.protocol.PayloadCompressor;
+import com.anonymousemessage.protocol.RelayProtocol;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sends chat messages to the relay. Messages for the same recipient that are
+ * sent in quick succession are coalesced into one batch, encrypted once for the
+ * recipient and delivered in a single relay request.
+ *
+ * Each message is encoded with MessageCodec and compressed with
+ * PayloadCompressor; the framed batch is padded to a size bucket with Padding
+ * before it is encrypted. A receiver unpads, unframes and decompresses. Batches
+ * closed together by a flush, e.g. the outbox backlog after reconnect, are
+ * encrypted in parallel into pooled buffers.
+ * ReceiptService's pending receipt for the recipient joins the message's batch.
+ */
+public class MessageSendService {
+    private static final String TAG = "MessageSendService";
+    
+    // Batches up to this size are texts and small items and ride the fastest circuit;
+    // bigger ones (media) go to the least busy circuit so they don't delay chat
+    private static final int LATENCY_BATCH_BYTES = 8 * 1024;
+    
+    // Public key per recipient id, for encrypting the batches queued under that id
+    private static final ConcurrentHashMap<String, String> recipientKeys = new ConcurrentHashMap<>();
+    
+    // Relay conversation id per recipient id; the relay numbers messages per conversation
+    private static final ConcurrentHashMap<String, String> conversationIds = new ConcurrentHashMap<>();
+    
+    private static CoalescingQueue queue = newQueue(new CoalescingQueue.Config()); // guarded by class
+    
+    private static volatile PayloadCompressor compressor = PayloadCompressor.shared();
+    
+    /**
+     * Queues a message for its recipient; the future completes once the relay has accepted its batch,
+     * with the message's seq in the conversation (null if the relay doesn't number messages)
+     */
+    public static CompletableFuture<Long> send(Message message, String recipientPublicKey) {
+        byte[] payload = compressor.compress(MessageCodec.encode(message),
+            message.getType().name().toLowerCase(Locale.ROOT));
+        conversationIds.put(message.getRecipientId(),
+            RelayProtocol.conversationId(message.getSenderId(), message.getRecipientId()));
+        CompletableFuture<Long> sent = enqueue(message.getRecipientId(), recipientPublicKey, payload);
+        ReceiptService.piggyback(message.getRecipientId());
+        return sent;
+    }
+    
+    /**
+     * Sends everything still waiting for its batch window, e.g. when the chat screen is left
+     */
+    public static void flush() {
+        ReceiptService.flush();
+        currentQueue().flushAll();
+    }
+    
+    /**
+     * Queues an already compressed payload for recipientId in its next batch
+     */
+    static CompletableFuture<Long> enqueue(String recipientId, String recipientPublicKey, byte[] payload) {
+        recipientKeys.put(recipientId, recipientPublicKey);
+        conversationIds.computeIfAbsent(recipientId,
+            id -> RelayProtocol.conversationId(SessionManager.getInstance().getUsername(), id));
+        return currentQueue().enqueue(recipientId, payload);
+    }
+    
+    /**
+     * Replaces the batching window and budgets; anything already queued is flushed first
+     */
+    public static synchronized void setQueueConfig(CoalescingQueue.Config config) {
+        CoalescingQueue previous = queue;
+        queue = newQueue(config);
+        previous.close();
+    }
+    
+    /**
+     * Compression is on by default; receivers handle both forms either way
+     */
+    public static void setCompressionEnabled(boolean enabled) {
+        compressor = enabled ? PayloadCompressor.shared() : PayloadCompressor.storeOnly();
+    }
+    
+    private static synchronized CoalescingQueue currentQueue() {
+        return queue;
+    }
+    
+    private static CoalescingQueue newQueue(CoalescingQueue.Config config) {
+        return new CoalescingQueue(new CoalescingQueue.BatchSender() {
+            @Override
+            public CompletableFuture<Long> send(String recipientId, byte[] batch) {
+                return sendBatch(recipientId, batch);
+            }
+            
+            @Override
+            public List<CompletableFuture<Long>> sendAll(List<String> recipientIds, List<byte[]> batches) {
+                return sendBatches(recipientIds, batches);
+            }
+        }, config);
+    }
+    
+    private static CompletableFuture<Long> sendBatch(String recipientId, byte[] batch) {
+        String operationId = MultiplexedConnection.newOperationId();
+        byte[] encryptedRequest;
+        try {
+            // The batch is end-to-end encrypted for the recipient; the envelope only for the relay
+            byte[] payload = EncryptionService.encryptForContact(recipientKeys.get(recipientId), Padding.pad(batch));
+            encryptedRequest = EncryptionService.encryptData(RelayProtocol.sendMessages(operationId, recipientId,
+                conversationIds.get(recipientId), CoalescingQueue.count(batch), payload));
+        } catch (Exception e) {
+            Log.e(TAG, "Could not encrypt batch for " + recipientId, e);
+            return failed(e);
+        }
+        return request(operationId, encryptedRequest, batch.length);
+    }
+    
+    private static List<CompletableFuture<Long>> sendBatches(List<String> recipientIds, List<byte[]> batches) {
+        if (batches.size() == 1) {
+            return Collections.singletonList(sendBatch(recipientIds.get(0), batches.get(0)));
+        }
+        List<String> keys = new ArrayList<>(batches.size());
+        List<byte[]> padded = new ArrayList<>(batches.size());
+        for (int i = 0; i < batches.size(); i++) {
+            keys.add(recipientKeys.get(recipientIds.get(i)));
+            padded.add(Padding.pad(batches.get(i)));
+        }
+        String[] operationIds = new String[batches.size()];
+        byte[][] encryptedRequests = new byte[batches.size()][];
+        // Same layout as sendBatch; the pooled payloads are copied into the envelopes before they go back
+        try (BatchEncryptor.Batch payloads = EncryptionService.encryptBatch(keys, padded)) {
+            for (int i = 0; i < batches.size(); i++) {
+                String recipientId = recipientIds.get(i);
+                operationIds[i] = MultiplexedConnection.newOperationId();
+                encryptedRequests[i] = EncryptionService.encryptData(RelayProtocol.sendMessages(operationIds[i],
+                    recipientId, conversationIds.get(recipientId), CoalescingQueue.count(batches.get(i)),
+                    payloads.get(i)));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Could not encrypt " + batches.size() + " batches", e);
+            List<CompletableFuture<Long>> results = new ArrayList<>(batches.size());
+            for (int i = 0; i < batches.size(); i++) {
+                results.add(failed(e));
+            }
+            return results;
+        }
+        
+        List<CompletableFuture<Long>> results = new ArrayList<>(batches.size());
+        for (int i = 0; i < batches.size(); i++) {
+            results.add(request(operationIds[i], encryptedRequests[i], batches.get(i).length));
+        }
+        return results;
+    }
+    
+    private static CompletableFuture<Long> request(String operationId, byte[] encryptedRequest, int batchLength) {
+        RelayCircuits.TrafficClass trafficClass = batchLength <= LATENCY_BATCH_BYTES
+            ? RelayCircuits.TrafficClass.LATENCY : RelayCircuits.TrafficClass.BULK;
+        return TorService.request(operationId, encryptedRequest, trafficClass).thenApply(response -> {
+            try {
+                RelayProtocol.Response result = RelayProtocol.readResponse(EncryptionService.decryptData(response));
+                if (!result.ok) {
+                    throw new IOException("Relay rejected batch: " + result.error);
+                }
+                // Relays before protocol v2 don't number messages and answer without firstSeq
+                return result.firstSeq > 0 ? result.firstSeq : null;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+    
+    private static CompletableFuture<Long> failed(Throwable error) {
+        CompletableFuture<Long> failed = new CompletableFuture<>();
+        failed.completeExceptionally(error);
+        return failed;
+    }
+}
@@ -0,0 +1,440 @@
+package com.anonymousemessage.service;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.anonymousemessage.models.Message;
+import com.anonymousemessage.protocol.RelayProtocol;
+import com.anonymousemessage.storage.CompactionBudget;
+import com.anonymousemessage.storage.MessageLog;
+import com.anonymousemessage.storage.SearchIndex;
+import com.anonymousemessage.utils.Metrics;
+import javax.crypto.SecretKey;
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps every conversation's history on disk in a MessageLog sealed under the
+ * storage key, so a chat opens with its latest page instead of empty.
+ *
+ * Synced messages are stored as they arrive, our own once the relay has given
+ * them a seq. All log I/O runs on one background thread in submission order, so
+ * a page requested before a sync starts never sees that sync's messages twice.
+ *
+ * Every record stored is also fed to a SearchIndex on the same thread. On start
+ * the index catches up with whatever the log holds past its watermarks, which
+ * is everything when the index is new or was lost. Its merges run on a thread of
+ * their own at low priority, so they never hold up history or search.
+ *
+ * Every COMPACT_INTERVAL_MINUTES a low-priority compactor rewrites each
+ * conversation whose sealed segments are at least MIN_GARBAGE dead, or hold
+ * messages past the conversation's retention, paced by the compaction budget so
+ * it never competes with sends. Only the swap runs on the IO thread, together
+ * with moving the search index onto the new layout.
+ */
+public class MessageStoreService {
+    private static final String TAG = "MessageStoreService";
+    private static final String DIRECTORY = "messages";
+    private static final String SEARCH_DIRECTORY = "search";
+    private static final String RETENTION_PREFS = "retention";
+    private static final long COMPACT_DELAY_MINUTES = 1;
+    private static final long COMPACT_INTERVAL_MINUTES = 30;
+    private static final double MIN_GARBAGE = 0.25;
+    
+    private static final ExecutorService IO = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "MessageStore");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    
+    private static final ExecutorService MERGER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "SearchMerge");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+    
+    private static final ScheduledExecutorService COMPACTOR = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MessageCompactor");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    
+    private static final AtomicBoolean mergeQueued = new AtomicBoolean();
+    private static volatile CompactionBudget budget = new CompactionBudget(2 * 1024 * 1024, 0.25);
+    
+    private static volatile MessageLog log;
+    private static volatile SearchIndex search;
+    private static boolean sessionHooksAdded; // guarded by class
+    private static boolean listening; // guarded by class
+    private static SharedPreferences retention; // guarded by class
+    private static ScheduledFuture<?> compaction; // guarded by class
+    
+    private static final SyncService.SyncListener syncListener = (contactId, messages) -> {
+        for (Message message : messages) {
+            store(contactId, message);
+        }
+    };
+    
+    private static final OutboxService.DeliveryListener deliveryListener = message -> {
+        if (message.getSeq() > 0) {
+            store(message.getRecipientId(), message);
+        }
+    };
+    
+    /**
+     * Opens the store. Requires SessionManager.
+     */
+    public static synchronized void initialize(Context context) {
+        if (log != null) {
+            return;
+        }
+        try {
+            SessionManager session = SessionManager.getInstance();
+            final Context appContext = context.getApplicationContext();
+            if (!sessionHooksAdded) {
+                session.addLogoutHook(new Runnable() {
+                    @Override
+                    public void run() {
+                        reset();
+                    }
+                });
+                session.addLoginHook(new Runnable() {
+                    @Override
+                    public void run() {
+                        initialize(appContext);
+                    }
+                });
+                sessionHooksAdded = true;
+            }
+            SecretKey key = session.getStorageKey();
+            log = new MessageLog(new File(context.getFilesDir(), DIRECTORY), key);
+            openSearch(log, new File(context.getFilesDir(), SEARCH_DIRECTORY), key);
+        } catch (Exception e) {
+            Log.e(TAG, "Message store unavailable; history will not be kept", e);
+            return;
+        }
+        if (!listening) {
+            SyncService.addListener(syncListener);
+            OutboxService.addDeliveryListener(deliveryListener);
+            listening = true;
+        }
+        retention = context.getApplicationContext().getSharedPreferences(RETENTION_PREFS, Context.MODE_PRIVATE);
+        if (compaction == null) {
+            compaction = COMPACTOR.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    compactAll();
+                }
+            }, COMPACT_DELAY_MINUTES, COMPACT_INTERVAL_MINUTES, TimeUnit.MINUTES);
+        }
+    }
+    
+    /**
+     * Keeps messages with contactId for millis after they were sent, 0 for as long as there is
+     * room. Older ones are dropped by the next compaction.
+     */
+    public static synchronized void setRetention(String contactId, long millis) {
+        String self = SessionManager.getInstance().getUsername();
+        if (retention == null || self == null) {
+            return;
+        }
+        String conversationId = RelayProtocol.conversationId(self, contactId);
+        if (millis > 0) {
+            retention.edit().putLong(conversationId, millis).apply();
+        } else {
+            retention.edit().remove(conversationId).apply();
+        }
+    }
+    
+    /**
+     * Limits compaction to bytesPerSecond of disk traffic (0 for no limit) and cpuShare of a core
+     */
+    public static void setCompactionBudget(long bytesPerSecond, double cpuShare) {
+        budget = new CompactionBudget(bytesPerSecond, cpuShare);
+    }
+    
+    /**
+     * Up to limit messages with contactId before beforeSeq, oldest first; Long.MAX_VALUE for the latest
+     */
+    public static CompletableFuture<List<Message>> loadPage(final String contactId, final long beforeSeq,
+                                                            final int limit) {
+        final MessageLog current = log;
+        final String self = SessionManager.getInstance().getUsername();
+        if (current == null || self == null) {
+            return CompletableFuture.completedFuture(Collections.<Message>emptyList());
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return current.loadPage(RelayProtocol.conversationId(self, contactId), beforeSeq, limit);
+            } catch (Exception e) {
+                Log.e(TAG, "Could not load history with " + contactId, e);
+                return Collections.<Message>emptyList();
+            }
+        }, IO);
+    }
+    
+    /**
+     * Seq of the first message with contactId at or after timestamp, or -1; load the page ending
+     * there with loadPage(seq + 1, limit) to jump to a date
+     */
+    public static CompletableFuture<Long> seqAt(final String contactId, final long timestamp) {
+        final MessageLog current = log;
+        final String self = SessionManager.getInstance().getUsername();
+        if (current == null || self == null) {
+            return CompletableFuture.completedFuture(-1L);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return current.seqAt(RelayProtocol.conversationId(self, contactId), timestamp);
+            } catch (Exception e) {
+                Log.e(TAG, "Could not search history with " + contactId, e);
+                return -1L;
+            }
+        }, IO);
+    }
+    
+    /**
+     * Up to limit messages whose words match query, best first; contactId null searches every chat
+     */
+    public static CompletableFuture<List<SearchIndex.Hit>> search(final String contactId, final String query,
+                                                                  final int limit) {
+        final SearchIndex current = search;
+        final String self = SessionManager.getInstance().getUsername();
+        if (current == null || self == null) {
+            return CompletableFuture.completedFuture(Collections.<SearchIndex.Hit>emptyList());
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return current.search(contactId != null ? RelayProtocol.conversationId(self, contactId) : null,
+                    query, limit);
+            } catch (Exception e) {
+                Log.e(TAG, "Search failed", e);
+                return Collections.<SearchIndex.Hit>emptyList();
+            }
+        }, IO);
+    }
+    
+    /**
+     * Throws the search index away and builds it again from the stored history
+     */
+    public static void rebuildSearch() {
+        final MessageLog currentLog = log;
+        final SearchIndex current = search;
+        if (currentLog == null || current == null) {
+            return;
+        }
+        IO.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    current.clear();
+                } catch (Exception e) {
+                    Log.e(TAG, "Could not clear search index", e);
+                    return;
+                }
+                catchUp(currentLog, current);
+            }
+        });
+    }
+    
+    private static void store(final String contactId, final Message message) {
+        final MessageLog current = log;
+        final String self = SessionManager.getInstance().getUsername();
+        if (current == null || self == null) {
+            return;
+        }
+        IO.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    String conversationId = RelayProtocol.conversationId(self, contactId);
+                    long end = current.append(conversationId, message);
+                    SearchIndex currentSearch = search;
+                    if (currentSearch != null && current == log) {
+                        currentSearch.add(conversationId, message, end);
+                        scheduleMerge(currentSearch);
+                    }
+                } catch (Exception e) {
+                    Log.e(TAG, "Could not store message " + message.getSeq() + " with " + contactId, e);
+                }
+            }
+        });
+    }
+    
+    // Opens the index off the caller's thread, ahead of anything stored with current
+    private static void openSearch(final MessageLog current, final File directory, final SecretKey key) {
+        IO.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SearchIndex index = SearchIndex.open(directory, key);
+                    synchronized (MessageStoreService.class) {
+                        if (current != log) {
+                            index.close(); // Logged out meanwhile
+                            return;
+                        }
+                        search = index;
+                    }
+                    catchUp(current, index);
+                } catch (Exception e) {
+                    Log.e(TAG, "Search index unavailable", e);
+                }
+            }
+        });
+    }
+    
+    // Feeds the index every record past its watermarks, then writes them out. Runs on IO, before
+    // anything else is stored, so a live append never moves a watermark past unindexed records.
+    private static void catchUp(MessageLog current, final SearchIndex index) {
+        long start = System.nanoTime();
+        for (final String conversationId : current.conversations()) {
+            try {
+                current.replay(conversationId, index.watermark(conversationId), new MessageLog.RecordVisitor() {
+                    @Override
+                    public void visit(byte kind, long seq, Message message, long end)
+                            throws IOException, GeneralSecurityException {
+                        if (kind == MessageLog.TOMBSTONE) {
+                            index.delete(conversationId, seq, end);
+                        } else {
+                            index.add(conversationId, message, end);
+                        }
+                    }
+                });
+            } catch (Exception e) {
+                Log.e(TAG, "Could not index history of " + conversationId, e);
+            }
+        }
+        try {
+            index.flush();
+        } catch (Exception e) {
+            Log.e(TAG, "Could not write search index", e);
+        }
+        scheduleMerge(index);
+        Metrics.timer("search.catch_up").recordSince(start);
+    }
+    
+    private static void compactAll() {
+        final MessageLog current = log;
+        if (current == null) {
+            return;
+        }
+        CompactionBudget pace = budget;
+        long now = System.currentTimeMillis();
+        for (String conversationId : current.conversations()) {
+            long keep;
+            synchronized (MessageStoreService.class) {
+                keep = retention != null ? retention.getLong(conversationId, 0) : 0;
+            }
+            try {
+                final MessageLog.Compaction prepared = current.prepareCompaction(conversationId,
+                    keep > 0 ? now - keep : 0, MIN_GARBAGE, pace);
+                if (prepared != null) {
+                    CompletableFuture.runAsync(() -> commit(current, prepared), IO).get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                Log.e(TAG, "Could not compact " + conversationId, e);
+            }
+        }
+    }
+    
+    // On IO, so nothing is stored between moving the search watermark and swapping the log
+    private static void commit(MessageLog current, MessageLog.Compaction prepared) {
+        if (current != log) {
+            prepared.abandon(); // Logged out meanwhile
+            return;
+        }
+        String conversationId = prepared.conversationId();
+        SearchIndex index = search;
+        try {
+            if (index != null) {
+                // Safe to replay from before the swap as well as after it
+                index.rebase(conversationId, prepared.translate(index.watermark(conversationId)));
+                index.checkpoint();
+            }
+            current.commit(prepared);
+            if (index != null) {
+                for (long seq : prepared.expiredSeqs()) {
+                    index.delete(conversationId, seq, 0);
+                }
+                index.checkpoint();
+            }
+            Log.i(TAG, "Compacted " + conversationId + ": reclaimed " + prepared.reclaimedBytes + " bytes, dropped "
+                + prepared.droppedRecords + " records");
+        } catch (Exception e) {
+            Log.e(TAG, "Could not commit compaction of " + conversationId, e);
+        }
+    }
+    
+    private static void scheduleMerge(final SearchIndex index) {
+        if (!index.shouldMerge() || !mergeQueued.compareAndSet(false, true)) {
+            return;
+        }
+        MERGER.execute(new Runnable() {
+            @Override
+            public void run() {
+                mergeQueued.set(false);
+                try {
+                    while (index.merge()) {
+                        // until the segments settle
+                    }
+                } catch (Exception e) {
+                    Log.e(TAG, "Search index merge failed", e);
+                }
+            }
+        });
+    }
+    
+    // History belongs to the account; delete it with it. The next login opens an empty one.
+    private static synchronized void reset() {
+        final MessageLog current = log;
+        final SearchIndex currentSearch = search;
+        log = null;
+        search = null;
+        if (retention != null) {
+            retention.edit().clear().apply();
+        }
+        if (current != null) {
+            // Queued ahead of anything the next account stores
+            IO.execute(new Runnable() {
+                @Override
+                public void run() {
+                    current.deleteAll();
+                    if (currentSearch != null) {
+                        try {
+                            currentSearch.deleteAll();
+                        } catch (Exception e) {
+                            Log.e(TAG, "Could not delete search index", e);
+                        }
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package com.anonymousemessage.service;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.anonymousemessage.models.Message;
+import com.anonymousemessage.storage.Outbox;
+import com.anonymousemessage.utils.Metrics;
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable outbox for chat messages. A message is logged to the outbox before it
+ * is sent and stays there until the relay acknowledges it, so messages sent
+ * while Tor is down or the app is killed go out once it can reach the relay.
+ * Failed sends are retried with jittered exponential backoff.
+ */
+public class OutboxService {
+    private static final String TAG = "OutboxService";
+    private static final String FILE_NAME = "outbox.wal";
+    
+    // Retry delay before attempt n is uniform in [0, min(MAX, BASE * 2^n)] ("full jitter"),
+    // so clients that failed together don't retry together
+    private static final long BACKOFF_BASE_MS = 1000;
+    private static final long BACKOFF_MAX_MS = TimeUnit.MINUTES.toMillis(5);
+    
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    
+    /**
+     * Told when a message has been acknowledged by the relay (isDelivered and its seq are already set)
+     */
+    public interface DeliveryListener {
+        void onDelivered(Message message);
+    }
+    
+    private static final class Pending {
+        final Message message;
+        final String recipientPublicKey;
+        final CompletableFuture<Message> delivered = new CompletableFuture<>();
+        int attempts;
+        volatile ScheduledFuture<?> retry;
+        
+        Pending(Message message, String recipientPublicKey) {
+            this.message = message;
+            this.recipientPublicKey = recipientPublicKey;
+        }
+    }
+    
+    private static final ScheduledExecutorService RETRIES = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "OutboxRetry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    
+    private static volatile Outbox outbox;
+    private static boolean sessionHooksAdded; // guarded by class
+    private static final ConcurrentHashMap<String, Pending> pending = new ConcurrentHashMap<>();
+    private static final CopyOnWriteArrayList<DeliveryListener> listeners = new CopyOnWriteArrayList<>();
+    
+    /**
+     * Replays the outbox and resends whatever was not acknowledged. Requires SessionManager.
+     */
+    public static synchronized void initialize(Context context) {
+        if (outbox != null) {
+            return;
+        }
+        SecretKey storageKey;
+        try {
+            SessionManager session = SessionManager.getInstance();
+            final Context appContext = context.getApplicationContext();
+            if (!sessionHooksAdded) {
+                session.addLogoutHook(new Runnable() {
+                    @Override
+                    public void run() {
+                        reset();
+                    }
+                });
+                session.addLoginHook(new Runnable() {
+                    @Override
+                    public void run() {
+                        initialize(appContext);
+                    }
+                });
+                sessionHooksAdded = true;
+            }
+            storageKey = session.getStorageKey();
+        } catch (Exception e) {
+            Log.e(TAG, "Outbox unavailable; messages will not survive restarts", e);
+            return;
+        }
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        Outbox opened = new Outbox(file, storageKey);
+        List<Outbox.Entry> entries;
+        try {
+            entries = opened.open();
+        } catch (IOException | GeneralSecurityException e) {
+            // Unreadable (e.g. sealed under a key cleared on logout); start over
+            Log.e(TAG, "Outbox unreadable, starting empty", e);
+            file.delete();
+            try {
+                entries = opened.open();
+            } catch (IOException | GeneralSecurityException retry) {
+                Log.e(TAG, "Outbox unavailable; messages will not survive restarts", retry);
+                return;
+            }
+        }
+        outbox = opened;
+        
+        for (Outbox.Entry entry : entries) {
+            try {
+                Pending replayed = decode(entry.payload);
+                pending.put(replayed.message.getMessageId(), replayed);
+                attempt(replayed);
+            } catch (IOException e) {
+                Log.e(TAG, "Dropping undecodable outbox entry " + entry.id, e);
+                opened.ack(entry.id);
+            }
+        }
+        // Send the backlog as one group; the batch path encrypts it in parallel
+        MessageSendService.flush();
+        Metrics.counter("outbox.replayed").add(entries.size());
+        Log.d(TAG, "Outbox replayed " + entries.size() + " pending messages");
+    }
+    
+    /**
+     * Logs the message and sends it once the log record is on disk. The future completes once
+     * the relay has acknowledged it; it keeps retrying until then, across restarts.
+     */
+    public static CompletableFuture<Message> send(Message message, String recipientPublicKey) {
+        final Pending entry = new Pending(message, recipientPublicKey);
+        pending.put(message.getMessageId(), entry);
+        Outbox current = outbox;
+        if (current == null) {
+            Log.w(TAG, "Outbox not initialized; sending without durability");
+            attempt(entry);
+            return entry.delivered;
+        }
+        byte[] encoded;
+        try {
+            encoded = encode(entry);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not log message; sending without durability", e);
+            attempt(entry);
+            return entry.delivered;
+        }
+        // A message the relay accepted must never be missing from the log after a crash
+        current.append(message.getMessageId(), encoded).whenComplete((ignored, error) -> {
+            if (error != null) {
+                Log.e(TAG, "Could not log message; sending without durability", error);
+            }
+            attempt(entry);
+        });
+        return entry.delivered;
+    }
+    
+    public static void addDeliveryListener(DeliveryListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+    
+    public static void removeDeliveryListener(DeliveryListener listener) {
+        listeners.remove(listener);
+    }
+    
+    /**
+     * Messages not yet acknowledged, e.g. to show them as pending after a restart
+     */
+    public static int pendingCount() {
+        return pending.size();
+    }
+    
+    /**
+     * Retries everything waiting out a backoff now, e.g. once Tor has (re)connected
+     */
+    public static void retryNow() {
+        boolean retried = false;
+        for (Pending entry : pending.values()) {
+            ScheduledFuture<?> retry = entry.retry;
+            if (retry != null && retry.cancel(false)) {
+                entry.retry = null;
+                attempt(entry);
+                retried = true;
+            }
+        }
+        if (retried) {
+            MessageSendService.flush();
+        }
+    }
+    
+    /**
+     * Drops every queued message (they were sealed under the storage key being discarded).
+     * The outbox reopens on the next login.
+     */
+    static synchronized void reset() {
+        Outbox current = outbox;
+        outbox = null;
+        for (Pending entry : pending.values()) {
+            ScheduledFuture<?> retry = entry.retry;
+            if (retry != null) {
+                retry.cancel(false);
+            }
+            entry.delivered.cancel(false);
+        }
+        pending.clear();
+        if (current != null) {
+            current.delete();
+        }
+    }
+    
+    private static void attempt(final Pending entry) {
+        if (entry.delivered.isDone()) {
+            return;
+        }
+        MessageSendService.send(entry.message, entry.recipientPublicKey).whenComplete((seq, error) -> {
+            if (error == null) {
+                if (seq != null) {
+                    entry.message.setSeq(seq);
+                }
+                delivered(entry);
+                return;
+            }
+            long delay = backoffMillis(entry.attempts++);
+            Metrics.counter("outbox.retry").increment();
+            Log.w(TAG, "Send of " + entry.message.getMessageId() + " failed (" + error.getMessage()
+                + "), retrying in " + delay + "ms");
+            entry.retry = RETRIES.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    entry.retry = null;
+                    attempt(entry);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        });
+    }
+    
+    private static void delivered(Pending entry) {
+        String id = entry.message.getMessageId();
+        pending.remove(id, entry);
+        Outbox current = outbox;
+        if (current != null) {
+            current.ack(id);
+        }
+        entry.message.setDelivered(true);
+        Metrics.counter("outbox.delivered").increment();
+        for (DeliveryListener listener : listeners) {
+            listener.onDelivered(entry.message);
+        }
+        entry.delivered.complete(entry.message);
+    }
+    
+    static long backoffMillis(int attempt) {
+        long ceiling = BACKOFF_BASE_MS << Math.min(attempt, 20);
+        return ThreadLocalRandom.current().nextLong(Math.min(ceiling, BACKOFF_MAX_MS) + 1);
+    }
+    
+    private static byte[] encode(Pending entry) throws IOException {
+        Message message = entry.message;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeString(out, message.getMessageId());
+        writeString(out, message.getSenderId());
+        writeString(out, message.getRecipientId());
+        writeString(out, message.getContent());
+        writeString(out, message.getType().name());
+        out.writeLong(message.getTimestamp());
+        writeString(out, entry.recipientPublicKey);
+        out.flush();
+        return bytes.toByteArray();
+    }
+    
+    private static Pending decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        try {
+            String messageId = readString(in);
+            String senderId = readString(in);
+            String recipientId = readString(in);
+            String content = readString(in);
+            Message.Type type = Message.Type.valueOf(readString(in));
+            long timestamp = in.readLong();
+            String recipientPublicKey = readString(in);
+            return new Pending(new Message(messageId, senderId, recipientId, content, type, timestamp),
+                recipientPublicKey);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Bad outbox entry", e);
+        }
+    }
+    
+    // Length-prefixed UTF-8; content can exceed writeUTF's 64 KiB limit. -1 encodes null.
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.available()) {
+            throw new IOException("Truncated outbox entry");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
@@ -0,0 +1,163 @@
+package com.anonymousemessage.service;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+
+import com.anonymousemessage.crypto.CryptoEngine;
+import com.anonymousemessage.crypto.PasswordKdf;
+import com.anonymousemessage.utils.Metrics;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs password hashing on a dedicated background thread.
+ *
+ * Argon2id parameters are calibrated once per build fingerprint to take about
+ * {@link PasswordKdf#DEFAULT_TARGET_MILLIS} and restored from preferences on
+ * later launches. Verifiers are cached for the session (keyed by an HMAC of the
+ * password under a per-session key, never the password itself), so retrying a
+ * registration or re-checking a password costs nothing. Timings are published as
+ * the kdf.* metrics.
+ */
+public class PasswordKdfService {
+    private static final String TAG = "PasswordKdfService";
+    private static final String PREF_NAME = "AnonymousMessage_Device";
+    private static final String KEY_PARAMS = "kdf_params";
+    private static final String KEY_FINGERPRINT = "kdf_params_fingerprint";
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "password-kdf");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final ConcurrentHashMap<String, CompletableFuture<String>> verifiers = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, CompletableFuture<Boolean>> checks = new ConcurrentHashMap<>();
+    private static volatile byte[] cacheKey = newCacheKey();
+
+    /**
+     * Restores calibrated parameters, or calibrates in the background if this build has none yet
+     */
+    public static void initialize(Context context) {
+        final SharedPreferences prefs = context.getApplicationContext()
+            .getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+
+        String stored = prefs.getString(KEY_PARAMS, null);
+        if (stored != null && Build.FINGERPRINT.equals(prefs.getString(KEY_FINGERPRINT, null))) {
+            try {
+                PasswordKdf.setParams(PasswordKdf.Params.parse(stored));
+                return;
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Ignoring stored KDF parameters: " + e.getMessage());
+            }
+        }
+
+        executor.execute(() -> {
+            long start = System.nanoTime();
+            PasswordKdf.Params params = PasswordKdf.calibrate(PasswordKdf.DEFAULT_TARGET_MILLIS);
+            Metrics.timer("kdf.calibrate").recordSince(start);
+            Log.d(TAG, "Calibrated Argon2id " + params);
+            prefs.edit()
+                .putString(KEY_PARAMS, params.toString())
+                .putString(KEY_FINGERPRINT, Build.FINGERPRINT)
+                .apply();
+        });
+    }
+
+    /**
+     * Runs another one-off device calibration on the KDF thread, so calibrations never compete for the CPU
+     */
+    static void calibrateInBackground(Runnable calibration) {
+        executor.execute(calibration);
+    }
+
+    /**
+     * Verifier to send for a new password. Runs behind any pending calibration so it
+     * uses the calibrated cost; repeated calls in a session return the same verifier.
+     */
+    public static CompletableFuture<String> hash(final String password) {
+        String key = cacheKey(password, null);
+        CompletableFuture<String> cached = verifiers.get(key);
+        if (cached != null && !cached.isCompletedExceptionally()) {
+            Metrics.counter("kdf.cache_hit").increment();
+            return cached;
+        }
+
+        CompletableFuture<String> future = CompletableFuture.supplyAsync(() -> {
+            long start = System.nanoTime();
+            String verifier = PasswordKdf.hash(password);
+            Metrics.timer("kdf.hash").recordSince(start);
+            return verifier;
+        }, executor);
+        verifiers.put(key, future);
+        return future;
+    }
+
+    /**
+     * Checks a password against a verifier; successful checks are remembered for the session
+     */
+    public static CompletableFuture<Boolean> verify(final String password, final String verifier) {
+        final String key = cacheKey(password, verifier);
+        CompletableFuture<Boolean> cached = checks.get(key);
+        if (cached != null) {
+            Metrics.counter("kdf.cache_hit").increment();
+            return cached;
+        }
+
+        CompletableFuture<Boolean> future = CompletableFuture.supplyAsync(() -> {
+            long start = System.nanoTime();
+            try {
+                return PasswordKdf.verify(password, verifier);
+            } catch (Exception e) {
+                Log.w(TAG, "Password verification failed: " + e.getMessage());
+                return false;
+            } finally {
+                Metrics.timer("kdf.verify").recordSince(start);
+            }
+        }, executor);
+        // Only a match is worth remembering; a mistyped password must be re-checked next time
+        future.thenAccept(ok -> {
+            if (ok) {
+                checks.put(key, future);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Forgets every cached verifier, e.g. on logout
+     */
+    public static void clearCache() {
+        cacheKey = newCacheKey();
+        verifiers.clear();
+        checks.clear();
+    }
+
+    private static String cacheKey(String password, String verifier) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(cacheKey, "HmacSHA256"));
+            mac.update(password.getBytes("UTF-8"));
+            if (verifier != null) {
+                mac.update((byte) 0);
+                mac.update(verifier.getBytes("UTF-8"));
+            }
+            return Base64.getEncoder().encodeToString(mac.doFinal());
+        } catch (Exception e) {
+            throw new IllegalStateException("HmacSHA256 not available", e);
+        }
+    }
+
+    private static byte[] newCacheKey() {
+        byte[] key = new byte[32];
+        CryptoEngine.random().nextBytes(key);
+        return key;
+    }
+}
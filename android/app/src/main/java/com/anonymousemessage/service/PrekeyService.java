@@ -0,0 +1,82 @@
+package com.anonymousemessage.service;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.anonymousemessage.crypto.PrekeyPool;
+import com.anonymousemessage.utils.Metrics;
+import java.io.File;
+import java.security.GeneralSecurityException;
+
+/**
+ * Owns the app's prekey pool: one-time X25519 key pairs generated in the
+ * background and kept in an encrypted file under the session storage key.
+ */
+public class PrekeyService {
+    private static final String TAG = "PrekeyService";
+    private static final String FILE_NAME = "prekeys.bin";
+    
+    // Refill once fewer than LOW_WATERMARK keys remain, up to TARGET_WATERMARK
+    private static final int LOW_WATERMARK = 20;
+    private static final int TARGET_WATERMARK = 100;
+    
+    private static volatile PrekeyPool pool;
+    private static boolean loginHookAdded; // guarded by class
+    
+    /**
+     * Loads the persisted pool and starts topping it up. Requires SessionManager to be initialized.
+     */
+    public static synchronized void initialize(Context context) {
+        if (pool != null) {
+            return;
+        }
+        try {
+            if (!loginHookAdded) {
+                final Context appContext = context.getApplicationContext();
+                SessionManager.getInstance().addLoginHook(new Runnable() {
+                    @Override
+                    public void run() {
+                        initialize(appContext);
+                    }
+                });
+                loginHookAdded = true;
+            }
+            File file = new File(context.getApplicationContext().getFilesDir(), FILE_NAME);
+            PrekeyPool created = new PrekeyPool(file, SessionManager.getInstance().getStorageKey(),
+                LOW_WATERMARK, TARGET_WATERMARK);
+            created.start();
+            pool = created;
+        } catch (Exception e) {
+            Log.e(TAG, "Prekey pool unavailable; keys will be generated on demand", e);
+        }
+    }
+    
+    /**
+     * Hands out a one-time key pair for a handshake; while the pool has keys this costs a small
+     * append to the pool's tombstone file, not key generation
+     */
+    public static PrekeyPool.Prekey take() throws GeneralSecurityException {
+        PrekeyPool current = pool;
+        if (current == null || current.size() == 0) {
+            Metrics.counter("prekey.pool_miss").increment();
+        }
+        Metrics.counter("prekey.taken").increment();
+        return current != null ? current.take() : PrekeyPool.generateUnpooled();
+    }
+    
+    public static int available() {
+        PrekeyPool current = pool;
+        return current != null ? current.size() : 0;
+    }
+    
+    /**
+     * Discards the pool (its keys belong to the old storage key); a new one starts on the next login
+     */
+    public static synchronized void reset() {
+        PrekeyPool current = pool;
+        pool = null;
+        if (current != null) {
+            current.close();
+        }
+    }
+}
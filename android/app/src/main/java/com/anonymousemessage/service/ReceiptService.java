@@ -0,0 +1,396 @@
+package com.anonymousemessage.service;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.anonymousemessage.protocol.PayloadCompressor;
+import com.anonymousemessage.protocol.Receipt;
+import com.anonymousemessage.utils.Metrics;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivery and read receipts, one cumulative receipt per conversation instead of
+ * one per message per state change.
+ *
+ * Outbound: SyncService reports how far each conversation has been delivered and
+ * which batches could not be read; the chat screen reports how far the user has
+ * read. A change only marks the conversation's receipt dirty. The receipt then rides
+ * in the batch of the next message sent to that contact, or goes out on its own if
+ * none is sent within DEBOUNCE_MILLIS, so a burst of changes costs one receipt and
+ * usually no request of its own. A receipt that fails to send is retried the same way.
+ * Gaps are listed until the contact acknowledges a receipt that carried them, and
+ * at most MAX_GAPS of them, newest first.
+ *
+ * Every receipt also advertises the suites we can open, which is how contacts
+ * negotiate a cipher suite with us (see CipherSuites).
+ *
+ * Inbound: a receipt replaces the one held for its conversation if it is newer,
+ * keeping the gaps the one before it listed. Whether one of our messages was
+ * delivered or read is a lookup of its seq against that receipt, not a flag set on
+ * every message it covers.
+ */
+public class ReceiptService {
+    private static final String TAG = "ReceiptService";
+    private static final String PREF_NAME = "receipts";
+    
+    static final long DEBOUNCE_MILLIS = 2000;
+    static final int MAX_GAPS = 64;
+    
+    /**
+     * Told when a contact's receipt moves on
+     */
+    public interface ReceiptListener {
+        void onReceipt(String contactId, Receipt receipt);
+    }
+    
+    // What we tell one contact; fields guarded by the instance
+    private static final class Outbound {
+        final String contactId;
+        String publicKey;
+        long delivered;
+        long read;
+        long[] gaps = new long[0];
+        // Seq of the last sent receipt listing gaps, and the end of its last gap; 0 once acknowledged
+        long gapsSentSeq;
+        long gapsSentEnd;
+        boolean dirty;
+        ScheduledFuture<?> timer;
+        
+        Outbound(String contactId, String publicKey) {
+            this.contactId = contactId;
+            this.publicKey = publicKey;
+        }
+        
+        Receipt receipt() {
+            return new Receipt(delivered, read, gaps, EncryptionService.supportedCipherSuites());
+        }
+    }
+    
+    private static final ScheduledExecutorService DEBOUNCER = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ReceiptDebounce");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    
+    private static final ConcurrentHashMap<String, Outbound> outbound = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Receipt> inbound = new ConcurrentHashMap<>();
+    private static final CopyOnWriteArrayList<ReceiptListener> listeners = new CopyOnWriteArrayList<>();
+    private static SharedPreferences prefs; // guarded by class
+    private static boolean logoutHookAdded; // guarded by class
+    
+    /**
+     * Loads what we last told each contact, so it never goes backwards. Requires SessionManager.
+     */
+    public static synchronized void initialize(Context context) {
+        if (prefs != null) {
+            return;
+        }
+        prefs = context.getApplicationContext().getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            if (entry.getValue() instanceof String) {
+                Outbound state = parse(entry.getKey(), (String) entry.getValue());
+                if (state != null) {
+                    outbound.put(state.contactId, state);
+                }
+            }
+        }
+        if (!logoutHookAdded) {
+            SessionManager.getInstance().addLogoutHook(new Runnable() {
+                @Override
+                public void run() {
+                    reset();
+                }
+            });
+            logoutHookAdded = true;
+        }
+    }
+    
+    public static void addListener(ReceiptListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+    
+    public static void removeListener(ReceiptListener listener) {
+        listeners.remove(listener);
+    }
+    
+    /**
+     * Everything contactId sent up to seq has arrived
+     */
+    public static void delivered(String contactId, String contactPublicKey, long seq) {
+        Outbound state = state(contactId, contactPublicKey);
+        synchronized (state) {
+            if (seq <= state.delivered) {
+                return;
+            }
+            state.delivered = seq;
+            changed(state);
+        }
+    }
+    
+    /**
+     * contactId's batch of seqs first..last arrived but could not be read; it counts as delivered
+     * up to last, minus the gap, so the sender can tell it was lost
+     */
+    public static void unreadable(String contactId, String contactPublicKey, long first, long last) {
+        Outbound state = state(contactId, contactPublicKey);
+        synchronized (state) {
+            long[] gaps = state.gaps;
+            if (first <= (gaps.length > 0 ? gaps[gaps.length - 1] : 0)) {
+                return; // Batches arrive in order; this one is already recorded
+            }
+            if (gaps.length > 0 && gaps[gaps.length - 1] == first - 1) {
+                gaps = gaps.clone(); // Adjoins the last gap; widen it
+            } else {
+                gaps = Arrays.copyOf(gaps, gaps.length + 2);
+                gaps[gaps.length - 2] = first;
+            }
+            gaps[gaps.length - 1] = last;
+            if (gaps.length > MAX_GAPS * 2) {
+                // Oldest first; the contact has had longest to hear of it
+                gaps = Arrays.copyOfRange(gaps, gaps.length - MAX_GAPS * 2, gaps.length);
+                Metrics.counter("receipts.gaps_dropped").increment();
+            }
+            state.gaps = gaps;
+            state.delivered = Math.max(state.delivered, last);
+            changed(state);
+        }
+    }
+    
+    /**
+     * The user has seen everything contactId sent up to seq, which implies it arrived
+     */
+    public static void markRead(String contactId, String contactPublicKey, long seq) {
+        Outbound state = state(contactId, contactPublicKey);
+        synchronized (state) {
+            if (seq <= state.read) {
+                return;
+            }
+            state.read = seq;
+            state.delivered = Math.max(state.delivered, seq);
+            changed(state);
+        }
+    }
+    
+    /**
+     * Sends every receipt still waiting out its debounce, e.g. when the chat screen is left
+     */
+    public static void flush() {
+        for (Outbound state : outbound.values()) {
+            synchronized (state) {
+                if (state.dirty) {
+                    send(state, false);
+                }
+            }
+        }
+    }
+    
+    /**
+     * The latest receipt from contactId, or null if none has arrived
+     */
+    public static Receipt received(String contactId) {
+        return inbound.get(contactId);
+    }
+    
+    public static boolean isDelivered(String contactId, long seq) {
+        Receipt receipt = inbound.get(contactId);
+        return receipt != null && receipt.isDelivered(seq);
+    }
+    
+    public static boolean isRead(String contactId, long seq) {
+        Receipt receipt = inbound.get(contactId);
+        return receipt != null && receipt.isRead(seq);
+    }
+    
+    /**
+     * Takes in a receipt contactId sent us; older or repeated ones are ignored
+     */
+    static void apply(String contactId, Receipt receipt) {
+        Receipt previous;
+        Receipt merged;
+        do {
+            previous = inbound.get(contactId);
+            if (previous != null && !receipt.isNewerThan(previous)) {
+                Metrics.counter("receipts.stale").increment();
+                return;
+            }
+            merged = previous == null ? receipt : receipt.withGapsOf(previous, MAX_GAPS);
+        } while (previous == null ? inbound.putIfAbsent(contactId, merged) != null
+            : !inbound.replace(contactId, previous, merged));
+        Metrics.counter("receipts.applied").increment();
+        acknowledged(contactId, merged);
+        for (ReceiptListener listener : listeners) {
+            listener.onReceipt(contactId, merged);
+        }
+    }
+    
+    /**
+     * Called by MessageSendService after queueing a message for recipientId: a pending receipt
+     * joins it in the same batch instead of waiting for its own
+     */
+    static void piggyback(String recipientId) {
+        Outbound state = outbound.get(recipientId);
+        if (state == null) {
+            return;
+        }
+        synchronized (state) {
+            if (state.dirty) {
+                send(state, true);
+            }
+        }
+    }
+    
+    // contactId's receipt shows our receipt listing gaps arrived; they need not be listed again
+    private static void acknowledged(String contactId, Receipt receipt) {
+        Outbound state = outbound.get(contactId);
+        if (state == null) {
+            return;
+        }
+        synchronized (state) {
+            if (state.gapsSentSeq == 0 || !receipt.isDelivered(state.gapsSentSeq)) {
+                return;
+            }
+            long[] gaps = state.gaps;
+            int from = 0;
+            while (from < gaps.length && gaps[from + 1] <= state.gapsSentEnd) {
+                from += 2;
+            }
+            state.gaps = Arrays.copyOfRange(gaps, from, gaps.length);
+            state.gapsSentSeq = 0;
+            persist(state);
+            Metrics.counter("receipts.gaps_acknowledged").add(from / 2);
+        }
+    }
+    
+    private static Outbound state(String contactId, String contactPublicKey) {
+        Outbound state = outbound.get(contactId);
+        if (state == null) {
+            Outbound created = new Outbound(contactId, contactPublicKey);
+            state = outbound.putIfAbsent(contactId, created);
+            if (state == null) {
+                state = created;
+            }
+        }
+        synchronized (state) {
+            if (contactPublicKey != null) {
+                state.publicKey = contactPublicKey;
+            }
+        }
+        return state;
+    }
+    
+    // Called holding state
+    private static void changed(final Outbound state) {
+        state.dirty = true;
+        persist(state);
+        if (state.timer == null) {
+            state.timer = DEBOUNCER.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (state) {
+                        state.timer = null;
+                        if (state.dirty) {
+                            send(state, false);
+                        }
+                    }
+                }
+            }, DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    // Called holding state
+    private static void send(final Outbound state, boolean piggybacked) {
+        if (state.timer != null) {
+            state.timer.cancel(false);
+            state.timer = null;
+        }
+        if (state.publicKey == null) {
+            return; // Stays dirty until we learn where to send it
+        }
+        state.dirty = false;
+        final long gapsEnd = state.gaps.length > 0 ? state.gaps[state.gaps.length - 1] : 0;
+        byte[] payload = PayloadCompressor.shared().compress(state.receipt().encode(), "receipt");
+        Metrics.counter(piggybacked ? "receipts.piggybacked" : "receipts.standalone").increment();
+        MessageSendService.enqueue(state.contactId, state.publicKey, payload).whenComplete((seq, error) -> {
+            if (error != null) {
+                Log.w(TAG, "Receipt for " + state.contactId + " not sent, will retry: " + error.getMessage());
+                synchronized (state) {
+                    changed(state);
+                }
+            } else if (gapsEnd > 0 && seq != null) {
+                // Relays before protocol v2 don't number messages; the gaps then stay listed
+                synchronized (state) {
+                    if (seq > state.gapsSentSeq) {
+                        state.gapsSentSeq = seq;
+                        state.gapsSentEnd = gapsEnd;
+                    }
+                }
+            }
+        });
+    }
+    
+    // delivered,read[,start-end]*
+    private static void persist(Outbound state) {
+        SharedPreferences current;
+        synchronized (ReceiptService.class) {
+            current = prefs;
+        }
+        if (current == null) {
+            return;
+        }
+        StringBuilder value = new StringBuilder(32).append(state.delivered).append(',').append(state.read);
+        for (int i = 0; i < state.gaps.length; i += 2) {
+            value.append(',').append(state.gaps[i]).append('-').append(state.gaps[i + 1]);
+        }
+        current.edit().putString(state.contactId, value.toString()).apply();
+    }
+    
+    private static Outbound parse(String contactId, String value) {
+        try {
+            String[] parts = value.split(",");
+            Outbound state = new Outbound(contactId, null);
+            state.delivered = Long.parseLong(parts[0]);
+            state.read = Long.parseLong(parts[1]);
+            state.gaps = new long[(parts.length - 2) * 2];
+            for (int i = 2; i < parts.length; i++) {
+                int dash = parts[i].indexOf('-');
+                state.gaps[(i - 2) * 2] = Long.parseLong(parts[i].substring(0, dash));
+                state.gaps[(i - 2) * 2 + 1] = Long.parseLong(parts[i].substring(dash + 1));
+            }
+            state.receipt(); // Validates
+            return state;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Dropping unreadable receipt state for " + contactId, e);
+            return null;
+        }
+    }
+    
+    // Receipts belong to the account; forget them with it
+    private static synchronized void reset() {
+        for (Outbound state : outbound.values()) {
+            synchronized (state) {
+                if (state.timer != null) {
+                    state.timer.cancel(false);
+                }
+                state.dirty = false;
+            }
+        }
+        outbound.clear();
+        inbound.clear();
+        if (prefs != null) {
+            prefs.edit().clear().apply();
+        }
+    }
+}
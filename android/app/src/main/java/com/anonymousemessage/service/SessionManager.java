@@ -5,12 +5,14 @@ import android.content.SharedPreferences;
 import android.util.Base64;
 import android.util.Log;
 
-import javax.crypto.Cipher;
+import com.anonymousemessage.crypto.CryptoEngine;
+import com.anonymousemessage.crypto.UnlockedKeyHolder;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
-import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
-import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 public class SessionManager {
     private static final String PREF_NAME = "AnonymousMessage_Session";
@@ -24,9 +26,15 @@ public class SessionManager {
     private Context context;
     
     private static final String ALGORITHM = "AES";
-    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
-    private static final int GCM_IV_LENGTH = 12;
-    private static final int GCM_TAG_LENGTH = 16;
+    
+    // Decrypted identity key stays in memory while in use, then is wiped
+    private static final long UNLOCKED_KEY_IDLE_TTL_MINUTES = 15;
+    
+    private final UnlockedKeyHolder identityKey =
+        new UnlockedKeyHolder(UNLOCKED_KEY_IDLE_TTL_MINUTES, TimeUnit.MINUTES);
+    private volatile SecretKey masterKey;
+    private final CopyOnWriteArrayList<Runnable> logoutHooks = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<Runnable> loginHooks = new CopyOnWriteArrayList<>();
     
     private SessionManager(Context context) {
         this.context = context.getApplicationContext();
@@ -56,8 +64,17 @@ public class SessionManager {
             editor.putString(KEY_EMAIL, email);
             editor.putString(KEY_PRIVATE_KEY, encryptedPrivateKey);
             editor.apply();
+            
+            identityKey.put(Base64.decode(privateKey, Base64.NO_WRAP));
+            
+            // Contact keys derived from a previous identity are no longer valid
+            EncryptionService.clearSessionKeys();
         } catch (Exception e) {
             Log.e("SessionManager", "Error saving credentials", e);
+            return;
+        }
+        for (Runnable hook : loginHooks) {
+            hook.run();
         }
     }
     
@@ -70,34 +87,112 @@ public class SessionManager {
     }
     
     public String getPrivateKey() {
-        String encryptedPrivateKey = sharedPreferences.getString(KEY_PRIVATE_KEY, null);
-        if (encryptedPrivateKey != null) {
+        byte[] key = getIdentityKey();
+        if (key == null) {
+            return null;
+        }
+        String encoded = Base64.encodeToString(key, Base64.NO_WRAP);
+        Arrays.fill(key, (byte) 0);
+        return encoded;
+    }
+    
+    /**
+     * Copy of the raw identity key bytes, owned by the caller, who should zero it once done.
+     * O(1) while unlocked; only the first call after an idle timeout or restart decrypts
+     * from storage. A lock() or logout() meanwhile does not touch the copy.
+     */
+    public byte[] getIdentityKey() {
+        byte[] key = identityKey.get();
+        if (key != null) {
+            return key;
+        }
+        
+        synchronized (identityKey) {
+            key = identityKey.get();
+            if (key != null) {
+                return key;
+            }
+            
+            String encryptedPrivateKey = sharedPreferences.getString(KEY_PRIVATE_KEY, null);
+            if (encryptedPrivateKey == null) {
+                return null;
+            }
             try {
-                return decrypt(encryptedPrivateKey);
+                key = Base64.decode(decrypt(encryptedPrivateKey), Base64.NO_WRAP);
+                identityKey.put(key.clone());
+                return key;
             } catch (Exception e) {
                 Log.e("SessionManager", "Error decrypting private key", e);
                 return null;
             }
         }
-        return null;
     }
     
     public boolean isLoggedIn() {
-        return getUsername() != null && getPrivateKey() != null;
+        // Presence check only; the key is decrypted lazily by getIdentityKey()
+        return getUsername() != null && sharedPreferences.contains(KEY_PRIVATE_KEY);
+    }
+    
+    /**
+     * Drops the unlocked identity key without clearing stored credentials
+     */
+    public void lock() {
+        identityKey.wipe();
+        masterKey = null;
     }
     
     public void logout() {
+        lock();
+        EncryptionService.clearSessionKeys();
+        PasswordKdfService.clearCache();
+        
         SharedPreferences.Editor editor = sharedPreferences.edit();
         editor.clear();
         editor.apply();
+        
+        // Pooled prekeys were sealed under the master key that was just cleared
+        PrekeyService.reset();
+        for (Runnable hook : logoutHooks) {
+            hook.run();
+        }
     }
     
-    private String encrypt(String data) throws Exception {
+    /**
+     * Runs hook on every logout, after the session keys are cleared, so components that keep
+     * data sealed under the storage key can discard it
+     */
+    public void addLogoutHook(Runnable hook) {
+        logoutHooks.addIfAbsent(hook);
+    }
+    
+    /**
+     * Runs hook whenever credentials are saved, so components a logout closed can reopen
+     * under the new storage key. Logout hooks must not reopen anything themselves.
+     */
+    public void addLoginHook(Runnable hook) {
+        loginHooks.addIfAbsent(hook);
+    }
+    
+    /**
+     * Device key for data this app keeps on disk (prekeys, queues, message store)
+     */
+    public SecretKey getStorageKey() throws Exception {
+        return getMasterKey(true);
+    }
+    
+    private synchronized SecretKey getMasterKey(boolean create) throws Exception {
+        if (masterKey != null) {
+            return masterKey;
+        }
+        
         // Retrieve or generate a master key for session encryption
         String masterKeyStr = sharedPreferences.getString(ENCRYPTION_KEY, null);
-        SecretKey masterKey;
         
         if (masterKeyStr == null) {
+            if (!create) {
+                throw new IllegalStateException("Master key not found");
+            }
+            
             // Generate a new master key
             KeyGenerator keyGen = KeyGenerator.getInstance(ALGORITHM);
             keyGen.init(256);
@@ -113,55 +208,22 @@ public class SessionManager {
             byte[] decodedKey = Base64.decode(masterKeyStr, Base64.DEFAULT);
             masterKey = new SecretKeySpec(decodedKey, ALGORITHM);
         }
-        
-        // Generate a random IV
-        byte[] iv = new byte[GCM_IV_LENGTH];
-        new SecureRandom().nextBytes(iv);
-        
-        // Initialize cipher
-        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-        GCMParameterSpec gcmSpec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv);
-        cipher.init(Cipher.ENCRYPT_MODE, masterKey, gcmSpec);
-        
-        // Encrypt data
-        byte[] encryptedData = cipher.doFinal(data.getBytes("UTF-8"));
-        
-        // Combine IV + encrypted data for storage
-        byte[] result = new byte[iv.length + encryptedData.length];
-        System.arraycopy(iv, 0, result, 0, iv.length);
-        System.arraycopy(encryptedData, 0, result, iv.length, encryptedData.length);
+        return masterKey;
+    }
+    
+    private String encrypt(String data) throws Exception {
+        // IV + encrypted data for storage
+        byte[] result = CryptoEngine.encrypt(data.getBytes("UTF-8"), getMasterKey(true));
         
         return Base64.encodeToString(result, Base64.NO_WRAP);
     }
     
     private String decrypt(String encryptedDataStr) throws Exception {
-        // Retrieve the master key
-        String masterKeyStr = sharedPreferences.getString(ENCRYPTION_KEY, null);
-        if (masterKeyStr == null) {
-            throw new IllegalStateException("Master key not found");
-        }
-        
-        byte[] decodedMasterKey = Base64.decode(masterKeyStr, Base64.DEFAULT);
-        SecretKey masterKey = new SecretKeySpec(decodedMasterKey, ALGORITHM);
-        
         // Decode the encrypted data
         byte[] encryptedData = Base64.decode(encryptedDataStr, Base64.NO_WRAP);
         
-        // Extract IV from the beginning
-        byte[] iv = new byte[GCM_IV_LENGTH];
-        System.arraycopy(encryptedData, 0, iv, 0, GCM_IV_LENGTH);
-        
-        // Extract encrypted content
-        byte[] encryptedContent = new byte[encryptedData.length - GCM_IV_LENGTH];
-        System.arraycopy(encryptedData, GCM_IV_LENGTH, encryptedContent, 0, encryptedContent.length);
-        
-        // Initialize cipher for decryption
-        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-        GCMParameterSpec gcmSpec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv);
-        cipher.init(Cipher.DECRYPT_MODE, masterKey, gcmSpec);
-        
-        // Decrypt data
-        byte[] decryptedBytes = cipher.doFinal(encryptedContent);
+        // Decrypt data; the IV is read in place from the head of the blob
+        byte[] decryptedBytes = CryptoEngine.decrypt(encryptedData, getMasterKey(false));
         return new String(decryptedBytes, "UTF-8");
     }
 }
\ No newline at end of file
@@ -0,0 +1,409 @@
+package com.anonymousemessage.service;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.anonymousemessage.models.Message;
+import com.anonymousemessage.network.CoalescingQueue;
+import com.anonymousemessage.network.MultiplexedConnection;
+import com.anonymousemessage.network.RelayCircuits;
+import com.anonymousemessage.protocol.MessageCodec;
+import com.anonymousemessage.protocol.Padding;
+import com.anonymousemessage.protocol.PayloadCompressor;
+import com.anonymousemessage.protocol.Receipt;
+import com.anonymousemessage.protocol.RelayProtocol;
+import com.anonymousemessage.utils.Metrics;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Fetches the messages missed while offline, and only those.
+ *
+ * The relay numbers each conversation's messages. For every watched contact we
+ * keep a watermark, the highest seq delivered to listeners, and persist it
+ * together with the contact and its public key, so a sync right after launch
+ * covers every conversation opened before. A
+ * sync asks the relay for batches after each watermark a page at a time. The
+ * next page is requested as soon as a page's headers are read, so decrypting
+ * and delivering one page overlaps fetching the next. Watermarks only move once
+ * the page's messages have been delivered, so a sync cut short resumes where
+ * delivery stopped. Reconnecting costs in proportion to what was missed.
+ *
+ * Receipts found in the batches go to ReceiptService, which is also told how far
+ * each conversation's messages have been delivered, so it can acknowledge in one
+ * receipt. Batches holding only receipts are not acknowledged, or two clients
+ * would trade receipts forever.
+ * A message the sender resent because the relay's answer was lost arrives
+ * again under a new seq and is dropped by its message id. The ids delivered
+ * last in each conversation are persisted with its watermark, so this holds
+ * across restarts.
+ */
+public class SyncService {
+    private static final String TAG = "SyncService";
+    private static final String PREF_NAME = "sync_watermarks";
+    // Watermarks are stored under the bare conversation id, watched contacts and recent
+    // message ids under these prefixes
+    private static final String CONTACT_PREFIX = "contact:";
+    private static final String SEEN_PREFIX = "seen:";
+    
+    static final int PAGE_SIZE = 100;
+    
+    /**
+     * Told about each contact's newly synced messages, oldest first, with seq set
+     */
+    public interface SyncListener {
+        void onMessages(String contactId, List<Message> messages);
+    }
+    
+    private static final class Contact {
+        final String id;
+        final String publicKey;
+        
+        Contact(String id, String publicKey) {
+            this.id = id;
+            this.publicKey = publicKey;
+        }
+    }
+    
+    // Ids of the messages delivered last in each conversation. A sender that lost the relay's
+    // answer sends the message again under a new seq, soon after the original; this drops the copy.
+    private static final int RECENT_MESSAGE_IDS = 256;
+    
+    private static final class RecentIds {
+        final LinkedHashSet<String> ids = new LinkedHashSet<>(); // guarded by this
+        boolean changed; // guarded by this
+        
+        synchronized boolean add(String messageId) {
+            if (!ids.add(messageId)) {
+                return false;
+            }
+            if (ids.size() > RECENT_MESSAGE_IDS) {
+                Iterator<String> eldest = ids.iterator();
+                eldest.next();
+                eldest.remove();
+            }
+            changed = true;
+            return true;
+        }
+        
+        /**
+         * The ids joined by newlines if they changed since the last call, else null
+         */
+        synchronized String drain() {
+            if (!changed) {
+                return null;
+            }
+            changed = false;
+            StringBuilder out = new StringBuilder(ids.size() * 37);
+            for (String id : ids) {
+                if (out.length() > 0) {
+                    out.append('\n');
+                }
+                out.append(id);
+            }
+            return out.toString();
+        }
+    }
+    
+    private static final ConcurrentHashMap<String, RecentIds> recentMessageIds = new ConcurrentHashMap<>();
+    
+    private static final ConcurrentHashMap<String, Contact> contacts = new ConcurrentHashMap<>(); // by conversation id
+    private static final ConcurrentHashMap<String, Long> watermarks = new ConcurrentHashMap<>();
+    private static final CopyOnWriteArrayList<SyncListener> listeners = new CopyOnWriteArrayList<>();
+    private static SharedPreferences prefs; // guarded by class
+    private static CompletableFuture<Integer> running; // guarded by class
+    private static boolean logoutHookAdded; // guarded by class
+    
+    /**
+     * Loads the persisted watermarks and watched contacts. Requires SessionManager.
+     */
+    public static synchronized void initialize(Context context) {
+        if (prefs != null) {
+            return;
+        }
+        prefs = context.getApplicationContext().getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            String key = entry.getKey();
+            if (entry.getValue() instanceof Long) {
+                watermarks.put(key, (Long) entry.getValue());
+            } else if (key.startsWith(CONTACT_PREFIX) && entry.getValue() instanceof String) {
+                Contact contact = decodeContact((String) entry.getValue());
+                if (contact != null) {
+                    contacts.putIfAbsent(key.substring(CONTACT_PREFIX.length()), contact);
+                }
+            } else if (key.startsWith(SEEN_PREFIX) && entry.getValue() instanceof String) {
+                RecentIds recent = recentIds(key.substring(SEEN_PREFIX.length()));
+                for (String id : ((String) entry.getValue()).split("\n")) {
+                    if (!id.isEmpty()) {
+                        recent.add(id);
+                    }
+                }
+                recent.drain();
+            }
+        }
+        // Contacts watched before the preferences were open
+        SharedPreferences.Editor editor = prefs.edit();
+        for (Map.Entry<String, Contact> entry : contacts.entrySet()) {
+            editor.putString(CONTACT_PREFIX + entry.getKey(), encodeContact(entry.getValue()));
+        }
+        editor.apply();
+        if (!logoutHookAdded) {
+            SessionManager.getInstance().addLogoutHook(new Runnable() {
+                @Override
+                public void run() {
+                    reset();
+                }
+            });
+            logoutHookAdded = true;
+        }
+    }
+    
+    /**
+     * Includes the conversation with contactId in syncs from now on, across restarts
+     */
+    public static void watch(String contactId, String contactPublicKey) {
+        String self = SessionManager.getInstance().getUsername();
+        if (self == null) {
+            return;
+        }
+        String conversationId = RelayProtocol.conversationId(self, contactId);
+        Contact contact = new Contact(contactId, contactPublicKey);
+        Contact previous = contacts.put(conversationId, contact);
+        if (previous != null && previous.id.equals(contactId) && previous.publicKey.equals(contactPublicKey)) {
+            return;
+        }
+        synchronized (SyncService.class) {
+            if (prefs != null) {
+                prefs.edit().putString(CONTACT_PREFIX + conversationId, encodeContact(contact)).apply();
+            }
+        }
+    }
+    
+    public static void addListener(SyncListener listener) {
+        listeners.add(listener);
+    }
+    
+    public static void removeListener(SyncListener listener) {
+        listeners.remove(listener);
+    }
+    
+    /**
+     * Highest seq delivered for the conversation with contactId, 0 if none yet
+     */
+    public static long watermark(String contactId) {
+        String self = SessionManager.getInstance().getUsername();
+        Long seq = self == null ? null : watermarks.get(RelayProtocol.conversationId(self, contactId));
+        return seq != null ? seq : 0;
+    }
+    
+    /**
+     * Syncs every watched conversation; completes with the number of messages fetched.
+     * A call while a sync is running joins it.
+     */
+    public static synchronized CompletableFuture<Integer> syncNow() {
+        if (running != null && !running.isDone()) {
+            return running;
+        }
+        final String self = SessionManager.getInstance().getUsername();
+        if (self == null || contacts.isEmpty()) {
+            return CompletableFuture.completedFuture(0);
+        }
+        Map<String, Long> cursor = new LinkedHashMap<>();
+        for (String conversationId : contacts.keySet()) {
+            Long seq = watermarks.get(conversationId);
+            cursor.put(conversationId, seq != null ? seq : 0L);
+        }
+        final long start = System.nanoTime();
+        running = drain(self, cursor, requestPage(self, cursor), CompletableFuture.completedFuture(0));
+        running.whenComplete((count, error) -> {
+            Metrics.timer("sync.duration").recordSince(start);
+            if (error != null) {
+                Log.w(TAG, "Sync stopped early", error);
+            } else if (count > 0) {
+                Log.d(TAG, "Synced " + count + " messages");
+            }
+        });
+        return running;
+    }
+    
+    /**
+     * Delivers page once the pages before it are (delivered), requesting the one after it first
+     */
+    private static CompletableFuture<Integer> drain(final String self, final Map<String, Long> cursor,
+                                                    CompletableFuture<RelayProtocol.Response> page,
+                                                    final CompletableFuture<Integer> delivered) {
+        return page.thenCompose(response -> {
+            // Ask for the next page before doing the work on this one
+            Map<String, Long> after = null;
+            CompletableFuture<RelayProtocol.Response> next = null;
+            if (response.more && !response.records.isEmpty()) {
+                after = new LinkedHashMap<>(cursor);
+                for (RelayProtocol.SyncRecord record : response.records) {
+                    Long seen = after.get(record.conversationId);
+                    if (seen != null) {
+                        after.put(record.conversationId, Math.max(seen, record.lastSeq()));
+                    }
+                }
+                next = requestPage(self, after);
+            }
+            CompletableFuture<Integer> done = delivered.thenApply(count -> count + deliver(self, response.records));
+            return next == null ? done : drain(self, after, next, done);
+        });
+    }
+    
+    private static CompletableFuture<RelayProtocol.Response> requestPage(String self, Map<String, Long> cursor) {
+        String operationId = MultiplexedConnection.newOperationId();
+        byte[] request;
+        try {
+            request = EncryptionService.encryptData(RelayProtocol.sync(operationId, self, cursor, PAGE_SIZE));
+        } catch (Exception e) {
+            CompletableFuture<RelayProtocol.Response> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        Metrics.counter("sync.pages").increment();
+        return TorService.request(operationId, request, RelayCircuits.TrafficClass.BULK).thenApply(response -> {
+            try {
+                RelayProtocol.Response page = RelayProtocol.readResponse(EncryptionService.decryptData(response));
+                if (!page.ok) {
+                    throw new IOException("Relay rejected sync: " + page.error);
+                }
+                return page;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+    
+    /**
+     * Decrypts and hands a page to listeners, then moves the watermarks; returns the message count
+     */
+    private static int deliver(String self, List<RelayProtocol.SyncRecord> records) {
+        Map<String, List<Message>> byContact = new LinkedHashMap<>();
+        Map<String, Long> reached = new LinkedHashMap<>();
+        // Receipts take seqs too, but acknowledging a batch of only receipts would set off another
+        Map<String, Long> acknowledged = new LinkedHashMap<>();
+        int count = 0;
+        for (RelayProtocol.SyncRecord record : records) {
+            Contact contact = contacts.get(record.conversationId);
+            if (contact == null) {
+                continue;
+            }
+            try {
+                byte[] sealed = new byte[record.payload.remaining()];
+                record.payload.duplicate().get(sealed);
+                ByteBuffer batch = Padding.unpad(ByteBuffer.wrap(
+                    EncryptionService.decryptFromContact(contact.publicKey, sealed)));
+                byte[] framed = new byte[batch.remaining()];
+                batch.get(framed);
+                List<byte[]> payloads = CoalescingQueue.unframe(framed);
+                List<Message> messages = byContact.get(contact.id);
+                if (messages == null) {
+                    messages = new ArrayList<>();
+                    byContact.put(contact.id, messages);
+                }
+                for (int i = 0; i < payloads.size(); i++) {
+                    byte[] payload = PayloadCompressor.decompress(payloads.get(i));
+                    if (Receipt.isReceipt(payload)) {
+                        Receipt receipt = Receipt.decode(payload);
+                        if (receipt.cipherSuites() != 0) {
+                            EncryptionService.onContactCapabilities(contact.publicKey, receipt.cipherSuites());
+                        }
+                        ReceiptService.apply(contact.id, receipt);
+                        continue;
+                    }
+                    Message message = MessageCodec.decode(payload);
+                    acknowledged.put(record.conversationId, record.lastSeq());
+                    if (!firstDelivery(record.conversationId, message.getMessageId())) {
+                        Metrics.counter("sync.duplicate").increment();
+                        continue;
+                    }
+                    message.setRecipientId(self);
+                    message.setSeq(record.firstSeq + i);
+                    messages.add(message);
+                    count++;
+                }
+            } catch (Exception e) {
+                // Skipped for good: a batch that can't be read now won't be readable later
+                Log.e(TAG, "Dropping unreadable batch " + record.firstSeq + " in " + contact.id, e);
+                Metrics.counter("sync.unreadable").increment();
+                ReceiptService.unreadable(contact.id, contact.publicKey, record.firstSeq, record.lastSeq());
+            }
+            reached.put(record.conversationId, record.lastSeq());
+        }
+        
+        for (Map.Entry<String, List<Message>> entry : byContact.entrySet()) {
+            for (SyncListener listener : listeners) {
+                listener.onMessages(entry.getKey(), entry.getValue());
+            }
+        }
+        synchronized (SyncService.class) {
+            SharedPreferences.Editor editor = prefs != null ? prefs.edit() : null;
+            for (Map.Entry<String, Long> entry : reached.entrySet()) {
+                Long previous = watermarks.get(entry.getKey());
+                if (previous == null || entry.getValue() > previous) {
+                    watermarks.put(entry.getKey(), entry.getValue());
+                    if (editor != null) {
+                        editor.putLong(entry.getKey(), entry.getValue());
+                    }
+                }
+                // In the same edit as the watermark, so a copy behind it is caught after a restart too
+                RecentIds recent = recentMessageIds.get(entry.getKey());
+                String ids = recent != null && editor != null ? recent.drain() : null;
+                if (ids != null) {
+                    editor.putString(SEEN_PREFIX + entry.getKey(), ids);
+                }
+            }
+            if (editor != null) {
+                editor.apply();
+            }
+        }
+        for (Map.Entry<String, Long> entry : acknowledged.entrySet()) {
+            Contact contact = contacts.get(entry.getKey());
+            if (contact != null) {
+                ReceiptService.delivered(contact.id, contact.publicKey, entry.getValue());
+            }
+        }
+        Metrics.counter("sync.messages").add(count);
+        return count;
+    }
+    
+    // id '\n' public key, split at the last newline; Base64 keys have none
+    private static String encodeContact(Contact contact) {
+        return contact.id + '\n' + contact.publicKey;
+    }
+    
+    private static Contact decodeContact(String encoded) {
+        int split = encoded.lastIndexOf('\n');
+        return split > 0 ? new Contact(encoded.substring(0, split), encoded.substring(split + 1)) : null;
+    }
+    
+    private static boolean firstDelivery(String conversationId, String messageId) {
+        return messageId == null || recentIds(conversationId).add(messageId);
+    }
+    
+    private static RecentIds recentIds(String conversationId) {
+        return recentMessageIds.computeIfAbsent(conversationId, id -> new RecentIds());
+    }
+    
+    // Watermarks and watched contacts belong to the account; forget them with it
+    private static synchronized void reset() {
+        contacts.clear();
+        watermarks.clear();
+        recentMessageIds.clear();
+        if (prefs != null) {
+            prefs.edit().clear().apply();
+        }
+    }
+}
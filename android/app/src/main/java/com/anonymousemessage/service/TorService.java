@@ -8,16 +8,58 @@ import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.os.IBinder;
 import android.util.Log;
+import com.anonymousemessage.R;
+import com.anonymousemessage.network.RelayCircuits;
+import com.anonymousemessage.network.TorDataDirectory;
+import com.anonymousemessage.network.TorTransport;
+import com.anonymousemessage.utils.Metrics;
+import com.anonymousemessage.utils.StartupTrace;
+import okhttp3.HttpUrl;
 import org.torproject.android.service.TorServiceControl;
 import java.io.File;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 public class TorService extends Service {
     
     private static final String TAG = "TorService";
     private static TorService torServiceInstance;
     
+    // Pooled keep-alive HTTP over the SOCKS port; shared by every request
+    private static volatile TorTransport transport;
+    private static volatile HttpUrl relayUrl;
+    
+    // A few multiplexed streams to the relay, each on its own circuit, carry every
+    // request/response exchange; each request goes to the circuit that suits it best
+    public static final long DEFAULT_REQUEST_TIMEOUT_MS = 60_000;
+    private static final int RELAY_CIRCUITS = 2;
+    private static volatile String relayStreamHost;
+    private static volatile int relayStreamPort;
+    private static RelayCircuits relayStream; // guarded by TorService.class
+    
+    // Bootstrap runs off the main thread so it overlaps UI init; once per service lifetime
+    private static final ExecutorService BOOTSTRAP = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "TorBootstrap");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private boolean bootstrapStarted; // main thread only; a new service instance bootstraps again
+    private static volatile boolean relayReachable; // a warm circuit to the relay has been built
+    private static boolean loginHookAdded; // guarded by TorService.class
+    
+    private boolean connectedToTor;
+    
     public TorService() {
         super();
     }
@@ -32,14 +74,50 @@ public class TorService extends Service {
         super.onCreate();
         Log.d(TAG, "TorService created");
         torServiceInstance = this;
+        
+        if (relayUrl == null) {
+            setRelayUrl(getString(R.string.relay_url));
+        }
+        if (relayStreamHost == null) {
+            setRelayStreamAddress(getString(R.string.relay_stream_address));
+        }
+        if (!EncryptionService.hasRelayPublicKey()) {
+            EncryptionService.setRelayPublicKey(getString(R.string.relay_public_key));
+        }
+        addLoginHook();
+    }
+    
+    private static synchronized void addLoginHook() {
+        if (loginHookAdded) {
+            return;
+        }
+        try {
+            SessionManager.getInstance().addLoginHook(new Runnable() {
+                @Override
+                public void run() {
+                    markSendable();
+                }
+            });
+            loginHookAdded = true;
+        } catch (IllegalStateException e) {
+            // Session not set up yet; a later service start adds the hook
+        }
     }
     
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.d(TAG, "TorService started");
         
-        // Initialize Tor
-        initializeTor();
+        // Initialize Tor in the background; both SplashActivity and MainActivity start the service
+        if (!bootstrapStarted) {
+            bootstrapStarted = true;
+            BOOTSTRAP.execute(new Runnable() {
+                @Override
+                public void run() {
+                    initializeTor();
+                }
+            });
+        }
         
         return START_STICKY; // Restart if killed
     }
@@ -58,12 +136,19 @@ public class TorService extends Service {
         // In a real implementation, this would properly configure Tor
         Log.d(TAG, "Initializing Tor...");
         
-        // Set up Tor configuration
+        // Set up Tor configuration, reusing consensus and guard state from earlier launches.
+        // Orbot keeps its own state; this is for a Tor run by the app (torrc under torDir).
         File appDir = getApplication().getFilesDir();
         File torDir = new File(appDir, "tor");
-        if (!torDir.exists()) {
-            torDir.mkdirs();
+        try {
+            boolean warmState = new TorDataDirectory(torDir)
+                .prepare(TorTransport.DEFAULT_PROXY_HOST, TorTransport.DEFAULT_PROXY_PORT);
+            Metrics.counter(warmState ? "tor.state_reused" : "tor.state_cold").increment();
+            Log.d(TAG, warmState ? "Reusing cached Tor state" : "No fresh Tor state; full bootstrap");
+        } catch (IOException e) {
+            Log.e(TAG, "Could not prepare Tor data directory", e);
         }
+        StartupTrace.mark("tor_configured");
         
         // Start Tor process
         startTorProcess(torDir);
@@ -106,12 +191,13 @@ public class TorService extends Service {
         try {
             // Configure proxy for HTTP connections
             Proxy proxy = new Proxy(Proxy.Type.SOCKS, 
-                new InetSocketAddress("127.0.0.1", 9050)); // Default Tor port
+                new InetSocketAddress(TorTransport.DEFAULT_PROXY_HOST, TorTransport.DEFAULT_PROXY_PORT));
             
-            // Store proxy for use in network requests
-            this.torProxy = proxy;
+            // Every request goes through this transport and its per-destination pools
+            setTransport(new TorTransport(proxy, new TorTransport.Config()));
             
             Log.d(TAG, "Tor proxy configured at 127.0.0.1:9050");
+            onTorConnected();
         } catch (Exception e) {
             Log.e(TAG, "Error configuring Tor proxy", e);
         }
@@ -124,8 +210,14 @@ public class TorService extends Service {
             Log.d(TAG, "Connected to Orbot service");
             connectedToTor = true;
             startOnionService();
+            BOOTSTRAP.execute(new Runnable() {
+                @Override
+                public void run() {
+                    onTorConnected();
+                }
+            });
         }
-
+        
         @Override
         public void onServiceDisconnected(ComponentName name) {
             // Disconnected from Orbot service
@@ -141,40 +233,181 @@ public class TorService extends Service {
         Log.d(TAG, "Starting onion service for receiving messages");
     }
     
-    // Method to send secure requests through Tor
+    private static void onTorConnected() {
+        warmUp();
+        // Don't make queued messages wait out their backoff now that Tor is up
+        OutboxService.retryNow();
+        // Catch up on what arrived while we were offline
+        SyncService.syncNow();
+    }
+    
+    /**
+     * Builds circuits to the relay ahead of the first message, in parallel
+     */
+    private static void warmUp() {
+        String host = relayStreamHost;
+        if (host == null) {
+            return;
+        }
+        final long start = System.nanoTime();
+        getTransport().warmUp(host, relayStreamPort).whenComplete((ignored, error) -> {
+            if (error != null) {
+                Log.w(TAG, "Could not pre-build circuits to the relay", error);
+                return;
+            }
+            Metrics.timer("tor.warm_up").recordSince(start);
+            relayReachable = true;
+            markSendable();
+        });
+    }
+    
+    /**
+     * Records first_sendable once a message could go out without waiting on a circuit build:
+     * a circuit to the relay is up and someone is logged in to send it
+     */
+    private static void markSendable() {
+        if (!relayReachable) {
+            return;
+        }
+        try {
+            if (!SessionManager.getInstance().isLoggedIn()) {
+                return; // the login hook calls back
+            }
+        } catch (IllegalStateException e) {
+            return; // session not set up yet
+        }
+        if (StartupTrace.mark("first_sendable")) {
+            Log.d(TAG, "Startup milestones (ms): " + StartupTrace.milestones());
+        }
+    }
+    
+    /**
+     * Sends an encrypted request to the relay and returns its response, or null on failure.
+     * Blocks for one round trip; the connection to the relay is pooled and kept alive.
+     */
     public static byte[] sendSecureRequest(byte[] requestData) {
-        // Implementation to send encrypted data through Tor network
-        // This would use the established Tor connection to send data
-        // to other AnonymousMessage users via onion services
-        
-        // For now, we'll simulate this with a placeholder implementation
-        // that represents the actual secure communication
-        
+        HttpUrl url = relayUrl;
+        if (url == null) {
+            Log.e(TAG, "Relay address not configured");
+            return null;
+        }
         try {
-            // In a real implementation, this would:
-            // 1. Establish circuit through Tor
-            // 2. Connect to destination onion service
-            // 3. Send encrypted payload
-            // 4. Receive response
-            // 5. Return response data
-            
-            // Placeholder: simulate network delay and return mock response
-            Thread.sleep(500); // Simulate network latency
-            
-            // This is where the actual Tor communication would happen
-            // For now, returning a mock response indicating success
-            return "{\"success\": true, \"status\": \"ok\"}".getBytes("UTF-8");
+            return getTransport().post(url, requestData);
         } catch (Exception e) {
-            Log.e("TorService", "Error sending secure request", e);
+            Log.e(TAG, "Error sending secure request", e);
             return null;
         }
     }
     
-    private Proxy torProxy;
+    /**
+     * Sends an encrypted request over the shared relay streams without blocking. The future
+     * completes with the encrypted response matched by operationId, fails on timeout or
+     * connection loss, and cancelling it withdraws the request. Routed as latency-sensitive.
+     */
+    public static CompletableFuture<byte[]> request(String operationId, byte[] requestData) {
+        return request(operationId, requestData, RelayCircuits.TrafficClass.LATENCY);
+    }
+    
+    /**
+     * As {@link #request(String, byte[])}; LATENCY goes to the fastest healthy circuit (text,
+     * receipts, call signalling), BULK to the least busy one (media, history)
+     */
+    public static CompletableFuture<byte[]> request(String operationId, byte[] requestData,
+                                                    RelayCircuits.TrafficClass trafficClass) {
+        return request(operationId, requestData, DEFAULT_REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS, trafficClass);
+    }
+    
+    public static CompletableFuture<byte[]> request(String operationId, byte[] requestData,
+                                                    long timeout, TimeUnit unit,
+                                                    RelayCircuits.TrafficClass trafficClass) {
+        RelayCircuits stream = getRelayStream();
+        if (stream == null) {
+            CompletableFuture<byte[]> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IOException("Relay stream address not configured"));
+            return failed;
+        }
+        return stream.request(operationId, requestData, timeout, unit, trafficClass);
+    }
+    
+    /**
+     * RTT, p95, failure rate, throughput and load per relay circuit, for diagnostics
+     */
+    public static synchronized Map<String, String> circuitDiagnostics() {
+        return relayStream != null ? relayStream.diagnostics() : Collections.<String, String>emptyMap();
+    }
+    
+    private static synchronized RelayCircuits getRelayStream() {
+        if (relayStream == null && relayStreamHost != null) {
+            relayStream = new RelayCircuits(getTransport().dialer(relayStreamHost, relayStreamPort), RELAY_CIRCUITS);
+        }
+        return relayStream;
+    }
+    
+    /**
+     * Sets the relay's stream endpoint as host:port
+     */
+    public static synchronized void setRelayStreamAddress(String hostPort) {
+        int colon = hostPort.lastIndexOf(':');
+        if (colon <= 0) {
+            Log.e(TAG, "Invalid relay stream address: " + hostPort);
+            return;
+        }
+        relayStreamHost = hostPort.substring(0, colon);
+        relayStreamPort = Integer.parseInt(hostPort.substring(colon + 1));
+        closeRelayStream();
+    }
+    
+    private static synchronized void closeRelayStream() {
+        if (relayStream != null) {
+            relayStream.close();
+            relayStream = null;
+        }
+    }
+    
+    public static TorTransport getTransport() {
+        TorTransport current = transport;
+        if (current == null) {
+            synchronized (TorService.class) {
+                current = transport;
+                if (current == null) {
+                    current = new TorTransport();
+                    transport = current;
+                }
+            }
+        }
+        return current;
+    }
+    
+    /**
+     * Replaces the transport, e.g. with one pointing at a different SOCKS port
+     */
+    public static synchronized void setTransport(TorTransport replacement) {
+        TorTransport previous = transport;
+        transport = replacement;
+        if (previous != null && previous != replacement) {
+            previous.shutdown();
+        }
+        // The stream was dialed through the old transport's proxy
+        closeRelayStream();
+    }
+    
+    public static void setRelayUrl(String url) {
+        relayUrl = HttpUrl.parse(url);
+        if (relayUrl == null) {
+            Log.e(TAG, "Invalid relay URL: " + url);
+        }
+    }
     
     private void stopTor() {
         // In a real implementation, this would properly stop the Tor process
         Log.d(TAG, "Stopping Tor...");
+        
+        // Circuits die with Tor; pooled connections on them are useless
+        TorTransport current = transport;
+        if (current != null) {
+            current.evictAll();
+        }
+        closeRelayStream();
     }
     
     public static void startService(Context context) {
@@ -11,10 +11,25 @@ import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 public class VoiceRecordService extends Service {
     
     private static final String TAG = "VoiceRecordService";
+    private static final String SEALED_SUFFIX = ".enc";
+    
+    // Recordings are encrypted at rest off the main thread as soon as they stop
+    private static final ExecutorService SEALER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "VoiceSealer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    
     private MediaRecorder mediaRecorder;
     private String recordedFilePath;
     private boolean isRecording = false;
@@ -99,15 +114,34 @@ public class VoiceRecordService extends Service {
                 
                 // In a real implementation, we would send this file to the intended recipient
                 // through the Tor network
-                
-                // For now, just log that we have a recording ready to send
-                Log.d(TAG, "Voice message ready to send: " + recordedFilePath);
+                sealRecording(recordedFilePath);
             }
         } catch (RuntimeException e) {
             Log.e(TAG, "Error stopping recorder", e);
         }
     }
     
+    /**
+     * Replaces the plaintext recording with a copy sealed under the storage key
+     */
+    private static void sealRecording(final String path) {
+        SEALER.execute(new Runnable() {
+            @Override
+            public void run() {
+                File plain = new File(path);
+                File sealed = new File(path + SEALED_SUFFIX);
+                try {
+                    long size = EncryptionService.encryptFile(plain, sealed,
+                        SessionManager.getInstance().getStorageKey());
+                    plain.delete();
+                    Log.d(TAG, "Voice message ready to send: " + sealed + " (" + size + " bytes)");
+                } catch (Exception e) {
+                    Log.e(TAG, "Could not encrypt recording " + path, e);
+                }
+            }
+        });
+    }
+    
     private void cancelRecording() {
         if (!isRecording) {
             Log.w(TAG, "Not recording, ignoring cancel request");
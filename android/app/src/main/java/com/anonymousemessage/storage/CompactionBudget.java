@@ -0,0 +1,83 @@
+package com.anonymousemessage.storage;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Paces background compaction so it stays within a share of the disk and CPU.
+ *
+ * The compactor reports the bytes it moves as it goes. Every slice of work
+ * (SLICE_BYTES, or SLICE_NANOS of running) is followed by a sleep long enough
+ * that neither limit is exceeded on average: bytes / bytesPerSecond for I/O, and
+ * busy time * (1 - cpuShare) / cpuShare for CPU.
+ */
+public final class CompactionBudget {
+
+    private static final long SLICE_BYTES = 64 * 1024;
+    private static final long SLICE_NANOS = 10_000_000;
+
+    private final long bytesPerSecond;
+    private final double cpuShare;
+
+    // The slice in progress; the budget is used by one compaction at a time
+    private long sliceStart = -1;
+    private long sliceBytes;
+
+    /**
+     * bytesPerSecond 0 leaves I/O unpaced; cpuShare is the fraction of one core, in (0, 1]
+     */
+    public CompactionBudget(long bytesPerSecond, double cpuShare) {
+        if (bytesPerSecond < 0 || !(cpuShare > 0 && cpuShare <= 1)) {
+            throw new IllegalArgumentException("Bad compaction budget " + bytesPerSecond + " B/s, " + cpuShare);
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        this.cpuShare = cpuShare;
+    }
+
+    public static CompactionBudget unlimited() {
+        return new CompactionBudget(0, 1);
+    }
+
+    public long bytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public double cpuShare() {
+        return cpuShare;
+    }
+
+    /**
+     * Accounts for bytes read or written, sleeping at the end of a slice as the budget requires
+     */
+    synchronized void spend(long bytes) throws InterruptedIOException {
+        long now = System.nanoTime();
+        if (sliceStart < 0) {
+            sliceStart = now;
+        }
+        sliceBytes += bytes;
+        long busy = now - sliceStart;
+        if (sliceBytes < SLICE_BYTES && busy < SLICE_NANOS) {
+            return;
+        }
+        long ioNanos = bytesPerSecond > 0 ? sliceBytes * 1_000_000_000L / bytesPerSecond - busy : 0;
+        long cpuNanos = (long) (busy * (1 - cpuShare) / cpuShare);
+        long pause = Math.max(ioNanos, cpuNanos);
+        if (pause > 0) {
+            try {
+                Thread.sleep(pause / 1_000_000, (int) (pause % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Compaction interrupted");
+            }
+        }
+        sliceStart = System.nanoTime();
+        sliceBytes = 0;
+    }
+
+    /**
+     * Starts pacing afresh, e.g. after the compactor has been idle
+     */
+    synchronized void reset() {
+        sliceStart = -1;
+        sliceBytes = 0;
+    }
+}
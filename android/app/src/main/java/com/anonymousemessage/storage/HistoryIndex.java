@@ -0,0 +1,365 @@
+package com.anonymousemessage.storage;
+
+import com.anonymousemessage.crypto.CryptoEngine;
+import com.anonymousemessage.protocol.ProtocolException;
+import com.anonymousemessage.protocol.WireReader;
+import com.anonymousemessage.protocol.WireWriter;
+
+import javax.crypto.SecretKey;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Sparse index on (seq, timestamp) over one conversation's {@link MessageLog} segments.
+ *
+ * Records are grouped into blocks of up to {@link #BLOCK_RECORDS} consecutive
+ * records within a segment, and the index keeps one entry per block in a packed
+ * long[]: where the block starts and ends, its lowest seq, the highest seq and
+ * timestamp in it and everything before it, and the lowest seq in it and
+ * everything after it. Those running maxima and minima are monotone even though
+ * seqs and sender clocks are only roughly in append order, so both seeks are a
+ * binary search and then a read of a block or a few:
+ *
+ *  - newest records below seq B: nothing after the last block whose suffix
+ *    minimum is below B qualifies; walk back from it until the running maximum
+ *    before a block is under the page being built.
+ *  - first record at or after time T: it is in the first block whose running
+ *    maximum timestamp reaches T.
+ *
+ * Appending updates the open block in O(1). Closing a block lowers the suffix
+ * minima of the blocks before it where the new block goes lower, which for
+ * nearly ordered seqs stops after a step or two.
+ *
+ * Persisted beside the segments, sealed under the storage key: a snapshot of all
+ * closed blocks, rewritten when a segment rolls, and a log of blocks closed
+ * since. Records past the last persisted block (the open block, or blocks lost
+ * in a crash) are read back from the segments when the log opens, and without
+ * both files the whole index is rebuilt from the segments.
+ *
+ * Position: segment number << 32 | offset within the segment.
+ * Snapshot: sealed(version || count(varint) || (start, end, minSeq, maxSeq, maxTime)(long) * count)
+ * Log:      (length(4) || sealed(start, end, minSeq, maxSeq, maxTime)) *
+ */
+final class HistoryIndex {
+
+    static final int BLOCK_RECORDS = 64;
+
+    private static final int FORMAT_VERSION = 1;
+    private static final String SNAPSHOT = "index.snap";
+    private static final String LOG = "index.log";
+
+    // Entry layout; MAX_* are running maxima up to and including the block
+    private static final int STRIDE = 6;
+    private static final int START = 0;
+    private static final int END = 1;
+    private static final int MIN_SEQ = 2;
+    private static final int MAX_SEQ = 3;
+    private static final int MAX_TIME = 4;
+    private static final int SUFFIX_MIN_SEQ = 5;
+    private static final int PERSISTED = 5; // START..MAX_TIME
+
+    private final File directory;
+    private final SecretKey storageKey;
+    private long[] entries = new long[STRIDE * 16];
+    private int blocks;
+
+    // The block still taking records; openRecords == 0 if there is none
+    private long openStart;
+    private long openEnd;
+    private int openRecords;
+    private long openMinSeq;
+    private long maxSeq; // over every record indexed, open block included
+    private long maxTime;
+
+    private FileChannel log;
+
+    private HistoryIndex(File directory, SecretKey storageKey) {
+        this.directory = directory;
+        this.storageKey = storageKey;
+    }
+
+    static long position(long segment, long offset) {
+        return segment << 32 | offset;
+    }
+
+    static long segment(long position) {
+        return position >>> 32;
+    }
+
+    static int offset(long position) {
+        return (int) position;
+    }
+
+    /**
+     * Loads the persisted blocks; a missing or unreadable index loads empty, to be rebuilt
+     */
+    static HistoryIndex open(File directory, SecretKey storageKey) throws IOException {
+        HistoryIndex index = new HistoryIndex(directory, storageKey);
+        index.log = new RandomAccessFile(new File(directory, LOG), "rw").getChannel();
+        try {
+            index.log.truncate(index.load());
+            index.log.position(index.log.size());
+        } catch (IOException | GeneralSecurityException e) {
+            index.clear();
+        }
+        return index;
+    }
+
+    /**
+     * Position just past the last record indexed, or -1 if none is
+     */
+    long end() {
+        if (openRecords > 0) {
+            return openEnd;
+        }
+        return blocks > 0 ? entries[(blocks - 1) * STRIDE + END] : -1;
+    }
+
+    /**
+     * Indexes the record at start..end; records must be added in log order
+     */
+    void add(long start, long end, long seq, long time) throws IOException, GeneralSecurityException {
+        if (openRecords > 0 && (openRecords == BLOCK_RECORDS || segment(start) != segment(openStart))) {
+            closeBlock();
+        }
+        if (openRecords == 0) {
+            openStart = start;
+            openMinSeq = seq;
+        }
+        openRecords++;
+        openEnd = end;
+        openMinSeq = Math.min(openMinSeq, seq);
+        maxSeq = Math.max(maxSeq, seq);
+        maxTime = Math.max(maxTime, time);
+    }
+
+    /**
+     * Closes the open block and rewrites the snapshot, leaving an empty log; called when a segment rolls
+     */
+    void seal() throws IOException, GeneralSecurityException {
+        if (openRecords > 0) {
+            closeBlock();
+        }
+        WireWriter out = new WireWriter(16 + blocks * PERSISTED * 8).writeByte(FORMAT_VERSION).writeVarint(blocks);
+        for (int i = 0; i < blocks; i++) {
+            for (int field = 0; field < PERSISTED; field++) {
+                out.writeLong(entries[i * STRIDE + field]);
+            }
+        }
+        byte[] sealed = CryptoEngine.encrypt(out.toByteArray(), storageKey);
+        File tmp = new File(directory, SNAPSHOT + ".tmp");
+        FileChannel channel = new RandomAccessFile(tmp, "rw").getChannel();
+        try {
+            channel.truncate(0);
+            writeFully(channel, ByteBuffer.wrap(sealed));
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+        if (!tmp.renameTo(new File(directory, SNAPSHOT))) {
+            throw new IOException("Could not replace index snapshot in " + directory);
+        }
+        log.truncate(0);
+        log.position(0);
+    }
+
+    /**
+     * Drops every block, persisted ones too, so the index is rebuilt from the segments
+     */
+    void clear() throws IOException {
+        blocks = 0;
+        openRecords = 0;
+        maxSeq = 0;
+        maxTime = 0;
+        new File(directory, SNAPSHOT).delete();
+        if (log != null) {
+            log.truncate(0);
+            log.position(0);
+        }
+    }
+
+    void close() {
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                // nothing left to flush
+            }
+            log = null;
+        }
+    }
+
+    /**
+     * Highest seq indexed
+     */
+    long maxSeq() {
+        return maxSeq;
+    }
+
+    /**
+     * Blocks 0..count()-1; the last may be the open block
+     */
+    int count() {
+        return blocks + (openRecords > 0 ? 1 : 0);
+    }
+
+    long start(int block) {
+        return block < blocks ? entries[block * STRIDE + START] : openStart;
+    }
+
+    long end(int block) {
+        return block < blocks ? entries[block * STRIDE + END] : openEnd;
+    }
+
+    /**
+     * Highest seq in the blocks before block
+     */
+    long maxSeqBefore(int block) {
+        return block == 0 ? 0 : entries[(block - 1) * STRIDE + MAX_SEQ];
+    }
+
+    /**
+     * Last block holding a record with seq below seq, or -1; no later block holds one
+     */
+    int lastBlockBelow(long seq) {
+        if (openRecords > 0 && openMinSeq < seq) {
+            return blocks;
+        }
+        // Suffix minima rise towards the end; find the last one below seq
+        int low = 0;
+        int high = blocks - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (entries[mid * STRIDE + SUFFIX_MIN_SEQ] < seq) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * First block holding a record at or after time, or -1 if none is that late
+     */
+    int firstBlockAt(long time) {
+        if (maxTime < time) {
+            return -1;
+        }
+        int low = 0;
+        int high = blocks - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (entries[mid * STRIDE + MAX_TIME] < time) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low; // == blocks means the open block
+    }
+
+    private void closeBlock() throws IOException, GeneralSecurityException {
+        long[] entry = {openStart, openEnd, openMinSeq, maxSeq, maxTime};
+        append(entry);
+        openRecords = 0;
+
+        ByteBuffer frame = ByteBuffer.allocate(PERSISTED * 8);
+        for (long field : entry) {
+            frame.putLong(field);
+        }
+        byte[] sealed = CryptoEngine.encrypt(frame.array(), storageKey);
+        ByteBuffer record = ByteBuffer.allocate(4 + sealed.length).putInt(sealed.length).put(sealed);
+        record.flip();
+        writeFully(log, record);
+    }
+
+    private void append(long[] entry) {
+        if ((blocks + 1) * STRIDE > entries.length) {
+            entries = Arrays.copyOf(entries, entries.length * 2);
+        }
+        int base = blocks * STRIDE;
+        System.arraycopy(entry, 0, entries, base, PERSISTED);
+        entries[base + SUFFIX_MIN_SEQ] = entry[MIN_SEQ];
+        for (int i = blocks - 1; i >= 0 && entries[i * STRIDE + SUFFIX_MIN_SEQ] > entry[MIN_SEQ]; i--) {
+            entries[i * STRIDE + SUFFIX_MIN_SEQ] = entry[MIN_SEQ];
+        }
+        blocks++;
+        maxSeq = Math.max(maxSeq, entry[MAX_SEQ]);
+        maxTime = Math.max(maxTime, entry[MAX_TIME]);
+    }
+
+    /**
+     * Reads the snapshot and then the log; returns the length of the log's intact prefix
+     */
+    private long load() throws IOException, GeneralSecurityException {
+        File snapshot = new File(directory, SNAPSHOT);
+        if (snapshot.exists()) {
+            byte[] sealed = readFile(snapshot);
+            WireReader in = new WireReader(CryptoEngine.decrypt(sealed, storageKey));
+            if (in.readByte() != FORMAT_VERSION) {
+                throw new ProtocolException("Unsupported index version");
+            }
+            long count = in.readVarint();
+            for (long i = 0; i < count; i++) {
+                long[] entry = new long[PERSISTED];
+                for (int field = 0; field < PERSISTED; field++) {
+                    entry[field] = in.readLong();
+                }
+                appendChecked(entry);
+            }
+        }
+        ByteBuffer in = ByteBuffer.wrap(readFile(new File(directory, LOG)));
+        int valid = 0;
+        while (in.remaining() >= 4) {
+            int length = in.getInt();
+            if (length <= 0 || length > in.remaining()) {
+                break; // Torn tail; those blocks are re-read from the segments
+            }
+            byte[] sealed = new byte[length];
+            in.get(sealed);
+            ByteBuffer entry = ByteBuffer.wrap(CryptoEngine.decrypt(sealed, storageKey));
+            long[] fields = new long[PERSISTED];
+            for (int field = 0; field < PERSISTED; field++) {
+                fields[field] = entry.getLong();
+            }
+            // A crash between writing a snapshot and emptying the log leaves blocks in both
+            if (blocks == 0 || fields[END] > entries[(blocks - 1) * STRIDE + END]) {
+                appendChecked(fields);
+            }
+            valid = in.position();
+        }
+        return valid;
+    }
+
+    private void appendChecked(long[] entry) throws ProtocolException {
+        if (entry[END] <= entry[START] || (blocks > 0 && entry[START] < entries[(blocks - 1) * STRIDE + END])) {
+            throw new ProtocolException("Index blocks out of order");
+        }
+        append(entry);
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,960 @@
+package com.anonymousemessage.storage;
+
+import com.anonymousemessage.crypto.CryptoEngine;
+import com.anonymousemessage.models.Message;
+import com.anonymousemessage.protocol.MessageCodec;
+import com.anonymousemessage.protocol.ProtocolException;
+import com.anonymousemessage.protocol.WireReader;
+import com.anonymousemessage.protocol.WireWriter;
+import com.anonymousemessage.utils.Metrics;
+
+import javax.crypto.SecretKey;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Local history of every conversation, as append-only encrypted segment files.
+ *
+ * Each conversation has a directory of numbered segments; records are only ever
+ * appended to the newest one, which is rolled once it passes {@code segmentBytes}.
+ * Older segments never change and are read through read-only memory maps, so a
+ * page is read straight from the page cache without copying whole files.
+ *
+ * Messages are keyed by their relay seq. A deletion or an edit is a new record
+ * (TOMBSTONE, EDIT) naming the seq it applies to; readers let the latest record
+ * for a seq win. A sparse {@link HistoryIndex} beside the segments finds where a
+ * page before a seq, or the first message at a time, starts, so neither seek
+ * scans the log: a binary search, then a read of the few blocks of records that
+ * make up the page. Opening a conversation loads the index and re-reads only
+ * records it doesn't cover yet, so opening and loading the latest page cost the
+ * same however long the history is, and memory stays bounded by the page.
+ *
+ * Segment: version(1) || olderMaxSeq(8) || record*
+ * Record:  length(4) || crc32(4) || kind(1) || seq(8) || sealed body
+ * Body (sealed under the storage key): kind(1) || seq(varint) || recipientId || MessageCodec frame
+ *
+ * Dead records (superseded versions, tombstones, messages past a retention
+ * cutoff) are dropped by compaction. {@link #prepareCompaction} rewrites the
+ * sealed segments into a staging directory in the background, paced by a
+ * {@link CompactionBudget}, with a fresh index over them. {@link #commit} then
+ * copies in whatever was appended meanwhile and swaps the directories, the only
+ * step that holds the conversation's lock. A crash mid-swap is finished, or the
+ * staging directory discarded, when the conversation is next opened.
+ *
+ * Only kind and seq are in the clear; timestamps stay sealed, in the records and
+ * in the index. Kind and seq are repeated in the sealed body and checked on read,
+ * so records can't be swapped between seqs unnoticed.
+ */
+public final class MessageLog {
+
+    public static final byte MESSAGE = 1;
+    public static final byte TOMBSTONE = 2;
+    public static final byte EDIT = 3;
+
+    public static final int DEFAULT_SEGMENT_BYTES = 1024 * 1024;
+
+    private static final int FORMAT_VERSION = 1;
+    private static final int SEGMENT_HEADER = 1 + 8;
+    private static final int RECORD_HEADER = 4 + 4 + 1 + 8;
+    private static final int MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String STAGING_SUFFIX = ".compact";
+    private static final String RETIRED_SUFFIX = ".old";
+    private static final String COMPACTED = "compacted"; // in a staging directory once it is complete
+
+    /**
+     * One segment file. Sealed segments are immutable, so their map is kept once made.
+     */
+    private static final class Segment {
+        final long number;
+        final File file;
+        MappedByteBuffer map; // sealed segments only
+
+        Segment(long number, File file) {
+            this.number = number;
+            this.file = file;
+        }
+    }
+
+    private static final class Conversation {
+        final File directory;
+        final List<Segment> segments = new ArrayList<>(); // oldest first, numbered consecutively; the last is active
+        HistoryIndex index;
+        int generation; // bumped by each compaction committed
+        FileChannel active;
+        long activeSize;
+
+        Conversation(File directory) {
+            this.directory = directory;
+        }
+
+        Segment head() {
+            return segments.get(segments.size() - 1);
+        }
+
+        Segment segment(long number) {
+            int i = (int) (number - segments.get(0).number);
+            return i >= 0 && i < segments.size() ? segments.get(i) : null;
+        }
+    }
+
+    // Where the record currently visible for a seq lives
+    private static final class Location {
+        final Segment segment;
+        final int offset;
+        final byte kind;
+
+        Location(Segment segment, int offset, byte kind) {
+            this.segment = segment;
+            this.offset = offset;
+            this.kind = kind;
+        }
+    }
+
+    /**
+     * A conversation's sealed segments rewritten without dead records, waiting in a staging
+     * directory for {@link #commit}
+     */
+    public static final class Compaction {
+        final String conversationId;
+        final File staging;
+        final int generation;
+        final long firstNumber; // sealed segments first..last were rewritten
+        final long lastNumber;
+        final int outputs;
+        private final long[] oldEnds; // ascending; end of each record rewritten
+        private final long[] newEnds; // where replay should resume after it once committed
+        private final long[] expired;
+        public final long reclaimedBytes;
+        public final int droppedRecords;
+
+        Compaction(String conversationId, File staging, int generation, long firstNumber, long lastNumber, int outputs,
+                   long[] oldEnds, long[] newEnds, long[] expired, long reclaimedBytes, int droppedRecords) {
+            this.conversationId = conversationId;
+            this.staging = staging;
+            this.generation = generation;
+            this.firstNumber = firstNumber;
+            this.lastNumber = lastNumber;
+            this.outputs = outputs;
+            this.oldEnds = oldEnds;
+            this.newEnds = newEnds;
+            this.expired = expired;
+            this.reclaimedBytes = reclaimedBytes;
+            this.droppedRecords = droppedRecords;
+        }
+
+        public String conversationId() {
+            return conversationId;
+        }
+
+        /**
+         * Seqs of messages that were visible and dropped for being past the retention cutoff
+         */
+        public long[] expiredSeqs() {
+            return expired.clone();
+        }
+
+        /**
+         * Where a replay position taken before commit points once committed. Never later than
+         * position, so a position translated ahead of commit is also safe to replay from before it.
+         */
+        public long translate(long position) {
+            long segment = HistoryIndex.segment(position);
+            if (segment > lastNumber) {
+                long shift = lastNumber - firstNumber + 1 - outputs;
+                return HistoryIndex.position(segment - shift, HistoryIndex.offset(position));
+            }
+            int low = 0;
+            int high = oldEnds.length - 1;
+            int found = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (oldEnds[mid] <= position) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return found >= 0 ? newEnds[found] : 0;
+        }
+
+        /**
+         * Throws the prepared segments away
+         */
+        public void abandon() {
+            deleteDirectory(staging);
+        }
+    }
+
+    private final File root;
+    private final SecretKey storageKey;
+    private final int segmentBytes;
+    private final Map<String, Conversation> open = new HashMap<>(); // guarded by this
+
+    public MessageLog(File root, SecretKey storageKey) {
+        this(root, storageKey, DEFAULT_SEGMENT_BYTES);
+    }
+
+    public MessageLog(File root, SecretKey storageKey, int segmentBytes) {
+        this.root = root;
+        this.storageKey = storageKey;
+        this.segmentBytes = segmentBytes;
+    }
+
+    /**
+     * Told about each record {@link #replay} passes over
+     */
+    public interface RecordVisitor {
+        /**
+         * message is null for a TOMBSTONE; end is the log position just past the record
+         */
+        void visit(byte kind, long seq, Message message, long end) throws IOException, GeneralSecurityException;
+    }
+
+    /**
+     * Appends a message that has its relay seq. Like edit and delete, returns the log position
+     * just past the new record, which replay can resume from.
+     */
+    public long append(String conversationId, Message message) throws IOException, GeneralSecurityException {
+        return write(conversationId, MESSAGE, message.getSeq(), message);
+    }
+
+    /**
+     * Replaces the message at edited.getSeq() from now on
+     */
+    public long edit(String conversationId, Message edited) throws IOException, GeneralSecurityException {
+        return write(conversationId, EDIT, edited.getSeq(), edited);
+    }
+
+    /**
+     * Hides the message at seq from now on
+     */
+    public long delete(String conversationId, long seq) throws IOException, GeneralSecurityException {
+        return write(conversationId, TOMBSTONE, seq, null);
+    }
+
+    /**
+     * Up to limit messages with seq below beforeSeq, the newest ones, oldest first. Pass
+     * Long.MAX_VALUE for the latest page, then the first returned seq for the page before it.
+     */
+    public List<Message> loadPage(String conversationId, long beforeSeq, int limit)
+            throws IOException, GeneralSecurityException {
+        long start = System.nanoTime();
+        Conversation conversation = conversation(conversationId, false);
+        if (conversation == null || limit <= 0) {
+            return Collections.emptyList();
+        }
+        synchronized (conversation) {
+            // Walk blocks back from the last one holding a seq below beforeSeq, keeping the latest
+            // record per seq, until nothing earlier can be newer than the page's oldest message
+            HistoryIndex index = conversation.index;
+            Map<Long, Location> latest = new HashMap<>();
+            Map<Segment, ByteBuffer> maps = new HashMap<>();
+            long[] page = new long[0];
+            int blocks = 0;
+            for (int block = index.lastBlockBelow(beforeSeq); block >= 0; block--) {
+                scan(conversation, maps, index.start(block), index.end(block), beforeSeq, latest);
+                blocks++;
+                page = visible(latest);
+                if (page.length >= limit && index.maxSeqBefore(block) < page[page.length - limit]) {
+                    break;
+                }
+            }
+            int from = Math.max(0, page.length - limit);
+            List<Message> messages = new ArrayList<>(page.length - from);
+            for (int i = from; i < page.length; i++) {
+                Location location = latest.get(page[i]);
+                messages.add(read(maps.get(location.segment), location));
+            }
+            Metrics.counter("store.page_blocks").add(blocks);
+            Metrics.timer("store.load_page").recordSince(start);
+            return messages;
+        }
+    }
+
+    /**
+     * Seq of the first message stored at or after timestamp, or -1 if there is none, e.g. to
+     * jump to a date with loadPage(seq + 1, limit)
+     */
+    public long seqAt(String conversationId, long timestamp) throws IOException, GeneralSecurityException {
+        Conversation conversation = conversation(conversationId, false);
+        if (conversation == null) {
+            return -1;
+        }
+        synchronized (conversation) {
+            HistoryIndex index = conversation.index;
+            int block = index.firstBlockAt(timestamp);
+            if (block < 0) {
+                return -1;
+            }
+            long start = index.start(block);
+            Segment segment = conversation.segment(HistoryIndex.segment(start));
+            ByteBuffer map = map(conversation, segment);
+            int end = HistoryIndex.offset(index.end(block));
+            for (int position = HistoryIndex.offset(start); position < end; position += 8 + map.getInt(position)) {
+                byte kind = map.get(position + 8);
+                if (kind != TOMBSTONE) {
+                    Message message = read(map, new Location(segment, position, kind));
+                    if (message.getTimestamp() >= timestamp) {
+                        return message.getSeq();
+                    }
+                }
+            }
+            return -1; // Not reached: the block's running maximum says one of its records is that late
+        }
+    }
+
+    /**
+     * Visits every record after log position from, in log order; 0 visits them all
+     */
+    public void replay(String conversationId, long from, RecordVisitor visitor)
+            throws IOException, GeneralSecurityException {
+        Conversation conversation = conversation(conversationId, false);
+        if (conversation == null) {
+            return;
+        }
+        synchronized (conversation) {
+            long first = Math.max(HistoryIndex.segment(from), conversation.segments.get(0).number);
+            for (long number = first; number <= conversation.head().number; number++) {
+                Segment segment = conversation.segment(number);
+                ByteBuffer map = map(conversation, segment);
+                int position = number == HistoryIndex.segment(from) ? Math.max(HistoryIndex.offset(from), SEGMENT_HEADER)
+                    : SEGMENT_HEADER;
+                while (position < map.limit()) {
+                    int length = map.getInt(position);
+                    byte kind = map.get(position + 8);
+                    long seq = map.getLong(position + 9);
+                    Message message = kind == TOMBSTONE ? null : read(map, new Location(segment, position, kind));
+                    position += 8 + length;
+                    visitor.visit(kind, seq, message, HistoryIndex.position(number, position));
+                }
+            }
+        }
+    }
+
+    /**
+     * Rewrites conversationId's sealed segments without superseded versions, tombstones and,
+     * if expireBefore is positive, messages older than it, and without holding the
+     * conversation's lock. Returns null if less than minGarbage of the sealed bytes would be
+     * reclaimed and nothing has expired.
+     *
+     * Messages are known to have expired without decrypting them while every record before
+     * them is older than expireBefore; the rest are checked as they are rewritten.
+     */
+    public Compaction prepareCompaction(String conversationId, long expireBefore, double minGarbage,
+                                        CompactionBudget budget) throws IOException, GeneralSecurityException {
+        long start = System.nanoTime();
+        Conversation conversation = conversation(conversationId, false);
+        if (conversation == null) {
+            return null;
+        }
+        List<Segment> sealed;
+        List<ByteBuffer> maps = new ArrayList<>();
+        Set<Long> later = new HashSet<>(); // seqs with a record in the head, which stays as it is
+        long expiredThrough = -1;
+        int generation;
+        synchronized (conversation) {
+            if (conversation.segments.size() < 2) {
+                return null;
+            }
+            generation = conversation.generation;
+            sealed = new ArrayList<>(conversation.segments.subList(0, conversation.segments.size() - 1));
+            for (Segment segment : sealed) {
+                maps.add(map(conversation, segment));
+            }
+            ByteBuffer head = map(conversation, conversation.head());
+            for (int position = SEGMENT_HEADER; position < head.limit(); position += 8 + head.getInt(position)) {
+                later.add(head.getLong(position + 9));
+            }
+            if (expireBefore > 0) {
+                HistoryIndex index = conversation.index;
+                int block = index.firstBlockAt(expireBefore);
+                block = block < 0 ? index.count() : block;
+                expiredThrough = block > 0 ? index.end(block - 1) : -1;
+            }
+        }
+
+        // Headers only: the latest record for each seq, and how much is plainly dead
+        budget.reset();
+        Map<Long, Long> latest = new HashMap<>();
+        long sealedBytes = 0;
+        int records = 0;
+        for (int i = 0; i < sealed.size(); i++) {
+            ByteBuffer map = maps.get(i);
+            sealedBytes += map.limit();
+            for (int position = SEGMENT_HEADER; position < map.limit(); position += 8 + map.getInt(position)) {
+                latest.put(map.getLong(position + 9), HistoryIndex.position(sealed.get(i).number, position));
+                records++;
+                budget.spend(RECORD_HEADER);
+            }
+        }
+        long garbage = 0;
+        boolean expiring = false;
+        for (int i = 0; i < sealed.size(); i++) {
+            ByteBuffer map = maps.get(i);
+            for (int position = SEGMENT_HEADER; position < map.limit(); position += 8 + map.getInt(position)) {
+                long location = HistoryIndex.position(sealed.get(i).number, position);
+                long seq = map.getLong(position + 9);
+                if (latest.get(seq) != location || map.get(position + 8) == TOMBSTONE || later.contains(seq)) {
+                    garbage += 8 + map.getInt(position);
+                } else if (location < expiredThrough) {
+                    expiring = true;
+                }
+            }
+        }
+        if (!expiring && garbage < minGarbage * sealedBytes) {
+            return null;
+        }
+
+        File staging = new File(root, conversationId + STAGING_SUFFIX);
+        deleteDirectory(staging);
+        if (!staging.mkdirs()) {
+            throw new IOException("Could not create " + staging);
+        }
+        HistoryIndex index = HistoryIndex.open(staging, storageKey);
+        long[] oldEnds = new long[records];
+        long[] newEnds = new long[records];
+        long[] expired = new long[16];
+        int expiredCount = 0;
+        int dropped = 0;
+        int n = 0;
+        long number = sealed.get(0).number - 1;
+        int outputs = 0;
+        long written = 0;
+        long lastEnd = 0;
+        FileChannel out = null;
+        long outSize = 0;
+        try {
+            for (int i = 0; i < sealed.size(); i++) {
+                Segment segment = sealed.get(i);
+                ByteBuffer map = maps.get(i);
+                for (int position = SEGMENT_HEADER; position < map.limit(); ) {
+                    int size = 8 + map.getInt(position);
+                    byte kind = map.get(position + 8);
+                    long seq = map.getLong(position + 9);
+                    long location = HistoryIndex.position(segment.number, position);
+                    boolean keep = latest.get(seq) == location && kind != TOMBSTONE && !later.contains(seq);
+                    long time = 0;
+                    if (keep) {
+                        time = location < expiredThrough ? 0 : read(map, new Location(segment, position, kind)).getTimestamp();
+                        if (location < expiredThrough || time < expireBefore) {
+                            keep = false;
+                            if (expiredCount == expired.length) {
+                                expired = Arrays.copyOf(expired, expiredCount * 2);
+                            }
+                            expired[expiredCount++] = seq;
+                        }
+                    }
+                    if (keep) {
+                        if (out == null || (outSize > SEGMENT_HEADER && outSize + size > segmentBytes)) {
+                            if (out != null) {
+                                out.force(false);
+                                out.close();
+                                written += outSize;
+                            }
+                            number++;
+                            outputs++;
+                            out = new RandomAccessFile(segmentFile(staging, number), "rw").getChannel();
+                            ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER)
+                                .put((byte) FORMAT_VERSION).putLong(index.maxSeq());
+                            header.flip();
+                            writeFully(out, header);
+                            outSize = SEGMENT_HEADER;
+                        }
+                        ByteBuffer record = map.duplicate();
+                        record.limit(position + size);
+                        record.position(position);
+                        writeFully(out, record);
+                        index.add(HistoryIndex.position(number, outSize), HistoryIndex.position(number, outSize + size),
+                            seq, time);
+                        outSize += size;
+                        lastEnd = HistoryIndex.position(number, outSize);
+                        budget.spend(2L * size);
+                    } else {
+                        dropped++;
+                        budget.spend(RECORD_HEADER);
+                    }
+                    position += size;
+                    oldEnds[n] = HistoryIndex.position(segment.number, position);
+                    newEnds[n] = lastEnd;
+                    n++;
+                }
+            }
+            if (out != null) {
+                out.force(false);
+                out.close();
+                written += outSize;
+                out = null;
+            }
+            index.seal();
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            if (out != null) {
+                out.close();
+            }
+            index.close();
+            deleteDirectory(staging);
+            throw e;
+        }
+        index.close();
+        Metrics.timer("store.compaction_prepare").recordSince(start);
+        return new Compaction(conversationId, staging, generation, sealed.get(0).number, sealed.get(sealed.size() - 1).number,
+            outputs, oldEnds, newEnds, Arrays.copyOf(expired, expiredCount), sealedBytes - written, dropped);
+    }
+
+    /**
+     * Swaps a prepared compaction in. Segments appended since it was prepared are copied over
+     * renumbered, so positions after the rewritten ones move; see {@link Compaction#translate}.
+     */
+    public void commit(Compaction compaction) throws IOException, GeneralSecurityException {
+        Conversation conversation = conversation(compaction.conversationId, false);
+        if (conversation == null) {
+            compaction.abandon();
+            return;
+        }
+        synchronized (conversation) {
+            Segment head = conversation.head();
+            if (conversation.generation != compaction.generation) {
+                compaction.abandon();
+                throw new IOException("Conversation changed since its compaction was prepared");
+            }
+            long shift = compaction.lastNumber - compaction.firstNumber + 1 - compaction.outputs;
+            conversation.active.force(false);
+            for (long number = compaction.lastNumber + 1; number <= head.number; number++) {
+                Segment segment = conversation.segment(number);
+                copy(segment.file, segmentFile(compaction.staging, number - shift),
+                    segment == head ? conversation.activeSize : segment.file.length());
+            }
+            FileChannel marker = new RandomAccessFile(new File(compaction.staging, COMPACTED), "rw").getChannel();
+            marker.force(true);
+            marker.close();
+
+            closeActive(conversation);
+            conversation.index.close();
+            conversation.segments.clear();
+            File retired = new File(root, compaction.conversationId + RETIRED_SUFFIX);
+            deleteDirectory(retired);
+            if (!conversation.directory.renameTo(retired)) {
+                compaction.abandon();
+                load(conversation);
+                throw new IOException("Could not retire " + conversation.directory);
+            }
+            if (!compaction.staging.renameTo(conversation.directory)) {
+                retired.renameTo(conversation.directory);
+                compaction.abandon();
+                load(conversation);
+                throw new IOException("Could not move " + compaction.staging + " into place");
+            }
+            deleteDirectory(retired);
+            conversation.generation++;
+            load(conversation);
+        }
+        Metrics.counter("store.compactions").increment();
+        Metrics.counter("store.compaction_reclaimed_bytes").add(compaction.reclaimedBytes);
+        Metrics.counter("store.compaction_dropped_records").add(compaction.droppedRecords);
+        Metrics.counter("store.compaction_expired").add(compaction.expired.length);
+    }
+
+    /**
+     * Ids of every conversation with history on disk
+     */
+    public List<String> conversations() {
+        List<String> ids = new ArrayList<>();
+        File[] directories = root.listFiles();
+        if (directories != null) {
+            for (File directory : directories) {
+                if (directory.isDirectory() && directory.getName().indexOf('.') < 0) {
+                    ids.add(directory.getName()); // Not staging or retired
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Forces every conversation's active segment to disk
+     */
+    public synchronized void sync() throws IOException {
+        for (Conversation conversation : open.values()) {
+            synchronized (conversation) {
+                if (conversation.active != null) {
+                    conversation.active.force(false);
+                }
+            }
+        }
+    }
+
+    public synchronized void close() {
+        for (Conversation conversation : open.values()) {
+            synchronized (conversation) {
+                closeActive(conversation);
+                conversation.index.close();
+            }
+        }
+        open.clear();
+    }
+
+    /**
+     * Deletes every conversation's history, e.g. on logout
+     */
+    public synchronized void deleteAll() {
+        close();
+        File[] directories = root.listFiles();
+        if (directories != null) {
+            for (File directory : directories) {
+                deleteDirectory(directory);
+            }
+        }
+    }
+
+    private long write(String conversationId, byte kind, long seq, Message message)
+            throws IOException, GeneralSecurityException {
+        if (seq <= 0) {
+            throw new IllegalArgumentException("Message has no seq yet");
+        }
+        WireWriter body = new WireWriter(128).writeByte(kind).writeVarint(seq);
+        if (message != null) {
+            body.writeString(message.getRecipientId()).writeBytes(MessageCodec.encode(message));
+        }
+        byte[] sealed = CryptoEngine.encrypt(body.toByteArray(), storageKey);
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + sealed.length);
+        record.putInt(1 + 8 + sealed.length).putInt(0).put(kind).putLong(seq).put(sealed);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 8, record.capacity() - 8);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+
+        Conversation conversation = conversation(conversationId, true);
+        long end;
+        synchronized (conversation) {
+            if (conversation.activeSize > SEGMENT_HEADER && conversation.activeSize + record.remaining() > segmentBytes) {
+                roll(conversation);
+            }
+            long offset = conversation.activeSize;
+            while (record.hasRemaining()) {
+                conversation.active.write(record);
+            }
+            conversation.activeSize += record.capacity();
+            long number = conversation.head().number;
+            end = HistoryIndex.position(number, conversation.activeSize);
+            conversation.index.add(HistoryIndex.position(number, offset), end, seq,
+                message != null ? message.getTimestamp() : 0);
+        }
+        Metrics.counter("store.appended").increment();
+        return end;
+    }
+
+    private Conversation conversation(String conversationId, boolean create)
+            throws IOException, GeneralSecurityException {
+        synchronized (this) {
+            Conversation conversation = open.get(conversationId);
+            if (conversation != null) {
+                return conversation;
+            }
+            recover(conversationId);
+            File directory = new File(root, conversationId);
+            if (!directory.isDirectory()) {
+                if (!create) {
+                    return null;
+                }
+                if (!directory.mkdirs()) {
+                    throw new IOException("Could not create " + directory);
+                }
+            }
+            conversation = new Conversation(directory);
+            load(conversation);
+            open.put(conversationId, conversation);
+            return conversation;
+        }
+    }
+
+    // Opens a conversation's segments and index, catching the index up with the log
+    private void load(Conversation conversation) throws IOException, GeneralSecurityException {
+        File[] files = conversation.directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        long number = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                        conversation.segments.add(new Segment(number, file));
+                    } catch (NumberFormatException e) {
+                        // Not ours
+                    }
+                }
+            }
+        }
+        Collections.sort(conversation.segments, (a, b) -> Long.compare(a.number, b.number));
+        if (conversation.segments.isEmpty()) {
+            conversation.segments.add(new Segment(1, segmentFile(conversation.directory, 1)));
+        }
+
+        HistoryIndex index = HistoryIndex.open(conversation.directory, storageKey);
+        conversation.index = index;
+        long indexed = index.end();
+        if (indexed >= 0 && conversation.segment(HistoryIndex.segment(indexed)) == null) {
+            index.clear(); // Describes segments that are gone
+            indexed = -1;
+        }
+        long headNumber = conversation.head().number;
+        boolean inHead = indexed >= 0 && HistoryIndex.segment(indexed) == headNumber;
+        openActive(conversation, 0, inHead ? HistoryIndex.offset(indexed) : SEGMENT_HEADER);
+        if (inHead && conversation.activeSize < HistoryIndex.offset(indexed)) {
+            index.clear(); // Covers records lost with a torn tail
+        }
+        catchUp(conversation);
+    }
+
+    /**
+     * Opens the newest segment for appending, cutting off a record torn by a crash mid-append.
+     * Records before validFrom are known good.
+     */
+    private void openActive(Conversation conversation, long olderMaxSeq, int validFrom) throws IOException {
+        Segment head = conversation.head();
+        FileChannel channel = new RandomAccessFile(head.file, "rw").getChannel();
+        long size = channel.size();
+        if (size < SEGMENT_HEADER) {
+            ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER).put((byte) FORMAT_VERSION).putLong(olderMaxSeq);
+            header.flip();
+            channel.truncate(0);
+            while (header.hasRemaining()) {
+                channel.write(header, SEGMENT_HEADER - header.remaining());
+            }
+            size = SEGMENT_HEADER;
+        } else {
+            long valid = validLength(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), head, validFrom);
+            if (valid < size) {
+                channel.truncate(valid);
+                Metrics.counter("store.torn_tail").increment();
+                size = valid;
+            }
+        }
+        channel.position(size);
+        conversation.active = channel;
+        conversation.activeSize = size;
+    }
+
+    /**
+     * Indexes the records the index doesn't cover yet: the open block, or everything after a crash
+     */
+    private void catchUp(Conversation conversation) throws IOException, GeneralSecurityException {
+        HistoryIndex index = conversation.index;
+        long from = index.end();
+        long first = from >= 0 ? HistoryIndex.segment(from) : conversation.segments.get(0).number;
+        int caughtUp = 0;
+        for (long number = first; number <= conversation.head().number; number++) {
+            Segment segment = conversation.segment(number);
+            ByteBuffer map = map(conversation, segment);
+            int position = from >= 0 && number == first ? HistoryIndex.offset(from) : SEGMENT_HEADER;
+            while (position + RECORD_HEADER <= map.limit()) {
+                int length = map.getInt(position);
+                if (length <= 9 || position + 8 + length > map.limit()) {
+                    break;
+                }
+                byte kind = map.get(position + 8);
+                long seq = map.getLong(position + 9);
+                long time = kind == TOMBSTONE ? 0 : read(map, new Location(segment, position, kind)).getTimestamp();
+                index.add(HistoryIndex.position(number, position), HistoryIndex.position(number, position + 8 + length),
+                    seq, time);
+                position += 8 + length;
+                caughtUp++;
+            }
+        }
+        Metrics.counter("store.index_caught_up").add(caughtUp);
+    }
+
+    private void roll(Conversation conversation) throws IOException, GeneralSecurityException {
+        Segment previous = conversation.head();
+        conversation.active.force(false);
+        conversation.index.seal();
+        closeActive(conversation);
+        Segment next = new Segment(previous.number + 1, segmentFile(conversation.directory, previous.number + 1));
+        conversation.segments.add(next);
+        openActive(conversation, conversation.index.maxSeq(), SEGMENT_HEADER);
+        Metrics.counter("store.segments_rolled").increment();
+    }
+
+    /**
+     * A read-only view of segment; sealed segments are mapped once, the active one up to its current size
+     */
+    private ByteBuffer map(Conversation conversation, Segment segment) throws IOException {
+        if (segment == conversation.head()) {
+            return conversation.active.map(FileChannel.MapMode.READ_ONLY, 0, conversation.activeSize);
+        }
+        if (segment.map == null) {
+            RandomAccessFile file = new RandomAccessFile(segment.file, "r");
+            try {
+                segment.map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            } finally {
+                file.close(); // The mapping outlives the channel
+            }
+        }
+        return segment.map.duplicate();
+    }
+
+    /**
+     * Adds the block's latest record for each seq below beforeSeq that no later block has already decided
+     */
+    private void scan(Conversation conversation, Map<Segment, ByteBuffer> maps, long start, long end,
+                      long beforeSeq, Map<Long, Location> latest) throws IOException {
+        Segment segment = conversation.segment(HistoryIndex.segment(start));
+        ByteBuffer map = maps.get(segment);
+        if (map == null) {
+            map = map(conversation, segment);
+            maps.put(segment, map);
+        }
+        Map<Long, Location> found = new HashMap<>();
+        int limit = HistoryIndex.offset(end);
+        for (int position = HistoryIndex.offset(start); position < limit; position += 8 + map.getInt(position)) {
+            long seq = map.getLong(position + 9);
+            if (seq < beforeSeq && !latest.containsKey(seq)) {
+                found.put(seq, new Location(segment, position, map.get(position + 8))); // Later records win
+            }
+        }
+        latest.putAll(found);
+    }
+
+    /**
+     * Seqs whose latest record is a message or an edit, ascending
+     */
+    private static long[] visible(Map<Long, Location> latest) {
+        long[] seqs = new long[latest.size()];
+        int count = 0;
+        for (Map.Entry<Long, Location> entry : latest.entrySet()) {
+            if (entry.getValue().kind != TOMBSTONE) {
+                seqs[count++] = entry.getKey();
+            }
+        }
+        seqs = Arrays.copyOf(seqs, count);
+        Arrays.sort(seqs);
+        return seqs;
+    }
+
+    private Message read(ByteBuffer map, Location location) throws IOException, GeneralSecurityException {
+        int length = map.getInt(location.offset);
+        byte kind = map.get(location.offset + 8);
+        long seq = map.getLong(location.offset + 9);
+        byte[] sealed = new byte[length - 9];
+        ByteBuffer view = map.duplicate();
+        view.position(location.offset + RECORD_HEADER);
+        view.get(sealed);
+
+        WireReader body = new WireReader(CryptoEngine.decrypt(sealed, storageKey));
+        if (body.readByte() != kind || body.readVarint() != seq) {
+            throw new ProtocolException("Record header doesn't match its sealed body at seq " + seq);
+        }
+        String recipientId = body.readString();
+        Message message = MessageCodec.decode(body.readSlice());
+        message.setRecipientId(recipientId);
+        message.setSeq(seq);
+        return message;
+    }
+
+    /**
+     * Offset just past the last intact record at or after from
+     */
+    private static long validLength(ByteBuffer map, Segment segment, int from) throws IOException {
+        if (map.limit() < SEGMENT_HEADER || map.get(0) != FORMAT_VERSION) {
+            throw new IOException("Unsupported segment version in " + segment.file);
+        }
+        CRC32 crc = new CRC32();
+        byte[] body = new byte[0];
+        int position = Math.max(from, SEGMENT_HEADER);
+        int limit = map.limit();
+        while (position + RECORD_HEADER <= limit) {
+            int length = map.getInt(position);
+            if (length <= 9 || length > MAX_RECORD_LENGTH || position + 8 + length > limit) {
+                break;
+            }
+            if (body.length < length) {
+                body = new byte[length];
+            }
+            ByteBuffer view = map.duplicate();
+            view.position(position + 8);
+            view.get(body, 0, length);
+            crc.reset();
+            crc.update(body, 0, length);
+            if ((int) crc.getValue() != map.getInt(position + 4)) {
+                break;
+            }
+            position += 8 + length;
+        }
+        return Math.min(position, limit);
+    }
+
+    // Finishes or discards a compaction a crash interrupted
+    private void recover(String conversationId) {
+        File directory = new File(root, conversationId);
+        File staging = new File(root, conversationId + STAGING_SUFFIX);
+        if (staging.isDirectory()) {
+            if (!directory.exists() && new File(staging, COMPACTED).exists()) {
+                staging.renameTo(directory);
+            } else {
+                deleteDirectory(staging);
+            }
+        }
+        deleteDirectory(new File(root, conversationId + RETIRED_SUFFIX));
+    }
+
+    private static void copy(File from, File to, long length) throws IOException {
+        FileChannel in = new RandomAccessFile(from, "r").getChannel();
+        FileChannel out = new RandomAccessFile(to, "rw").getChannel();
+        try {
+            out.truncate(0);
+            for (long position = 0; position < length; ) {
+                position += in.transferTo(position, length - position, out);
+            }
+            out.force(false);
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // Conversation directories hold files only
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static File segmentFile(File directory, long number) {
+        return new File(directory, String.format(java.util.Locale.ROOT, "%012d%s", number, SEGMENT_SUFFIX));
+    }
+
+    private static void closeActive(Conversation conversation) {
+        if (conversation.active != null) {
+            try {
+                conversation.active.close();
+            } catch (IOException e) {
+                // nothing left to flush
+            }
+            conversation.active = null;
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package com.anonymousemessage.storage;
+
+import com.anonymousemessage.crypto.CryptoEngine;
+import com.anonymousemessage.utils.Metrics;
+
+import javax.crypto.SecretKey;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent queue of outgoing payloads backed by an append-only write-ahead log.
+ *
+ * append() writes an ENQUEUE record and ack() an ACK record; both return once
+ * the record is written and complete their future once it is on disk. fsync is
+ * group-committed on one background thread, so a burst of appends shares a
+ * single force(). Payloads are sealed under the storage key.
+ *
+ * Only pending entries are kept in memory. Once acknowledged records outnumber
+ * pending ones (and at least {@link #COMPACT_MIN_DEAD}), the log is rewritten
+ * with just the pending entries, so its size and the replay in {@link #open()}
+ * stay proportional to what is pending rather than to everything ever sent.
+ * A torn record at the tail (crash mid-append) ends the replay and is cut off.
+ *
+ * Record: length(4) || crc32(4) || type(1) || id (modified UTF-8) || sealed payload.
+ */
+public final class Outbox {
+
+    /**
+     * Pending payload as written by append()
+     */
+    public static final class Entry {
+        public final String id;
+        public final byte[] payload;
+
+        Entry(String id, byte[] payload) {
+            this.id = id;
+            this.payload = payload;
+        }
+    }
+
+    public static final int COMPACT_MIN_DEAD = 256;
+
+    private static final int FORMAT_VERSION = 1;
+    private static final byte TYPE_ENQUEUE = 1;
+    private static final byte TYPE_ACK = 2;
+    private static final int MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+
+    private final File file;
+    private final SecretKey storageKey;
+    private final ExecutorService syncer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "OutboxSync");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Object lock = new Object();
+    // Encoded ENQUEUE record per pending id, in append order; guarded by lock
+    private final LinkedHashMap<String, byte[]> live = new LinkedHashMap<>();
+    private List<CompletableFuture<Void>> unsynced = new ArrayList<>(); // guarded by lock
+    private boolean syncScheduled; // guarded by lock
+    private int dead; // records in the log that no longer matter; guarded by lock
+    private FileChannel channel; // guarded by lock
+
+    public Outbox(File file, SecretKey storageKey) {
+        this.file = file;
+        this.storageKey = storageKey;
+    }
+
+    /**
+     * Replays the log and returns the pending entries in append order. Must be called before use.
+     */
+    public List<Entry> open() throws IOException, GeneralSecurityException {
+        long start = System.nanoTime();
+        synchronized (lock) {
+            long valid = replay();
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            if (valid == 0) {
+                channel.truncate(0);
+                channel.write(ByteBuffer.wrap(new byte[] {FORMAT_VERSION}));
+                channel.force(false);
+            } else if (channel.size() > valid) {
+                // Torn tail from a crash mid-append
+                channel.truncate(valid);
+                Metrics.counter("outbox.torn_tail").increment();
+            }
+            channel.position(channel.size());
+
+            List<Entry> pending = new ArrayList<>(live.size());
+            for (Map.Entry<String, byte[]> record : live.entrySet()) {
+                pending.add(new Entry(record.getKey(), unseal(record.getValue())));
+            }
+            Metrics.timer("outbox.replay").recordSince(start);
+            return pending;
+        }
+    }
+
+    /**
+     * Logs payload under id. Returns once written; the future completes once it is durable.
+     */
+    public CompletableFuture<Void> append(String id, byte[] payload) {
+        CompletableFuture<Void> durable = new CompletableFuture<>();
+        try {
+            byte[] record = encode(TYPE_ENQUEUE, id, CryptoEngine.encrypt(payload, storageKey));
+            synchronized (lock) {
+                write(record);
+                if (live.put(id, record) != null) {
+                    dead++;
+                }
+                scheduleSync(durable);
+            }
+            Metrics.counter("outbox.appended").increment();
+        } catch (IOException | GeneralSecurityException e) {
+            durable.completeExceptionally(e);
+        }
+        return durable;
+    }
+
+    /**
+     * Marks id delivered; it will not be returned by a later open()
+     */
+    public CompletableFuture<Void> ack(String id) {
+        CompletableFuture<Void> durable = new CompletableFuture<>();
+        try {
+            byte[] record = encode(TYPE_ACK, id, new byte[0]);
+            synchronized (lock) {
+                if (live.remove(id) == null) {
+                    durable.complete(null);
+                    return durable;
+                }
+                write(record);
+                dead += 2; // the ENQUEUE and this ACK
+                scheduleSync(durable);
+            }
+        } catch (IOException e) {
+            durable.completeExceptionally(e);
+        }
+        return durable;
+    }
+
+    public int pending() {
+        synchronized (lock) {
+            return live.size();
+        }
+    }
+
+    /**
+     * Syncs and closes the log; pending entries stay on disk for the next open()
+     */
+    public void close() {
+        syncer.execute(new Runnable() {
+            @Override
+            public void run() {
+                sync();
+                synchronized (lock) {
+                    closeChannel();
+                }
+            }
+        });
+        syncer.shutdown();
+    }
+
+    /**
+     * Drops every entry and deletes the log, e.g. on logout
+     */
+    public void delete() {
+        synchronized (lock) {
+            live.clear();
+            closeChannel();
+            file.delete();
+        }
+        syncer.shutdown();
+    }
+
+    private void write(byte[] record) throws IOException {
+        if (channel == null) {
+            throw new IOException("Outbox not open");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void scheduleSync(CompletableFuture<Void> durable) {
+        unsynced.add(durable);
+        if (!syncScheduled) {
+            syncScheduled = true;
+            try {
+                syncer.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        sync();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Closing; the final sync in close() picks this record up
+            }
+        }
+    }
+
+    /**
+     * Group commit: one force() covers every record written since the last one
+     */
+    private void sync() {
+        List<CompletableFuture<Void>> group;
+        FileChannel current;
+        synchronized (lock) {
+            group = unsynced;
+            unsynced = new ArrayList<>();
+            syncScheduled = false;
+            current = channel;
+        }
+        if (group.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        IOException failure = null;
+        try {
+            if (current == null) {
+                throw new IOException("Outbox closed");
+            }
+            current.force(false);
+        } catch (IOException e) {
+            failure = e;
+        }
+        Metrics.timer("outbox.fsync").recordSince(start);
+        Metrics.counter("outbox.fsync_records").add(group.size());
+        for (CompletableFuture<Void> durable : group) {
+            if (failure == null) {
+                durable.complete(null);
+            } else {
+                durable.completeExceptionally(failure);
+            }
+        }
+        if (failure == null) {
+            compactIfNeeded();
+        }
+    }
+
+    private void compactIfNeeded() {
+        synchronized (lock) {
+            if (channel == null || dead < COMPACT_MIN_DEAD || dead < live.size()) {
+                return;
+            }
+            long start = System.nanoTime();
+            File tmp = new File(file.getPath() + ".tmp");
+            try {
+                RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+                FileChannel compacted = raf.getChannel();
+                try {
+                    compacted.truncate(0);
+                    compacted.write(ByteBuffer.wrap(new byte[] {FORMAT_VERSION}));
+                    for (byte[] record : live.values()) {
+                        ByteBuffer buffer = ByteBuffer.wrap(record);
+                        while (buffer.hasRemaining()) {
+                            compacted.write(buffer);
+                        }
+                    }
+                    compacted.force(false);
+                } finally {
+                    compacted.close();
+                }
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("Could not replace " + file);
+                }
+                // Records appended since the last force are in the new file too, and it is synced
+                closeChannel();
+                channel = new RandomAccessFile(file, "rw").getChannel();
+                channel.position(channel.size());
+                dead = 0;
+                Metrics.counter("outbox.compactions").increment();
+                Metrics.timer("outbox.compact").recordSince(start);
+            } catch (IOException e) {
+                // The old log is still intact; try again after the next sync
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the pending set from the log and returns the offset just past the last good record
+     */
+    private long replay() throws IOException {
+        live.clear();
+        dead = 0;
+        if (!file.exists() || file.length() == 0) {
+            return 0;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readByte() != FORMAT_VERSION) {
+                throw new IOException("Unsupported outbox version");
+            }
+            long valid = 1;
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length;
+                long checksum;
+                byte[] body;
+                try {
+                    length = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD_LENGTH) {
+                        break;
+                    }
+                    checksum = in.readInt() & 0xFFFFFFFFL;
+                    body = new byte[length];
+                    in.readFully(body);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(body, 0, body.length);
+                if (crc.getValue() != checksum) {
+                    break;
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+                byte type = record.readByte();
+                String id = record.readUTF();
+                if (type == TYPE_ENQUEUE) {
+                    if (live.put(id, frame(body, checksum)) != null) {
+                        dead++;
+                    }
+                } else if (type == TYPE_ACK) {
+                    live.remove(id);
+                    dead += 2;
+                }
+                valid += 8 + length;
+            }
+            return valid;
+        } finally {
+            in.close();
+        }
+    }
+
+    private byte[] unseal(byte[] record) throws IOException, GeneralSecurityException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record, 8, record.length - 8));
+        in.readByte();
+        in.readUTF();
+        int headerLength = record.length - in.available();
+        return CryptoEngine.decrypt(record, headerLength, record.length - headerLength, storageKey);
+    }
+
+    private static byte[] encode(byte type, String id, byte[] sealed) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + id.length() + sealed.length);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        out.writeUTF(id);
+        out.write(sealed);
+        out.flush();
+        byte[] body = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        return frame(body, crc.getValue());
+    }
+
+    private static byte[] frame(byte[] body, long checksum) {
+        ByteBuffer record = ByteBuffer.allocate(8 + body.length);
+        record.putInt(body.length);
+        record.putInt((int) checksum);
+        record.put(body);
+        return record.array();
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing left to flush
+            }
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,1296 @@
+package com.anonymousemessage.storage;
+
+import com.anonymousemessage.crypto.CryptoEngine;
+import com.anonymousemessage.models.Message;
+import com.anonymousemessage.protocol.ProtocolException;
+import com.anonymousemessage.protocol.WireReader;
+import com.anonymousemessage.protocol.WireWriter;
+import com.anonymousemessage.utils.Metrics;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Full-text index over every conversation's {@link MessageLog}, sealed under the
+ * storage key like the log itself.
+ *
+ * Messages are split into lowercased, accent-folded words and indexed as
+ * documents with increasing ids. New documents collect in memory until
+ * {@link #FLUSH_DOCS} of them are written out as an immutable segment: a sorted
+ * term dictionary, and per term its postings (document, term frequency),
+ * delta-encoded as varints. Postings are packed into blocks that are deflated and
+ * sealed one by one, so a query decrypts only the blocks of the terms it asks
+ * for. Only the dictionary and a few ints per document stay in memory.
+ *
+ * A query matches documents holding every word, the last one as a prefix while
+ * it is still being typed, ranked by BM25 and then by recency. Deleted and
+ * edited messages are only marked deleted; {@link #merge} rewrites a run of
+ * small segments, or one that is mostly deleted, into a single segment without
+ * them. Document ids survive merging, so a merge only holds the lock to swap
+ * segments in.
+ *
+ * The index remembers how far into each conversation's log it has read.
+ * Unflushed documents are lost in a crash and read again from the log by
+ * {@link MessageLog#replay}; without a manifest the index starts empty and is
+ * rebuilt the same way.
+ *
+ * Section:  length(4) || sealed(rawLength(varint) || deflated)
+ * Segment:  version(1) || postings section* || id section* || meta section || metaPosition(8)
+ * Meta:     docCount, (docDelta, key, length)*, termCount, (sharedPrefix, suffix, docFreq, block, offset)*,
+ *           keyOrder*, blockCount, blockPosition*, idBlockCount, idBlockPosition*   (varints)
+ * Postings: (localDelta, termFrequency)* per term
+ * Manifest: sealed(version || nextDoc || nextSegment || segment* || conversation* || watermark* || deleted)
+ */
+public final class SearchIndex {
+
+    public static final int FLUSH_DOCS = 4096;
+    public static final int MERGE_FACTOR = 4;
+
+    private static final int FORMAT_VERSION = 1;
+    private static final int BLOCK_BYTES = 16 * 1024;
+    private static final int ID_BLOCK_DOCS = 64;
+    private static final int MAX_TOKEN_LENGTH = 64;
+    private static final int MAX_EXPANSIONS = 64;
+    private static final int SEQ_BITS = 40; // key: conversation ordinal << SEQ_BITS | seq
+    private static final int MAX_SECTION = 64 * 1024 * 1024;
+    private static final float K1 = 1.2f;
+    private static final float B = 0.75f;
+    private static final String MANIFEST = "manifest";
+    private static final String SEGMENT_SUFFIX = ".sx";
+
+    /**
+     * One search result
+     */
+    public static final class Hit {
+        public final String messageId;
+        public final String conversationId;
+        public final long seq;
+        public final float score;
+
+        Hit(String messageId, String conversationId, long seq, float score) {
+            this.messageId = messageId;
+            this.conversationId = conversationId;
+            this.seq = seq;
+            this.score = score;
+        }
+
+        @Override
+        public String toString() {
+            return "Hit{" + conversationId + "/" + seq + " " + messageId + " score=" + score + "}";
+        }
+    }
+
+    // Growable int pairs
+    private static final class IntList {
+        int[] values = new int[4];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+
+    /**
+     * Documents searched as a unit: a segment on disk or the unflushed documents.
+     * Local numbers 0..docCount()-1 follow document ids.
+     */
+    private abstract static class Source {
+        long totalLength; // of every document, for length normalisation
+
+        abstract int docCount();
+
+        abstract int doc(int local);
+
+        abstract long key(int local);
+
+        abstract int length(int local);
+
+        // The term itself, or every term starting with prefix when prefix is true
+        abstract void terms(String term, boolean prefix, TreeSet<String> out);
+
+        abstract int docFreq(String term);
+
+        // (local, termFrequency) pairs, ascending, or null
+        abstract int[] postings(String term, Map<Integer, byte[]> blocks) throws IOException, GeneralSecurityException;
+
+        abstract String messageId(int local) throws IOException, GeneralSecurityException;
+
+        // Local number of the document with key, or -1
+        abstract int find(long key);
+    }
+
+    private final class Segment extends Source {
+        final long number;
+        final File file;
+        final FileChannel channel;
+        int[] docs;
+        long[] keys;
+        int[] lengths;
+        int[] keyOrder; // locals sorted by key
+        String[] terms;
+        int[] docFreqs;
+        int[] termBlocks;
+        int[] termOffsets;
+        long[] blockPositions;
+        long[] idBlockPositions;
+        int deleted;
+
+        Segment(long number, File file) throws IOException {
+            this.number = number;
+            this.file = file;
+            this.channel = new RandomAccessFile(file, "r").getChannel();
+        }
+
+        void load() throws IOException, GeneralSecurityException {
+            ByteBuffer footer = ByteBuffer.allocate(8);
+            readFully(channel, footer, channel.size() - 8);
+            WireReader in = new WireReader(section(channel, footer.getLong(0)));
+            int count = count(in);
+            docs = new int[count];
+            keys = new long[count];
+            lengths = new int[count];
+            int doc = -1;
+            for (int i = 0; i < count; i++) {
+                doc += (int) in.readVarint();
+                docs[i] = doc;
+                keys[i] = in.readVarint();
+                lengths[i] = (int) in.readVarint();
+                totalLength += lengths[i];
+            }
+            int termCount = count(in);
+            terms = new String[termCount];
+            docFreqs = new int[termCount];
+            termBlocks = new int[termCount];
+            termOffsets = new int[termCount];
+            String previous = "";
+            for (int i = 0; i < termCount; i++) {
+                int shared = (int) in.readVarint();
+                String suffix = in.readString();
+                previous = previous.substring(0, shared) + (suffix != null ? suffix : "");
+                terms[i] = previous;
+                docFreqs[i] = (int) in.readVarint();
+                termBlocks[i] = (int) in.readVarint();
+                termOffsets[i] = (int) in.readVarint();
+            }
+            keyOrder = new int[count];
+            for (int i = 0; i < count; i++) {
+                keyOrder[i] = (int) in.readVarint();
+            }
+            blockPositions = new long[count(in)];
+            for (int i = 0; i < blockPositions.length; i++) {
+                blockPositions[i] = in.readVarint();
+            }
+            idBlockPositions = new long[count(in)];
+            for (int i = 0; i < idBlockPositions.length; i++) {
+                idBlockPositions[i] = in.readVarint();
+            }
+        }
+
+        @Override
+        int docCount() {
+            return docs.length;
+        }
+
+        @Override
+        int doc(int local) {
+            return docs[local];
+        }
+
+        @Override
+        long key(int local) {
+            return keys[local];
+        }
+
+        @Override
+        int length(int local) {
+            return lengths[local];
+        }
+
+        @Override
+        void terms(String term, boolean prefix, TreeSet<String> out) {
+            int i = Arrays.binarySearch(terms, term);
+            if (!prefix) {
+                if (i >= 0) {
+                    out.add(term);
+                }
+                return;
+            }
+            for (i = i >= 0 ? i : -i - 1; i < terms.length && terms[i].startsWith(term); i++) {
+                out.add(terms[i]);
+            }
+        }
+
+        @Override
+        int docFreq(String term) {
+            int i = Arrays.binarySearch(terms, term);
+            return i >= 0 ? docFreqs[i] : 0;
+        }
+
+        @Override
+        int[] postings(String term, Map<Integer, byte[]> blocks) throws IOException, GeneralSecurityException {
+            int i = Arrays.binarySearch(terms, term);
+            if (i < 0) {
+                return null;
+            }
+            byte[] block = blocks.get(termBlocks[i]);
+            if (block == null) {
+                block = section(channel, blockPositions[termBlocks[i]]);
+                blocks.put(termBlocks[i], block);
+            }
+            WireReader in = new WireReader(ByteBuffer.wrap(block, termOffsets[i], block.length - termOffsets[i]));
+            int[] pairs = new int[docFreqs[i] * 2];
+            int local = -1;
+            for (int p = 0; p < pairs.length; p += 2) {
+                local += (int) in.readVarint();
+                pairs[p] = local;
+                pairs[p + 1] = (int) in.readVarint();
+            }
+            return pairs;
+        }
+
+        @Override
+        String messageId(int local) throws IOException, GeneralSecurityException {
+            WireReader in = new WireReader(section(channel, idBlockPositions[local / ID_BLOCK_DOCS]));
+            for (int i = local % ID_BLOCK_DOCS; i > 0; i--) {
+                in.readString();
+            }
+            return in.readString();
+        }
+
+        @Override
+        int find(long key) {
+            int low = 0;
+            int high = keyOrder.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                long found = keys[keyOrder[mid]];
+                if (found < key) {
+                    low = mid + 1;
+                } else if (found > key) {
+                    high = mid - 1;
+                } else {
+                    return keyOrder[mid];
+                }
+            }
+            return -1;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // read-only
+            }
+        }
+    }
+
+    // Documents added since the last flush; their ids are base..base+count-1
+    private static final class Buffer extends Source {
+        final int base;
+        final TreeMap<String, IntList> postings = new TreeMap<>();
+        final HashMap<Long, Integer> byKey = new HashMap<>();
+        long[] keys = new long[64];
+        int[] lengths = new int[64];
+        String[] messageIds = new String[64];
+        int count;
+
+        Buffer(int base) {
+            this.base = base;
+        }
+
+        void add(long key, String messageId, List<String> tokens) {
+            if (count == keys.length) {
+                keys = Arrays.copyOf(keys, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+                messageIds = Arrays.copyOf(messageIds, count * 2);
+            }
+            keys[count] = key;
+            lengths[count] = tokens.size();
+            totalLength += tokens.size();
+            messageIds[count] = messageId;
+            Map<String, Integer> frequencies = new LinkedHashMap<>();
+            for (String token : tokens) {
+                Integer frequency = frequencies.get(token);
+                frequencies.put(token, frequency == null ? 1 : frequency + 1);
+            }
+            for (Map.Entry<String, Integer> entry : frequencies.entrySet()) {
+                IntList list = postings.get(entry.getKey());
+                if (list == null) {
+                    list = new IntList();
+                    postings.put(entry.getKey(), list);
+                }
+                list.add(count);
+                list.add(entry.getValue());
+            }
+            byKey.put(key, count);
+            count++;
+        }
+
+        @Override
+        int docCount() {
+            return count;
+        }
+
+        @Override
+        int doc(int local) {
+            return base + local;
+        }
+
+        @Override
+        long key(int local) {
+            return keys[local];
+        }
+
+        @Override
+        int length(int local) {
+            return lengths[local];
+        }
+
+        @Override
+        void terms(String term, boolean prefix, TreeSet<String> out) {
+            if (!prefix) {
+                if (postings.containsKey(term)) {
+                    out.add(term);
+                }
+                return;
+            }
+            SortedMap<String, IntList> tail = postings.tailMap(term);
+            for (String candidate : tail.keySet()) {
+                if (!candidate.startsWith(term)) {
+                    break;
+                }
+                out.add(candidate);
+            }
+        }
+
+        @Override
+        int docFreq(String term) {
+            IntList list = postings.get(term);
+            return list != null ? list.size / 2 : 0;
+        }
+
+        @Override
+        int[] postings(String term, Map<Integer, byte[]> blocks) {
+            IntList list = postings.get(term);
+            return list != null ? Arrays.copyOf(list.values, list.size) : null;
+        }
+
+        @Override
+        String messageId(int local) {
+            return messageIds[local];
+        }
+
+        @Override
+        int find(long key) {
+            Integer local = byKey.get(key);
+            return local != null ? local : -1;
+        }
+    }
+
+    private static final class Candidate {
+        final Source source;
+        final int local;
+        final float score;
+
+        Candidate(Source source, int local, float score) {
+            this.source = source;
+            this.local = local;
+            this.score = score;
+        }
+    }
+
+    // Writes one segment file, postings streamed term by term in term order
+    private final class SegmentWriter {
+        final File file;
+        final FileChannel out;
+        WireWriter block = new WireWriter(BLOCK_BYTES + 1024);
+        final List<String> terms = new ArrayList<>();
+        final IntList termInfo = new IntList(); // docFreq, block, offset per term
+        final List<Long> blockPositions = new ArrayList<>();
+
+        SegmentWriter(long number) throws IOException {
+            file = segmentFile(number);
+            out = new RandomAccessFile(file, "rw").getChannel();
+            out.truncate(0);
+            writeFully(out, ByteBuffer.wrap(new byte[] {FORMAT_VERSION}));
+        }
+
+        void term(String term, int[] pairs, int length) throws IOException, GeneralSecurityException {
+            if (block.size() >= BLOCK_BYTES) {
+                flushBlock();
+            }
+            terms.add(term);
+            termInfo.add(length / 2);
+            termInfo.add(blockPositions.size());
+            termInfo.add(block.size());
+            int previous = -1;
+            for (int p = 0; p < length; p += 2) {
+                block.writeVarint(pairs[p] - previous).writeVarint(pairs[p + 1]);
+                previous = pairs[p];
+            }
+        }
+
+        void flushBlock() throws IOException, GeneralSecurityException {
+            blockPositions.add(out.position());
+            writeSection(out, block.toByteArray());
+            block = new WireWriter(BLOCK_BYTES + 1024);
+        }
+
+        File finish(int[] docs, long[] keys, int[] lengths, String[] messageIds, int count)
+                throws IOException, GeneralSecurityException {
+            if (block.size() > 0) {
+                flushBlock();
+            }
+            List<Long> idBlockPositions = new ArrayList<>();
+            for (int from = 0; from < count; from += ID_BLOCK_DOCS) {
+                WireWriter ids = new WireWriter(ID_BLOCK_DOCS * 40);
+                for (int i = from; i < Math.min(count, from + ID_BLOCK_DOCS); i++) {
+                    ids.writeString(messageIds[i]);
+                }
+                idBlockPositions.add(out.position());
+                writeSection(out, ids.toByteArray());
+            }
+
+            WireWriter meta = new WireWriter(count * 8 + terms.size() * 12 + 64).writeVarint(count);
+            int previousDoc = -1;
+            for (int i = 0; i < count; i++) {
+                meta.writeVarint(docs[i] - previousDoc).writeVarint(keys[i]).writeVarint(lengths[i]);
+                previousDoc = docs[i];
+            }
+            meta.writeVarint(terms.size());
+            String previous = "";
+            for (int i = 0; i < terms.size(); i++) {
+                String term = terms.get(i);
+                int shared = 0;
+                while (shared < Math.min(term.length(), previous.length())
+                    && term.charAt(shared) == previous.charAt(shared)) {
+                    shared++;
+                }
+                meta.writeVarint(shared).writeString(term.substring(shared))
+                    .writeVarint(termInfo.values[i * 3])
+                    .writeVarint(termInfo.values[i * 3 + 1])
+                    .writeVarint(termInfo.values[i * 3 + 2]);
+                previous = term;
+            }
+            Integer[] order = new Integer[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+            }
+            final long[] sortKeys = keys;
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Long.compare(sortKeys[a], sortKeys[b]);
+                }
+            });
+            for (Integer local : order) {
+                meta.writeVarint(local);
+            }
+            meta.writeVarint(blockPositions.size());
+            for (long position : blockPositions) {
+                meta.writeVarint(position);
+            }
+            meta.writeVarint(idBlockPositions.size());
+            for (long position : idBlockPositions) {
+                meta.writeVarint(position);
+            }
+            long metaPosition = out.position();
+            writeSection(out, meta.toByteArray());
+            ByteBuffer footer = ByteBuffer.allocate(8).putLong(metaPosition);
+            footer.flip();
+            writeFully(out, footer);
+            out.force(false);
+            out.close();
+            return file;
+        }
+
+        void abandon() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // being deleted
+            }
+            file.delete();
+        }
+    }
+
+    private final File directory;
+    private final SecretKey storageKey;
+
+    // All guarded by this
+    private final List<Segment> segments = new ArrayList<>();
+    private final List<String> conversations = new ArrayList<>();
+    private final Map<String, Integer> ordinals = new HashMap<>();
+    private long[] watermarks = new long[16];
+    private BitSet deleted = new BitSet();
+    private int nextDoc;
+    private long nextSegment = 1;
+    private Buffer buffer = new Buffer(0);
+    private boolean merging;
+    private boolean closed;
+
+    private SearchIndex(File directory, SecretKey storageKey) {
+        this.directory = directory;
+        this.storageKey = storageKey;
+    }
+
+    /**
+     * Opens the index in directory. If it is missing or unreadable the index opens empty, and
+     * every watermark is 0 so replaying the log rebuilds it.
+     */
+    public static SearchIndex open(File directory, SecretKey storageKey) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        SearchIndex index = new SearchIndex(directory, storageKey);
+        try {
+            index.load();
+        } catch (IOException | GeneralSecurityException e) {
+            index.clear();
+        }
+        return index;
+    }
+
+    /**
+     * Log position in conversationId up to which the index is current; replay from there
+     */
+    public synchronized long watermark(String conversationId) {
+        Integer ordinal = ordinals.get(conversationId);
+        return ordinal != null ? watermarks[ordinal] : 0;
+    }
+
+    /**
+     * Indexes message as the current version of its seq, replacing any earlier one. end is
+     * the log position just past its record.
+     */
+    public synchronized void add(String conversationId, Message message, long end)
+            throws IOException, GeneralSecurityException {
+        long key = key(conversationId, message.getSeq());
+        remove(key);
+        List<String> tokens = new ArrayList<>(tokenize(message.getContent()));
+        tokens.addAll(tokenize(message.getFileName()));
+        if (!tokens.isEmpty()) {
+            buffer.add(key, message.getMessageId(), tokens);
+            nextDoc++;
+        }
+        advance(conversationId, end);
+        Metrics.counter("search.indexed").increment();
+        if (buffer.count >= FLUSH_DOCS) {
+            flush();
+        }
+    }
+
+    /**
+     * Drops seq from the results; end is the log position just past the tombstone
+     */
+    public synchronized void delete(String conversationId, long seq, long end) {
+        remove(key(conversationId, seq));
+        advance(conversationId, end);
+    }
+
+    /**
+     * Moves conversationId's watermark to a position in a compacted log; see
+     * {@link MessageLog.Compaction#translate}. Takes effect on disk with the next checkpoint.
+     */
+    public synchronized void rebase(String conversationId, long watermark) {
+        Integer ordinal = ordinals.get(conversationId);
+        if (ordinal != null) {
+            watermarks[ordinal] = watermark;
+        }
+    }
+
+    /**
+     * Persists every document, deletion and watermark so far
+     */
+    public synchronized void checkpoint() throws IOException, GeneralSecurityException {
+        if (closed) {
+            return;
+        }
+        if (buffer.count > 0) {
+            flush();
+        } else {
+            writeManifest();
+        }
+    }
+
+    /**
+     * Writes unflushed documents out as a segment, e.g. after catching up with the log
+     */
+    public synchronized void flush() throws IOException, GeneralSecurityException {
+        if (buffer.count == 0 || closed) {
+            return;
+        }
+        long start = System.nanoTime();
+        Buffer flushing = buffer;
+        int[] live = new int[flushing.count];
+        int count = 0;
+        for (int local = 0; local < flushing.count; local++) {
+            if (!deleted.get(flushing.doc(local))) {
+                live[count++] = local;
+            }
+        }
+        if (count > 0) {
+            Segment segment = write(Collections.<Source>singletonList(flushing),
+                Collections.singletonList(Arrays.copyOf(live, count)));
+            segments.add(segment);
+        }
+        buffer = new Buffer(nextDoc);
+        writeManifest();
+        Metrics.counter("search.flushed_docs").add(count);
+        Metrics.timer("search.flush").recordSince(start);
+    }
+
+    /**
+     * True if {@link #merge} has work to do
+     */
+    public synchronized boolean shouldMerge() {
+        return !closed && !merging && (segments.size() > MERGE_FACTOR || purgeCandidate() >= 0);
+    }
+
+    /**
+     * Rewrites MERGE_FACTOR adjacent segments with the fewest documents, or one mostly deleted
+     * segment, into one without deleted documents. Runs without the lock except to swap the
+     * result in, so call it from a background thread; returns false if there was nothing to do.
+     */
+    public boolean merge() throws IOException, GeneralSecurityException {
+        List<Segment> chosen;
+        BitSet dead;
+        long number;
+        synchronized (this) {
+            if (closed || merging) {
+                return false;
+            }
+            int from = purgeCandidate();
+            int length = 1;
+            if (from < 0 && segments.size() > MERGE_FACTOR) {
+                long best = Long.MAX_VALUE;
+                for (int i = 0; i + MERGE_FACTOR <= segments.size(); i++) {
+                    long docs = 0;
+                    for (int j = i; j < i + MERGE_FACTOR; j++) {
+                        docs += segments.get(j).docCount();
+                    }
+                    if (docs < best) {
+                        best = docs;
+                        from = i;
+                    }
+                }
+                length = MERGE_FACTOR;
+            }
+            if (from < 0) {
+                return false;
+            }
+            chosen = new ArrayList<>(segments.subList(from, from + length));
+            dead = (BitSet) deleted.clone();
+            number = nextSegment++;
+            merging = true;
+        }
+        long start = System.nanoTime();
+        Segment merged = null;
+        try {
+            List<int[]> live = new ArrayList<>();
+            int count = 0;
+            for (Segment segment : chosen) {
+                int[] locals = new int[segment.docCount()];
+                int n = 0;
+                for (int local = 0; local < locals.length; local++) {
+                    if (!dead.get(segment.doc(local))) {
+                        locals[n++] = local;
+                    }
+                }
+                live.add(Arrays.copyOf(locals, n));
+                count += n;
+            }
+            if (count > 0) {
+                merged = write(new ArrayList<Source>(chosen), live, number);
+            }
+            long reclaimed = 0;
+            synchronized (this) {
+                if (closed) {
+                    if (merged != null) {
+                        merged.close();
+                        merged.file.delete();
+                    }
+                    return false;
+                }
+                int at = segments.indexOf(chosen.get(0));
+                if (at < 0) {
+                    // Cleared while merging
+                    if (merged != null) {
+                        merged.close();
+                        merged.file.delete();
+                    }
+                    return false;
+                }
+                segments.removeAll(chosen);
+                if (merged != null) {
+                    for (int local = 0; local < merged.docCount(); local++) {
+                        if (deleted.get(merged.doc(local))) {
+                            merged.deleted++; // Deleted while merging
+                        }
+                    }
+                    segments.add(at, merged);
+                }
+                writeManifest();
+                for (Segment segment : chosen) {
+                    reclaimed += segment.file.length();
+                    segment.close();
+                    segment.file.delete();
+                }
+            }
+            Metrics.counter("search.merges").increment();
+            Metrics.counter("search.merge_reclaimed_bytes").add(reclaimed - (merged != null ? merged.file.length() : 0));
+            Metrics.timer("search.merge").recordSince(start);
+            return true;
+        } finally {
+            synchronized (this) {
+                merging = false;
+            }
+        }
+    }
+
+    /**
+     * Up to limit messages holding every word of query, best first; the last word also matches
+     * as a prefix unless query ends in a space. conversationId null searches every conversation.
+     */
+    public synchronized List<Hit> search(String conversationId, String query, int limit)
+            throws IOException, GeneralSecurityException {
+        long start = System.nanoTime();
+        List<String> words = new ArrayList<>();
+        for (String token : tokenize(query)) {
+            if (!words.contains(token)) {
+                words.add(token);
+            }
+        }
+        int ordinal = -1;
+        if (conversationId != null) {
+            Integer known = ordinals.get(conversationId);
+            if (known == null) {
+                return Collections.emptyList();
+            }
+            ordinal = known;
+        }
+        if (words.isEmpty() || limit <= 0 || closed) {
+            return Collections.emptyList();
+        }
+        boolean prefix = query.length() > 0 && Character.isLetterOrDigit(query.codePointBefore(query.length()));
+
+        List<Source> sources = new ArrayList<Source>(segments);
+        sources.add(buffer);
+        long documents = 0;
+        long totalLength = 0;
+        for (Source source : sources) {
+            documents += source.docCount();
+            totalLength += source.totalLength;
+        }
+        float averageLength = documents > 0 ? (float) totalLength / documents : 1;
+
+        // Each word's terms and their inverse document frequencies, over every source
+        List<Map<String, Float>> expansions = new ArrayList<>();
+        for (int w = 0; w < words.size(); w++) {
+            TreeSet<String> terms = new TreeSet<>();
+            for (Source source : sources) {
+                source.terms(words.get(w), prefix && w == words.size() - 1, terms);
+            }
+            if (terms.isEmpty()) {
+                return Collections.emptyList();
+            }
+            Map<String, Float> idf = new LinkedHashMap<>();
+            for (String term : terms) {
+                if (idf.size() == MAX_EXPANSIONS) {
+                    break;
+                }
+                long docFreq = 0;
+                for (Source source : sources) {
+                    docFreq += source.docFreq(term);
+                }
+                idf.put(term, (float) Math.log(1 + (documents - docFreq + 0.5) / (docFreq + 0.5)));
+            }
+            expansions.add(idf);
+        }
+
+        // Worst first, so the head is what a better candidate displaces; ties go to newer documents
+        PriorityQueue<Candidate> best = new PriorityQueue<>(limit + 1, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate a, Candidate b) {
+                int byScore = Float.compare(a.score, b.score);
+                return byScore != 0 ? byScore : Integer.compare(a.source.doc(a.local), b.source.doc(b.local));
+            }
+        });
+        for (Source source : sources) {
+            int n = source.docCount();
+            if (n == 0) {
+                continue;
+            }
+            Map<Integer, byte[]> blocks = new HashMap<>();
+            int[] matched = new int[n]; // words matched so far
+            float[] scores = new float[n];
+            for (int w = 0; w < words.size(); w++) {
+                for (Map.Entry<String, Float> term : expansions.get(w).entrySet()) {
+                    int[] pairs = source.postings(term.getKey(), blocks);
+                    if (pairs == null) {
+                        continue;
+                    }
+                    for (int p = 0; p < pairs.length; p += 2) {
+                        int local = pairs[p];
+                        if (matched[local] == w) {
+                            matched[local] = w + 1;
+                        } else if (matched[local] != w + 1) {
+                            continue;
+                        }
+                        float tf = pairs[p + 1];
+                        float norm = K1 * (1 - B + B * source.length(local) / averageLength);
+                        scores[local] += term.getValue() * tf * (K1 + 1) / (tf + norm);
+                    }
+                }
+            }
+            for (int local = 0; local < n; local++) {
+                if (matched[local] != words.size() || (best.size() == limit && scores[local] < best.peek().score)
+                        || deleted.get(source.doc(local))
+                        || (ordinal >= 0 && source.key(local) >>> SEQ_BITS != ordinal)) {
+                    continue;
+                }
+                best.add(new Candidate(source, local, scores[local]));
+                if (best.size() > limit) {
+                    best.poll();
+                }
+            }
+        }
+
+        Hit[] hits = new Hit[best.size()];
+        for (int i = hits.length - 1; i >= 0; i--) {
+            Candidate candidate = best.poll();
+            long key = candidate.source.key(candidate.local);
+            hits[i] = new Hit(candidate.source.messageId(candidate.local), conversations.get((int) (key >>> SEQ_BITS)),
+                key & ((1L << SEQ_BITS) - 1), candidate.score);
+        }
+        Metrics.timer("search.query").recordSince(start);
+        return Arrays.asList(hits);
+    }
+
+    /**
+     * Forgets everything, so replaying every log from 0 rebuilds the index
+     */
+    public synchronized void clear() throws IOException {
+        for (Segment segment : segments) {
+            segment.close();
+        }
+        segments.clear();
+        conversations.clear();
+        ordinals.clear();
+        watermarks = new long[16];
+        deleted = new BitSet();
+        nextDoc = 0;
+        buffer = new Buffer(0);
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    public synchronized void close() {
+        for (Segment segment : segments) {
+            segment.close();
+        }
+        segments.clear();
+        closed = true;
+    }
+
+    /**
+     * Deletes the index from disk, e.g. on logout
+     */
+    public synchronized void deleteAll() throws IOException {
+        clear();
+        close();
+        directory.delete();
+    }
+
+    /**
+     * Words of text as indexed: accents and case folded, split at anything not a letter or
+     * digit; ideographs, which are written without spaces, are words of their own
+     */
+    static List<String> tokenize(String text) {
+        if (text == null || text.isEmpty()) {
+            return Collections.emptyList();
+        }
+        String folded = Normalizer.normalize(text, Normalizer.Form.NFKD).toLowerCase(Locale.ROOT);
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        for (int i = 0; i < folded.length(); ) {
+            int c = folded.codePointAt(i);
+            i += Character.charCount(c);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            boolean ideograph = Character.isIdeographic(c);
+            if (Character.isLetterOrDigit(c) && !ideograph) {
+                if (token.length() < MAX_TOKEN_LENGTH) {
+                    token.appendCodePoint(c);
+                }
+                continue;
+            }
+            if (token.length() > 0) {
+                tokens.add(token.toString());
+                token.setLength(0);
+            }
+            if (ideograph) {
+                tokens.add(new String(Character.toChars(c)));
+            }
+        }
+        if (token.length() > 0) {
+            tokens.add(token.toString());
+        }
+        return tokens;
+    }
+
+    private long key(String conversationId, long seq) {
+        if (seq <= 0 || seq >= 1L << SEQ_BITS) {
+            throw new IllegalArgumentException("Seq out of range: " + seq);
+        }
+        Integer ordinal = ordinals.get(conversationId);
+        if (ordinal == null) {
+            ordinal = conversations.size();
+            conversations.add(conversationId);
+            ordinals.put(conversationId, ordinal);
+            if (ordinal == watermarks.length) {
+                watermarks = Arrays.copyOf(watermarks, ordinal * 2);
+            }
+        }
+        return (long) ordinal << SEQ_BITS | seq;
+    }
+
+    private void advance(String conversationId, long end) {
+        int ordinal = ordinals.get(conversationId);
+        watermarks[ordinal] = Math.max(watermarks[ordinal], end);
+    }
+
+    // Marks the live document for key deleted, if there is one
+    private void remove(long key) {
+        int local = buffer.find(key);
+        if (local >= 0 && !deleted.get(buffer.doc(local))) {
+            deleted.set(buffer.doc(local));
+            return;
+        }
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            Segment segment = segments.get(i);
+            local = segment.find(key);
+            if (local >= 0 && !deleted.get(segment.doc(local))) {
+                deleted.set(segment.doc(local));
+                segment.deleted++;
+                return;
+            }
+        }
+    }
+
+    // Index of a segment that is at least a third deleted, or -1
+    private int purgeCandidate() {
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            if (segment.deleted * 3 >= segment.docCount()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private Segment write(List<Source> sources, List<int[]> live) throws IOException, GeneralSecurityException {
+        return write(sources, live, nextSegment++);
+    }
+
+    // One segment holding the live documents of sources, which are in document order
+    private Segment write(List<Source> sources, List<int[]> live, long number)
+            throws IOException, GeneralSecurityException {
+        int count = 0;
+        for (int[] locals : live) {
+            count += locals.length;
+        }
+        int[] docs = new int[count];
+        long[] keys = new long[count];
+        int[] lengths = new int[count];
+        String[] messageIds = new String[count];
+        List<int[]> renumber = new ArrayList<>(); // per source: old local -> new local, or -1
+        TreeSet<String> terms = new TreeSet<>();
+        int next = 0;
+        for (int s = 0; s < sources.size(); s++) {
+            Source source = sources.get(s);
+            int[] map = new int[source.docCount()];
+            Arrays.fill(map, -1);
+            for (int local : live.get(s)) {
+                map[local] = next;
+                docs[next] = source.doc(local);
+                keys[next] = source.key(local);
+                lengths[next] = source.length(local);
+                next++;
+            }
+            renumber.add(map);
+            source.terms("", true, terms);
+        }
+        // Ids are read in id-block order, so each block is decrypted once
+        next = 0;
+        for (int s = 0; s < sources.size(); s++) {
+            Source source = sources.get(s);
+            if (source instanceof Segment) {
+                Segment segment = (Segment) source;
+                String[] block = null;
+                int blockIndex = -1;
+                for (int local : live.get(s)) {
+                    if (local / ID_BLOCK_DOCS != blockIndex) {
+                        blockIndex = local / ID_BLOCK_DOCS;
+                        WireReader in = new WireReader(section(segment.channel, segment.idBlockPositions[blockIndex]));
+                        block = new String[Math.min(ID_BLOCK_DOCS, segment.docCount() - blockIndex * ID_BLOCK_DOCS)];
+                        for (int i = 0; i < block.length; i++) {
+                            block[i] = in.readString();
+                        }
+                    }
+                    messageIds[next++] = block[local % ID_BLOCK_DOCS];
+                }
+            } else {
+                for (int local : live.get(s)) {
+                    messageIds[next++] = source.messageId(local);
+                }
+            }
+        }
+
+        SegmentWriter writer = new SegmentWriter(number);
+        try {
+            List<Map<Integer, byte[]>> blocks = new ArrayList<>();
+            for (int s = 0; s < sources.size(); s++) {
+                blocks.add(new HashMap<Integer, byte[]>());
+            }
+            int[] pairs = new int[64];
+            for (String term : terms) {
+                int length = 0;
+                for (int s = 0; s < sources.size(); s++) {
+                    if (blocks.get(s).size() > 1) {
+                        blocks.get(s).clear(); // Terms are visited in block order; keep one
+                    }
+                    int[] postings = sources.get(s).postings(term, blocks.get(s));
+                    if (postings == null) {
+                        continue;
+                    }
+                    int[] map = renumber.get(s);
+                    for (int p = 0; p < postings.length; p += 2) {
+                        if (map[postings[p]] >= 0) {
+                            if (length + 2 > pairs.length) {
+                                pairs = Arrays.copyOf(pairs, pairs.length * 2);
+                            }
+                            pairs[length++] = map[postings[p]];
+                            pairs[length++] = postings[p + 1];
+                        }
+                    }
+                }
+                if (length > 0) {
+                    writer.term(term, pairs, length);
+                }
+            }
+            writer.finish(docs, keys, lengths, messageIds, count);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            writer.abandon();
+            throw e;
+        }
+        Segment segment = new Segment(number, writer.file);
+        segment.load();
+        return segment;
+    }
+
+    private void load() throws IOException, GeneralSecurityException {
+        File manifest = new File(directory, MANIFEST);
+        List<Long> numbers = new ArrayList<>();
+        if (manifest.exists()) {
+            RandomAccessFile file = new RandomAccessFile(manifest, "r");
+            byte[] sealed;
+            try {
+                sealed = new byte[(int) file.length()];
+                file.readFully(sealed);
+            } finally {
+                file.close();
+            }
+            WireReader in = new WireReader(CryptoEngine.decrypt(sealed, storageKey));
+            if (in.readByte() != FORMAT_VERSION) {
+                throw new ProtocolException("Unsupported search index version");
+            }
+            nextDoc = (int) in.readVarint();
+            nextSegment = in.readVarint();
+            for (int i = count(in); i > 0; i--) {
+                numbers.add(in.readVarint());
+            }
+            int conversationCount = count(in);
+            watermarks = new long[Math.max(16, conversationCount)];
+            for (int i = 0; i < conversationCount; i++) {
+                String conversationId = in.readString();
+                conversations.add(conversationId);
+                ordinals.put(conversationId, i);
+                watermarks[i] = in.readVarint();
+            }
+            deleted = BitSet.valueOf(in.readBytes());
+        }
+        buffer = new Buffer(nextDoc);
+        for (long number : numbers) {
+            Segment segment = new Segment(number, segmentFile(number));
+            segments.add(segment);
+            segment.load();
+            for (int local = 0; local < segment.docCount(); local++) {
+                if (deleted.get(segment.doc(local))) {
+                    segment.deleted++;
+                }
+            }
+        }
+        // Left by a flush or merge that didn't reach its manifest
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(SEGMENT_SUFFIX) && !numbers.contains(segmentNumber(name))) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private void writeManifest() throws IOException, GeneralSecurityException {
+        WireWriter out = new WireWriter(256 + conversations.size() * 64)
+            .writeByte(FORMAT_VERSION)
+            .writeVarint(nextDoc)
+            .writeVarint(nextSegment)
+            .writeVarint(segments.size());
+        for (Segment segment : segments) {
+            out.writeVarint(segment.number);
+        }
+        out.writeVarint(conversations.size());
+        for (int i = 0; i < conversations.size(); i++) {
+            out.writeString(conversations.get(i)).writeVarint(watermarks[i]);
+        }
+        out.writeBytes(deleted.toByteArray());
+        byte[] sealed = CryptoEngine.encrypt(out.toByteArray(), storageKey);
+
+        File tmp = new File(directory, MANIFEST + ".tmp");
+        FileChannel channel = new RandomAccessFile(tmp, "rw").getChannel();
+        try {
+            channel.truncate(0);
+            writeFully(channel, ByteBuffer.wrap(sealed));
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+        if (!tmp.renameTo(new File(directory, MANIFEST))) {
+            throw new IOException("Could not replace search manifest in " + directory);
+        }
+    }
+
+    private void writeSection(FileChannel out, byte[] plain) throws IOException, GeneralSecurityException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(plain.length / 2 + 64);
+        body.write(new WireWriter(5).writeVarint(plain.length).toByteArray());
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(plain);
+            deflater.finish();
+            byte[] chunk = new byte[Math.max(256, plain.length / 2)];
+            while (!deflater.finished()) {
+                body.write(chunk, 0, deflater.deflate(chunk));
+            }
+        } finally {
+            deflater.end();
+        }
+        byte[] sealed = CryptoEngine.encrypt(body.toByteArray(), storageKey);
+        ByteBuffer section = ByteBuffer.allocate(4 + sealed.length).putInt(sealed.length).put(sealed);
+        section.flip();
+        writeFully(out, section);
+    }
+
+    private byte[] section(FileChannel in, long position) throws IOException, GeneralSecurityException {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        readFully(in, header, position);
+        int length = header.getInt(0);
+        if (length <= 0 || length > MAX_SECTION) {
+            throw new ProtocolException("Bad search index section length " + length);
+        }
+        ByteBuffer sealed = ByteBuffer.allocate(length);
+        readFully(in, sealed, position + 4);
+        ByteBuffer body = ByteBuffer.wrap(CryptoEngine.decrypt(sealed.array(), storageKey));
+        WireReader reader = new WireReader(body);
+        long rawLength = reader.readVarint();
+        if (rawLength > MAX_SECTION) {
+            throw new ProtocolException("Bad search index section length " + rawLength);
+        }
+        byte[] plain = new byte[(int) rawLength];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(body.array(), body.limit() - reader.remaining(), reader.remaining());
+            int n = 0;
+            while (n < plain.length) {
+                int inflated = inflater.inflate(plain, n, plain.length - n);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new ProtocolException("Truncated search index section");
+                }
+                n += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Corrupt search index section: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return plain;
+    }
+
+    private File segmentFile(long number) {
+        return new File(directory, String.format(Locale.ROOT, "%08d%s", number, SEGMENT_SUFFIX));
+    }
+
+    private static long segmentNumber(String name) {
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int count(WireReader in) throws ProtocolException {
+        long count = in.readVarint();
+        if (count > in.remaining()) {
+            throw new ProtocolException("Bad search index count " + count);
+        }
+        return (int) count;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of search index file");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -8,6 +8,7 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.provider.Settings;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ImageButton;
@@ -21,13 +22,20 @@ import com.anonymousemessage.R;
 import com.anonymousemessage.adapters.MessageAdapter;
 import com.anonymousemessage.models.Message;
 import com.anonymousemessage.models.User;
+import com.anonymousemessage.service.MessageSendService;
+import com.anonymousemessage.service.MessageStoreService;
+import com.anonymousemessage.service.OutboxService;
+import com.anonymousemessage.service.ReceiptService;
+import com.anonymousemessage.service.SessionManager;
+import com.anonymousemessage.service.SyncService;
 import com.anonymousemessage.service.VoiceRecordService;
 import java.util.ArrayList;
 import java.util.List;
 
 public class ChatActivity extends AppCompatActivity {
-
+    
     private static final int LOCATION_PERMISSION_REQUEST_CODE = 1001;
+    private static final int HISTORY_PAGE_SIZE = 50;
     
     private ListView messagesListView;
     private EditText messageInput;
@@ -42,20 +50,61 @@ public class ChatActivity extends AppCompatActivity {
     private User contact;
     
     private boolean isRecordingVoice = false;
-
+    private boolean loadingHistory = false;
+    private boolean historyExhausted = false;
+    
+    // Marks our copy of a message delivered once the relay acknowledges it
+    private final OutboxService.DeliveryListener deliveryListener = delivered -> runOnUiThread(() -> {
+        for (Message message : messageList) {
+            if (message.getMessageId().equals(delivered.getMessageId())) {
+                message.setDelivered(true);
+                messageAdapter.notifyDataSetChanged();
+                break;
+            }
+        }
+    });
+    
+    // Appends messages from this contact fetched by a sync; on screen, so they count as read
+    private final SyncService.SyncListener syncListener = (contactId, messages) -> runOnUiThread(() -> {
+        if (!contactId.equals(contact.getUserId()) || messages.isEmpty()) {
+            return;
+        }
+        messageList.addAll(messages);
+        messageAdapter.notifyDataSetChanged();
+        ReceiptService.markRead(contactId, contact.getPublicKey(), messages.get(messages.size() - 1).getSeq());
+    });
+    
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_chat);
-
+        
         // Get contact from intent
         contact = (User) getIntent().getSerializableExtra("contact");
-
+        
         initViews();
         setupClickListeners();
         setupMessageList();
+        OutboxService.addDeliveryListener(deliveryListener);
+        SyncService.addListener(syncListener);
+        SyncService.watch(contact.getUserId(), contact.getPublicKey());
+        SyncService.syncNow();
     }
-
+    
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        OutboxService.removeDeliveryListener(deliveryListener);
+        SyncService.removeListener(syncListener);
+    }
+    
+    @Override
+    protected void onPause() {
+        super.onPause();
+        // Don't leave messages waiting out their batch window while the chat is in the background
+        MessageSendService.flush();
+    }
+    
     private void initViews() {
         messagesListView = findViewById(R.id.messages_list_view);
         messageInput = findViewById(R.id.message_input);
@@ -65,7 +114,7 @@ public class ChatActivity extends AppCompatActivity {
         locationButton = findViewById(R.id.location_button);
         cameraButton = findViewById(R.id.camera_button);
     }
-
+    
     private void setupClickListeners() {
         sendButton.setOnClickListener(v -> sendMessage());
         
@@ -86,20 +135,62 @@ public class ChatActivity extends AppCompatActivity {
         cameraButton.setOnClickListener(v -> openCamera());
         attachButton.setOnClickListener(v -> openAttachmentMenu());
     }
-
+    
     private void setupMessageList() {
         messageList = new ArrayList<>();
         messageAdapter = new MessageAdapter(this, messageList);
         messagesListView.setAdapter(messageAdapter);
+        
+        // Only the latest page is loaded; older ones as the user scrolls up to them
+        messagesListView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+            
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                if (firstVisibleItem == 0 && totalItemCount > 0) {
+                    loadHistory();
+                }
+            }
+        });
+        // Queued before this screen's first sync, so the two never overlap
+        loadHistory();
     }
-
+    
+    private void loadHistory() {
+        if (loadingHistory || historyExhausted) {
+            return;
+        }
+        loadingHistory = true;
+        long before = Long.MAX_VALUE;
+        for (Message message : messageList) {
+            if (message.getSeq() > 0) {
+                before = message.getSeq();
+                break;
+            }
+        }
+        final boolean latest = before == Long.MAX_VALUE;
+        MessageStoreService.loadPage(contact.getUserId(), before, HISTORY_PAGE_SIZE).thenAccept(page ->
+            runOnUiThread(() -> {
+                loadingHistory = false;
+                historyExhausted = page.size() < HISTORY_PAGE_SIZE;
+                if (page.isEmpty()) {
+                    return;
+                }
+                messageList.addAll(0, page);
+                messageAdapter.notifyDataSetChanged();
+                // Keep the user where they were; the first page opens at the bottom
+                messagesListView.setSelection(latest ? messageList.size() - 1 : page.size());
+            }));
+    }
+    
     private void sendMessage() {
         String text = messageInput.getText().toString().trim();
         if (!text.isEmpty()) {
             // Create and send message
             Message message = new Message(
-                System.currentTimeMillis(),
-                "current_user_id", // Will be replaced with actual current user ID
+                SessionManager.getInstance().getUsername(),
                 contact.getUserId(),
                 text,
                 Message.Type.TEXT,
@@ -114,13 +205,13 @@ public class ChatActivity extends AppCompatActivity {
             sendMessageThroughTor(message);
         }
     }
-
+    
     private void sendMessageThroughTor(Message message) {
-        // In real implementation, this would send the message through Tor
-        // For now, we just simulate sending
-        Toast.makeText(this, "Message sent anonymously via Tor", Toast.LENGTH_SHORT).show();
+        // Logged to the durable outbox, then batched per contact; retried until the relay
+        // acknowledges it, even across restarts. deliveryListener flips isDelivered.
+        OutboxService.send(message, contact.getPublicKey());
     }
-
+    
     private void startVoiceRecording() {
         if (ContextCompat.checkSelfPermission(this, Manifest.permission.RECORD_AUDIO) 
             != PackageManager.PERMISSION_GRANTED) {
@@ -138,7 +229,7 @@ public class ChatActivity extends AppCompatActivity {
         voiceRecordButton.setImageResource(R.drawable.ic_stop_voice);
         Toast.makeText(this, "Recording voice message...", Toast.LENGTH_SHORT).show();
     }
-
+    
     private void stopVoiceRecording() {
         if (!isRecordingVoice) return;
         
@@ -151,7 +242,7 @@ public class ChatActivity extends AppCompatActivity {
         voiceRecordButton.setImageResource(R.drawable.ic_mic);
         Toast.makeText(this, "Voice message recorded", Toast.LENGTH_SHORT).show();
     }
-
+    
     private void sendLocation() {
         if (ContextCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION) 
             != PackageManager.PERMISSION_GRANTED) {
@@ -165,8 +256,7 @@ public class ChatActivity extends AppCompatActivity {
         getCurrentLocation(location -> {
             if (location != null) {
                 Message locationMessage = new Message(
-                    System.currentTimeMillis(),
-                    "current_user_id", // Will be replaced with actual current user ID
+                    SessionManager.getInstance().getUsername(),
                     contact.getUserId(),
                     location.getLatitude() + "," + location.getLongitude(),
                     Message.Type.LOCATION,
@@ -183,7 +273,7 @@ public class ChatActivity extends AppCompatActivity {
             }
         });
     }
-
+    
     private void getCurrentLocation(LocationCallback callback) {
         // In real implementation, this would get the current location
         // For now, we'll simulate getting a location
@@ -202,17 +292,17 @@ public class ChatActivity extends AppCompatActivity {
             }
         }).start();
     }
-
+    
     private void openCamera() {
         // Open camera for photo capture
         Toast.makeText(this, "Camera feature coming soon", Toast.LENGTH_SHORT).show();
     }
-
+    
     private void openAttachmentMenu() {
         // Show attachment options
         Toast.makeText(this, "Attachments feature coming soon", Toast.LENGTH_SHORT).show();
     }
-
+    
     @Override
     public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, 
                                          @NonNull int[] grantResults) {
@@ -232,7 +322,7 @@ public class ChatActivity extends AppCompatActivity {
             }
         }
     }
-
+    
     interface LocationCallback {
         void onLocationRetrieved(Location location);
     }
@@ -12,6 +12,12 @@ import android.widget.TextView;
 import android.widget.Toast;
 import androidx.appcompat.app.AppCompatActivity;
 import com.anonymousemessage.R;
+import com.anonymousemessage.network.MultiplexedConnection;
+import com.anonymousemessage.protocol.RelayProtocol;
+import com.anonymousemessage.service.PasswordKdfService;
+import com.anonymousemessage.service.TorService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class RegisterActivity extends AppCompatActivity {
     
@@ -23,6 +29,9 @@ public class RegisterActivity extends AppCompatActivity {
     private ProgressBar progressBar;
     private TextView signInTextView;
     
+    // In-flight relay request; cancelled (and withdrawn from the relay) if the screen goes away
+    private volatile CompletableFuture<byte[]> pendingRequest;
+    
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -32,6 +41,15 @@ public class RegisterActivity extends AppCompatActivity {
         setupClickListeners();
     }
     
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        CompletableFuture<byte[]> request = pendingRequest;
+        if (request != null) {
+            request.cancel(true);
+        }
+    }
+    
     private void initViews() {
         usernameEditText = findViewById(R.id.username_input);
         emailEditText = findViewById(R.id.email_input);
@@ -119,6 +137,9 @@ public class RegisterActivity extends AppCompatActivity {
     private void performRegistration(String username, String email, String password) {
         showProgress(true);
         
+        // Start the (deliberately slow) password hash now so it overlaps the email check
+        CompletableFuture<String> passwordHash = PasswordKdfService.hash(password);
+        
         // Check if email is already registered
         checkEmailExists(email, exists -> {
             if (exists) {
@@ -130,141 +151,130 @@ public class RegisterActivity extends AppCompatActivity {
                 });
             } else {
                 // Proceed with registration
-                registerUser(username, email, password);
+                registerUser(username, email, password, passwordHash);
             }
         });
     }
     
     private void checkEmailExists(String email, EmailCheckCallback callback) {
         // Real implementation to check if email exists through Tor
-        new Thread(() -> {
-            try {
-                // Create unique identifier for this operation
-                String operationId = java.util.UUID.randomUUID().toString();
-                
-                // Prepare encrypted request to check email existence
-                // Using our secure communication protocol over Tor
-                java.util.Map<String, Object> requestParams = new java.util.HashMap<>();
-                requestParams.put("operation", "check_email");
-                requestParams.put("email", email);
-                requestParams.put("operation_id", operationId);
-                
-                // Send request through Tor network
-                byte[] requestData = new com.fasterxml.jackson.databind.ObjectMapper()
-                    .writeValueAsBytes(requestParams);
-                
-                // Encrypt request data using session keys
-                byte[] encryptedRequest = com.anonymousemessage.service.EncryptionService
-                    .encryptData(requestData);
-                
-                // Send through our secure Tor channel
-                byte[] response = com.anonymousemessage.service.TorService
-                    .sendSecureRequest(encryptedRequest);
-                
-                if (response != null) {
-                    // Decrypt response
-                    byte[] decryptedResponse = com.anonymousemessage.service.EncryptionService
-                        .decryptData(response);
-                    
-                    java.util.Map<String, Object> responseMap = new com.fasterxml.jackson.databind.ObjectMapper()
-                        .readValue(decryptedResponse, java.util.Map.class);
-                    
-                    boolean exists = (Boolean) responseMap.getOrDefault("exists", false);
-                    callback.onResult(exists);
-                } else {
-                    callback.onResult(false);
-                }
-            } catch (Exception e) {
-                // Log security-relevant error but don't expose details to UI
-                android.util.Log.e("RegisterActivity", "Email check failed: " + e.getMessage());
-                callback.onResult(false);
-            }
-        }).start();
+        try {
+            // Create unique identifier for this operation; the response is matched on it
+            String operationId = MultiplexedConnection.newOperationId();
+            
+            // Prepare encrypted request to check email existence
+            // Using our secure communication protocol over Tor
+            byte[] requestData = RelayProtocol.checkEmail(operationId, email);
+            
+            // Encrypt request data using session keys
+            byte[] encryptedRequest = com.anonymousemessage.service.EncryptionService
+                .encryptData(requestData);
+            
+            // Send over the shared relay stream; nothing blocks while the request is in flight
+            CompletableFuture<byte[]> request = TorService.request(operationId, encryptedRequest);
+            pendingRequest = request;
+            request.thenApply(this::decodeResponse)
+                .whenComplete((response, error) -> {
+                    if (error != null) {
+                        // Log security-relevant error but don't expose details to UI
+                        android.util.Log.e("RegisterActivity", "Email check failed: " + error.getMessage());
+                        callback.onResult(false);
+                    } else {
+                        callback.onResult(response.exists);
+                    }
+                });
+        } catch (Exception e) {
+            android.util.Log.e("RegisterActivity", "Email check failed: " + e.getMessage());
+            callback.onResult(false);
+        }
     }
     
-    private void registerUser(String username, String email, String password) {
-        new Thread(() -> {
+    private void registerUser(String username, String email, String password,
+                              CompletableFuture<String> passwordHash) {
+        // Generate secure keys for this user
+        com.anonymousemessage.models.UserKeys userKeys = 
+            com.anonymousemessage.service.EncryptionService.generateUserKeys(username);
+        String operationId = MultiplexedConnection.newOperationId();
+        
+        passwordHash.thenCompose(hash -> {
             try {
-                // Generate secure keys for this user
-                com.anonymousemessage.models.UserKeys userKeys = 
-                    com.anonymousemessage.service.EncryptionService.generateUserKeys(username);
-                
                 // Create registration request with encrypted credentials
-                java.util.Map<String, Object> registrationData = new java.util.HashMap<>();
-                registrationData.put("username", username);
-                registrationData.put("email", email);
-                registrationData.put("password_hash", 
-                    com.anonymousemessage.service.EncryptionService.hashPassword(password));
-                registrationData.put("public_key", userKeys.getPublicKey());
-                registrationData.put("timestamp", System.currentTimeMillis());
+                byte[] registrationBytes = RelayProtocol.register(operationId, username, email, hash,
+                    userKeys.getPublicKey(), System.currentTimeMillis());
                 
                 // Encrypt the entire registration package
-                byte[] registrationBytes = new com.fasterxml.jackson.databind.ObjectMapper()
-                    .writeValueAsBytes(registrationData);
-                
                 byte[] encryptedRegistration = com.anonymousemessage.service.EncryptionService
                     .encryptData(registrationBytes);
                 
                 // Send registration through Tor
-                byte[] response = com.anonymousemessage.service.TorService
-                    .sendSecureRequest(encryptedRegistration);
-                
-                if (response != null) {
-                    // Parse registration response
-                    byte[] decryptedResponse = com.anonymousemessage.service.EncryptionService
-                        .decryptData(response);
-                    
-                    java.util.Map<String, Object> responseMap = new com.fasterxml.jackson.databind.ObjectMapper()
-                        .readValue(decryptedResponse, java.util.Map.class);
-                    
-                    boolean success = (Boolean) responseMap.getOrDefault("success", false);
-                    
-                    if (success) {
-                        // Save user credentials locally (encrypted)
-                        com.anonymousemessage.service.SessionManager.getInstance()
-                            .saveCredentials(username, email, userKeys.getPrivateKey());
-                        
-                        runOnUiThread(() -> {
-                            showProgress(false);
-                            Toast.makeText(RegisterActivity.this, 
-                                "Registration successful! Verification code sent to your email.", 
-                                Toast.LENGTH_LONG).show();
-                            
-                            // Navigate to verification screen
-                            Intent intent = new Intent(RegisterActivity.this, VerificationActivity.class);
-                            intent.putExtra("email", email);
-                            intent.putExtra("username", username);
-                            intent.putExtra("password", password);
-                            startActivity(intent);
-                            finish();
-                        });
-                    } else {
-                        runOnUiThread(() -> {
-                            showProgress(false);
-                            String errorMessage = (String) responseMap.getOrDefault("error", 
-                                "Registration failed. Please try again.");
-                            Toast.makeText(RegisterActivity.this, errorMessage, 
-                                Toast.LENGTH_SHORT).show();
-                        });
-                    }
-                } else {
-                    runOnUiThread(() -> {
-                        showProgress(false);
-                        Toast.makeText(RegisterActivity.this, 
-                            "Network error during registration. Please try again.", 
-                            Toast.LENGTH_SHORT).show();
-                    });
-                }
+                CompletableFuture<byte[]> request = TorService.request(operationId, encryptedRegistration);
+                pendingRequest = request;
+                return request;
             } catch (Exception e) {
-                android.util.Log.e("RegisterActivity", "Registration error: " + e.getMessage(), e);
+                throw new CompletionException(e);
+            }
+        }).thenApply(this::decodeResponse).whenComplete((response, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                    ? error.getCause() : error;
+                if (cause instanceof java.util.concurrent.CancellationException) {
+                    return; // activity went away
+                }
+                boolean network = cause instanceof java.io.IOException
+                    || cause instanceof java.util.concurrent.TimeoutException;
+                android.util.Log.e("RegisterActivity", "Registration error: " + cause.getMessage(), cause);
+                runOnUiThread(() -> {
+                    showProgress(false);
+                    Toast.makeText(RegisterActivity.this, network
+                            ? "Network error during registration. Please try again."
+                            : "Registration failed due to technical error. Please try again.",
+                        Toast.LENGTH_SHORT).show();
+                });
+                return;
+            }
+            
+            if (response.ok) {
+                // Save user credentials locally (encrypted)
+                com.anonymousemessage.service.SessionManager.getInstance()
+                    .saveCredentials(username, email, userKeys.getPrivateKey());
+                
                 runOnUiThread(() -> {
                     showProgress(false);
                     Toast.makeText(RegisterActivity.this, 
-                        "Registration failed due to technical error. Please try again.", 
+                        "Registration successful! Verification code sent to your email.", 
+                        Toast.LENGTH_LONG).show();
+                    
+                    // Navigate to verification screen
+                    Intent intent = new Intent(RegisterActivity.this, VerificationActivity.class);
+                    intent.putExtra("email", email);
+                    intent.putExtra("username", username);
+                    intent.putExtra("password", password);
+                    startActivity(intent);
+                    finish();
+                });
+            } else {
+                runOnUiThread(() -> {
+                    showProgress(false);
+                    String errorMessage = response.error != null ? response.error
+                        : "Registration failed. Please try again.";
+                    Toast.makeText(RegisterActivity.this, errorMessage, 
                         Toast.LENGTH_SHORT).show();
                 });
             }
-        }).start();
+        });
+    }
+    
+    /**
+     * Decrypts and parses a relay response; failures surface through the future
+     */
+    private RelayProtocol.Response decodeResponse(byte[] response) {
+        try {
+            byte[] decryptedResponse = com.anonymousemessage.service.EncryptionService
+                .decryptData(response);
+            return RelayProtocol.readResponse(decryptedResponse);
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
     }
     
     private void showProgress(boolean show) {
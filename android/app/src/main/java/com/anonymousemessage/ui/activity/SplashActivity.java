@@ -5,6 +5,16 @@ import android.os.Bundle;
 import android.os.Handler;
 import androidx.appcompat.app.AppCompatActivity;
 import com.anonymousemessage.R;
+import com.anonymousemessage.service.CipherSuitePreference;
+import com.anonymousemessage.service.MessageStoreService;
+import com.anonymousemessage.service.OutboxService;
+import com.anonymousemessage.service.PasswordKdfService;
+import com.anonymousemessage.service.PrekeyService;
+import com.anonymousemessage.service.ReceiptService;
+import com.anonymousemessage.service.SessionManager;
+import com.anonymousemessage.service.SyncService;
+import com.anonymousemessage.service.TorService;
+import com.anonymousemessage.utils.StartupTrace;
 
 public class SplashActivity extends AppCompatActivity {
     
@@ -15,9 +25,32 @@ public class SplashActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_splash);
         
-        // Initialize Tor service
+        // Tor bootstrap is the slowest part of a launch; start it first so it overlaps the rest
+        StartupTrace.begin();
         startTorService();
         
+        // Pick the fastest cipher suite for this device (cached after the first run)
+        CipherSuitePreference.load(this);
+        
+        // Restore or calibrate the password KDF cost before anyone registers or signs in
+        PasswordKdfService.initialize(this);
+        
+        // Session storage first: the prekey pool and outbox are sealed with its key
+        SessionManager.initialize(this);
+        PrekeyService.initialize(this);
+        
+        // Resend anything still queued when the app was last stopped
+        OutboxService.initialize(this);
+        
+        // Where each conversation's history left off, so reconnecting fetches only what's new
+        SyncService.initialize(this);
+        
+        // Conversation history on disk, so chats don't open empty
+        MessageStoreService.initialize(this);
+        
+        // How far we've told each contact their messages arrived and were read
+        ReceiptService.initialize(this);
+        
         // Navigate to login screen after splash duration
         new Handler().postDelayed(() -> {
             Intent intent = new Intent(SplashActivity.this, LoginActivity.class);
@@ -29,5 +62,6 @@ public class SplashActivity extends AppCompatActivity {
     private void startTorService() {
         // Start Tor service in background
         // This will establish connection to Tor network
+        TorService.startService(this);
     }
 }
\ No newline at end of file
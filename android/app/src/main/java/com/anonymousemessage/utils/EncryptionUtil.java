@@ -2,20 +2,16 @@ package com.anonymousemessage.utils;
 
 import android.util.Base64;
 import android.util.Log;
-import javax.crypto.Cipher;
+import com.anonymousemessage.crypto.CryptoEngine;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
-import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
-import java.security.SecureRandom;
+import java.nio.ByteBuffer;
 
 public class EncryptionUtil {
     
     private static final String TAG = "EncryptionUtil";
     private static final String ALGORITHM = "AES";
-    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
-    private static final int GCM_IV_LENGTH = 12; // 96 bits
-    private static final int GCM_TAG_LENGTH = 16; // 128 bits
     
     /**
      * Generates a new AES key
@@ -30,43 +26,29 @@ public class EncryptionUtil {
      * Encrypts data using AES-GCM
      */
     public static byte[] encrypt(byte[] plaintext, SecretKey key) throws Exception {
-        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-        
-        // Generate random IV
-        byte[] iv = new byte[GCM_IV_LENGTH];
-        new SecureRandom().nextBytes(iv);
-        
-        GCMParameterSpec spec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv);
-        cipher.init(Cipher.ENCRYPT_MODE, key, spec);
-        
-        byte[] ciphertext = cipher.doFinal(plaintext);
-        
-        // Prepend IV to ciphertext
-        byte[] result = new byte[iv.length + ciphertext.length];
-        System.arraycopy(iv, 0, result, 0, iv.length);
-        System.arraycopy(ciphertext, 0, result, iv.length, ciphertext.length);
-        
-        return result;
+        // suite || nonce || ciphertext || tag written into one allocation by the pooled engine
+        return CryptoEngine.encrypt(plaintext, key);
+    }
+    
+    /**
+     * Encrypts the remaining bytes of plaintext into out as suite || nonce || ciphertext || tag
+     */
+    public static int encrypt(ByteBuffer plaintext, ByteBuffer out, SecretKey key) throws Exception {
+        return CryptoEngine.encrypt(key, plaintext, out);
     }
     
     /**
      * Decrypts data using AES-GCM
      */
     public static byte[] decrypt(byte[] encryptedData, SecretKey key) throws Exception {
-        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-        
-        // Extract IV from the beginning
-        byte[] iv = new byte[GCM_IV_LENGTH];
-        System.arraycopy(encryptedData, 0, iv, 0, GCM_IV_LENGTH);
-        
-        // Extract the actual ciphertext
-        byte[] ciphertext = new byte[encryptedData.length - GCM_IV_LENGTH];
-        System.arraycopy(encryptedData, GCM_IV_LENGTH, ciphertext, 0, ciphertext.length);
-        
-        GCMParameterSpec spec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv);
-        cipher.init(Cipher.DECRYPT_MODE, key, spec);
-        
-        return cipher.doFinal(ciphertext);
+        return CryptoEngine.decrypt(encryptedData, key);
+    }
+    
+    /**
+     * Decrypts suite || nonce || ciphertext || tag from input into out
+     */
+    public static int decrypt(ByteBuffer input, ByteBuffer out, SecretKey key) throws Exception {
+        return CryptoEngine.decrypt(key, input, out);
     }
     
     /**
@@ -0,0 +1,53 @@
+package com.anonymousemessage.utils;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Milestones of the current launch, each measured once from {@link #begin()}.
+ * Every milestone is also recorded as the timer "startup.<name>" in
+ * {@link Metrics}, so launches can be compared over time.
+ */
+public class StartupTrace {
+
+    private static volatile long beginNanos;
+    private static final ConcurrentHashMap<String, Long> milestones = new ConcurrentHashMap<>();
+
+    /**
+     * Starts the clock; called as early as possible in the launch. Later calls are ignored.
+     */
+    public static synchronized void begin() {
+        if (beginNanos == 0) {
+            beginNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Records name the first time it is reached in this launch; returns whether this call recorded it
+     */
+    public static boolean mark(String name) {
+        long begin = beginNanos;
+        if (begin == 0) {
+            return false;
+        }
+        long elapsed = System.nanoTime() - begin;
+        if (milestones.putIfAbsent(name, elapsed) != null) {
+            return false;
+        }
+        Metrics.timer("startup." + name).record(elapsed);
+        return true;
+    }
+
+    /**
+     * Milliseconds from launch to each milestone reached so far
+     */
+    public static Map<String, Long> milestones() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, Long> entry : milestones.entrySet()) {
+            result.put(entry.getKey(), TimeUnit.NANOSECONDS.toMillis(entry.getValue()));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,79 @@
+package com.anonymousemessage.crypto;
+
+import org.junit.Test;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class BatchEncryptorTest {
+
+    private static final RatchetingKey.Deriver UNUSED = new RatchetingKey.Deriver() {
+        @Override
+        public SecretKey next(SecretKey current, int nextEpoch) {
+            throw new AssertionError("no rotation expected");
+        }
+    };
+
+    @Test
+    public void sealsEveryItemInInputOrder() throws Exception {
+        SecretKey plain = key(1);
+        SecretKey ratcheted = key(2);
+        RatchetingKey sender = new RatchetingKey(ratcheted, 7, UNUSED);
+        List<BatchEncryptor.Item> items = new ArrayList<>();
+        List<byte[]> plaintexts = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            // Large enough in total to split across the pool
+            byte[] plaintext = new byte[1024 + i];
+            plaintext[0] = (byte) i;
+            plaintexts.add(plaintext);
+            items.add(i % 2 == 0 ? new BatchEncryptor.Item(plain, plaintext)
+                : new BatchEncryptor.Item(sender, CipherSuites.MANDATORY, plaintext));
+        }
+
+        try (BatchEncryptor.Batch batch = BatchEncryptor.encryptAll(items, new BufferPool(4))) {
+            assertEquals(items.size(), batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                byte[] sealed = bytes(batch.get(i));
+                byte[] opened;
+                if (i % 2 == 0) {
+                    opened = CryptoEngine.decrypt(sealed, plain);
+                } else {
+                    assertEquals(7, RatchetingKey.epochOf(sealed));
+                    opened = RatchetingKey.decrypt(sealed, ratcheted);
+                }
+                assertArrayEquals(plaintexts.get(i), opened);
+            }
+        }
+    }
+
+    @Test
+    public void closedBatchHandsItsBuffersToTheNextOne() throws Exception {
+        BufferPool pool = new BufferPool(4);
+        List<BatchEncryptor.Item> items = new ArrayList<>();
+        items.add(new BatchEncryptor.Item(key(1), new byte[100]));
+
+        byte[] sealed;
+        try (BatchEncryptor.Batch batch = BatchEncryptor.encryptAll(items, pool)) {
+            sealed = bytes(batch.get(0));
+        }
+        // A fresh buffer would be zeroed; the pooled one still holds the first batch's output
+        ByteBuffer reused = pool.acquire(sealed.length);
+        assertArrayEquals(sealed, bytes(reused));
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static SecretKey key(int seed) {
+        return new SecretKeySpec(ByteBuffer.allocate(32).putInt(seed).array(), "AES");
+    }
+}
@@ -0,0 +1,127 @@
+package com.anonymousemessage.crypto;
+
+import org.junit.After;
+import org.junit.Test;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class CipherSuitesTest {
+
+    private static final String PEER = "peer-public-key";
+
+    @After
+    public void restoreDefaults() {
+        CipherSuites.setPreferred(CipherSuites.MANDATORY);
+        CipherSuites.forget(PEER);
+    }
+
+    @Test
+    public void usesAesWithPeersThatNeverNegotiated() {
+        CipherSuites.setPreferred(CipherSuite.CHACHA20_POLY1305);
+        assertEquals(CipherSuite.AES_256_GCM, CipherSuites.forPeer(PEER));
+    }
+
+    @Test
+    public void usesPreferenceOnlyWhenPeerSupportsIt() {
+        CipherSuites.setPreferred(CipherSuite.CHACHA20_POLY1305);
+
+        assertEquals(CipherSuite.AES_256_GCM, CipherSuites.negotiate(PEER, CipherSuite.AES_256_GCM.mask()));
+        assertEquals(CipherSuite.AES_256_GCM, CipherSuites.forPeer(PEER));
+
+        assertEquals(CipherSuite.CHACHA20_POLY1305, CipherSuites.negotiate(PEER, CipherSuites.SUPPORTED_MASK));
+        assertEquals(CipherSuite.CHACHA20_POLY1305, CipherSuites.forPeer(PEER));
+
+        CipherSuites.forget(PEER);
+        assertEquals(CipherSuite.AES_256_GCM, CipherSuites.forPeer(PEER));
+    }
+
+    @Test
+    public void defaultEncryptIgnoresLocalPreference() throws GeneralSecurityException {
+        CipherSuites.setPreferred(CipherSuite.CHACHA20_POLY1305);
+        SecretKey key = newKey();
+        byte[] sealed = CryptoEngine.encrypt("hello".getBytes(), key);
+        assertEquals(CipherSuite.AES_256_GCM, CryptoEngine.suiteOf(sealed, 0));
+        assertArrayEquals("hello".getBytes(), CryptoEngine.decrypt(sealed, key));
+    }
+
+    @Test
+    public void opensEverySuite() throws GeneralSecurityException {
+        SecretKey key = newKey();
+        for (CipherSuite suite : CipherSuite.values()) {
+            byte[] sealed = CryptoEngine.encrypt(suite, "hello".getBytes(), key);
+            assertEquals(suite, CryptoEngine.suiteOf(sealed, 0));
+            assertArrayEquals("hello".getBytes(), CryptoEngine.decrypt(sealed, key));
+        }
+    }
+
+    @Test
+    public void opensLegacyBlobWhoseIvStartsWithSuiteId() throws GeneralSecurityException {
+        SecretKey key = newKey();
+        byte[] plaintext = "stored before suite ids".getBytes();
+        for (CipherSuite suite : CipherSuite.values()) {
+            byte[] iv = new byte[CryptoEngine.GCM_IV_LENGTH];
+            CryptoEngine.random().nextBytes(iv);
+            iv[0] = suite.id();
+            byte[] legacy = sealLegacy(key, iv, plaintext);
+            assertArrayEquals(plaintext, CryptoEngine.decrypt(legacy, key));
+
+            byte[] out = new byte[legacy.length];
+            int n = CryptoEngine.decrypt(key, legacy, 0, legacy.length, out, 0);
+            assertArrayEquals(plaintext, Arrays.copyOf(out, n));
+
+            ByteBuffer buffer = ByteBuffer.allocate(legacy.length);
+            CryptoEngine.decrypt(key, ByteBuffer.wrap(legacy), buffer);
+            buffer.flip();
+            assertArrayEquals(plaintext, Arrays.copyOf(buffer.array(), buffer.limit()));
+        }
+    }
+
+    @Test
+    public void tamperedSuiteBlobIsRejected() throws GeneralSecurityException {
+        SecretKey key = newKey();
+        byte[] sealed = CryptoEngine.encrypt("hello".getBytes(), key);
+        sealed[sealed.length - 1] ^= 1;
+        try {
+            CryptoEngine.decrypt(sealed, key);
+            fail("tampered blob opened");
+        } catch (AEADBadTagException expected) {
+        }
+    }
+
+    @Test
+    public void opensLegacyBlobWithoutSuiteId() throws GeneralSecurityException {
+        SecretKey key = newKey();
+        byte[] plaintext = "legacy".getBytes();
+        byte[] iv = new byte[CryptoEngine.GCM_IV_LENGTH];
+        CryptoEngine.random().nextBytes(iv);
+        iv[0] = 0; // not a suite id
+        assertArrayEquals(plaintext, CryptoEngine.decrypt(sealLegacy(key, iv, plaintext), key));
+    }
+
+    private static byte[] sealLegacy(SecretKey key, byte[] iv, byte[] plaintext) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(CryptoEngine.TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(CryptoEngine.GCM_TAG_LENGTH * 8, iv));
+        byte[] sealed = cipher.doFinal(plaintext);
+        byte[] blob = new byte[iv.length + sealed.length];
+        System.arraycopy(iv, 0, blob, 0, iv.length);
+        System.arraycopy(sealed, 0, blob, iv.length, sealed.length);
+        return blob;
+    }
+
+    private static SecretKey newKey() {
+        byte[] bytes = new byte[32];
+        CryptoEngine.random().nextBytes(bytes);
+        return new SecretKeySpec(bytes, "AES");
+    }
+}
@@ -0,0 +1,118 @@
+package com.anonymousemessage.crypto;
+
+import org.junit.Test;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class CryptoEngineTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void roundTripsAndNeverRepeatsANonce() throws Exception {
+        SecretKey key = newKey();
+        byte[] plaintext = "same message twice".getBytes(UTF_8);
+
+        byte[] first = CryptoEngine.encrypt(plaintext, key);
+        byte[] second = CryptoEngine.encrypt(plaintext, key);
+
+        assertEquals(CryptoEngine.encryptedLength(plaintext.length), first.length);
+        assertFalse(Arrays.equals(first, second));
+        assertArrayEquals(plaintext, CryptoEngine.decrypt(first, key));
+        assertArrayEquals(plaintext, CryptoEngine.decrypt(second, key));
+    }
+
+    @Test
+    public void bufferAndArrayFormsInteroperate() throws Exception {
+        SecretKey key = newKey();
+        byte[] plaintext = new byte[1000];
+        CryptoEngine.random().nextBytes(plaintext);
+
+        ByteBuffer sealed = ByteBuffer.allocate(CryptoEngine.encryptedLength(plaintext.length));
+        int written = CryptoEngine.encrypt(key, ByteBuffer.wrap(plaintext), sealed);
+        assertEquals(sealed.capacity(), written);
+        assertArrayEquals(plaintext, CryptoEngine.decrypt(sealed.array(), key));
+
+        // Sealed into the middle of a larger array and opened in place
+        byte[] framed = new byte[7 + CryptoEngine.encryptedLength(plaintext.length) + 5];
+        int length = CryptoEngine.encrypt(key, plaintext, 0, plaintext.length, framed, 7);
+        ByteBuffer opened = ByteBuffer.allocate(plaintext.length + CryptoEngine.OVERHEAD);
+        CryptoEngine.decrypt(key, ByteBuffer.wrap(framed, 7, length), opened);
+        opened.flip();
+        byte[] result = new byte[opened.remaining()];
+        opened.get(result);
+        assertArrayEquals(plaintext, result);
+    }
+
+    @Test
+    public void rejectsTamperingAndTheWrongKey() throws Exception {
+        SecretKey key = newKey();
+        byte[] sealed = CryptoEngine.encrypt("transfer 10".getBytes(UTF_8), key);
+
+        byte[] flipped = sealed.clone();
+        flipped[flipped.length - 20] ^= 1;
+        assertRejected(flipped, key);
+        assertRejected(sealed, newKey());
+        assertRejected(Arrays.copyOf(sealed, CryptoEngine.OVERHEAD - 1), key);
+    }
+
+    @Test
+    public void threadsShareNothingButTheKey() throws Exception {
+        final SecretKey key = newKey();
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                final int seed = t;
+                results.add(threads.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        for (int i = 0; i < 500; i++) {
+                            byte[] plaintext = ("thread " + seed + " message " + i).getBytes(UTF_8);
+                            if (!Arrays.equals(plaintext, CryptoEngine.decrypt(CryptoEngine.encrypt(plaintext, key), key))) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertEquals(Boolean.TRUE, result.get());
+            }
+        } finally {
+            threads.shutdown();
+        }
+    }
+
+    private static void assertRejected(byte[] sealed, SecretKey key) {
+        try {
+            CryptoEngine.decrypt(sealed, key);
+            fail("decrypt should have failed");
+        } catch (GeneralSecurityException expected) {
+            // tag mismatch or too short
+        }
+    }
+
+    private static SecretKey newKey() {
+        byte[] bytes = new byte[32];
+        CryptoEngine.random().nextBytes(bytes);
+        return new SecretKeySpec(bytes, "AES");
+    }
+}
@@ -0,0 +1,55 @@
+package com.anonymousemessage.crypto;
+
+import org.junit.Test;
+
+import java.security.GeneralSecurityException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PasswordKdfTest {
+
+    // Cheap enough for a unit test; the verifier carries its own cost
+    private static final PasswordKdf.Params CHEAP = new PasswordKdf.Params(8 * 1024, 1, 1);
+
+    @Test
+    public void verifiesOnlyTheRightPassword() throws Exception {
+        String verifier = PasswordKdf.hash("correct horse", CHEAP);
+
+        assertTrue(verifier.startsWith("$argon2id$v=19$m=8192,t=1,p=1$"));
+        assertTrue(PasswordKdf.verify("correct horse", verifier));
+        assertFalse(PasswordKdf.verify("correct horse ", verifier));
+        assertNotEquals("fresh salt per hash", verifier, PasswordKdf.hash("correct horse", CHEAP));
+    }
+
+    @Test
+    public void paramsRoundTripThroughTheirStringForm() {
+        PasswordKdf.Params parsed = PasswordKdf.Params.parse(new PasswordKdf.Params(19 * 1024, 2, 1).toString());
+
+        assertEquals(19 * 1024, parsed.memoryKiB);
+        assertEquals(2, parsed.iterations);
+        assertEquals(1, parsed.parallelism);
+    }
+
+    @Test
+    public void refusesVerifiersThatWouldCostTooMuch() throws Exception {
+        String verifier = PasswordKdf.hash("pw", CHEAP);
+
+        assertRejected(verifier.replace("m=8192", "m=4194304"));
+        assertRejected(verifier.replace("t=1", "t=1000"));
+        assertRejected(verifier.replace("$argon2id$", "$argon2i$"));
+        assertRejected(verifier.substring(0, verifier.lastIndexOf('$')));
+    }
+
+    private static void assertRejected(String verifier) {
+        try {
+            PasswordKdf.verify("pw", verifier);
+            fail("accepted " + verifier);
+        } catch (GeneralSecurityException expected) {
+            // unsupported, malformed or too costly
+        }
+    }
+}
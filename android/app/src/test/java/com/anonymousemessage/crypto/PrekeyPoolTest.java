@@ -0,0 +1,98 @@
+package com.anonymousemessage.crypto;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PrekeyPoolTest {
+
+    private static final int LOW = 2;
+    private static final int TARGET = 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void takenKeysAreNeverLoadedAgain() throws Exception {
+        File file = new File(folder.getRoot(), "prekeys.bin");
+        SecretKey storageKey = newKey();
+
+        PrekeyPool first = new PrekeyPool(file, storageKey, LOW, TARGET);
+        first.start();
+        awaitSize(first, TARGET);
+        Set<String> taken = new HashSet<String>();
+        for (int i = 0; i < 3; i++) {
+            PrekeyPool.Prekey prekey = first.take();
+            assertTrue(taken.add(Base64.getEncoder().encodeToString(prekey.publicKey())));
+            prekey.wipe();
+        }
+
+        // A restart right after take() must not see the handed-out keys
+        PrekeyPool second = new PrekeyPool(file, storageKey, LOW, TARGET);
+        second.start();
+        awaitSize(second, TARGET);
+        for (int i = 0; i < TARGET; i++) {
+            PrekeyPool.Prekey prekey = second.take();
+            assertTrue("key handed out twice",
+                taken.add(Base64.getEncoder().encodeToString(prekey.publicKey())));
+        }
+        assertEquals(0, second.misses());
+    }
+
+    @Test
+    public void takeAppendsATombstoneInsteadOfRewritingThePool() throws Exception {
+        File file = new File(folder.getRoot(), "prekeys.bin");
+        File tombstones = new File(folder.getRoot(), "prekeys.bin.used");
+        SecretKey storageKey = newKey();
+
+        PrekeyPool first = new PrekeyPool(file, storageKey, LOW, TARGET);
+        first.start();
+        awaitSize(first, TARGET);
+        awaitFile(file); // written once the refill is done
+        byte[] persisted = Files.readAllBytes(file.toPath());
+        first.take().wipe();
+        first.take().wipe();
+        assertArrayEquals(persisted, Files.readAllBytes(file.toPath()));
+        assertEquals(8, tombstones.length());
+
+        // The next start folds the tombstones into the pool file
+        PrekeyPool second = new PrekeyPool(file, storageKey, LOW, TARGET);
+        second.start();
+        awaitSize(second, TARGET);
+        assertEquals(0, tombstones.length());
+    }
+
+    private static void awaitSize(PrekeyPool pool, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (pool.size() < size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(size, pool.size());
+    }
+
+    private static void awaitFile(File file) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!file.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(file.exists());
+    }
+
+    private static SecretKey newKey() {
+        byte[] bytes = new byte[32];
+        CryptoEngine.random().nextBytes(bytes);
+        return new SecretKeySpec(bytes, "AES");
+    }
+}
@@ -0,0 +1,140 @@
+package com.anonymousemessage.crypto;
+
+import org.junit.Test;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RatchetingKeyTest {
+
+    private final ConcurrentHashMap<Integer, SecretKey> epochKeys = new ConcurrentHashMap<>();
+
+    private final RatchetingKey.Deriver deriver = new RatchetingKey.Deriver() {
+        @Override
+        public SecretKey next(SecretKey current, int nextEpoch) {
+            return keyFor(nextEpoch);
+        }
+    };
+
+    @Test
+    public void costsOneBlockPerMessagePlusOnePerSixteenBytes() {
+        assertEquals(1, NonceSequencer.cost(0));
+        assertEquals(2, NonceSequencer.cost(1));
+        assertEquals(2, NonceSequencer.cost(16));
+        assertEquals(3, NonceSequencer.cost(17));
+    }
+
+    @Test
+    public void sequencerStopsAtItsBudget() {
+        NonceSequencer nonces = new NonceSequencer(10);
+        byte[] iv = new byte[CipherSuite.NONCE_LENGTH];
+        for (int i = 0; i < 5; i++) {
+            assertTrue(nonces.next(16, iv, 0));
+        }
+        assertTrue(nonces.isExhausted());
+        assertFalse(nonces.next(0, iv, 0));
+        assertEquals(10, nonces.blockCount());
+    }
+
+    @Test
+    public void refusesAMessageThatDoesNotFit() {
+        NonceSequencer nonces = new NonceSequencer(10);
+        byte[] iv = new byte[CipherSuite.NONCE_LENGTH];
+        assertTrue(nonces.next(100, iv, 0));
+        assertFalse(nonces.next(100, iv, 0));
+    }
+
+    @Test
+    public void noncesAreUniqueAcrossThreads() throws Exception {
+        final NonceSequencer nonces = new NonceSequencer();
+        final int perThread = 20000;
+        final List<Set<String>> seen = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final Set<String> mine = new HashSet<>();
+            seen.add(mine);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] iv = new byte[CipherSuite.NONCE_LENGTH];
+                    for (int i = 0; i < perThread; i++) {
+                        nonces.next(i % 100, iv, 0);
+                        mine.add(Arrays.toString(iv));
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        Set<String> all = new HashSet<>();
+        for (int t = 0; t < threads.size(); t++) {
+            threads.get(t).join();
+            all.addAll(seen.get(t));
+        }
+        assertEquals(4 * perThread, all.size());
+    }
+
+    @Test
+    public void rotatesWhenTheEpochIsUsedUp() throws GeneralSecurityException {
+        // 16-byte messages cost two blocks, so five fit in each epoch
+        RatchetingKey sender = new RatchetingKey(keyFor(0), 0, deriver, 10);
+        byte[] plaintext = new byte[16];
+        for (int i = 0; i < 12; i++) {
+            plaintext[0] = (byte) i;
+            byte[] sealed = sender.encrypt(CipherSuite.AES_256_GCM, plaintext);
+            int epoch = RatchetingKey.epochOf(sealed);
+            assertEquals(i / 5, epoch);
+            assertArrayEquals(plaintext, RatchetingKey.decrypt(sealed, keyFor(epoch)));
+        }
+        assertEquals(2, sender.currentEpoch());
+        assertEquals(4, sender.blocksInEpoch());
+    }
+
+    @Test
+    public void rejectsTheWrongEpochKey() throws GeneralSecurityException {
+        RatchetingKey sender = new RatchetingKey(keyFor(0), 0, deriver);
+        byte[] sealed = sender.encrypt(CipherSuite.AES_256_GCM, "hello".getBytes());
+        try {
+            RatchetingKey.decrypt(sealed, keyFor(1));
+            fail("Opened with another epoch's key");
+        } catch (GeneralSecurityException expected) {
+        }
+    }
+
+    @Test
+    public void engineRefusesAKeyPastItsLimit() throws GeneralSecurityException {
+        SecretKey key = keyFor(7);
+        NonceSequencer nonces = new NonceSequencer(3);
+        byte[] out = new byte[CryptoEngine.encryptedLength(8)];
+        CryptoEngine.encrypt(CipherSuite.AES_256_GCM, key, nonces, new byte[8], 0, 8, out, 0);
+        try {
+            CryptoEngine.encrypt(CipherSuite.AES_256_GCM, key, nonces, new byte[8], 0, 8, out, 0);
+            fail("Sealed past the usage limit");
+        } catch (KeyUsageLimitException expected) {
+        }
+    }
+
+    private SecretKey keyFor(int epoch) {
+        SecretKey key = epochKeys.get(epoch);
+        if (key == null) {
+            byte[] raw = ByteBuffer.allocate(32).putInt(epoch + 1).array();
+            epochKeys.putIfAbsent(epoch, new SecretKeySpec(raw, "AES"));
+            key = epochKeys.get(epoch);
+        }
+        return key;
+    }
+}
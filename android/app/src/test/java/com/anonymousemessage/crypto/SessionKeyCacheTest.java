@@ -0,0 +1,110 @@
+package com.anonymousemessage.crypto;
+
+import org.junit.Test;
+
+import javax.crypto.SecretKey;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class SessionKeyCacheTest {
+
+    @Test
+    public void bothSidesDeriveTheSameKeyPerEpoch() throws Exception {
+        byte[][] alice = KeyExchange.generateKeyPair();
+        byte[][] bob = KeyExchange.generateKeyPair();
+        SessionKeyCache aliceCache = new SessionKeyCache(8, source(alice[0], new AtomicInteger()));
+        SessionKeyCache bobCache = new SessionKeyCache(8, source(bob[0], new AtomicInteger()));
+
+        SecretKey aliceKey = aliceCache.get(encode(bob[1]), 0);
+        assertArrayEquals(aliceKey.getEncoded(), bobCache.get(encode(alice[1]), 0).getEncoded());
+        assertFalse(java.util.Arrays.equals(aliceKey.getEncoded(),
+            aliceCache.get(encode(bob[1]), 1).getEncoded()));
+    }
+
+    @Test
+    public void agreesOnceAndDerivesEachEpochOnce() throws Exception {
+        byte[][] ours = KeyExchange.generateKeyPair();
+        String contact = encode(KeyExchange.generateKeyPair()[1]);
+        AtomicInteger identityReads = new AtomicInteger();
+        SessionKeyCache cache = new SessionKeyCache(8, source(ours[0], identityReads));
+
+        SecretKey first = cache.get(contact, 0);
+        assertSame(first, cache.get(contact, 0));
+        cache.get(contact, 1);
+        assertEquals(1, identityReads.get());
+
+        cache.invalidate(contact);
+        cache.get(contact, 0);
+        assertEquals(2, identityReads.get());
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedContact() throws Exception {
+        SessionKeyCache cache = new SessionKeyCache(2, source(KeyExchange.generateKeyPair()[0], new AtomicInteger()));
+        String first = encode(KeyExchange.generateKeyPair()[1]);
+        cache.get(first, 0);
+        cache.get(encode(KeyExchange.generateKeyPair()[1]), 0);
+        cache.get(first, 0);
+        cache.get(encode(KeyExchange.generateKeyPair()[1]), 0);
+
+        assertEquals(2, cache.size());
+        SecretKey kept = cache.get(first, 0);
+        assertSame(kept, cache.get(first, 0));
+    }
+
+    @Test
+    public void refusesReceivedEpochsOutsideTheWindow() throws Exception {
+        String contact = encode(KeyExchange.generateKeyPair()[1]);
+        AtomicInteger identityReads = new AtomicInteger();
+        SessionKeyCache cache = new SessionKeyCache(8, source(KeyExchange.generateKeyPair()[0], identityReads));
+
+        assertRejected(cache, contact, 1000);
+        assertRejected(cache, contact, -1);
+        assertEquals("nothing derived for a forged epoch", 0, identityReads.get());
+
+        cache.receiving(contact, 4);
+        cache.confirmEpoch(contact, 4);
+        cache.receiving(contact, 8);
+        assertRejected(cache, contact, 9);
+    }
+
+    @Test
+    public void rejectsALowOrderPeerKey() {
+        try {
+            KeyExchange.agree(KeyExchange.generateKeyPair()[0], new byte[KeyExchange.KEY_LENGTH]);
+            fail("all-zero shared secret accepted");
+        } catch (GeneralSecurityException expected) {
+            // low-order point
+        }
+    }
+
+    private static void assertRejected(SessionKeyCache cache, String contact, int epoch) {
+        try {
+            cache.receiving(contact, epoch);
+            fail("epoch " + epoch + " accepted");
+        } catch (GeneralSecurityException expected) {
+            // outside the accepted window
+        }
+    }
+
+    private static SessionKeyCache.IdentityKeySource source(final byte[] privateKey, final AtomicInteger reads) {
+        return new SessionKeyCache.IdentityKeySource() {
+            @Override
+            public byte[] identityKey() {
+                reads.incrementAndGet();
+                return privateKey.clone();
+            }
+        };
+    }
+
+    private static String encode(byte[] publicKey) {
+        return Base64.getEncoder().encodeToString(publicKey);
+    }
+}
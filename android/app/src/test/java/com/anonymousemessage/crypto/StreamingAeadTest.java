@@ -0,0 +1,199 @@
+package com.anonymousemessage.crypto;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class StreamingAeadTest {
+
+    private static final int SEGMENT = 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SecretKey key;
+    private File plain;
+    private File sealed;
+
+    @Before
+    public void setUp() throws IOException {
+        byte[] raw = new byte[32];
+        new Random(1).nextBytes(raw);
+        key = new SecretKeySpec(raw, "AES");
+        plain = folder.newFile("plain");
+        sealed = folder.newFile("sealed");
+    }
+
+    @After
+    public void tearDown() {
+        plain.delete();
+        sealed.delete();
+    }
+
+    @Test
+    public void fileRoundTrip() throws Exception {
+        for (int size : new int[] {0, 1, SEGMENT - 1, SEGMENT, SEGMENT + 1, 5 * SEGMENT, 5 * SEGMENT + 17}) {
+            byte[] data = write(plain, size, size);
+            try (FileChannel in = channel(plain); FileChannel out = channel(sealed)) {
+                out.truncate(0);
+                long written = StreamingAead.encrypt(key, in, out, SEGMENT);
+                assertEquals(StreamingAead.ciphertextSize(size, SEGMENT), written);
+                assertEquals(written, out.size());
+            }
+            assertArrayEquals("size " + size, data, decrypt());
+        }
+    }
+
+    @Test
+    public void streamRoundTrip() throws Exception {
+        for (int size : new int[] {0, SEGMENT, 3 * SEGMENT + 5}) {
+            byte[] data = new byte[size];
+            new Random(size).nextBytes(data);
+            ByteArrayOutputStream sealedBytes = new ByteArrayOutputStream();
+            StreamingAead.encrypt(key, new ByteArrayInputStream(data), sealedBytes, SEGMENT);
+            assertEquals(StreamingAead.ciphertextSize(size, SEGMENT), sealedBytes.size());
+
+            ByteArrayOutputStream opened = new ByteArrayOutputStream();
+            StreamingAead.decrypt(key, new ByteArrayInputStream(sealedBytes.toByteArray()), opened);
+            assertArrayEquals(data, opened.toByteArray());
+        }
+    }
+
+    @Test
+    public void decryptsSingleSegment() throws Exception {
+        byte[] data = write(plain, 4 * SEGMENT + 100, 7);
+        encrypt();
+        try (FileChannel in = channel(sealed)) {
+            ByteBuffer out = ByteBuffer.allocate(SEGMENT);
+            assertEquals(SEGMENT, StreamingAead.decryptSegment(key, in, 2, out));
+            assertArrayEquals(Arrays.copyOfRange(data, 2 * SEGMENT, 3 * SEGMENT), out.array());
+
+            out.clear();
+            assertEquals(100, StreamingAead.decryptSegment(key, in, 4, out));
+            assertArrayEquals(Arrays.copyOfRange(data, 4 * SEGMENT, data.length), Arrays.copyOf(out.array(), 100));
+        }
+    }
+
+    @Test
+    public void rejectsTruncation() throws Exception {
+        write(plain, 3 * SEGMENT, 3);
+        encrypt();
+        try (FileChannel out = channel(sealed)) {
+            // Dropping a whole segment leaves a valid-looking stream without the last-segment flag
+            out.truncate(out.size() - SEGMENT - CipherSuite.TAG_LENGTH);
+        }
+        try {
+            decrypt();
+            fail("Truncated stream decrypted");
+        } catch (AEADBadTagException expected) {
+        }
+    }
+
+    @Test
+    public void resumesInterruptedEncryption() throws Exception {
+        byte[] data = write(plain, 6 * SEGMENT + 10, 11);
+        encrypt();
+        long full = sealed.length();
+        for (long cut : new long[] {StreamingAead.HEADER_LENGTH, StreamingAead.HEADER_LENGTH + 5,
+                StreamingAead.HEADER_LENGTH + 2L * (SEGMENT + CipherSuite.TAG_LENGTH),
+                StreamingAead.HEADER_LENGTH + 3L * (SEGMENT + CipherSuite.TAG_LENGTH) + 200, full - 1, full}) {
+            interruptedRun();
+            try (FileChannel in = channel(plain); FileChannel out = channel(sealed)) {
+                out.truncate(cut);
+                assertEquals(full, StreamingAead.resume(key, in, out));
+            }
+            assertArrayEquals("cut at " + cut, data, decrypt());
+        }
+    }
+
+    @Test
+    public void refusesToResealChangedSource() throws Exception {
+        write(plain, 4 * SEGMENT, 5);
+        encrypt();
+        try (FileChannel out = channel(sealed)) {
+            out.truncate(StreamingAead.HEADER_LENGTH + 2L * (SEGMENT + CipherSuite.TAG_LENGTH) + 300);
+        }
+        // The partly written segment would go out again under the same nonce with other bytes
+        byte[] changed = write(plain, 4 * SEGMENT, 6);
+        try (FileChannel in = channel(plain); FileChannel out = channel(sealed)) {
+            StreamingAead.resume(key, in, out);
+            fail("Resealed a changed segment under the same nonce");
+        } catch (AEADBadTagException expected) {
+        }
+
+        encrypt();
+        assertArrayEquals(changed, decrypt());
+    }
+
+    private byte[] write(File file, int size, long seed) throws IOException {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        Files.write(file.toPath(), data);
+        return data;
+    }
+
+    private void encrypt() throws IOException, GeneralSecurityException {
+        try (FileChannel in = channel(plain); FileChannel out = channel(sealed)) {
+            out.truncate(0);
+            StreamingAead.encrypt(key, in, out, SEGMENT);
+        }
+    }
+
+    /**
+     * The run being resumed happened in an earlier process. Sealing on another thread keeps the
+     * JDK's GCM from refusing the resealed segment as an IV it has just used itself.
+     */
+    private void interruptedRun() throws Exception {
+        final Exception[] failure = new Exception[1];
+        Thread run = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    encrypt();
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        });
+        run.start();
+        run.join();
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    private byte[] decrypt() throws IOException, GeneralSecurityException {
+        File opened = folder.newFile();
+        try (FileChannel in = channel(sealed); FileChannel out = channel(opened)) {
+            StreamingAead.decrypt(key, in, out);
+        }
+        byte[] data = Files.readAllBytes(opened.toPath());
+        opened.delete();
+        return data;
+    }
+
+    private static FileChannel channel(File file) throws IOException {
+        return new RandomAccessFile(file, "rw").getChannel();
+    }
+}
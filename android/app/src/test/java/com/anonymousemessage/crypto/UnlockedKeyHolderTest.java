@@ -0,0 +1,64 @@
+package com.anonymousemessage.crypto;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UnlockedKeyHolderTest {
+
+    @Test
+    public void wipeZeroesTheMaterial() {
+        UnlockedKeyHolder holder = new UnlockedKeyHolder(1, TimeUnit.MINUTES);
+        byte[] material = {1, 2, 3, 4};
+        holder.put(material);
+        assertTrue(holder.isUnlocked());
+        assertArrayEquals(new byte[] {1, 2, 3, 4}, holder.get());
+
+        holder.wipe();
+
+        assertFalse(holder.isUnlocked());
+        assertNull(holder.get());
+        assertArrayEquals(new byte[4], material);
+    }
+
+    @Test
+    public void replacingWipesThePreviousMaterial() {
+        UnlockedKeyHolder holder = new UnlockedKeyHolder(1, TimeUnit.MINUTES);
+        byte[] first = {1, 2, 3};
+        holder.put(first);
+        holder.put(new byte[] {4, 5, 6});
+
+        assertArrayEquals(new byte[3], first);
+        assertArrayEquals(new byte[] {4, 5, 6}, holder.get());
+    }
+
+    @Test
+    public void getHandsOutACopyThatSurvivesAWipe() {
+        UnlockedKeyHolder holder = new UnlockedKeyHolder(1, TimeUnit.MINUTES);
+        holder.put(new byte[] {1, 2, 3});
+        byte[] copy = holder.get();
+        copy[0] = 42;
+
+        holder.wipe();
+
+        assertArrayEquals(new byte[] {42, 2, 3}, copy);
+    }
+
+    @Test
+    public void locksItselfOnceIdlePastTheTtl() throws Exception {
+        UnlockedKeyHolder holder = new UnlockedKeyHolder(50, TimeUnit.MILLISECONDS);
+        byte[] material = {9, 9, 9};
+        holder.put(material);
+
+        Thread.sleep(200);
+
+        // The reaper has zeroed it without anyone calling get()
+        assertArrayEquals(new byte[3], material);
+        assertNull(holder.get());
+    }
+}
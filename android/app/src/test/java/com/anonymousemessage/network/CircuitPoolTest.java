@@ -0,0 +1,174 @@
+package com.anonymousemessage.network;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CircuitPoolTest {
+
+    private static final long MINUTE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private ServerSocket proxy;
+    private final List<String> usernames = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> destinations = Collections.synchronizedList(new ArrayList<String>());
+    private final List<Socket> accepted = Collections.synchronizedList(new ArrayList<Socket>());
+    private volatile boolean refuse;
+
+    @Before
+    public void setUp() throws IOException {
+        proxy = new ServerSocket(0, 16, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "FakeSocksProxy");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        proxy.close();
+        synchronized (accepted) {
+            for (Socket socket : accepted) {
+                socket.close();
+            }
+        }
+    }
+
+    @Test
+    public void fillWarmsEachStreamOnACircuitOfItsOwn() throws Exception {
+        CircuitPool pool = newPool(3, MINUTE_NANOS);
+
+        pool.fill().get(5, TimeUnit.SECONDS);
+        awaitWarm(pool, 3);
+
+        assertEquals(3, usernames.size());
+        assertEquals("distinct isolation credentials", 3, new HashSet<>(usernames).size());
+        assertEquals(Collections.nCopies(3, "relay.onion:80"), destinations);
+        for (int i = 0; i < 3; i++) {
+            Socket socket = pool.take();
+            assertNotNull(socket);
+            assertTrue(socket.isConnected());
+            socket.close();
+        }
+        pool.close();
+    }
+
+    @Test
+    public void staleStreamsAreClosedInsteadOfHandedOut() throws Exception {
+        CircuitPool pool = newPool(1, TimeUnit.MILLISECONDS.toNanos(1));
+        pool.fill().get(5, TimeUnit.SECONDS);
+        awaitWarm(pool, 1);
+        Thread.sleep(20);
+
+        assertNull(pool.take());
+        pool.close();
+    }
+
+    @Test
+    public void takeDoesNotRedialAndCloseIdleDropsUnclaimedStreams() throws Exception {
+        CircuitPool pool = newPool(2, TimeUnit.MILLISECONDS.toNanos(200));
+        pool.fill().get(5, TimeUnit.SECONDS);
+        awaitWarm(pool, 2);
+
+        pool.take().close();
+        Thread.sleep(300);
+        assertEquals(2, usernames.size());
+
+        pool.closeIdle();
+        assertEquals(0, pool.warmCount());
+        pool.close();
+    }
+
+    @Test
+    public void fillFailsOnceEveryDialHasFailed() throws Exception {
+        refuse = true;
+        CircuitPool pool = newPool(2, MINUTE_NANOS);
+
+        try {
+            pool.fill().get(5, TimeUnit.SECONDS);
+            fail("fill succeeded though the proxy refused every stream");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(0, pool.warmCount());
+        pool.close();
+    }
+
+    private CircuitPool newPool(int target, long maxIdleNanos) {
+        return new CircuitPool(new InetSocketAddress(InetAddress.getLoopbackAddress(), proxy.getLocalPort()),
+            "relay.onion", 80, target, maxIdleNanos, 2000);
+    }
+
+    private static void awaitWarm(CircuitPool pool, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (pool.warmCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, pool.warmCount());
+    }
+
+    private void acceptLoop() {
+        while (!proxy.isClosed()) {
+            try {
+                Socket socket = proxy.accept();
+                accepted.add(socket);
+                handshake(socket);
+            } catch (IOException e) {
+                // closed by the test
+            }
+        }
+    }
+
+    /**
+     * Server side of the username/password CONNECT exchange; the stream then stays open, unused
+     */
+    private void handshake(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+        in.readFully(new byte[3]); // version, one method, username/password
+        if (refuse) {
+            out.write(new byte[] {5, (byte) 0xFF}); // no acceptable method
+            socket.close();
+            return;
+        }
+        out.write(new byte[] {5, 2});
+
+        in.readUnsignedByte();
+        byte[] user = new byte[in.readUnsignedByte()];
+        in.readFully(user);
+        in.readFully(new byte[in.readUnsignedByte()]);
+        usernames.add(new String(user, "US-ASCII"));
+        out.write(new byte[] {1, 0});
+
+        in.readFully(new byte[4]); // version, CONNECT, reserved, domain name
+        byte[] host = new byte[in.readUnsignedByte()];
+        in.readFully(host);
+        int port = in.readUnsignedShort();
+        destinations.add(new String(host, "US-ASCII") + ":" + port);
+        out.write(new byte[] {5, 0, 0, 1, 127, 0, 0, 1, 0, 0});
+        out.flush();
+    }
+}
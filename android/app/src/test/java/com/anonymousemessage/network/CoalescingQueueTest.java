@@ -0,0 +1,164 @@
+package com.anonymousemessage.network;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CoalescingQueueTest {
+
+    @Test
+    public void frameRoundTripsAndRejectsTruncation() throws Exception {
+        List<byte[]> payloads = Arrays.asList(new byte[] {1, 2, 3}, new byte[0], new byte[] {4});
+        byte[] framed = CoalescingQueue.frame(payloads);
+
+        List<byte[]> unframed = CoalescingQueue.unframe(framed);
+        assertEquals(3, unframed.size());
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(payloads.get(i), unframed.get(i));
+        }
+        try {
+            CoalescingQueue.unframe(Arrays.copyOf(framed, framed.length - 1));
+            fail("truncated batch accepted");
+        } catch (IOException expected) {
+            // last payload cut short
+        }
+    }
+
+    @Test
+    public void coalescesABurstPerDestination() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        CoalescingQueue queue = new CoalescingQueue(sender,
+            new CoalescingQueue.Config().window(200, TimeUnit.MILLISECONDS));
+
+        List<CompletableFuture<?>> sent = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            sent.add(queue.enqueue("alice", new byte[] {(byte) i}));
+        }
+        sent.add(queue.enqueue("bob", new byte[] {9}));
+        for (CompletableFuture<?> future : sent) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+
+        assertEquals(2, sender.destinations.size());
+        List<byte[]> alice = CoalescingQueue.unframe(sender.batchFor("alice"));
+        assertEquals(3, alice.size());
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(new byte[] {(byte) i}, alice.get(i));
+        }
+        assertEquals(1, CoalescingQueue.unframe(sender.batchFor("bob")).size());
+    }
+
+    @Test
+    public void flushesEarlyWhenTheByteBudgetIsReached() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        CoalescingQueue queue = new CoalescingQueue(sender,
+            new CoalescingQueue.Config().window(1, TimeUnit.MINUTES).maxBatchBytes(100));
+
+        CompletableFuture<?> first = queue.enqueue("alice", new byte[60]);
+        CompletableFuture<?> second = queue.enqueue("alice", new byte[60]);
+
+        // The second payload doesn't fit, so the first goes out without waiting for the window
+        first.get(5, TimeUnit.SECONDS);
+        assertTrue(!second.isDone());
+        queue.flush("alice");
+        second.get(5, TimeUnit.SECONDS);
+        assertEquals(2, sender.destinations.size());
+    }
+
+    @Test
+    public void numbersEachPayloadFromTheBatchsFirst() throws Exception {
+        CoalescingQueue queue = new CoalescingQueue(new CoalescingQueue.BatchSender() {
+            @Override
+            public CompletableFuture<Long> send(String destination, byte[] batch) {
+                return CompletableFuture.completedFuture(40L);
+            }
+        }, new CoalescingQueue.Config().window(1, TimeUnit.MINUTES));
+
+        CompletableFuture<Long> first = queue.enqueue("alice", new byte[] {1});
+        CompletableFuture<Long> second = queue.enqueue("alice", new byte[] {2});
+        queue.flush("alice");
+
+        assertEquals(Long.valueOf(40), first.get(5, TimeUnit.SECONDS));
+        assertEquals(Long.valueOf(41), second.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void flushAllHandsEveryBatchToTheSenderAtOnce() throws Exception {
+        final List<Integer> groups = Collections.synchronizedList(new ArrayList<Integer>());
+        RecordingSender sender = new RecordingSender() {
+            @Override
+            public List<CompletableFuture<Long>> sendAll(List<String> destinations, List<byte[]> batches) {
+                groups.add(batches.size());
+                return super.sendAll(destinations, batches);
+            }
+        };
+        CoalescingQueue queue = new CoalescingQueue(sender,
+            new CoalescingQueue.Config().window(1, TimeUnit.MINUTES));
+
+        CompletableFuture<Long> alice = queue.enqueue("alice", new byte[] {1});
+        CompletableFuture<Long> bob = queue.enqueue("bob", new byte[] {2});
+        queue.flushAll();
+        alice.get(5, TimeUnit.SECONDS);
+        bob.get(5, TimeUnit.SECONDS);
+
+        assertEquals(Collections.singletonList(2), groups);
+        assertEquals(2, sender.destinations.size());
+    }
+
+    @Test
+    public void failedSendFailsEveryPayloadInTheBatch() throws Exception {
+        CoalescingQueue queue = new CoalescingQueue(new CoalescingQueue.BatchSender() {
+            @Override
+            public CompletableFuture<Long> send(String destination, byte[] batch) {
+                CompletableFuture<Long> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new IOException("relay unreachable"));
+                return failed;
+            }
+        }, new CoalescingQueue.Config().window(1, TimeUnit.MINUTES));
+
+        CompletableFuture<?> first = queue.enqueue("alice", new byte[] {1});
+        CompletableFuture<?> second = queue.enqueue("alice", new byte[] {2});
+        queue.close();
+
+        assertFailsWithIOException(first);
+        assertFailsWithIOException(second);
+        assertFailsWithIOException(queue.enqueue("alice", new byte[] {3}));
+    }
+
+    private static void assertFailsWithIOException(CompletableFuture<?> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("expected failure");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    private static class RecordingSender implements CoalescingQueue.BatchSender {
+        final List<String> destinations = Collections.synchronizedList(new ArrayList<String>());
+        final List<byte[]> batches = Collections.synchronizedList(new ArrayList<byte[]>());
+
+        @Override
+        public CompletableFuture<Long> send(String destination, byte[] batch) {
+            destinations.add(destination);
+            batches.add(batch);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        byte[] batchFor(String destination) {
+            return batches.get(destinations.indexOf(destination));
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.anonymousemessage.network;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MultiplexedConnectionTest {
+
+    @Test
+    public void failedWriteFailsRequestsAlreadyInFlight() throws Exception {
+        final FakeSocket socket = new FakeSocket();
+        final AtomicInteger dials = new AtomicInteger();
+        MultiplexedConnection connection = new MultiplexedConnection(new MultiplexedConnection.Dialer() {
+            @Override
+            public Socket dial() {
+                dials.incrementAndGet();
+                return socket;
+            }
+        });
+
+        CompletableFuture<byte[]> inFlight = connection.request(MultiplexedConnection.newOperationId(),
+            new byte[8], 1, TimeUnit.MINUTES);
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (socket.written.size() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue("first frame not written", socket.written.size() > 0);
+
+        socket.brokenPipe = true;
+        CompletableFuture<byte[]> failing = connection.request(MultiplexedConnection.newOperationId(),
+            new byte[8], 1, TimeUnit.MINUTES);
+
+        assertFailsWithIOException(failing);
+        // Without teardown on the write path this would wait for its one-minute timeout
+        assertFailsWithIOException(inFlight);
+        assertEquals(0, connection.inFlight());
+        assertEquals(1, dials.get());
+    }
+
+    @Test
+    public void shutdownFailsPendingRequestsAndRefusesNewOnes() throws Exception {
+        final FakeSocket socket = new FakeSocket();
+        final AtomicInteger dials = new AtomicInteger();
+        MultiplexedConnection connection = new MultiplexedConnection(new MultiplexedConnection.Dialer() {
+            @Override
+            public Socket dial() {
+                dials.incrementAndGet();
+                return socket;
+            }
+        });
+
+        CompletableFuture<byte[]> inFlight = connection.request(MultiplexedConnection.newOperationId(),
+            new byte[8], 1, TimeUnit.MINUTES);
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (socket.written.size() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        connection.shutdown();
+
+        assertFailsWithIOException(inFlight);
+        assertFailsWithIOException(connection.request(MultiplexedConnection.newOperationId(),
+            new byte[8], 1, TimeUnit.MINUTES));
+        assertEquals(0, connection.inFlight());
+        assertEquals("a shut down connection must not redial", 1, dials.get());
+    }
+
+    private static void assertFailsWithIOException(CompletableFuture<byte[]> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("request should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    /**
+     * Socket whose peer never answers and whose writes fail once brokenPipe is set
+     */
+    private static final class FakeSocket extends Socket {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        volatile boolean brokenPipe;
+        private final CountDownLatch closed = new CountDownLatch(1);
+
+        @Override
+        public void setTcpNoDelay(boolean on) {
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    if (brokenPipe) {
+                        throw new IOException("Broken pipe");
+                    }
+                    synchronized (written) {
+                        written.write(b, off, len);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    try {
+                        closed.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    throw new IOException("Socket closed");
+                }
+            };
+        }
+
+        @Override
+        public synchronized void close() {
+            closed.countDown();
+        }
+    }
+}
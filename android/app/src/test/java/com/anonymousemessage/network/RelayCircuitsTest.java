@@ -0,0 +1,102 @@
+package com.anonymousemessage.network;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RelayCircuitsTest {
+
+    @Test
+    public void failuresSurviveReconnectUntilSuccess() {
+        CircuitStats stats = new CircuitStats();
+        stats.recordFailure();
+        stats.recordFailure();
+        stats.reconnected();
+        assertEquals(2, stats.attempts());
+        assertTrue(stats.failureRate() > 0);
+
+        stats.recordSuccess(TimeUnit.MILLISECONDS.toNanos(100), 64);
+        assertEquals(3, stats.attempts());
+        stats.reconnected();
+        assertEquals(0, stats.attempts());
+        assertEquals(0, stats.failureRate(), 0);
+    }
+
+    @Test
+    public void retiresCircuitThatNeverSucceeds() throws Exception {
+        RelayCircuits circuits = new RelayCircuits(new MultiplexedConnection.Dialer() {
+            @Override
+            public Socket dial() {
+                return new HangUpSocket();
+            }
+        }, 1);
+
+        for (int i = 0; i < RelayCircuits.MIN_SAMPLES + 5 && circuits.diagnostics().containsKey("circuit-1"); i++) {
+            try {
+                circuits.request(MultiplexedConnection.newOperationId(), new byte[8], 5, TimeUnit.SECONDS,
+                    RelayCircuits.TrafficClass.LATENCY).get(10, TimeUnit.SECONDS);
+                fail("request should have failed");
+            } catch (ExecutionException expected) {
+            }
+            awaitAttempts(circuits, i + 1);
+        }
+        assertFalse("circuit that only fails was never retired", circuits.diagnostics().containsKey("circuit-1"));
+        assertTrue(circuits.diagnostics().containsKey("circuit-2"));
+        circuits.close();
+    }
+
+    // Stats are recorded after the caller's future completes
+    private static void awaitAttempts(RelayCircuits circuits, int attempts) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (System.currentTimeMillis() < deadline) {
+            String stats = circuits.diagnostics().get("circuit-1");
+            if (stats == null || stats.contains("(" + attempts + ")")) {
+                return;
+            }
+            Thread.sleep(5);
+        }
+        fail("failure " + attempts + " was not recorded");
+    }
+
+    /**
+     * Socket that connects, then hangs up before answering anything
+     */
+    private static final class HangUpSocket extends Socket {
+        @Override
+        public void setTcpNoDelay(boolean on) {
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+            };
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new InputStream() {
+                @Override
+                public int read() {
+                    return -1;
+                }
+            };
+        }
+
+        @Override
+        public synchronized void close() {
+        }
+    }
+}
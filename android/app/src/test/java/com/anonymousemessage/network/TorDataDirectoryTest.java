@@ -0,0 +1,61 @@
+package com.anonymousemessage.network;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TorDataDirectoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void torrcPointsTorAtThePersistentDataDirectory() throws Exception {
+        TorDataDirectory directory = new TorDataDirectory(folder.getRoot());
+
+        assertFalse("nothing cached on the first launch", directory.prepare("127.0.0.1", 9050));
+
+        assertTrue(directory.dataDirectory().isDirectory());
+        String torrc = new String(Files.readAllBytes(directory.torrc().toPath()), Charset.forName("UTF-8"));
+        assertTrue(torrc.contains("DataDirectory " + directory.dataDirectory().getAbsolutePath() + "\n"));
+        assertTrue(torrc.contains("SocksPort 127.0.0.1:9050 IsolateSOCKSAuth\n"));
+    }
+
+    @Test
+    public void unchangedTorrcIsNotRewritten() throws Exception {
+        TorDataDirectory directory = new TorDataDirectory(folder.getRoot());
+        directory.prepare("127.0.0.1", 9050);
+        long written = TimeUnit.DAYS.toMillis(365);
+        assertTrue(directory.torrc().setLastModified(written));
+
+        directory.prepare("127.0.0.1", 9050);
+        assertEquals(written, directory.torrc().lastModified());
+
+        directory.prepare("127.0.0.1", 9150);
+        assertTrue(directory.torrc().lastModified() != written);
+    }
+
+    @Test
+    public void reusesStateOnlyWhileTheConsensusIsFresh() throws Exception {
+        TorDataDirectory directory = new TorDataDirectory(folder.getRoot());
+        directory.prepare("127.0.0.1", 9050);
+        File consensus = new File(directory.dataDirectory(), "cached-microdesc-consensus");
+        assertTrue(consensus.createNewFile());
+        assertFalse("guard state missing", directory.hasFreshState());
+        assertTrue(new File(directory.dataDirectory(), "state").createNewFile());
+
+        assertTrue(directory.prepare("127.0.0.1", 9050));
+
+        assertTrue(consensus.setLastModified(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(25)));
+        assertFalse(directory.hasFreshState());
+    }
+}
@@ -0,0 +1,162 @@
+package com.anonymousemessage.network;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.HttpUrl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TorTransportTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private ServerSocket server;
+    private final AtomicInteger accepted = new AtomicInteger();
+    private TorTransport transport;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket(0, 16, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "EchoServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        // The SOCKS hop is Tor's job; the pooling above it is what is under test
+        transport = new TorTransport(Proxy.NO_PROXY, new TorTransport.Config());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        transport.shutdown();
+        server.close();
+    }
+
+    @Test
+    public void requestsToOneDestinationShareAKeptAliveConnection() throws Exception {
+        HttpUrl url = url("/relay");
+        for (int i = 0; i < 5; i++) {
+            byte[] body = ("request " + i).getBytes(ASCII);
+            assertArrayEquals(body, transport.post(url, body));
+        }
+
+        assertEquals(1, accepted.get());
+        assertEquals(Collections.singletonMap(url.host() + ":" + url.port(), 1), transport.connectionCounts());
+    }
+
+    @Test
+    public void evictAllClosesPooledConnections() throws Exception {
+        transport.post(url("/relay"), new byte[] {1});
+        transport.evictAll();
+
+        assertEquals(Collections.<String, Integer>emptyMap(), transport.connectionCounts());
+        transport.post(url("/relay"), new byte[] {2});
+        assertEquals(2, accepted.get());
+    }
+
+    @Test
+    public void unsuccessfulStatusIsAnIOException() throws Exception {
+        try {
+            transport.post(url("/fail"), new byte[] {1});
+            fail("HTTP 500 accepted");
+        } catch (IOException expected) {
+            // surfaced to the caller, not returned as a body
+        }
+    }
+
+    private HttpUrl url(String path) {
+        return HttpUrl.get("http://127.0.0.1:" + server.getLocalPort() + path);
+    }
+
+    private void acceptLoop() {
+        while (!server.isClosed()) {
+            final Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                return;
+            }
+            accepted.incrementAndGet();
+            Thread handler = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }, "EchoConnection");
+            handler.setDaemon(true);
+            handler.start();
+        }
+    }
+
+    /**
+     * Minimal HTTP/1.1 keep-alive server echoing each request body back
+     */
+    private static void serve(Socket socket) {
+        try (Socket s = socket) {
+            s.setSoTimeout((int) TimeUnit.SECONDS.toMillis(10));
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            OutputStream out = s.getOutputStream();
+            while (true) {
+                String requestLine = readLine(in);
+                if (requestLine == null) {
+                    return;
+                }
+                int contentLength = 0;
+                for (String header = readLine(in); header != null && !header.isEmpty(); header = readLine(in)) {
+                    if (header.toLowerCase().startsWith("content-length:")) {
+                        contentLength = Integer.parseInt(header.substring(15).trim());
+                    }
+                }
+                byte[] body = new byte[contentLength];
+                for (int read = 0; read < contentLength; ) {
+                    int n = in.read(body, read, contentLength - read);
+                    if (n < 0) {
+                        return;
+                    }
+                    read += n;
+                }
+                String status = requestLine.contains(" /fail ") ? "500 Internal Server Error" : "200 OK";
+                out.write(("HTTP/1.1 " + status + "\r\nContent-Length: " + body.length + "\r\n\r\n").getBytes(ASCII));
+                out.write(body);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // client went away
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return line.size() == 0 ? null : line.toString("US-ASCII");
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString("US-ASCII");
+    }
+}
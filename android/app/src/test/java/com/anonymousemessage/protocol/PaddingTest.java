@@ -0,0 +1,39 @@
+package com.anonymousemessage.protocol;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class PaddingTest {
+
+    @Test
+    public void bucketsDoubleThenGrowLinearly() {
+        assertEquals(64, Padding.bucketFor(0));
+        assertEquals(64, Padding.bucketFor(64));
+        assertEquals(128, Padding.bucketFor(65));
+        assertEquals(Padding.LINEAR_FROM, Padding.bucketFor(Padding.LINEAR_FROM));
+        assertEquals(2 * Padding.LINEAR_FROM, Padding.bucketFor(Padding.LINEAR_FROM + 1));
+        assertEquals(3 * Padding.LINEAR_FROM, Padding.bucketFor(2 * Padding.LINEAR_FROM + 1));
+    }
+
+    @Test
+    public void padsToABucketAndUnpadsToThePayload() throws ProtocolException {
+        for (int length : new int[] {0, 1, 62, 63, 200, 70000}) {
+            byte[] payload = new byte[length];
+            for (int i = 0; i < length; i++) {
+                payload[i] = (byte) (i + 1);
+            }
+
+            byte[] padded = Padding.pad(payload);
+
+            assertEquals(Padding.bucketFor(padded.length), padded.length);
+            ByteBuffer unpadded = Padding.unpad(ByteBuffer.wrap(padded));
+            byte[] result = new byte[unpadded.remaining()];
+            unpadded.get(result);
+            assertArrayEquals(payload, result);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.anonymousemessage.protocol;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PayloadCompressorTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void chatTextShrinksAndRoundTrips() throws ProtocolException {
+        byte[] text = "hey, are you still coming tonight? let me know when you are on the way"
+            .getBytes(UTF_8);
+
+        byte[] frame = PayloadCompressor.shared().compress(text, "test");
+
+        assertEquals(CompressionDictionary.V1, frame[0]);
+        assertTrue(frame.length < text.length);
+        assertArrayEquals(text, PayloadCompressor.decompress(frame));
+    }
+
+    @Test
+    public void shortAndIncompressiblePayloadsAreStored() throws ProtocolException {
+        byte[] noise = new byte[4096];
+        new Random(7).nextBytes(noise);
+        byte[] shortText = "ok".getBytes(UTF_8);
+
+        for (byte[] payload : Arrays.asList(noise, shortText)) {
+            byte[] frame = PayloadCompressor.shared().compress(payload, "test");
+            assertEquals(PayloadCompressor.STORED, frame[0]);
+            assertEquals(payload.length + 1, frame.length);
+            assertArrayEquals(payload, PayloadCompressor.decompress(frame));
+        }
+        assertEquals(PayloadCompressor.STORED, PayloadCompressor.storeOnly().compress(new byte[1000], "test")[0]);
+    }
+
+    @Test
+    public void highlyRepetitivePayloadsInflateBackInFull() throws ProtocolException {
+        // Far above any first guess at the inflated size
+        byte[] zeros = new byte[1024 * 1024];
+
+        byte[] frame = PayloadCompressor.shared().compress(zeros, "test");
+
+        assertTrue(frame.length < 2048);
+        assertArrayEquals(zeros, PayloadCompressor.decompress(frame));
+    }
+
+    @Test
+    public void rejectsALengthTheDataDoesNotMatch() {
+        byte[] frame = PayloadCompressor.shared().compress(new byte[1000], "test");
+        // mode || varint(1000) = 0xE8 0x07; claim 1001 instead
+        assertEquals((byte) 0xE8, frame[1]);
+        frame[1] = (byte) 0xE9;
+        assertRejected(frame);
+
+        // Claims 16 MiB + 1 without carrying it
+        assertRejected(new WireWriter(8).writeByte(CompressionDictionary.V1).writeVarint(16 * 1024 * 1024 + 1)
+            .toByteArray());
+        assertRejected(new byte[] {(byte) 99, 1, 0});
+    }
+
+    private static void assertRejected(byte[] frame) {
+        try {
+            PayloadCompressor.decompress(frame);
+            fail("accepted a bad frame");
+        } catch (ProtocolException expected) {
+            // length mismatch, oversize claim or unknown dictionary
+        }
+    }
+}
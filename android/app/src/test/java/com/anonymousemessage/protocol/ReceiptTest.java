@@ -0,0 +1,58 @@
+package com.anonymousemessage.protocol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReceiptTest {
+
+    @Test
+    public void keepsGapsTheSenderStoppedListing() throws ProtocolException {
+        Receipt older = new Receipt(20, 10, new long[] {3, 4, 12, 13});
+        Receipt newer = Receipt.decode(new Receipt(40, 30, new long[] {13, 15, 31, 31}).encode());
+
+        Receipt merged = newer.withGapsOf(older, 64);
+        assertEquals(40, merged.deliveredUpTo());
+        assertEquals(30, merged.readUpTo());
+        assertEquals(3, merged.gapCount());
+        assertFalse(merged.isDelivered(4));
+        assertFalse(merged.isDelivered(14));
+        assertFalse(merged.isDelivered(31));
+        assertTrue(merged.isDelivered(11));
+        assertTrue(merged.isRead(30));
+    }
+
+    @Test
+    public void mergeKeepsOnlyLatestGaps() {
+        long[] gaps = new long[20];
+        for (int i = 0; i < gaps.length; i += 2) {
+            gaps[i] = i * 10 + 1;
+            gaps[i + 1] = i * 10 + 2;
+        }
+        Receipt merged = new Receipt(500, 0, new long[] {400, 400})
+            .withGapsOf(new Receipt(200, 0, gaps), 4);
+        assertEquals(4, merged.gapCount());
+        assertTrue(merged.isDelivered(1));
+        assertFalse(merged.isDelivered(400));
+        assertFalse(merged.isDelivered(gaps[gaps.length - 2]));
+    }
+
+    @Test
+    public void carriesCipherSuiteMaskAsTrailingField() throws ProtocolException {
+        Receipt plain = new Receipt(9, 4, new long[] {2, 3});
+        Receipt advertising = new Receipt(9, 4, new long[] {2, 3}, 0x6);
+        byte[] encoded = advertising.encode();
+
+        // Everything before the mask is what a reader without it expects
+        byte[] before = plain.encode();
+        for (int i = 0; i < before.length; i++) {
+            assertEquals(before[i], encoded[i]);
+        }
+        assertEquals(0, Receipt.decode(before).cipherSuites());
+        Receipt decoded = Receipt.decode(encoded);
+        assertEquals(0x6, decoded.cipherSuites());
+        assertEquals(0x6, decoded.withGapsOf(plain, 64).cipherSuites());
+    }
+}
@@ -0,0 +1,120 @@
+package com.anonymousemessage.protocol;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RelayProtocolTest {
+
+    @Test
+    public void registerRequestRoundTrips() throws ProtocolException {
+        String operationId = UUID.randomUUID().toString();
+        byte[] frame = RelayProtocol.register(operationId, "alice", "alice@example.org", "$argon2id$...",
+            "cHVibGljIGtleQ==", 1700000000000L);
+
+        RelayProtocol.Request request = RelayProtocol.readRequest(ByteBuffer.wrap(frame));
+        assertEquals(RelayProtocol.VERSION, request.version);
+        assertEquals(RelayProtocol.REGISTER, request.operation);
+        assertEquals(UUID.fromString(operationId), request.operationId);
+        assertEquals("alice", request.username);
+        assertEquals("alice@example.org", request.email);
+        assertEquals("$argon2id$...", request.passwordHash);
+        assertEquals("cHVibGljIGtleQ==", request.publicKey);
+        assertEquals(1700000000000L, request.timestamp);
+    }
+
+    @Test
+    public void responsesCarryTheRequestsOperationAndId() throws ProtocolException {
+        RelayProtocol.Request request = RelayProtocol.readRequest(ByteBuffer.wrap(
+            RelayProtocol.checkEmail(UUID.randomUUID().toString(), "bob@example.org")));
+        assertEquals("bob@example.org", request.email);
+
+        RelayProtocol.Response exists = RelayProtocol.readResponse(RelayProtocol.checkEmailResult(request, true));
+        assertTrue(exists.ok);
+        assertTrue(exists.exists);
+        assertEquals(RelayProtocol.CHECK_EMAIL, exists.operation);
+        assertEquals(request.operationId, exists.operationId);
+
+        RelayProtocol.Response failed = RelayProtocol.readResponse(RelayProtocol.error(request, "rate limited"));
+        assertFalse(failed.ok);
+        assertEquals("rate limited", failed.error);
+    }
+
+    @Test
+    public void sendNumbersTheBatchFromFirstSeq() throws ProtocolException {
+        String conversation = RelayProtocol.conversationId("alice", "bob");
+        assertEquals(conversation, RelayProtocol.conversationId("bob", "alice"));
+        byte[] frame = RelayProtocol.sendMessages(UUID.randomUUID().toString(), "bob", conversation, 3,
+            new byte[] {7, 7, 7});
+
+        RelayProtocol.Request request = RelayProtocol.readRequest(ByteBuffer.wrap(frame));
+        assertEquals("bob", request.recipientId);
+        assertEquals(conversation, request.conversationId);
+        assertEquals(3, request.messageCount);
+        assertEquals(3, request.payload.remaining());
+        assertEquals(41, RelayProtocol.readResponse(RelayProtocol.sendMessagesResult(request, 41)).firstSeq);
+
+        // A v1 client sent no conversation and expects no number back
+        frame[0] = 1;
+        RelayProtocol.Request v1 = RelayProtocol.readRequest(ByteBuffer.wrap(frame));
+        assertNull(v1.conversationId);
+        RelayProtocol.Response v1Response = RelayProtocol.readResponse(RelayProtocol.sendMessagesResult(v1, 41));
+        assertTrue(v1Response.ok);
+        assertEquals(0, v1Response.firstSeq);
+    }
+
+    @Test
+    public void syncCarriesWatermarksAndReturnsPagesAfterThem() throws ProtocolException {
+        Map<String, Long> watermarks = new LinkedHashMap<>();
+        watermarks.put("c1", 0L);
+        watermarks.put("c2", 300L);
+        RelayProtocol.Request request = RelayProtocol.readRequest(ByteBuffer.wrap(
+            RelayProtocol.sync(UUID.randomUUID().toString(), "alice", watermarks, 50)));
+        assertEquals(RelayProtocol.SYNC, request.operation);
+        assertEquals("alice", request.recipientId);
+        assertEquals(50, request.pageSize);
+        assertEquals(watermarks, request.watermarks);
+
+        List<RelayProtocol.SyncRecord> records = Arrays.asList(
+            new RelayProtocol.SyncRecord("c1", 1, 4, ByteBuffer.wrap(new byte[] {1})),
+            new RelayProtocol.SyncRecord("c2", 301, 1, ByteBuffer.wrap(new byte[] {2, 2})));
+        RelayProtocol.Response response = RelayProtocol.readResponse(RelayProtocol.syncResult(request, records, true));
+
+        assertTrue(response.more);
+        assertEquals(2, response.records.size());
+        RelayProtocol.SyncRecord first = response.records.get(0);
+        assertEquals("c1", first.conversationId);
+        assertEquals(4, first.lastSeq());
+        assertEquals(1, first.payload.remaining());
+        assertEquals(301, response.records.get(1).lastSeq());
+        assertEquals(2, response.records.get(1).payload.remaining());
+    }
+
+    @Test
+    public void tellsBinaryFramesFromJsonAndRejectsNewerVersions() {
+        byte[] frame = RelayProtocol.checkEmail(UUID.randomUUID().toString(), "a@b.c");
+        assertTrue(RelayProtocol.isBinary(frame));
+        assertFalse(RelayProtocol.isBinary("{\"operation\":\"checkEmail\",\"email\":\"a@b.c\"}"
+            .getBytes(Charset.forName("UTF-8"))));
+
+        frame[0] = (byte) (RelayProtocol.VERSION + 1);
+        try {
+            RelayProtocol.readRequest(ByteBuffer.wrap(frame));
+            fail("newer version accepted");
+        } catch (ProtocolException expected) {
+            // the relay answers with an error instead of misreading fields
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.anonymousemessage.protocol;
+
+import com.anonymousemessage.models.Message;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WireFormatTest {
+
+    @Test
+    public void varintsRoundTripAtEveryWidth() throws ProtocolException {
+        long[] values = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, Long.MAX_VALUE, -1, Long.MIN_VALUE};
+        int[] widths = {1, 1, 1, 2, 2, 3, 5, 9, 10, 10};
+        for (int i = 0; i < values.length; i++) {
+            byte[] encoded = new WireWriter(1).writeVarint(values[i]).toByteArray();
+            assertEquals("width of " + values[i], widths[i], encoded.length);
+            assertEquals(values[i], new WireReader(encoded).readVarint());
+        }
+    }
+
+    @Test
+    public void fieldsRoundTripAndBytesComeBackAsSlices() throws ProtocolException {
+        UUID id = UUID.randomUUID();
+        byte[] encoded = new WireWriter(8)
+            .writeByte(0xFE)
+            .writeBoolean(true)
+            .writeLong(-42)
+            .writeUuid(id)
+            .writeString(null)
+            .writeString("h\u00e9llo \u2603")
+            .writeBytes(new byte[] {1, 2, 3})
+            .toByteArray();
+
+        WireReader in = new WireReader(encoded);
+        assertEquals(0xFE, in.readByte());
+        assertTrue(in.readBoolean());
+        assertEquals(-42, in.readLong());
+        assertEquals(id, in.readUuid());
+        assertNull(in.readString());
+        assertEquals("h\u00e9llo \u2603", in.readString());
+        ByteBuffer slice = in.readSlice();
+        assertTrue(slice.isReadOnly());
+        assertEquals(3, slice.remaining());
+        assertEquals(0, in.remaining());
+    }
+
+    @Test
+    public void truncatedOrOverlongInputIsAProtocolException() {
+        byte[] string = new WireWriter(8).writeString("truncate me").toByteArray();
+        assertRejected(Arrays.copyOf(string, string.length - 1));
+        // Claims more bytes than the frame holds
+        assertRejected(new WireWriter(8).writeVarint(1L << 40).toByteArray());
+        // Continuation bit never cleared
+        byte[] endless = new byte[11];
+        Arrays.fill(endless, (byte) 0x80);
+        assertRejected(endless);
+    }
+
+    @Test
+    public void messagesRoundTripWithCompactIds() throws ProtocolException {
+        Message text = new Message(UUID.randomUUID().toString(), "alice", "bob", "hi", Message.Type.TEXT, 1700000000000L);
+        Message decoded = MessageCodec.decode(MessageCodec.encode(text));
+        assertEquals(text.getMessageId(), decoded.getMessageId());
+        assertEquals("alice", decoded.getSenderId());
+        assertEquals("hi", decoded.getContent());
+        assertEquals(Message.Type.TEXT, decoded.getType());
+        assertEquals(1700000000000L, decoded.getTimestamp());
+
+        // A non-canonical id travels as a string and still comes back unchanged
+        Message media = new Message("legacy-42", "alice", "bob", null, Message.Type.IMAGE, 5);
+        media.setFileName("cat.jpg");
+        media.setFileSize(123456);
+        media.setMimeType("image/jpeg");
+        decoded = MessageCodec.decode(MessageCodec.encode(media));
+        assertEquals("legacy-42", decoded.getMessageId());
+        assertNull(decoded.getContent());
+        assertEquals("cat.jpg", decoded.getFileName());
+        assertEquals(123456, decoded.getFileSize());
+        assertEquals("image/jpeg", decoded.getMimeType());
+
+        assertTrue(MessageCodec.encode(text).length < MessageCodec.encode(media).length);
+    }
+
+    @Test
+    public void unknownMessageVersionIsRejected() {
+        byte[] frame = MessageCodec.encode(new Message("alice", "bob", "hi", Message.Type.TEXT, 1));
+        frame[0] = (byte) (MessageCodec.VERSION + 1);
+        try {
+            MessageCodec.decode(frame);
+            fail("future version accepted");
+        } catch (ProtocolException expected) {
+            // refused rather than misread
+        }
+    }
+
+    private static void assertRejected(byte[] frame) {
+        try {
+            WireReader in = new WireReader(frame);
+            in.readString();
+            fail("read past the end of the frame");
+        } catch (ProtocolException expected) {
+            // bounds-checked
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.anonymousemessage.storage;
+
+import com.anonymousemessage.models.Message;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.crypto.SecretKey;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompactionTest {
+
+    private static final String CONVERSATION = "c1";
+    private static final int SEGMENT_BYTES = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final SecretKey key = MessageLogTest.newKey();
+
+    // What loadPage should return: content by seq
+    private final Map<Long, String> expected = new TreeMap<>();
+
+    @Test
+    public void appendsDuringCompactionSurviveCommit() throws Exception {
+        final MessageLog log = new MessageLog(folder.getRoot(), key, SEGMENT_BYTES);
+        for (long seq = 1; seq <= 400; seq++) {
+            append(log, seq);
+        }
+        for (long seq = 2; seq <= 200; seq += 2) {
+            edit(log, seq, "edit " + seq);
+        }
+        for (long seq = 10; seq <= 200; seq += 10) {
+            delete(log, seq);
+        }
+        long watermark = append(log, 401);
+
+        // Slow enough that the appends below land while it runs
+        final CompactionBudget budget = new CompactionBudget(32 * 1024, 1);
+        ExecutorService compactor = Executors.newSingleThreadExecutor();
+        Future<MessageLog.Compaction> preparing = compactor.submit(new Callable<MessageLog.Compaction>() {
+            @Override
+            public MessageLog.Compaction call() throws Exception {
+                return log.prepareCompaction(CONVERSATION, 0, 0.1, budget);
+            }
+        });
+        Set<Long> late = new HashSet<>();
+        for (long seq = 402; seq <= 600; seq++) {
+            append(log, seq);
+            late.add(seq);
+        }
+        edit(log, 3, "edited while compacting");
+        delete(log, 11);
+        delete(log, 402);
+        MessageLog.Compaction compaction = preparing.get(30, TimeUnit.SECONDS);
+        compactor.shutdown();
+        assertNotNull(compaction);
+        assertTrue(compaction.droppedRecords > 0);
+        assertTrue(compaction.reclaimedBytes > 0);
+
+        log.commit(compaction);
+        assertHistory(log);
+
+        // Resuming a replay from a translated position still sees everything after it
+        final Set<Long> replayed = new HashSet<>();
+        log.replay(CONVERSATION, compaction.translate(watermark), new MessageLog.RecordVisitor() {
+            @Override
+            public void visit(byte kind, long seq, Message message, long end) {
+                replayed.add(seq);
+            }
+        });
+        assertTrue(replayed.containsAll(late));
+        log.close();
+
+        MessageLog reopened = new MessageLog(folder.getRoot(), key, SEGMENT_BYTES);
+        assertHistory(reopened);
+        reopened.close();
+    }
+
+    @Test
+    public void dropsMessagesPastRetention() throws Exception {
+        MessageLog log = new MessageLog(folder.getRoot(), key, SEGMENT_BYTES);
+        for (long seq = 1; seq <= 400; seq++) {
+            append(log, seq);
+        }
+        delete(log, 50);
+        long cutoff = MessageLogTest.BASE_TIME + 101 * 1000;
+        MessageLog.Compaction compaction = log.prepareCompaction(CONVERSATION, cutoff, 1, CompactionBudget.unlimited());
+        assertNotNull(compaction);
+        log.commit(compaction);
+
+        long[] expired = compaction.expiredSeqs();
+        assertEquals(99, expired.length);
+        for (long seq : expired) {
+            assertTrue(seq <= 100 && seq != 50);
+            expected.remove(seq);
+        }
+        assertHistory(log);
+        assertEquals(101, log.seqAt(CONVERSATION, 0));
+        log.close();
+    }
+
+    @Test
+    public void skipsLogsWithLittleGarbage() throws Exception {
+        MessageLog log = new MessageLog(folder.getRoot(), key, SEGMENT_BYTES);
+        for (long seq = 1; seq <= 200; seq++) {
+            append(log, seq);
+        }
+        edit(log, 1, "one edit");
+        assertEquals(null, log.prepareCompaction(CONVERSATION, 0, 0.5, CompactionBudget.unlimited()));
+        log.close();
+    }
+
+    private long append(MessageLog log, long seq) throws Exception {
+        expected.put(seq, "message " + seq);
+        return log.append(CONVERSATION, MessageLogTest.message(seq, "message " + seq));
+    }
+
+    private void edit(MessageLog log, long seq, String content) throws Exception {
+        expected.put(seq, content);
+        log.edit(CONVERSATION, MessageLogTest.message(seq, content));
+    }
+
+    private void delete(MessageLog log, long seq) throws Exception {
+        expected.remove(seq);
+        log.delete(CONVERSATION, seq);
+    }
+
+    private void assertHistory(MessageLog log) throws Exception {
+        List<Message> page = log.loadPage(CONVERSATION, Long.MAX_VALUE, expected.size() + 10);
+        List<Long> seqs = new ArrayList<>();
+        for (Message message : page) {
+            seqs.add(message.getSeq());
+            assertEquals(expected.get(message.getSeq()), message.getContent());
+        }
+        assertEquals(new ArrayList<>(expected.keySet()), seqs);
+    }
+}
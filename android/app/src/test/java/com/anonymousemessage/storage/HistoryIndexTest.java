@@ -0,0 +1,106 @@
+package com.anonymousemessage.storage;
+
+import com.anonymousemessage.models.Message;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.crypto.SecretKey;
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistoryIndexTest {
+
+    private static final String CONVERSATION = "c1";
+    private static final int COUNT = 1000;
+    private static final int SEGMENT_BYTES = 8192;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final SecretKey key = MessageLogTest.newKey();
+
+    @Test
+    public void pagesBackThroughNearlyOrderedSeqs() throws Exception {
+        MessageLog log = filledLog();
+        assertPagesCoverHistory(log, 50);
+        assertPagesCoverHistory(log, HistoryIndex.BLOCK_RECORDS + 3);
+        log.close();
+    }
+
+    @Test
+    public void seqAtFindsFirstMessageAtOrAfterTime() throws Exception {
+        MessageLog log = filledLog();
+        assertEquals(1, log.seqAt(CONVERSATION, 0));
+        assertEquals(500, log.seqAt(CONVERSATION, timeOf(500)));
+        assertEquals(501, log.seqAt(CONVERSATION, timeOf(500) + 1));
+        assertEquals(COUNT, log.seqAt(CONVERSATION, timeOf(COUNT)));
+        assertEquals(-1, log.seqAt(CONVERSATION, timeOf(COUNT) + 1));
+        assertEquals(-1, log.seqAt("unknown", 0));
+        log.close();
+    }
+
+    @Test
+    public void rebuildsFromSegmentsWithoutIndexFiles() throws Exception {
+        MessageLog log = filledLog();
+        log.close();
+        File directory = new File(folder.getRoot(), CONVERSATION);
+        assertTrue(new File(directory, "index.snap").delete() | new File(directory, "index.log").delete());
+
+        log = new MessageLog(folder.getRoot(), key, SEGMENT_BYTES);
+        assertPagesCoverHistory(log, 50);
+        assertEquals(700, log.seqAt(CONVERSATION, timeOf(700)));
+        log.close();
+    }
+
+    @Test
+    public void positionsSplitIntoSegmentAndOffset() {
+        long position = HistoryIndex.position(7, 4096);
+        assertEquals(7, HistoryIndex.segment(position));
+        assertEquals(4096, HistoryIndex.offset(position));
+    }
+
+    // Seqs 1..COUNT, with neighbours swapped now and then as relay order and arrival order disagree
+    private MessageLog filledLog() throws Exception {
+        MessageLog log = new MessageLog(folder.getRoot(), key, SEGMENT_BYTES);
+        for (long seq = 1; seq <= COUNT; seq++) {
+            if (seq % 17 == 0 && seq < COUNT) {
+                log.append(CONVERSATION, message(seq + 1));
+                log.append(CONVERSATION, message(seq));
+                seq++;
+            } else {
+                log.append(CONVERSATION, message(seq));
+            }
+        }
+        return log;
+    }
+
+    private static void assertPagesCoverHistory(MessageLog log, int limit) throws Exception {
+        long expected = COUNT;
+        long before = Long.MAX_VALUE;
+        while (true) {
+            List<Message> page = log.loadPage(CONVERSATION, before, limit);
+            if (page.isEmpty()) {
+                break;
+            }
+            assertTrue(page.size() == limit || page.get(0).getSeq() == 1);
+            for (int i = page.size() - 1; i >= 0; i--) {
+                assertEquals(expected--, page.get(i).getSeq());
+            }
+            before = page.get(0).getSeq();
+        }
+        assertEquals(0, expected);
+    }
+
+    private static Message message(long seq) {
+        return MessageLogTest.message(seq, "message " + seq);
+    }
+
+    // As MessageLogTest.message stamps them
+    private static long timeOf(long seq) {
+        return MessageLogTest.BASE_TIME + seq * 1000;
+    }
+}
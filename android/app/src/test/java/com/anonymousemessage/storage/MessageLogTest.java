@@ -0,0 +1,104 @@
+package com.anonymousemessage.storage;
+
+import com.anonymousemessage.models.Message;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class MessageLogTest {
+
+    private static final String CONVERSATION = "c1";
+    static final long BASE_TIME = 1_700_000_000_000L;
+    private static final int SEGMENT_BYTES = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final SecretKey key = newKey();
+
+    @Test
+    public void readsBackWhatWasWrittenAfterReopen() throws Exception {
+        File root = folder.getRoot();
+        MessageLog log = new MessageLog(root, key, SEGMENT_BYTES);
+        for (int seq = 1; seq <= 200; seq++) {
+            log.append(CONVERSATION, message(seq, "message " + seq));
+        }
+        log.edit(CONVERSATION, message(5, "edited"));
+        log.delete(CONVERSATION, 7);
+        log.close();
+
+        log = new MessageLog(root, key, SEGMENT_BYTES);
+        assertEquals(Collections.singletonList(CONVERSATION), log.conversations());
+        List<Message> page = log.loadPage(CONVERSATION, Long.MAX_VALUE, 500);
+        assertEquals(199, page.size());
+        long previous = 0;
+        for (Message message : page) {
+            long seq = message.getSeq();
+            assertEquals(previous + (previous == 6 ? 2 : 1), seq);
+            assertEquals("id-" + seq, message.getMessageId());
+            assertEquals(seq == 5 ? "edited" : "message " + seq, message.getContent());
+            assertEquals(BASE_TIME + seq * 1000, message.getTimestamp());
+            previous = seq;
+        }
+
+        // Appends after reopening land after the records already there
+        log.append(CONVERSATION, message(201, "after reopen"));
+        final List<Long> seqs = new ArrayList<>();
+        log.replay(CONVERSATION, 0, new MessageLog.RecordVisitor() {
+            @Override
+            public void visit(byte kind, long seq, Message message, long end) {
+                seqs.add(seq);
+                if (kind == MessageLog.TOMBSTONE) {
+                    assertNull(message);
+                }
+            }
+        });
+        assertEquals(203, seqs.size());
+        assertEquals(Long.valueOf(201), seqs.get(seqs.size() - 1));
+        log.close();
+    }
+
+    @Test
+    public void recordsDoNotOpenUnderAnotherKey() throws Exception {
+        File root = folder.getRoot();
+        MessageLog log = new MessageLog(root, key, SEGMENT_BYTES);
+        log.append(CONVERSATION, message(1, "secret"));
+        log.close();
+
+        MessageLog other = new MessageLog(root, newKey(), SEGMENT_BYTES);
+        try {
+            other.loadPage(CONVERSATION, Long.MAX_VALUE, 10);
+            fail("opened under the wrong key");
+        } catch (GeneralSecurityException | IOException expected) {
+        } finally {
+            other.close();
+        }
+    }
+
+    static Message message(long seq, String content) {
+        Message message = new Message("id-" + seq, "alice", "bob", content, Message.Type.TEXT,
+            BASE_TIME + seq * 1000);
+        message.setSeq(seq);
+        return message;
+    }
+
+    static SecretKey newKey() {
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        return new SecretKeySpec(bytes, "AES");
+    }
+}
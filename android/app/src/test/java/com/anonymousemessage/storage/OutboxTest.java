@@ -0,0 +1,127 @@
+package com.anonymousemessage.storage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.anonymousemessage.utils.Metrics;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OutboxTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final SecretKey key = newKey();
+
+    @Test
+    public void replaysPendingEntriesInAppendOrder() throws Exception {
+        File file = new File(folder.getRoot(), "outbox.wal");
+        Outbox outbox = new Outbox(file, key);
+        assertEquals(0, outbox.open().size());
+        for (int i = 0; i < 5; i++) {
+            outbox.append("m" + i, payload(i)).get(5, TimeUnit.SECONDS);
+        }
+        outbox.ack("m1").get(5, TimeUnit.SECONDS);
+        outbox.ack("m3").get(5, TimeUnit.SECONDS);
+        outbox.close();
+
+        List<Outbox.Entry> entries = reopen(file);
+        assertEquals(3, entries.size());
+        int[] expected = {0, 2, 4};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("m" + expected[i], entries.get(i).id);
+            assertArrayEquals(payload(expected[i]), entries.get(i).payload);
+        }
+    }
+
+    @Test
+    public void cutsOffTornTail() throws Exception {
+        File file = new File(folder.getRoot(), "outbox.wal");
+        Outbox outbox = new Outbox(file, key);
+        outbox.open();
+        outbox.append("kept", payload(1)).get(5, TimeUnit.SECONDS);
+        outbox.append("torn", payload(2)).get(5, TimeUnit.SECONDS);
+        outbox.close();
+
+        // Crash halfway through writing the second record
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 10);
+        } finally {
+            raf.close();
+        }
+
+        Outbox reopened = new Outbox(file, key);
+        List<Outbox.Entry> entries = reopened.open();
+        assertEquals(1, entries.size());
+        assertEquals("kept", entries.get(0).id);
+
+        // Appends after the cut must replay too
+        reopened.append("after", payload(3)).get(5, TimeUnit.SECONDS);
+        reopened.close();
+        entries = reopen(file);
+        assertEquals(2, entries.size());
+        assertEquals("after", entries.get(1).id);
+    }
+
+    @Test
+    public void compactionKeepsOnlyPendingEntries() throws Exception {
+        File file = new File(folder.getRoot(), "outbox.wal");
+        Outbox outbox = new Outbox(file, key);
+        outbox.open();
+        long compactions = Metrics.counter("outbox.compactions").get();
+        int kept = 0;
+        for (int i = 0; i < Outbox.COMPACT_MIN_DEAD + 10; i++) {
+            outbox.append("m" + i, payload(i)).get(5, TimeUnit.SECONDS);
+            if (i % 10 == 0) {
+                kept++;
+            } else {
+                outbox.ack("m" + i).get(5, TimeUnit.SECONDS);
+            }
+        }
+        outbox.close();
+        assertTrue(Metrics.counter("outbox.compactions").get() > compactions);
+
+        List<Outbox.Entry> entries = reopen(file);
+        assertEquals(kept, entries.size());
+        for (int i = 0; i < kept; i++) {
+            assertEquals("m" + (i * 10), entries.get(i).id);
+            assertArrayEquals(payload(i * 10), entries.get(i).payload);
+        }
+    }
+
+    private List<Outbox.Entry> reopen(File file) throws Exception {
+        Outbox reopened = new Outbox(file, key);
+        try {
+            return reopened.open();
+        } finally {
+            reopened.close();
+        }
+    }
+
+    private static byte[] payload(int i) {
+        byte[] bytes = new byte[16 + i % 7];
+        for (int j = 0; j < bytes.length; j++) {
+            bytes[j] = (byte) (i * 31 + j);
+        }
+        return bytes;
+    }
+
+    private static SecretKey newKey() {
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        return new SecretKeySpec(bytes, "AES");
+    }
+}
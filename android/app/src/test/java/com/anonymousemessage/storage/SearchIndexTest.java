@@ -0,0 +1,144 @@
+package com.anonymousemessage.storage;
+
+import com.anonymousemessage.models.Message;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.crypto.SecretKey;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SearchIndexTest {
+
+    private static final String CONVERSATION = "c1";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final SecretKey key = MessageLogTest.newKey();
+
+    @Test
+    public void findsWordsAndPrefixes() throws Exception {
+        SearchIndex index = SearchIndex.open(folder.getRoot(), key);
+        index.add(CONVERSATION, message(1, "Meet at the caf\u00e9 tomorrow"), 10);
+        index.add(CONVERSATION, message(2, "tomorrow is fine"), 20);
+        index.add("c2", message(3, "see you tomorrow"), 30);
+
+        assertEquals(seqs(1), seqs(index.search(CONVERSATION, "cafe", 10)));
+        assertEquals(seqs(1, 2), seqs(index.search(CONVERSATION, "tomor", 10)));
+        assertEquals(seqs(1, 2, 3), seqs(index.search(null, "tomorrow", 10)));
+        assertEquals(seqs(), seqs(index.search(CONVERSATION, "tomor ", 10)));
+        assertEquals(seqs(2), seqs(index.search(CONVERSATION, "fine tomorrow", 10)));
+        index.close();
+    }
+
+    @Test
+    public void deletedAndEditedMessagesStayGoneAfterReopen() throws Exception {
+        SearchIndex index = SearchIndex.open(folder.getRoot(), key);
+        index.add(CONVERSATION, message(1, "lunch on friday"), 10);
+        index.add(CONVERSATION, message(2, "friday works"), 20);
+        index.add(CONVERSATION, message(3, "what about friday"), 30);
+        index.flush();
+        index.delete(CONVERSATION, 2, 40);
+        index.add(CONVERSATION, message(3, "what about monday"), 50);
+        assertEquals(seqs(1), seqs(index.search(CONVERSATION, "friday", 10)));
+        index.checkpoint();
+        index.close();
+
+        index = SearchIndex.open(folder.getRoot(), key);
+        assertEquals(50, index.watermark(CONVERSATION));
+        assertEquals(seqs(1), seqs(index.search(CONVERSATION, "friday", 10)));
+        assertEquals(seqs(3), seqs(index.search(CONVERSATION, "monday", 10)));
+        index.close();
+    }
+
+    @Test
+    public void mergeKeepsLiveResultsAndDropsDeleted() throws Exception {
+        SearchIndex index = SearchIndex.open(folder.getRoot(), key);
+        long seq = 0;
+        for (int segment = 0; segment <= SearchIndex.MERGE_FACTOR; segment++) {
+            for (int i = 0; i < 20; i++) {
+                seq++;
+                index.add(CONVERSATION, message(seq, "note " + seq + (seq % 3 == 0 ? " groceries" : "")), seq);
+            }
+            index.flush();
+        }
+        List<Long> expected = new ArrayList<>(); // ascending, as seqs() returns
+        for (long s = 1; s <= seq; s++) {
+            if (s % 3 == 0 && s % 2 == 0) {
+                index.delete(CONVERSATION, s, seq + s);
+            } else if (s % 3 == 0) {
+                expected.add(s);
+            }
+        }
+        int files = segmentFiles();
+        assertTrue(index.shouldMerge());
+        assertEquals(expected, seqs(index.search(CONVERSATION, "groceries", 1000)));
+
+        while (index.merge()) {
+        }
+        assertFalse(index.shouldMerge());
+        assertTrue(segmentFiles() < files);
+        assertEquals(expected, seqs(index.search(CONVERSATION, "groceries", 1000)));
+        index.checkpoint();
+        index.close();
+
+        index = SearchIndex.open(folder.getRoot(), key);
+        assertEquals(expected, seqs(index.search(CONVERSATION, "groceries", 1000)));
+        assertEquals(seqs(seq), seqs(index.search(CONVERSATION, "note " + seq, 1)));
+        index.close();
+    }
+
+    @Test
+    public void opensEmptyUnderAnotherKey() throws Exception {
+        SearchIndex index = SearchIndex.open(folder.getRoot(), key);
+        index.add(CONVERSATION, message(1, "private"), 10);
+        index.checkpoint();
+        index.close();
+
+        index = SearchIndex.open(folder.getRoot(), MessageLogTest.newKey());
+        assertEquals(0, index.watermark(CONVERSATION));
+        assertEquals(seqs(), seqs(index.search(null, "private", 10)));
+        index.close();
+    }
+
+    private int segmentFiles() {
+        File[] files = folder.getRoot().listFiles();
+        int count = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(".sx")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static Message message(long seq, String content) {
+        return MessageLogTest.message(seq, content);
+    }
+
+    private static List<Long> seqs(long... seqs) {
+        List<Long> result = new ArrayList<>();
+        for (long seq : seqs) {
+            result.add(seq);
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private static List<Long> seqs(List<SearchIndex.Hit> hits) {
+        List<Long> result = new ArrayList<>();
+        for (SearchIndex.Hit hit : hits) {
+            result.add(hit.seq);
+        }
+        Collections.sort(result);
+        return result;
+    }
+}
@@ -0,0 +1,89 @@
+package com.anonymousemessage.benchmark;
+
+import com.anonymousemessage.service.EncryptionService;
+import com.anonymousemessage.utils.EncryptionUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.SecretKey;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Base64 key conversion, string encryption and password hashing
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+public class CodecBenchmark {
+
+    @Param({"64", "1024", "16384"})
+    public int textLength;
+
+    private SecretKey key;
+    private String keyString;
+    private String text;
+    private String encryptedText;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        key = EncryptionUtil.generateKey();
+        keyString = EncryptionUtil.keyToString(key);
+        char[] chars = new char[textLength];
+        Arrays.fill(chars, 'a');
+        text = new String(chars);
+        encryptedText = EncryptionUtil.encryptString(text, key);
+    }
+
+    @Benchmark
+    public String keyToString() {
+        return EncryptionUtil.keyToString(key);
+    }
+
+    @Benchmark
+    public SecretKey stringToKey() {
+        return EncryptionUtil.stringToKey(keyString);
+    }
+
+    @Benchmark
+    public String encryptString() throws Exception {
+        return EncryptionUtil.encryptString(text, key);
+    }
+
+    @Benchmark
+    public String decryptString() throws Exception {
+        return EncryptionUtil.decryptString(encryptedText, key);
+    }
+
+    @Benchmark
+    public String hashPassword() {
+        return EncryptionService.hashPassword(text);
+    }
+
+    /**
+     * Same suite reported as sampled latency percentiles in microseconds
+     */
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public static class Latency extends CodecBenchmark {
+    }
+
+    @Threads(4)
+    public static class Contended extends CodecBenchmark {
+    }
+}
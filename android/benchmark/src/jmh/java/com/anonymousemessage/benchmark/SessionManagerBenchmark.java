@@ -0,0 +1,85 @@
+package com.anonymousemessage.benchmark;
+
+import android.content.Context;
+import com.anonymousemessage.models.UserKeys;
+import com.anonymousemessage.service.EncryptionService;
+import com.anonymousemessage.service.SessionManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SessionManager's encrypt/decrypt paths: storing credentials (encrypt),
+ * unlocking the identity key from storage (decrypt) and the cached lookup
+ * that hot paths and isLoggedIn() hit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+public class SessionManagerBenchmark {
+
+    private SessionManager session;
+    private UserKeys keys;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "session-benchmark");
+        SessionManager.initialize(new Context(dir));
+        session = SessionManager.getInstance();
+        keys = EncryptionService.generateUserKeys("benchmark");
+        session.saveCredentials("benchmark", "benchmark@example.org", keys.getPrivateKey());
+    }
+
+    @Benchmark
+    public void saveCredentials() {
+        session.saveCredentials("benchmark", "benchmark@example.org", keys.getPrivateKey());
+    }
+
+    @Benchmark
+    public byte[] unlockIdentityKey() {
+        // Forces the decrypt-from-storage path every time
+        session.lock();
+        return session.getIdentityKey();
+    }
+
+    @Benchmark
+    public byte[] cachedIdentityKey() {
+        return session.getIdentityKey();
+    }
+
+    @Benchmark
+    public boolean isLoggedIn() {
+        return session.isLoggedIn();
+    }
+
+    /**
+     * Same suite reported as sampled latency percentiles in microseconds
+     */
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public static class Latency extends SessionManagerBenchmark {
+    }
+
+    /**
+     * Cached lookups under contention from four threads
+     */
+    @Threads(4)
+    public static class Contended extends SessionManagerBenchmark {
+    }
+}
@@ -0,0 +1,152 @@
+package com.anonymousemessage.benchmark;
+
+import com.anonymousemessage.models.Message;
+import com.anonymousemessage.protocol.MessageCodec;
+import com.anonymousemessage.protocol.PayloadCompressor;
+import com.anonymousemessage.protocol.RelayProtocol;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Binary relay frames and message payloads against the Jackson HashMaps they
+ * replaced, and the compression stage on top of the binary form. Encoded
+ * and compressed sizes are printed once per trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+public class WireFormatBenchmark {
+
+    @Param({"32", "1024"})
+    public int contentLength;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private String operationId;
+    private String publicKey;
+    private Message message;
+    private byte[] registerJson;
+    private byte[] registerBinary;
+    private byte[] messageJson;
+    private byte[] messageBinary;
+    private byte[] messageCompressed;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        operationId = UUID.randomUUID().toString();
+        byte[] key = new byte[32];
+        Arrays.fill(key, (byte) 7);
+        publicKey = java.util.Base64.getEncoder().encodeToString(key);
+        StringBuilder content = new StringBuilder(contentLength);
+        while (content.length() < contentLength) {
+            content.append("Sounds good, see you tomorrow at the office. Did you get my message? ");
+        }
+        content.setLength(contentLength);
+        message = new Message("sender-0001", "recipient-0001", content.toString(), Message.Type.TEXT,
+            System.currentTimeMillis());
+
+        registerJson = registerJson();
+        registerBinary = registerBinary();
+        messageJson = messageJson();
+        messageBinary = messageBinary();
+        messageCompressed = compressMessage();
+        System.out.println("register request: JSON " + registerJson.length + " B, binary " + registerBinary.length
+            + " B; message: JSON " + messageJson.length + " B, binary " + messageBinary.length
+            + " B, compressed " + messageCompressed.length + " B");
+    }
+
+    @Benchmark
+    public byte[] registerJson() throws Exception {
+        Map<String, Object> request = new HashMap<>();
+        request.put("operation", "register");
+        request.put("operation_id", operationId);
+        request.put("username", "benchmark");
+        request.put("email", "benchmark@example.org");
+        request.put("password_hash", publicKey);
+        request.put("public_key", publicKey);
+        request.put("timestamp", 1700000000000L);
+        return mapper.writeValueAsBytes(request);
+    }
+
+    @Benchmark
+    public byte[] registerBinary() {
+        return RelayProtocol.register(operationId, "benchmark", "benchmark@example.org", publicKey, publicKey,
+            1700000000000L);
+    }
+
+    @Benchmark
+    public Object decodeRegisterJson() throws Exception {
+        return mapper.readValue(registerJson, Map.class);
+    }
+
+    @Benchmark
+    public Object decodeRegisterBinary() throws Exception {
+        return RelayProtocol.readRequest(ByteBuffer.wrap(registerBinary));
+    }
+
+    @Benchmark
+    public byte[] messageJson() throws Exception {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("message_id", message.getMessageId());
+        fields.put("sender_id", message.getSenderId());
+        fields.put("content", message.getContent());
+        fields.put("type", message.getType().name());
+        fields.put("timestamp", message.getTimestamp());
+        return mapper.writeValueAsBytes(fields);
+    }
+
+    @Benchmark
+    public byte[] messageBinary() {
+        return MessageCodec.encode(message);
+    }
+
+    @Benchmark
+    public Object decodeMessageJson() throws Exception {
+        return mapper.readValue(messageJson, Map.class);
+    }
+
+    @Benchmark
+    public Message decodeMessageBinary() throws Exception {
+        return MessageCodec.decode(messageBinary);
+    }
+
+    @Benchmark
+    public byte[] compressMessage() {
+        return PayloadCompressor.shared().compress(messageBinary, "benchmark");
+    }
+
+    @Benchmark
+    public byte[] decompressMessage() throws Exception {
+        return PayloadCompressor.decompress(messageCompressed);
+    }
+
+    /**
+     * Same suite reported as sampled latency percentiles in microseconds
+     */
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public static class Latency extends WireFormatBenchmark {
+    }
+}
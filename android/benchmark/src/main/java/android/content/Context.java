@@ -0,0 +1,128 @@
+package android.content;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * JVM stand-in for android.content.Context with in-memory SharedPreferences
+ * and a temporary files directory
+ */
+public class Context {
+
+    public static final int MODE_PRIVATE = 0;
+
+    private final Map<String, SharedPreferences> preferences = new ConcurrentHashMap<>();
+    private final File filesDir;
+
+    public Context(File filesDir) {
+        this.filesDir = filesDir;
+    }
+
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    public File getFilesDir() {
+        return filesDir;
+    }
+
+    public File getCacheDir() {
+        return new File(filesDir, "cache");
+    }
+
+    public SharedPreferences getSharedPreferences(String name, int mode) {
+        SharedPreferences prefs = preferences.get(name);
+        if (prefs == null) {
+            prefs = new InMemoryPreferences();
+            preferences.put(name, prefs);
+        }
+        return prefs;
+    }
+
+    private static final class InMemoryPreferences implements SharedPreferences {
+        private final Map<String, Object> values = new ConcurrentHashMap<>();
+
+        @Override
+        public String getString(String key, String defValue) {
+            Object value = values.get(key);
+            return value != null ? (String) value : defValue;
+        }
+
+        @Override
+        public long getLong(String key, long defValue) {
+            Object value = values.get(key);
+            return value != null ? (Long) value : defValue;
+        }
+
+        @Override
+        public int getInt(String key, int defValue) {
+            Object value = values.get(key);
+            return value != null ? (Integer) value : defValue;
+        }
+
+        @Override
+        public boolean contains(String key) {
+            return values.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            return new Editor() {
+                private final Map<String, Object> pending = new HashMap<>();
+                private boolean clear;
+
+                @Override
+                public Editor putString(String key, String value) {
+                    pending.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putLong(String key, long value) {
+                    pending.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putInt(String key, int value) {
+                    pending.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor remove(String key) {
+                    pending.put(key, null);
+                    return this;
+                }
+
+                @Override
+                public Editor clear() {
+                    clear = true;
+                    return this;
+                }
+
+                @Override
+                public void apply() {
+                    commit();
+                }
+
+                @Override
+                public boolean commit() {
+                    if (clear) {
+                        values.clear();
+                    }
+                    for (Map.Entry<String, Object> entry : pending.entrySet()) {
+                        if (entry.getValue() == null) {
+                            values.remove(entry.getKey());
+                        } else {
+                            values.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                    return true;
+                }
+            };
+        }
+    }
+}
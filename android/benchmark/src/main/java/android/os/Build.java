@@ -0,0 +1,12 @@
+package android.os;
+
+/**
+ * JVM stand-in for android.os.Build with fixed device identifiers.
+ */
+public final class Build {
+
+    public static final String FINGERPRINT = "jvm/benchmark";
+
+    private Build() {
+    }
+}
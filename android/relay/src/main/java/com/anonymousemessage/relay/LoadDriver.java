@@ -0,0 +1,175 @@
+package com.anonymousemessage.relay;
+
+import com.anonymousemessage.crypto.TransportKey;
+import com.anonymousemessage.network.MultiplexedConnection;
+import com.anonymousemessage.network.RelayCircuits;
+import com.anonymousemessage.network.TorTransport;
+import com.anonymousemessage.protocol.RelayProtocol;
+import com.anonymousemessage.utils.Metrics;
+import okhttp3.HttpUrl;
+
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives the client's network stack (TorTransport, RelayCircuits over
+ * MultiplexedConnection) against an in-process {@link LocalRelay}: registers
+ * accounts and checks emails with a bounded number of requests in flight,
+ * then prints throughput, latency percentiles and the Metrics snapshot.
+ *
+ *   ./gradlew :relay:loadTest --args="--accounts 5000 --concurrency 64 --circuits 2 --latency-ms 50"
+ */
+public final class LoadDriver {
+
+    private static final String RELAY_HOST = "relay.anonymousmessage.onion";
+
+    private LoadDriver() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int accounts = 2000;
+        int concurrency = 32;
+        int circuits = 2;
+        long latencyMillis = 0;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            int value = Integer.parseInt(args[i + 1]);
+            if ("--accounts".equals(args[i])) {
+                accounts = value;
+            } else if ("--concurrency".equals(args[i])) {
+                concurrency = value;
+            } else if ("--circuits".equals(args[i])) {
+                circuits = value;
+            } else if ("--latency-ms".equals(args[i])) {
+                latencyMillis = value;
+            } else {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        LocalRelay relay = new LocalRelay(new LocalRelay.Config()
+            .socksPort(0)
+            .addedLatencyMillis(latencyMillis)).start();
+        TorTransport transport = new TorTransport(
+            new Proxy(Proxy.Type.SOCKS, new InetSocketAddress("127.0.0.1", relay.socksPort())),
+            new TorTransport.Config());
+        RelayCircuits stream = new RelayCircuits(transport.dialer(RELAY_HOST, relay.streamOnionPort()), circuits);
+        Client client = new Client(TransportKey.agree(relay.publicKey()), stream);
+
+        try {
+            // One request over the HTTP endpoint too, the way sendSecureRequest goes
+            HttpUrl url = new HttpUrl.Builder().scheme("http").host(RELAY_HOST).port(relay.httpOnionPort())
+                .addPathSegment("rpc").build();
+            RelayProtocol.Response probe = client.decode(transport.post(url,
+                client.encode(RelayProtocol.checkEmail(MultiplexedConnection.newOperationId(), "probe@local"))));
+            System.out.println("HTTP probe: ok=" + probe.ok + " exists=" + probe.exists);
+
+            report("register", client.run(accounts, concurrency, true));
+            report("check_email", client.run(accounts, concurrency, false));
+            System.out.println("accounts=" + relay.handler().accountCount()
+                + " isolated circuits=" + relay.isolatedCircuits());
+            System.out.println("circuits " + stream.diagnostics());
+            for (Map.Entry<String, String> metric : Metrics.snapshot().entrySet()) {
+                System.out.println("  " + metric.getKey() + " " + metric.getValue());
+            }
+        } finally {
+            stream.close();
+            transport.shutdown();
+            relay.stop();
+        }
+    }
+
+    static final class Client {
+        final TransportKey key;
+        final RelayCircuits stream;
+
+        Client(TransportKey key, RelayCircuits stream) {
+            this.key = key;
+            this.stream = stream;
+        }
+
+        byte[] encode(byte[] request) throws Exception {
+            return key.sealRequest(request);
+        }
+
+        RelayProtocol.Response decode(byte[] response) throws Exception {
+            return RelayProtocol.readResponse(key.openResponse(response));
+        }
+
+        /**
+         * Issues count requests with at most concurrency in flight; returns per-request latency in nanos
+         */
+        Result run(int count, int concurrency, boolean register) throws Exception {
+            final Semaphore permits = new Semaphore(concurrency);
+            final long[] latencies = new long[count];
+            final List<CompletableFuture<byte[]>> futures = new ArrayList<>(count);
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                String email = "user" + i + "@load.test";
+                String operationId = MultiplexedConnection.newOperationId();
+                byte[] request = register
+                    ? RelayProtocol.register(operationId, "user" + i, email, "load-test", "load-test",
+                        System.currentTimeMillis())
+                    : RelayProtocol.checkEmail(operationId, email);
+                permits.acquire();
+                final int index = i;
+                final long sent = System.nanoTime();
+                CompletableFuture<byte[]> future = stream.request(operationId, encode(request),
+                    30, TimeUnit.SECONDS, RelayCircuits.TrafficClass.LATENCY);
+                future.whenComplete((response, error) -> {
+                    latencies[index] = System.nanoTime() - sent;
+                    permits.release();
+                });
+                futures.add(future);
+            }
+            int failed = 0;
+            for (CompletableFuture<byte[]> future : futures) {
+                try {
+                    RelayProtocol.Response response = decode(future.join());
+                    if (!response.ok || !register && !response.exists) {
+                        failed++;
+                    }
+                } catch (Exception e) {
+                    failed++;
+                }
+            }
+            return new Result(count, failed, System.nanoTime() - start, latencies);
+        }
+    }
+
+    static final class Result {
+        final int count;
+        final int failed;
+        final long elapsedNanos;
+        final long[] latencies;
+
+        Result(int count, int failed, long elapsedNanos, long[] latencies) {
+            this.count = count;
+            this.failed = failed;
+            this.elapsedNanos = elapsedNanos;
+            this.latencies = latencies;
+        }
+    }
+
+    private static void report(String name, Result result) {
+        long[] sorted = result.latencies.clone();
+        Arrays.sort(sorted);
+        double seconds = result.elapsedNanos / 1e9;
+        System.out.printf("%-12s %6d requests in %.2f s = %8.0f req/s, failed %d, p50 %.2f ms, p95 %.2f ms, p99 %.2f ms%n",
+            name, result.count, seconds, result.count / seconds, result.failed,
+            percentile(sorted, 0.50), percentile(sorted, 0.95), percentile(sorted, 0.99));
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))] / 1e6;
+    }
+}
@@ -0,0 +1,230 @@
+package com.anonymousemessage.relay;
+
+import com.anonymousemessage.crypto.KeyExchange;
+import com.anonymousemessage.utils.Metrics;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Stand-in for the relay's onion service and the local Tor SOCKS port, for
+ * end-to-end and load testing on a machine without Tor or network access.
+ *
+ * Three loopback listeners: a SOCKS5 shim in place of Tor, the relay's
+ * multiplexed stream endpoint ({@link com.anonymousemessage.network.MultiplexedConnection}
+ * framing) and an HTTP endpoint for TorService.sendSecureRequest. The shim routes
+ * any host on the onion port {@code streamOnionPort} (7000, as in relay_stream_address)
+ * to the stream endpoint and on {@code httpOnionPort} (80, as in relay_url) to
+ * the HTTP endpoint, so client code runs unchanged against it. Operations are
+ * implemented in memory by {@link RelayHandler}.
+ *
+ *   ./gradlew :relay:run --args="--socks-port 9050 --latency-ms 150"
+ */
+public final class LocalRelay {
+
+    /**
+     * Listener settings; port 0 picks a free port
+     */
+    public static final class Config {
+        int socksPort = 9050;
+        int streamOnionPort = 7000;
+        int httpOnionPort = 80;
+        int workers = 4;
+        long addedLatencyMillis;
+        byte[] privateKey;
+
+        public Config socksPort(int value) {
+            socksPort = value;
+            return this;
+        }
+
+        public Config onionPorts(int stream, int http) {
+            streamOnionPort = stream;
+            httpOnionPort = http;
+            return this;
+        }
+
+        public Config workers(int value) {
+            workers = value;
+            return this;
+        }
+
+        /**
+         * Delay added to every chunk relayed by the SOCKS shim, to mimic circuit latency
+         */
+        public Config addedLatencyMillis(long value) {
+            addedLatencyMillis = value;
+            return this;
+        }
+
+        /**
+         * The relay's X25519 private key; the client is given the public half
+         * (EncryptionService.setRelayPublicKey). Random if not set.
+         */
+        public Config privateKey(byte[] value) {
+            privateKey = value;
+            return this;
+        }
+    }
+
+    private final Config config;
+    private final RelayHandler handler;
+    private final ExecutorService workers;
+    private StreamServer streamServer;
+    private HttpServer httpServer;
+    private SocksShim socksShim;
+
+    public LocalRelay(Config config) {
+        this.config = config;
+        this.handler = new RelayHandler(config.privateKey != null ? config.privateKey
+            : KeyExchange.generateKeyPair()[0]);
+        this.workers = Executors.newFixedThreadPool(config.workers, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "RelayWorker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public LocalRelay start() throws IOException {
+        streamServer = new StreamServer(handler, workers, 0);
+        streamServer.start();
+
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 50);
+        httpServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serveHttp(exchange);
+            }
+        });
+        httpServer.setExecutor(workers);
+        httpServer.start();
+
+        Map<Integer, InetSocketAddress> routes = new HashMap<>();
+        routes.put(config.streamOnionPort, new InetSocketAddress(InetAddress.getLoopbackAddress(), streamServer.port()));
+        routes.put(config.httpOnionPort, httpServer.getAddress());
+        socksShim = new SocksShim(config.socksPort, routes, config.addedLatencyMillis);
+        socksShim.start();
+        return this;
+    }
+
+    public void stop() throws IOException {
+        socksShim.close();
+        streamServer.close();
+        httpServer.stop(0);
+        workers.shutdownNow();
+    }
+
+    public int socksPort() {
+        return socksShim.port();
+    }
+
+    public int streamOnionPort() {
+        return config.streamOnionPort;
+    }
+
+    public int httpOnionPort() {
+        return config.httpOnionPort;
+    }
+
+    /**
+     * X25519 public key clients agree their transport keys with
+     */
+    public byte[] publicKey() {
+        return handler.publicKey();
+    }
+
+    public RelayHandler handler() {
+        return handler;
+    }
+
+    /**
+     * Distinct circuits clients asked for through SOCKS isolation
+     */
+    public int isolatedCircuits() {
+        return socksShim.isolatedCircuits();
+    }
+
+    private void serveHttp(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] response;
+            try {
+                response = handler.handle(readAll(exchange.getRequestBody()));
+            } catch (Exception e) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.sendResponseHeaders(200, response.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(response);
+            out.close();
+            Metrics.counter("relay.http_requests").increment();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    static Thread daemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            bytes.write(buffer, 0, n);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Runs the relay until killed. Prints the public key the client must be given.
+     * Options: --socks-port N, --latency-ms N, --workers N, --key BASE64 (X25519 private key)
+     */
+    public static void main(String[] args) throws Exception {
+        Config config = new Config();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            if ("--socks-port".equals(args[i])) {
+                config.socksPort(Integer.parseInt(value));
+            } else if ("--latency-ms".equals(args[i])) {
+                config.addedLatencyMillis(Long.parseLong(value));
+            } else if ("--workers".equals(args[i])) {
+                config.workers(Integer.parseInt(value));
+            } else if ("--key".equals(args[i])) {
+                config.privateKey(Base64.getDecoder().decode(value));
+            } else {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        LocalRelay relay = new LocalRelay(config).start();
+        System.out.println("SOCKS5 on 127.0.0.1:" + relay.socksPort()
+            + ", onion ports " + relay.streamOnionPort() + " (stream) and " + relay.httpOnionPort() + " (HTTP)");
+        System.out.println("Relay public key: " + Base64.getEncoder().encodeToString(relay.publicKey()));
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,336 @@
+package com.anonymousemessage.relay;
+
+import com.anonymousemessage.crypto.CryptoEngine;
+import com.anonymousemessage.crypto.KeyExchange;
+import com.anonymousemessage.crypto.TransportKey;
+import com.anonymousemessage.protocol.RelayProtocol;
+import com.anonymousemessage.utils.Metrics;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The relay's operations, in memory. Requests and responses are
+ * {@link RelayProtocol} frames sealed under a {@link TransportKey}, exactly as the
+ * client's EncryptionService.encryptData produces and expects them; JSON maps
+ * from older clients are still answered in JSON.
+ *
+ * Supported operations: check_email, register, send_messages, sync.
+ */
+public final class RelayHandler {
+
+    /**
+     * A registered account
+     */
+    public static final class Account {
+        public final String username;
+        public final String email;
+        public final String passwordHash;
+        public final String publicKey;
+
+        Account(String username, String email, String passwordHash, String publicKey) {
+            this.username = username;
+            this.email = email;
+            this.passwordHash = passwordHash;
+            this.publicKey = publicKey;
+        }
+    }
+
+    // SYNC page limits, whatever the client asks for
+    static final int MAX_PAGE_RECORDS = 500;
+    static final int MAX_PAGE_BYTES = 256 * 1024;
+
+    /**
+     * A conversation's batches in sequence order, as SEND_MESSAGES stored them
+     */
+    private static final class ConversationLog {
+        private final List<Stored> records = new ArrayList<>(); // guarded by this
+        private long nextSeq = 1; // guarded by this
+
+        synchronized long append(String recipientId, int messageCount, byte[] payload) {
+            long firstSeq = nextSeq;
+            nextSeq += Math.max(1, messageCount);
+            records.add(new Stored(recipientId, firstSeq, Math.max(1, messageCount), payload));
+            return firstSeq;
+        }
+
+        /**
+         * Adds the recipient's batches with messages after afterSeq until the page is full;
+         * true if some were left out
+         */
+        synchronized boolean collect(String conversationId, String recipientId, long afterSeq,
+                                     Page page) {
+            // Records are ordered by seq: skip straight to the first one past the watermark
+            int low = 0;
+            int high = records.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                Stored record = records.get(mid);
+                if (record.firstSeq + record.messageCount - 1 <= afterSeq) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            for (int i = low; i < records.size(); i++) {
+                Stored record = records.get(i);
+                if (!record.recipientId.equals(recipientId)) {
+                    continue;
+                }
+                if (!page.add(new RelayProtocol.SyncRecord(conversationId, record.firstSeq, record.messageCount,
+                        ByteBuffer.wrap(record.payload)))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class Stored {
+        final String recipientId;
+        final long firstSeq;
+        final int messageCount;
+        final byte[] payload;
+
+        Stored(String recipientId, long firstSeq, int messageCount, byte[] payload) {
+            this.recipientId = recipientId;
+            this.firstSeq = firstSeq;
+            this.messageCount = messageCount;
+            this.payload = payload;
+        }
+    }
+
+    private static final class Page {
+        final List<RelayProtocol.SyncRecord> records = new ArrayList<>();
+        final int maxRecords;
+        int bytes;
+
+        Page(int maxRecords) {
+            this.maxRecords = maxRecords;
+        }
+
+        boolean full() {
+            return records.size() >= maxRecords || bytes >= MAX_PAGE_BYTES;
+        }
+
+        // Always takes the first record, however large, so a page is never empty
+        boolean add(RelayProtocol.SyncRecord record) {
+            if (full() || !records.isEmpty() && bytes + record.payload.remaining() > MAX_PAGE_BYTES) {
+                return false;
+            }
+            records.add(record);
+            bytes += record.payload.remaining();
+            return true;
+        }
+    }
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    // Keys derived per client ephemeral key; dropped wholesale past the cap
+    private static final int MAX_CLIENT_KEYS = 4096;
+
+    private final byte[] privateKey;
+    private final byte[] publicKey;
+    private final ConcurrentHashMap<String, SecretKey> clientKeys = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Account> accountsByEmail = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, List<byte[]>> mailboxes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ConversationLog> conversations = new ConcurrentHashMap<>();
+
+    /**
+     * privateKey is the relay's X25519 key; clients are given its public half
+     */
+    public RelayHandler(byte[] privateKey) {
+        this.privateKey = privateKey.clone();
+        this.publicKey = KeyExchange.publicKey(privateKey);
+    }
+
+    public byte[] publicKey() {
+        return publicKey.clone();
+    }
+
+    /**
+     * Decrypts a request, runs it and returns the sealed response
+     */
+    public byte[] handle(byte[] sealedRequest) throws Exception {
+        long start = System.nanoTime();
+        SecretKey transportKey = transportKeyFor(sealedRequest);
+        byte[] plaintext = TransportKey.openRequest(sealedRequest, transportKey);
+        String operation;
+        byte[] response;
+        if (RelayProtocol.isBinary(plaintext)) {
+            RelayProtocol.Request request = RelayProtocol.readRequest(ByteBuffer.wrap(plaintext));
+            operation = operationName(request.operation);
+            response = handleBinary(request);
+        } else {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> request = mapper.readValue(plaintext, Map.class);
+            operation = String.valueOf(request.get("operation"));
+            response = handleJson(operation, request);
+            Metrics.counter("relay.json_requests").increment();
+        }
+        byte[] sealed = CryptoEngine.encrypt(response, transportKey);
+        Metrics.timer("relay." + operation).recordSince(start);
+        return sealed;
+    }
+
+    private SecretKey transportKeyFor(byte[] sealedRequest) throws Exception {
+        String client = Base64.getEncoder().encodeToString(TransportKey.ephemeralKeyOf(sealedRequest));
+        SecretKey key = clientKeys.get(client);
+        if (key == null) {
+            key = TransportKey.forRequest(privateKey, publicKey, sealedRequest);
+            if (clientKeys.size() >= MAX_CLIENT_KEYS) {
+                clientKeys.clear();
+            }
+            clientKeys.put(client, key);
+        }
+        return key;
+    }
+
+    private byte[] handleBinary(RelayProtocol.Request request) {
+        switch (request.operation) {
+            case RelayProtocol.CHECK_EMAIL:
+                return RelayProtocol.checkEmailResult(request, accountsByEmail.containsKey(normalize(request.email)));
+            case RelayProtocol.REGISTER:
+                return register(request.username, request.email, request.passwordHash, request.publicKey)
+                    ? RelayProtocol.ok(request) : RelayProtocol.error(request, "Email already registered");
+            case RelayProtocol.SEND_MESSAGES:
+                byte[] payload = new byte[request.payload.remaining()];
+                request.payload.get(payload);
+                if (request.conversationId == null) {
+                    store(request.recipientId, payload); // v1 client
+                    return RelayProtocol.ok(request);
+                }
+                long firstSeq = conversation(request.conversationId)
+                    .append(request.recipientId, request.messageCount, payload);
+                return RelayProtocol.sendMessagesResult(request, firstSeq);
+            case RelayProtocol.SYNC:
+                return sync(request);
+            default:
+                return RelayProtocol.error(request, "Unknown operation " + request.operation);
+        }
+    }
+
+    // Clients from before the binary protocol
+    private byte[] handleJson(String operation, Map<String, Object> request) throws Exception {
+        Map<String, Object> response = new HashMap<>();
+        response.put("operation_id", request.get("operation_id"));
+
+        if ("check_email".equals(operation)) {
+            response.put("exists", accountsByEmail.containsKey(normalize(request.get("email"))));
+        } else if ("register".equals(operation)) {
+            if (register((String) request.get("username"), (String) request.get("email"),
+                    (String) request.get("password_hash"), (String) request.get("public_key"))) {
+                response.put("success", true);
+            } else {
+                response.put("success", false);
+                response.put("error", "Email already registered");
+            }
+        } else if ("send_messages".equals(operation)) {
+            // Jackson writes byte[] as base64 and the client maps it back the same way
+            store(String.valueOf(request.get("recipient_id")),
+                mapper.convertValue(request.get("payload"), byte[].class));
+            response.put("success", true);
+        } else {
+            response.put("success", false);
+            response.put("error", "Unknown operation " + operation);
+        }
+        return mapper.writeValueAsBytes(response);
+    }
+
+    private byte[] sync(RelayProtocol.Request request) {
+        Page page = new Page(Math.max(1, Math.min(request.pageSize, MAX_PAGE_RECORDS)));
+        boolean more = false;
+        for (Map.Entry<String, Long> watermark : request.watermarks.entrySet()) {
+            if (page.full()) {
+                more = true; // not looked at yet
+                break;
+            }
+            ConversationLog log = conversations.get(watermark.getKey());
+            if (log != null && log.collect(watermark.getKey(), request.recipientId, watermark.getValue(), page)) {
+                more = true;
+                break;
+            }
+        }
+        Metrics.counter("relay.sync_records").add(page.records.size());
+        return RelayProtocol.syncResult(request, page.records, more);
+    }
+
+    private ConversationLog conversation(String conversationId) {
+        ConversationLog log = conversations.get(conversationId);
+        if (log == null) {
+            ConversationLog created = new ConversationLog();
+            log = conversations.putIfAbsent(conversationId, created);
+            if (log == null) {
+                log = created;
+            }
+        }
+        return log;
+    }
+
+    private boolean register(String username, String email, String passwordHash, String publicKey) {
+        String normalized = normalize(email);
+        return !normalized.isEmpty() && accountsByEmail.putIfAbsent(normalized,
+            new Account(username, normalized, passwordHash, publicKey)) == null;
+    }
+
+    // The payload is end-to-end encrypted for the recipient; the relay only stores it
+    private void store(String recipientId, byte[] payload) {
+        List<byte[]> mailbox = mailboxes.get(recipientId);
+        if (mailbox == null) {
+            List<byte[]> created = new ArrayList<>();
+            mailbox = mailboxes.putIfAbsent(recipientId, created);
+            if (mailbox == null) {
+                mailbox = created;
+            }
+        }
+        synchronized (mailbox) {
+            mailbox.add(payload);
+        }
+    }
+
+    private static String operationName(byte operation) {
+        switch (operation) {
+            case RelayProtocol.CHECK_EMAIL:
+                return "check_email";
+            case RelayProtocol.REGISTER:
+                return "register";
+            case RelayProtocol.SEND_MESSAGES:
+                return "send_messages";
+            case RelayProtocol.SYNC:
+                return "sync";
+            default:
+                return "unknown";
+        }
+    }
+
+    public Account account(String email) {
+        return accountsByEmail.get(normalize(email));
+    }
+
+    public int accountCount() {
+        return accountsByEmail.size();
+    }
+
+    /**
+     * Sealed batches stored for recipient by v1 and JSON clients, oldest first
+     */
+    public List<byte[]> mailbox(String recipientId) {
+        List<byte[]> mailbox = mailboxes.get(recipientId);
+        if (mailbox == null) {
+            return new ArrayList<>();
+        }
+        synchronized (mailbox) {
+            return new ArrayList<>(mailbox);
+        }
+    }
+
+    private static String normalize(Object email) {
+        return email == null ? "" : email.toString().trim().toLowerCase(java.util.Locale.ROOT);
+    }
+}
@@ -0,0 +1,171 @@
+package com.anonymousemessage.relay;
+
+import com.anonymousemessage.utils.Metrics;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stands in for Tor's SOCKS port. Speaks SOCKS5 with no auth or any
+ * username/password (like Tor, which only uses the credentials for stream
+ * isolation), and routes CONNECT requests by destination port to local
+ * endpoints, whatever the host name, so the client's .onion addresses work
+ * unchanged. Optional added latency per direction simulates circuit RTT.
+ */
+final class SocksShim {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private final ServerSocket server;
+    private final Map<Integer, InetSocketAddress> routes;
+    private final long addedLatencyMillis;
+    private final Set<String> isolationUsers = ConcurrentHashMap.newKeySet();
+
+    SocksShim(int port, Map<Integer, InetSocketAddress> routes, long addedLatencyMillis) throws IOException {
+        this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        this.routes = routes;
+        this.addedLatencyMillis = addedLatencyMillis;
+    }
+
+    int port() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Distinct SOCKS usernames seen, i.e. the circuits Tor would have built
+     */
+    int isolatedCircuits() {
+        return isolationUsers.size();
+    }
+
+    void start() {
+        LocalRelay.daemon("SocksAccept", new Runnable() {
+            @Override
+            public void run() {
+                while (!server.isClosed()) {
+                    try {
+                        final Socket client = server.accept();
+                        LocalRelay.daemon("SocksHandshake", new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(client);
+                            }
+                        });
+                    } catch (IOException e) {
+                        // closed
+                    }
+                }
+            }
+        });
+    }
+
+    void close() throws IOException {
+        server.close();
+    }
+
+    private void serve(Socket client) {
+        try {
+            client.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(client.getInputStream());
+            OutputStream out = client.getOutputStream();
+
+            if (in.readByte() != 5) {
+                throw new IOException("Not SOCKS5");
+            }
+            byte[] methods = new byte[in.readUnsignedByte()];
+            in.readFully(methods);
+            boolean userPass = false;
+            for (byte method : methods) {
+                userPass |= method == 2;
+            }
+            out.write(new byte[] {5, (byte) (userPass ? 2 : 0)});
+            out.flush();
+            if (userPass) {
+                in.readByte(); // sub-negotiation version
+                byte[] user = new byte[in.readUnsignedByte()];
+                in.readFully(user);
+                in.readFully(new byte[in.readUnsignedByte()]); // password, ignored
+                isolationUsers.add(new String(user, US_ASCII));
+                out.write(new byte[] {1, 0});
+                out.flush();
+            }
+
+            byte[] head = new byte[4];
+            in.readFully(head);
+            int addressType = head[3];
+            if (addressType == 1) {
+                in.readFully(new byte[4]);
+            } else if (addressType == 3) {
+                in.readFully(new byte[in.readUnsignedByte()]);
+            } else if (addressType == 4) {
+                in.readFully(new byte[16]);
+            } else {
+                throw new IOException("Bad address type " + addressType);
+            }
+            int port = in.readUnsignedShort();
+
+            InetSocketAddress target = routes.get(port);
+            if (head[1] != 1 || target == null) {
+                // Command not supported / host unreachable
+                out.write(new byte[] {5, (byte) (head[1] != 1 ? 7 : 4), 0, 1, 0, 0, 0, 0, 0, 0});
+                out.flush();
+                client.close();
+                return;
+            }
+            Socket upstream = new Socket();
+            upstream.connect(target);
+            upstream.setTcpNoDelay(true);
+            out.write(new byte[] {5, 0, 0, 1, 127, 0, 0, 1, 0, 0});
+            out.flush();
+            Metrics.counter("relay.socks_streams").increment();
+
+            pipe("SocksUp", in, upstream.getOutputStream(), client, upstream);
+            pipe("SocksDown", upstream.getInputStream(), out, client, upstream);
+        } catch (IOException e) {
+            closeQuietly(client);
+        }
+    }
+
+    private void pipe(String name, final InputStream from, final OutputStream to,
+                      final Socket a, final Socket b) {
+        LocalRelay.daemon(name, new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[16 * 1024];
+                try {
+                    int n;
+                    while ((n = from.read(buffer)) > 0) {
+                        if (addedLatencyMillis > 0) {
+                            Thread.sleep(addedLatencyMillis);
+                        }
+                        to.write(buffer, 0, n);
+                        to.flush();
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // either side closed
+                } finally {
+                    closeQuietly(a);
+                    closeQuietly(b);
+                }
+            }
+        });
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.anonymousemessage.relay;
+
+import com.anonymousemessage.network.MultiplexedConnection;
+import com.anonymousemessage.utils.Metrics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Relay side of {@link MultiplexedConnection}: reads REQUEST frames, runs them
+ * on a worker pool and writes RESPONSE (or ERROR) frames in completion order.
+ * A CANCEL frame drops the request if it has not started yet.
+ */
+final class StreamServer {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final RelayHandler handler;
+    private final ExecutorService workers;
+    private final ServerSocket server;
+
+    StreamServer(RelayHandler handler, ExecutorService workers, int port) throws IOException {
+        this.handler = handler;
+        this.workers = workers;
+        this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    }
+
+    int port() {
+        return server.getLocalPort();
+    }
+
+    void start() {
+        LocalRelay.daemon("RelayStreamAccept", new Runnable() {
+            @Override
+            public void run() {
+                while (!server.isClosed()) {
+                    try {
+                        final Socket socket = server.accept();
+                        LocalRelay.daemon("RelayStream", new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        });
+                    } catch (IOException e) {
+                        // closed
+                    }
+                }
+            }
+        });
+    }
+
+    void close() throws IOException {
+        server.close();
+    }
+
+    private void serve(Socket socket) {
+        Metrics.counter("relay.stream_connections").increment();
+        final ConcurrentHashMap<UUID, Future<?>> running = new ConcurrentHashMap<>();
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            while (true) {
+                int length = in.readInt();
+                if (length < MultiplexedConnection.HEADER_LENGTH || length > MultiplexedConnection.MAX_FRAME_LENGTH) {
+                    throw new IOException("Bad frame length " + length);
+                }
+                byte type = in.readByte();
+                final UUID id = new UUID(in.readLong(), in.readLong());
+                final byte[] body = new byte[length - MultiplexedConnection.HEADER_LENGTH];
+                in.readFully(body);
+
+                if (type == MultiplexedConnection.TYPE_CANCEL) {
+                    Future<?> task = running.remove(id);
+                    if (task != null && task.cancel(false)) {
+                        Metrics.counter("relay.cancelled").increment();
+                    }
+                } else if (type == MultiplexedConnection.TYPE_REQUEST) {
+                    FutureTask<Void> task = new FutureTask<>(new Runnable() {
+                        @Override
+                        public void run() {
+                            byte responseType = MultiplexedConnection.TYPE_RESPONSE;
+                            byte[] response;
+                            try {
+                                response = handler.handle(body);
+                            } catch (Exception e) {
+                                responseType = MultiplexedConnection.TYPE_ERROR;
+                                response = String.valueOf(e.getMessage()).getBytes(UTF_8);
+                            }
+                            running.remove(id);
+                            try {
+                                synchronized (out) {
+                                    MultiplexedConnection.writeFrame(out, responseType, id, response);
+                                    out.flush();
+                                }
+                            } catch (IOException e) {
+                                // The client went away; the reader loop ends too
+                            }
+                        }
+                    }, null);
+                    // Registered before it can run, so a fast completion can't leave a stale entry
+                    running.put(id, task);
+                    workers.execute(task);
+                }
+            }
+        } catch (IOException e) {
+            // Connection closed
+        } finally {
+            for (Future<?> task : running.values()) {
+                task.cancel(false);
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.anonymousemessage.relay;
+
+import com.anonymousemessage.crypto.TransportKey;
+import com.anonymousemessage.network.MultiplexedConnection;
+import com.anonymousemessage.network.RelayCircuits;
+import com.anonymousemessage.network.TorTransport;
+import com.anonymousemessage.protocol.RelayProtocol;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The client network stack against an in-process relay, through the SOCKS shim
+ * the way it goes through Tor
+ */
+public class LocalRelayTest {
+
+    private static final String RELAY_HOST = "relay.anonymousmessage.onion";
+
+    // Far below what loopback manages; catches a stack that serialises or stalls
+    private static final double MIN_REQUESTS_PER_SECOND = 200;
+
+    private LocalRelay relay;
+    private TorTransport transport;
+    private RelayCircuits stream;
+    private LoadDriver.Client client;
+
+    @Before
+    public void startRelay() throws Exception {
+        relay = new LocalRelay(new LocalRelay.Config().socksPort(0)).start();
+        transport = new TorTransport(
+            new Proxy(Proxy.Type.SOCKS, new InetSocketAddress("127.0.0.1", relay.socksPort())),
+            new TorTransport.Config());
+        stream = new RelayCircuits(transport.dialer(RELAY_HOST, relay.streamOnionPort()), 2);
+        client = new LoadDriver.Client(TransportKey.agree(relay.publicKey()), stream);
+    }
+
+    @After
+    public void stopRelay() throws Exception {
+        stream.close();
+        transport.shutdown();
+        relay.stop();
+    }
+
+    @Test
+    public void sentBatchComesBackOnSync() throws Exception {
+        String conversationId = RelayProtocol.conversationId("alice", "bob");
+        byte[] payload = new byte[300];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+
+        RelayProtocol.Response sent = call(RelayProtocol.sendMessages(MultiplexedConnection.newOperationId(),
+            "bob", conversationId, 3, payload));
+        assertTrue(sent.error, sent.ok);
+
+        RelayProtocol.Response synced = call(RelayProtocol.sync(MultiplexedConnection.newOperationId(),
+            "bob", Collections.singletonMap(conversationId, 0L), 16));
+        assertTrue(synced.error, synced.ok);
+        assertFalse(synced.more);
+        assertEquals(1, synced.records.size());
+        RelayProtocol.SyncRecord record = synced.records.get(0);
+        assertEquals(conversationId, record.conversationId);
+        assertEquals(sent.firstSeq, record.firstSeq);
+        assertEquals(3, record.messageCount);
+        assertArrayEquals(payload, bytes(record.payload));
+
+        // Nothing new past the watermark, and nothing for the sender's own mailbox
+        synced = call(RelayProtocol.sync(MultiplexedConnection.newOperationId(),
+            "bob", Collections.singletonMap(conversationId, record.lastSeq()), 16));
+        assertEquals(0, synced.records.size());
+        synced = call(RelayProtocol.sync(MultiplexedConnection.newOperationId(),
+            "alice", Collections.singletonMap(conversationId, 0L), 16));
+        assertEquals(0, synced.records.size());
+    }
+
+    @Test
+    public void sustainsThroughputFloor() throws Exception {
+        int accounts = 2000;
+        LoadDriver.Result registered = client.run(accounts, 32, true);
+        assertEquals(0, registered.failed);
+        assertEquals(accounts, relay.handler().accountCount());
+
+        LoadDriver.Result checked = client.run(accounts, 32, false);
+        assertEquals(0, checked.failed);
+        double perSecond = checked.count / (checked.elapsedNanos / 1e9);
+        assertTrue("only " + (int) perSecond + " req/s", perSecond >= MIN_REQUESTS_PER_SECOND);
+    }
+
+    private RelayProtocol.Response call(byte[] request) throws Exception {
+        byte[] response = stream.request(MultiplexedConnection.newOperationId(), client.encode(request),
+            10, TimeUnit.SECONDS, RelayCircuits.TrafficClass.LATENCY).get(15, TimeUnit.SECONDS);
+        return client.decode(response);
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}